@@ -1,12 +1,11 @@
 package com.halj.music.library;
 
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
 
 import javax.annotation.PostConstruct;
-import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,11 +14,11 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.halj.music.library.model.elastic.Album;
-import com.halj.music.library.repository.elastic.AlbumRepository;
+import com.halj.music.library.cache.AlbumCache;
+import com.halj.music.library.service.AlbumIndexManager;
+import com.halj.music.library.service.AlbumService;
+import com.halj.music.library.snapshot.AlbumSnapshot;
 
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
 import io.swagger.v3.oas.annotations.info.Info;
@@ -27,7 +26,7 @@ import io.swagger.v3.oas.annotations.info.Info;
 /**
  * The Class LibraryApplication.
  * Main entry point of the application
- * Loads album's global library into Elasticsearch
+ * Loads album's global library into Elasticsearch, in the background, behind the albums alias
  */
 @OpenAPIDefinition(info = @Info(
                                 title = "Music Library API",
@@ -47,13 +46,20 @@ public class LibraryApplication {
     @Value("${library.albums.dataset:data/elastic/albums_sample.json}")
     private String datasetClasspath;
 
-    /** The elasticsearch operations. */
+    @Value("${library.albums.snapshot.path:}")
+    private String snapshotPath;
+
+    /** The album service. */
+    @Autowired
+    private AlbumService albumService;
+
+    /** The album index manager. */
     @Autowired
-    private ElasticsearchOperations elasticsearchOperations;
+    private AlbumIndexManager albumIndexManager;
 
-    /** The album repository. */
+    /** The album cache. */
     @Autowired
-    private AlbumRepository albumRepository;
+    private AlbumCache albumCache;
 
     /**
      * The main method.
@@ -64,43 +70,77 @@ public class LibraryApplication {
         SpringApplication.run(LibraryApplication.class, args);
     }
 
-    /**
-     * Delete index.
-     */
-    @PreDestroy
-    public void deleteIndex() {
-        this.elasticsearchOperations.indexOps(Album.class).delete();
-    }
-
     /**
      * Builds the index.
+     * The live generation keeps serving while the dataset is reloaded into a new one, which is skipped
+     * if the live generation was built from the same dataset and mapping.
+     * Meanwhile, albums are read from the catalogue snapshot of the previous run, which also feeds the album change listeners
+     * and is then rewritten if the generation changed.
      */
     @PostConstruct
     public void buildIndex() {
-        this.elasticsearchOperations.indexOps(Album.class).refresh();
+        AlbumSnapshot snapshot = openSnapshot();
+        if (snapshot != null) {
+            this.albumCache.attachSnapshot(snapshot);
+            // e.g. the embedded search backend, searchable before the albums index is read
+            this.albumService.warmUpListeners(snapshot);
+        }
 
+        this.albumIndexManager.ensureAlias();
+
+        CompletableFuture<String> live;
         if (this.doLoadAlbums) {
-            this.albumRepository.deleteAll();
-            this.albumRepository.saveAll(loadDataset());
+            // dataset is read from the classpath as a stream so that it also works from a packaged jar
+            live = this.albumIndexManager.reloadAsync(new ClassPathResource(this.datasetClasspath));
+        } else {
+            String generation = this.albumIndexManager.getLiveGeneration();
+            this.albumService.warmUpListeners(generation);
+            live = CompletableFuture.completedFuture(generation);
         }
+
+        live.whenComplete((generation, e) -> {
+            if (e != null) {
+                LOG.error("Error while loading albums dataset", e);
+            } else if (snapshot == null || !snapshot.getGeneration().equals(generation)) {
+                writeSnapshot(generation);
+            }
+            this.albumCache.detachSnapshot();
+        });
     }
 
     /**
-     * Load Json dataset as a list of Album documents
+     * Open the catalogue snapshot.
      *
-     * @return the list of Album documents
+     * @return the snapshot, null if snapshots are disabled or there is no readable snapshot
      */
-    private Collection<Album> loadDataset() {
-
-        // read JSON file and convert to Java Objects
+    private AlbumSnapshot openSnapshot() {
+        if (this.snapshotPath.isBlank() || !Files.exists(Path.of(this.snapshotPath))) {
+            return null;
+        }
         try {
-            List<Album> albums = new ObjectMapper().readValue(new ClassPathResource(this.datasetClasspath).getFile(), List.class);
-            return albums;
+            AlbumSnapshot snapshot = AlbumSnapshot.open(Path.of(this.snapshotPath));
+            LOG.info("Serving {} albums from snapshot of generation {} while the albums index loads", snapshot.size(), snapshot.getGeneration());
+            return snapshot;
         } catch (IOException ioe) {
-            LOG.error("Error while loading albums dataset", ioe);
-            ioe.printStackTrace();
+            LOG.warn("Album snapshot {} could not be read", this.snapshotPath, ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Write the catalogue snapshot, for the next start.
+     *
+     * @param generation the live generation of the albums index
+     */
+    private void writeSnapshot(final String generation) {
+        if (this.snapshotPath.isBlank() || generation == null) {
+            return;
+        }
+        try {
+            this.albumService.writeSnapshot(Path.of(this.snapshotPath), generation);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Album snapshot {} could not be written", this.snapshotPath, e);
         }
-        return Collections.emptyList();
     }
 
 }
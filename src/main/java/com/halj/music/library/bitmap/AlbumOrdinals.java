@@ -0,0 +1,159 @@
+package com.halj.music.library.bitmap;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Component;
+
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.service.AlbumChangeListener;
+
+/**
+ * The Class AlbumOrdinals.
+ * Dictionary of dense int ordinals of albums, so that sets of albums (users libraries) are held as compressed bitmaps.
+ * Ordinals are assigned to the albums of the catalogue as they are written, and to any other album id on first use.
+ * They are never reused, even when albums are deleted, since cached bitmaps may still hold them.
+ */
+@Component
+public class AlbumOrdinals implements AlbumChangeListener {
+
+    /** The ordinals by album id. */
+    private final ConcurrentHashMap<UUID, Integer> ordinals = new ConcurrentHashMap<>();
+
+    /** The album ids by ordinal, replaced when grown. */
+    private volatile UUID[] albumIds = new UUID[1024];
+
+    /** The number of assigned ordinals. */
+    private int size;
+
+    /**
+     * Gets the ordinal of an album, assigning the next one to an unknown album.
+     *
+     * @param albumId the album id
+     * @return the ordinal
+     */
+    public int getOrdinal(final UUID albumId) {
+        Integer ordinal = this.ordinals.get(albumId);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        synchronized (this) {
+            ordinal = this.ordinals.get(albumId);
+            if (ordinal != null) {
+                return ordinal;
+            }
+            if (this.size == this.albumIds.length) {
+                this.albumIds = Arrays.copyOf(this.albumIds, this.size * 2);
+            }
+            // the id is published before the ordinal, so that readers of the ordinal can always resolve it
+            this.albumIds[this.size] = albumId;
+            this.ordinals.put(albumId, this.size);
+            return this.size++;
+        }
+    }
+
+    /**
+     * Find the ordinal of an album, without assigning it.
+     *
+     * @param albumId the album id
+     * @return the ordinal, -1 if the album has none
+     */
+    public int findOrdinal(final UUID albumId) {
+        Integer ordinal = this.ordinals.get(albumId);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * Gets the album id of an ordinal.
+     *
+     * @param ordinal the ordinal
+     * @return the album id
+     */
+    public UUID getAlbumId(final int ordinal) {
+        return this.albumIds[ordinal];
+    }
+
+    /**
+     * Gets the number of assigned ordinals.
+     *
+     * @return the size
+     */
+    public int size() {
+        return this.ordinals.size();
+    }
+
+    /**
+     * Encode albums as a bitmap of their ordinals.
+     *
+     * @param albumIds the album ids
+     * @return the bitmap
+     */
+    public CompressedBitmap encode(final Collection<UUID> albumIds) {
+        int[] values = new int[albumIds.size()];
+        int i = 0;
+        for (UUID albumId : albumIds) {
+            values[i++] = getOrdinal(albumId);
+        }
+        return CompressedBitmap.of(values);
+    }
+
+    /**
+     * Gets a read-only view of the album ids of a bitmap, iterated by ordinal.
+     *
+     * @param bitmap the bitmap
+     * @return the album ids
+     */
+    public Set<UUID> asSet(final CompressedBitmap bitmap) {
+        return new AbstractSet<UUID>() {
+
+            @Override
+            public boolean contains(final Object o) {
+                return o instanceof UUID && bitmap.contains(findOrdinal((UUID) o));
+            }
+
+            @Override
+            public Iterator<UUID> iterator() {
+                PrimitiveIterator.OfInt ordinals = bitmap.iterator();
+                return new Iterator<UUID>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return ordinals.hasNext();
+                    }
+
+                    @Override
+                    public UUID next() {
+                        return getAlbumId(ordinals.nextInt());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return bitmap.getCardinality();
+            }
+        };
+    }
+
+    @Override
+    public void onAlbumsSaved(final Iterable<Album> albums) {
+        albums.forEach(album -> getOrdinal(album.getId()));
+    }
+
+    @Override
+    public void onAlbumsDeleted(final Iterable<UUID> albumIds) {
+        // ordinals are kept, libraries may still hold deleted albums
+    }
+
+    @Override
+    public void onAllAlbumsDeleted() {
+        // ordinals are kept, libraries may still hold deleted albums
+    }
+
+}
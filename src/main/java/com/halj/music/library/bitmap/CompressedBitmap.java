@@ -0,0 +1,528 @@
+package com.halj.music.library.bitmap;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/**
+ * The Class CompressedBitmap.
+ * Immutable compressed set of non negative ints (album ordinals), in the spirit of Roaring bitmaps:
+ * ints are grouped by their 16 high bits, and each group of the 16 low bits is held in a container,
+ * either a sorted char array while sparse (2 bytes per int) or a 1024 words bitmap once it holds more than 4096 ints
+ * (8 KB, at most 2 bytes per int).
+ * Set algebra is computed container by container, with word operations between bitmap containers.
+ */
+public final class CompressedBitmap {
+
+    /** The Constant EMPTY. */
+    public static final CompressedBitmap EMPTY = new CompressedBitmap(new char[0], new Object[0], 0);
+
+    /** The Constant MAX_ARRAY_SIZE, maximum number of ints of an array container. */
+    static final int MAX_ARRAY_SIZE = 4096;
+
+    /** The Constant BITMAP_WORDS, number of words of a bitmap container. */
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    /** The container keys (16 high bits), sorted. */
+    private final char[] keys;
+
+    /** The containers, aligned with keys: char[] of sorted low bits or long[] bitmaps. */
+    private final Object[] containers;
+
+    /** The number of ints. */
+    private final int cardinality;
+
+    /**
+     * Instantiates a new compressed bitmap.
+     *
+     * @param keys the container keys
+     * @param containers the containers
+     * @param cardinality the number of ints
+     */
+    private CompressedBitmap(final char[] keys, final Object[] containers, final int cardinality) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinality = cardinality;
+    }
+
+    /**
+     * Build a bitmap.
+     *
+     * @param values the non negative ints, in any order, duplicates allowed
+     * @return the bitmap
+     */
+    public static CompressedBitmap of(final int... values) {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        if (sorted.length > 0 && sorted[0] < 0) {
+            throw new IllegalArgumentException("Negative value " + sorted[0]);
+        }
+
+        Builder builder = new Builder();
+        int start = 0;
+        while (start < sorted.length) {
+            int key = sorted[start] >>> 16;
+            int end = start;
+            char[] low = new char[Math.min(sorted.length - start, 1 << 16)];
+            int size = 0;
+            while (end < sorted.length && sorted[end] >>> 16 == key) {
+                char value = (char) sorted[end++];
+                if (size == 0 || low[size - 1] != value) {
+                    low[size++] = value;
+                }
+            }
+            builder.add(key, toContainer(low, size));
+            start = end;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Check if an int belongs to the bitmap.
+     *
+     * @param value the int
+     * @return true if it belongs to the bitmap
+     */
+    public boolean contains(final int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = Arrays.binarySearch(this.keys, (char) (value >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        Object container = this.containers[index];
+        char low = (char) value;
+        if (container instanceof char[]) {
+            return Arrays.binarySearch((char[]) container, low) >= 0;
+        }
+        return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+    }
+
+    /**
+     * Gets the number of ints.
+     *
+     * @return the cardinality
+     */
+    public int getCardinality() {
+        return this.cardinality;
+    }
+
+    /**
+     * Check if the bitmap is empty.
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return this.cardinality == 0;
+    }
+
+    /**
+     * Intersection with another bitmap.
+     *
+     * @param other the other bitmap
+     * @return the ints of both bitmaps
+     */
+    public CompressedBitmap and(final CompressedBitmap other) {
+        Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < this.keys.length && j < other.keys.length) {
+            if (this.keys[i] < other.keys[j]) {
+                i++;
+            } else if (this.keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                builder.add(this.keys[i], and(this.containers[i++], other.containers[j++]));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Difference with another bitmap.
+     *
+     * @param other the other bitmap
+     * @return the ints of this bitmap not in the other one
+     */
+    public CompressedBitmap andNot(final CompressedBitmap other) {
+        Builder builder = new Builder();
+        int j = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            while (j < other.keys.length && other.keys[j] < this.keys[i]) {
+                j++;
+            }
+            if (j < other.keys.length && other.keys[j] == this.keys[i]) {
+                builder.add(this.keys[i], andNot(this.containers[i], other.containers[j]));
+            } else {
+                builder.add(this.keys[i], this.containers[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Union with another bitmap.
+     *
+     * @param other the other bitmap
+     * @return the ints of either bitmap
+     */
+    public CompressedBitmap or(final CompressedBitmap other) {
+        Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < this.keys.length || j < other.keys.length) {
+            if (j == other.keys.length || i < this.keys.length && this.keys[i] < other.keys[j]) {
+                builder.add(this.keys[i], this.containers[i++]);
+            } else if (i == this.keys.length || this.keys[i] > other.keys[j]) {
+                builder.add(other.keys[j], other.containers[j++]);
+            } else {
+                builder.add(this.keys[i], or(this.containers[i++], other.containers[j++]));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Iterate over the ints, in increasing order.
+     *
+     * @param action the action
+     */
+    public void forEach(final IntConsumer action) {
+        for (int i = 0; i < this.keys.length; i++) {
+            int high = this.keys[i] << 16;
+            Object container = this.containers[i];
+            if (container instanceof char[]) {
+                for (char low : (char[]) container) {
+                    action.accept(high | low);
+                }
+            } else {
+                long[] words = (long[]) container;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        action.accept(high | w << 6 | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets an iterator over the ints, in increasing order.
+     *
+     * @return the iterator
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+
+            /** The current container index. */
+            private int container = -1;
+
+            /** The ints of the current container. */
+            private int[] values = new int[0];
+
+            /** The position in values. */
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                while (this.position == this.values.length) {
+                    if (++this.container == CompressedBitmap.this.keys.length) {
+                        return false;
+                    }
+                    this.values = toArray(CompressedBitmap.this.keys[this.container],
+                            CompressedBitmap.this.containers[this.container]);
+                    this.position = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return this.values[this.position++];
+            }
+        };
+    }
+
+    /**
+     * Gets the ints, in increasing order.
+     *
+     * @return the ints
+     */
+    public int[] toArray() {
+        int[] values = new int[this.cardinality];
+        int[] size = { 0 };
+        forEach(value -> values[size[0]++] = value);
+        return values;
+    }
+
+    /**
+     * Gets the estimated heap size of the containers.
+     *
+     * @return the size in bytes
+     */
+    public long getSizeInBytes() {
+        long size = 2L * this.keys.length;
+        for (Object container : this.containers) {
+            size += container instanceof char[] ? 2L * ((char[]) container).length : 8L * BITMAP_WORDS;
+        }
+        return size;
+    }
+
+    private static int[] toArray(final char key, final Object container) {
+        int high = key << 16;
+        if (container instanceof char[]) {
+            char[] lows = (char[]) container;
+            int[] values = new int[lows.length];
+            for (int i = 0; i < lows.length; i++) {
+                values[i] = high | lows[i];
+            }
+            return values;
+        }
+        long[] words = (long[]) container;
+        int[] values = new int[cardinality(words)];
+        int size = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = words[w];
+            while (word != 0) {
+                values[size++] = high | w << 6 | Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return values;
+    }
+
+    private static Object and(final Object a, final Object b) {
+        if (a instanceof char[] && b instanceof char[]) {
+            char[] x = (char[]) a;
+            char[] y = (char[]) b;
+            char[] result = new char[Math.min(x.length, y.length)];
+            int size = 0;
+            int i = 0;
+            int j = 0;
+            while (i < x.length && j < y.length) {
+                if (x[i] < y[j]) {
+                    i++;
+                } else if (x[i] > y[j]) {
+                    j++;
+                } else {
+                    result[size++] = x[i++];
+                    j++;
+                }
+            }
+            return toContainer(result, size);
+        }
+        if (a instanceof char[] || b instanceof char[]) {
+            char[] lows = (char[]) (a instanceof char[] ? a : b);
+            long[] words = (long[]) (a instanceof char[] ? b : a);
+            return filter(lows, words, true);
+        }
+        long[] x = (long[]) a;
+        long[] y = (long[]) b;
+        long[] words = new long[BITMAP_WORDS];
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            words[w] = x[w] & y[w];
+        }
+        return toContainer(words);
+    }
+
+    private static Object andNot(final Object a, final Object b) {
+        if (a instanceof char[] && b instanceof char[]) {
+            char[] x = (char[]) a;
+            char[] y = (char[]) b;
+            char[] result = new char[x.length];
+            int size = 0;
+            int j = 0;
+            for (char value : x) {
+                while (j < y.length && y[j] < value) {
+                    j++;
+                }
+                if (j == y.length || y[j] != value) {
+                    result[size++] = value;
+                }
+            }
+            return toContainer(result, size);
+        }
+        if (a instanceof char[]) {
+            return filter((char[]) a, (long[]) b, false);
+        }
+        long[] words = ((long[]) a).clone();
+        if (b instanceof char[]) {
+            for (char low : (char[]) b) {
+                words[low >>> 6] &= ~(1L << low);
+            }
+        } else {
+            long[] y = (long[]) b;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                words[w] &= ~y[w];
+            }
+        }
+        return toContainer(words);
+    }
+
+    private static Object or(final Object a, final Object b) {
+        if (a instanceof char[] && b instanceof char[]) {
+            char[] x = (char[]) a;
+            char[] y = (char[]) b;
+            char[] result = new char[x.length + y.length];
+            int size = 0;
+            int i = 0;
+            int j = 0;
+            while (i < x.length || j < y.length) {
+                if (j == y.length || i < x.length && x[i] < y[j]) {
+                    result[size++] = x[i++];
+                } else if (i == x.length || x[i] > y[j]) {
+                    result[size++] = y[j++];
+                } else {
+                    result[size++] = x[i++];
+                    j++;
+                }
+            }
+            return toContainer(result, size);
+        }
+        long[] words = a instanceof long[] ? ((long[]) a).clone() : toWords((char[]) a);
+        if (b instanceof char[]) {
+            for (char low : (char[]) b) {
+                words[low >>> 6] |= 1L << low;
+            }
+        } else {
+            long[] y = (long[]) b;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                words[w] |= y[w];
+            }
+        }
+        return toContainer(words);
+    }
+
+    /**
+     * Keep the array ints which are (or are not) in a bitmap container.
+     *
+     * @param lows the array container
+     * @param words the bitmap container
+     * @param present true to keep the ints in the bitmap, false to keep the others
+     * @return the container, null if empty
+     */
+    private static Object filter(final char[] lows, final long[] words, final boolean present) {
+        char[] result = new char[lows.length];
+        int size = 0;
+        for (char low : lows) {
+            if (((words[low >>> 6] & (1L << low)) != 0) == present) {
+                result[size++] = low;
+            }
+        }
+        return toContainer(result, size);
+    }
+
+    private static long[] toWords(final char[] lows) {
+        long[] words = new long[BITMAP_WORDS];
+        for (char low : lows) {
+            words[low >>> 6] |= 1L << low;
+        }
+        return words;
+    }
+
+    /**
+     * Build the container of sorted distinct low bits, as a bitmap when too large for an array.
+     *
+     * @param lows the low bits
+     * @param size the number of low bits
+     * @return the container, null if empty
+     */
+    private static Object toContainer(final char[] lows, final int size) {
+        if (size == 0) {
+            return null;
+        }
+        if (size > MAX_ARRAY_SIZE) {
+            long[] words = new long[BITMAP_WORDS];
+            for (int i = 0; i < size; i++) {
+                words[lows[i] >>> 6] |= 1L << lows[i];
+            }
+            return words;
+        }
+        return size == lows.length ? lows : Arrays.copyOf(lows, size);
+    }
+
+    /**
+     * Build the container of a bitmap, as an array when sparse enough.
+     *
+     * @param words the bitmap
+     * @return the container, null if empty
+     */
+    private static Object toContainer(final long[] words) {
+        int cardinality = cardinality(words);
+        if (cardinality == 0) {
+            return null;
+        }
+        if (cardinality > MAX_ARRAY_SIZE) {
+            return words;
+        }
+        char[] lows = new char[cardinality];
+        int size = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = words[w];
+            while (word != 0) {
+                lows[size++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return lows;
+    }
+
+    private static int cardinality(final long[] words) {
+        int cardinality = 0;
+        for (long word : words) {
+            cardinality += Long.bitCount(word);
+        }
+        return cardinality;
+    }
+
+    private static int cardinality(final Object container) {
+        return container instanceof char[] ? ((char[]) container).length : cardinality((long[]) container);
+    }
+
+    /**
+     * Accumulates containers by increasing key, skipping empty ones.
+     */
+    private static final class Builder {
+
+        /** The keys. */
+        private char[] keys = new char[4];
+
+        /** The containers. */
+        private Object[] containers = new Object[4];
+
+        /** The number of containers. */
+        private int size;
+
+        /** The number of ints. */
+        private int cardinality;
+
+        private void add(final int key, final Object container) {
+            if (container == null) {
+                return;
+            }
+            if (this.size == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+                this.containers = Arrays.copyOf(this.containers, this.size * 2);
+            }
+            this.keys[this.size] = (char) key;
+            this.containers[this.size++] = container;
+            this.cardinality += cardinality(container);
+        }
+
+        private CompressedBitmap build() {
+            if (this.size == 0) {
+                return EMPTY;
+            }
+            return new CompressedBitmap(Arrays.copyOf(this.keys, this.size), Arrays.copyOf(this.containers, this.size),
+                    this.cardinality);
+        }
+    }
+
+}
@@ -0,0 +1,418 @@
+package com.halj.music.library.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.halj.music.library.model.CacheStatistics;
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.repository.elastic.AlbumRepository;
+import com.halj.music.library.snapshot.AlbumSnapshot;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * The Class AlbumCache.
+ * Bounded read-through cache of albums in front of the Elasticsearch repository.
+ * Eviction is size based and frequency aware (Caffeine's W-TinyLFU policy), so popular albums stay cached.
+ * Cache statistics are published as "albums" cache metrics.
+ * Large sets of cache misses are loaded in fixed-size multi-get chunks, fetched in parallel with a bounded number
+ * of requests in flight, so that a huge library does not end up in a single request on one coordinating node.
+ * At startup, a catalogue snapshot can be attached to serve cache misses locally until the albums index is loaded.
+ * Loads are ordered against the writes: an album loaded before a concurrent write never stays cached after it.
+ */
+@Component
+public class AlbumCache implements MeterBinder {
+
+    /** The album repository. */
+    private AlbumRepository albumRepository;
+
+    /** The albums cached by id. */
+    private Cache<UUID, Album> cache;
+
+    /** The number of album ids per multi-get request. */
+    private int chunkSize;
+
+    /** The maximum number of multi-get requests in flight, for a single read and overall. */
+    private int parallelism;
+
+    /** The multi-get executor. */
+    private ExecutorService executor;
+
+    /** The catalogue snapshot serving cache misses, null once detached. */
+    private volatile AlbumSnapshot snapshot;
+
+    /** The albums written since the snapshot was attached, never served from it. */
+    private Set<UUID> overridden = ConcurrentHashMap.newKeySet();
+
+    /** The number of writes, counted before the albums written are invalidated. */
+    private AtomicLong writes = new AtomicLong();
+
+    /**
+     * Instantiates a new album cache, with default multi-get chunking.
+     *
+     * @param albumRepository the album repository
+     * @param maximumSize the maximum number of cached albums
+     */
+    public AlbumCache(AlbumRepository albumRepository, long maximumSize) {
+        this(albumRepository, maximumSize, 1000, 4);
+    }
+
+    /**
+     * Instantiates a new album cache.
+     *
+     * @param albumRepository the album repository
+     * @param maximumSize the maximum number of cached albums
+     * @param chunkSize the number of album ids per multi-get request
+     * @param parallelism the maximum number of multi-get requests in flight, for a single read and overall
+     */
+    @Autowired
+    public AlbumCache(AlbumRepository albumRepository,
+            @Value("${library.albums.cache.max-size:100000}") long maximumSize,
+            @Value("${library.albums.multi-get.chunk-size:1000}") int chunkSize,
+            @Value("${library.albums.multi-get.parallelism:4}") int parallelism) {
+        super();
+        this.albumRepository = albumRepository;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.executor = Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory("album-multi-get-"));
+    }
+
+    /**
+     * Shutdown the multi-get executor.
+     */
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, this.cache, "albums");
+    }
+
+    /**
+     * Attach a catalogue snapshot, serving cache misses until it is detached.
+     * Albums served from the snapshot are not cached, so that they do not outlive it.
+     *
+     * @param snapshot the snapshot
+     */
+    public void attachSnapshot(final AlbumSnapshot snapshot) {
+        this.overridden.clear();
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Detach the catalogue snapshot, cache misses are loaded from the repository again.
+     */
+    public void detachSnapshot() {
+        this.snapshot = null;
+        this.overridden.clear();
+    }
+
+    /**
+     * Gets an album, loading it from the snapshot or the repository on a cache miss.
+     * The album is loaded under the lock of its cache entry, so an invalidation waits for the load, then removes it.
+     *
+     * @param albumId the album id
+     * @return the optional album
+     */
+    public Optional<Album> get(final UUID albumId) {
+        if (this.snapshot != null && this.cache.asMap().get(albumId) == null) {
+            Optional<Album> snapshotAlbum = fromSnapshot(albumId);
+            if (snapshotAlbum.isPresent()) {
+                return snapshotAlbum;
+            }
+        }
+
+        return Optional.ofNullable(this.cache.get(albumId, id -> this.albumRepository.findById(id).orElse(null)));
+    }
+
+    /**
+     * Gets the number of writes so far, to be taken before loading an album outside of the cache.
+     *
+     * @return the number of writes
+     */
+    public long getWrites() {
+        return this.writes.get();
+    }
+
+    /**
+     * Puts an album loaded outside of the cache, e.g. by a reactive read. It is invalidated again if an album was
+     * written since the load started, as the loaded album may be older than the write.
+     *
+     * @param album the album
+     * @param writes the number of writes taken before the load
+     */
+    public void putLoaded(final Album album, final long writes) {
+        this.cache.put(album.getId(), album);
+        if (this.writes.get() != writes) {
+            this.cache.invalidate(album.getId());
+        }
+    }
+
+    /**
+     * Gets an album if it is cached, never reaching the repository.
+     *
+     * @param albumId the album id
+     * @return the optional album
+     */
+    public Optional<Album> getIfPresent(final UUID albumId) {
+        return Optional.ofNullable(this.cache.getIfPresent(albumId));
+    }
+
+    /**
+     * Gets albums, loading the cache misses from the repository with chunked parallel multi-gets.
+     * Albums are returned in the iteration order of the given ids, unknown ids are skipped.
+     *
+     * @param albumIds the album ids
+     * @return the albums
+     */
+    public List<Album> getAll(final Collection<UUID> albumIds) {
+        if (albumIds.size() <= this.chunkSize) {
+            return getChunk(albumIds);
+        }
+
+        List<Album> albums = new ArrayList<>(albumIds.size());
+        getAll(albumIds, albums::addAll);
+        return albums;
+    }
+
+    /**
+     * Gets albums chunk by chunk, loading the cache misses of up to "parallelism" chunks concurrently.
+     * Chunks are handed to the consumer as soon as they are loaded, in the iteration order of the given ids,
+     * so a chunk loaded early waits for the chunks before it. Unknown ids are skipped.
+     *
+     * @param albumIds the album ids
+     * @param chunkConsumer the consumer of the chunks of albums, called from the calling thread
+     */
+    public void getAll(final Collection<UUID> albumIds, final Consumer<List<Album>> chunkConsumer) {
+        List<List<UUID>> chunks = new ArrayList<>(albumIds.size() / this.chunkSize + 1);
+        List<UUID> chunk = new ArrayList<>(this.chunkSize);
+        for (UUID albumId : albumIds) {
+            chunk.add(albumId);
+            if (chunk.size() == this.chunkSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(this.chunkSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+
+        // sliding window of in-flight chunks: the oldest one is consumed before the next one is submitted
+        List<Future<List<Album>>> inFlight = new ArrayList<>(chunks.size());
+        try {
+            int submitted = 0;
+            for (int consumed = 0; consumed < chunks.size(); consumed++) {
+                while (submitted < chunks.size() && submitted - consumed < this.parallelism) {
+                    List<UUID> ids = chunks.get(submitted++);
+                    inFlight.add(this.executor.submit(() -> getChunk(ids)));
+                }
+                chunkConsumer.accept(await(inFlight.get(consumed)));
+            }
+        } finally {
+            inFlight.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * Puts an album in cache.
+     *
+     * @param album the album
+     */
+    public void put(final Album album) {
+        override(album.getId());
+        this.writes.incrementAndGet();
+        this.cache.put(album.getId(), album);
+    }
+
+    /**
+     * Invalidates an album.
+     *
+     * @param albumId the album id
+     */
+    public void invalidate(final UUID albumId) {
+        override(albumId);
+        this.writes.incrementAndGet();
+        this.cache.invalidate(albumId);
+    }
+
+    /**
+     * Invalidates albums.
+     *
+     * @param albumIds the album ids
+     */
+    public void invalidateAll(final Iterable<UUID> albumIds) {
+        if (this.snapshot != null) {
+            albumIds.forEach(this::override);
+        }
+        this.writes.incrementAndGet();
+        this.cache.invalidateAll(albumIds);
+    }
+
+    /**
+     * Invalidates all albums, detaching the snapshot.
+     */
+    public void invalidateAll() {
+        detachSnapshot();
+        this.writes.incrementAndGet();
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * Gets the cache statistics.
+     *
+     * @return the cache statistics
+     */
+    public CacheStatistics getStatistics() {
+        CacheStats stats = this.cache.stats();
+
+        return new CacheStatistics(this.cache.estimatedSize(),
+                stats.hitCount(),
+                stats.missCount(),
+                stats.evictionCount());
+    }
+
+    /**
+     * Gets a chunk of albums, loading all its cache misses from the repository with a single multi-get.
+     * Unlike single loads, bulk loads are not made under the entry locks: the albums loaded are invalidated again
+     * if an album was written since the load started.
+     *
+     * @param albumIds the album ids
+     * @return the albums, in the iteration order of the given ids
+     */
+    private List<Album> getChunk(final Collection<UUID> albumIds) {
+        long writesBefore = this.writes.get();
+        Set<UUID> loaded = ConcurrentHashMap.newKeySet();
+        Function<Iterable<? extends UUID>, Map<UUID, Album>> loader = missing -> {
+            Map<UUID, Album> found = load(missing);
+            loaded.addAll(found.keySet());
+            return found;
+        };
+
+        Map<UUID, Album> albums;
+        if (this.snapshot == null) {
+            albums = this.cache.getAll(albumIds, loader);
+        } else {
+            albums = new HashMap<>();
+            List<UUID> missing = new ArrayList<>(albumIds.size());
+            for (UUID albumId : albumIds) {
+                Album album = this.cache.asMap().get(albumId);
+                Optional<Album> snapshotAlbum = album == null ? fromSnapshot(albumId) : Optional.empty();
+                if (snapshotAlbum.isPresent()) {
+                    albums.put(albumId, snapshotAlbum.get());
+                } else {
+                    missing.add(albumId);
+                }
+            }
+            albums.putAll(this.cache.getAll(missing, loader));
+        }
+
+        // the writes are counted before their invalidations: either the invalidation follows the puts of the loaded
+        // albums, or the write is seen here
+        if (!loaded.isEmpty() && this.writes.get() != writesBefore) {
+            this.cache.invalidateAll(loaded);
+        }
+
+        List<Album> ordered = new ArrayList<>(albums.size());
+        albumIds.forEach(albumId -> {
+            Album album = albums.get(albumId);
+            if (album != null) {
+                ordered.add(album);
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Gets an album from the attached snapshot, unless it was written since the snapshot was attached.
+     *
+     * @param albumId the album id
+     * @return the optional album
+     */
+    private Optional<Album> fromSnapshot(final UUID albumId) {
+        AlbumSnapshot current = this.snapshot;
+        if (current == null || this.overridden.contains(albumId)) {
+            return Optional.empty();
+        }
+        return current.get(albumId);
+    }
+
+    /**
+     * Record that an album was written, so that it is no longer served from the snapshot.
+     *
+     * @param albumId the album id
+     */
+    private void override(final UUID albumId) {
+        if (this.snapshot != null) {
+            this.overridden.add(albumId);
+        }
+    }
+
+    /**
+     * Waits for a chunk, rethrowing the error it failed with.
+     *
+     * @param future the chunk future
+     * @return the chunk of albums
+     */
+    private static List<Album> await(final Future<List<Album>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading albums", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Albums could not be loaded", e.getCause());
+        }
+    }
+
+    /**
+     * Loads missing albums from the repository.
+     *
+     * @param albumIds the album ids missing in cache
+     * @return the albums found by id
+     */
+    private Map<UUID, Album> load(final Iterable<? extends UUID> albumIds) {
+        Set<UUID> missing = new LinkedHashSet<>();
+        albumIds.forEach(missing::add);
+
+        Map<UUID, Album> loaded = new HashMap<>();
+        this.albumRepository.findAllById(missing).forEach(album -> loaded.put(album.getId(), album));
+        return loaded;
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.halj.music.library.cache;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.halj.music.library.bitmap.AlbumOrdinals;
+import com.halj.music.library.bitmap.CompressedBitmap;
+import com.halj.music.library.model.CacheStatistics;
+import com.halj.music.library.model.User;
+import com.halj.music.library.repository.UserLibraryRepository;
+import com.halj.music.library.repository.UserRepository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * The Class UserCache.
+ * Bounded read-through cache of users and of their libraries (album ids), in front of the H2 database.
+ * Users are cached without their library, libraries are cached apart, so that a user check does not load the library.
+ * Libraries are held as compressed bitmaps of album ordinals, a few bytes per album instead of a set of UUIDs. Cached values are detached and immutable copies.
+ * Users and libraries are not only written through JPA (libraries are updated with JDBC statements), so writers must
+ * invalidate them explicitly. Entries also expire after a while, in case the database is written by another process.
+ * Cache statistics are published as "users" and "user-libraries" cache metrics.
+ */
+@Component
+public class UserCache implements MeterBinder {
+
+    /** The user repository. */
+    private UserRepository userRepository;
+
+    /** The user library repository. */
+    private UserLibraryRepository userLibraryRepository;
+
+    /** The users cached by id, without their library. */
+    private Cache<Long, User> users;
+
+    /** The album ordinals. */
+    private AlbumOrdinals albumOrdinals;
+
+    /** The libraries cached by user id. */
+    private Cache<Long, CompressedBitmap> libraries;
+
+    /**
+     * Instantiates a new user cache.
+     *
+     * @param userRepository the user repository
+     * @param userLibraryRepository the user library repository
+     * @param albumOrdinals the album ordinals
+     * @param maximumSize the maximum number of cached users, and of cached libraries
+     * @param expireAfterWrite the time entries are kept after being loaded
+     */
+    public UserCache(UserRepository userRepository, UserLibraryRepository userLibraryRepository, AlbumOrdinals albumOrdinals,
+            @Value("${library.users.cache.max-size:10000}") long maximumSize,
+            @Value("${library.users.cache.expire-after-write:10m}") Duration expireAfterWrite) {
+        super();
+        this.userRepository = userRepository;
+        this.userLibraryRepository = userLibraryRepository;
+        this.albumOrdinals = albumOrdinals;
+        this.users = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+        this.libraries = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, this.users, "users");
+        CaffeineCacheMetrics.monitor(registry, this.libraries, "user-libraries");
+    }
+
+    /**
+     * Gets a user with its library.
+     *
+     * @param userId the user id
+     * @return the user, empty if it does not exist
+     */
+    public Optional<User> getUser(final long userId) {
+        return findUser(userId).map(user -> {
+            User withLibrary = new User(user.getId(), user.getName(), user.getEmail(), getAlbumIds(userId));
+            withLibrary.setLibraryVersion(user.getLibraryVersion());
+            return withLibrary;
+        });
+    }
+
+    /**
+     * Check if a user exists.
+     *
+     * @param userId the user id
+     * @return true if the user exists
+     */
+    public boolean exists(final long userId) {
+        return findUser(userId).isPresent();
+    }
+
+    /**
+     * Gets the ids of the albums of a user library.
+     *
+     * @param userId the user id
+     * @return the unmodifiable album ids, iterated by album ordinal, empty if the user does not exist
+     */
+    public Set<UUID> getAlbumIds(final long userId) {
+        return this.albumOrdinals.asSet(getLibrary(userId));
+    }
+
+    /**
+     * Gets a user library, as a bitmap of album ordinals.
+     *
+     * @param userId the user id
+     * @return the library bitmap, empty if the user does not exist
+     */
+    public CompressedBitmap getLibrary(final long userId) {
+        return this.libraries.get(userId, id -> this.albumOrdinals.encode(this.userLibraryRepository.findAlbumIds(id)));
+    }
+
+    /**
+     * Invalidates a user and its library. Within a transaction, they are invalidated again once it is committed,
+     * so that a concurrent read of the uncommitted state does not stay cached.
+     *
+     * @param userId the user id
+     */
+    public void invalidate(final long userId) {
+        evict(userId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(final int status) {
+                    evict(userId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Invalidates all users and libraries.
+     */
+    public void invalidateAll() {
+        this.users.invalidateAll();
+        this.libraries.invalidateAll();
+    }
+
+    /**
+     * Gets the statistics of the users cache.
+     *
+     * @return the cache statistics
+     */
+    public CacheStatistics getStatistics() {
+        return toStatistics(this.users);
+    }
+
+    /**
+     * Gets the statistics of the libraries cache.
+     *
+     * @return the cache statistics
+     */
+    public CacheStatistics getLibraryStatistics() {
+        return toStatistics(this.libraries);
+    }
+
+    /**
+     * Find a user, without its library, loading it from the repository on a cache miss. Unknown users are not cached.
+     *
+     * @param userId the user id
+     * @return the user
+     */
+    private Optional<User> findUser(final long userId) {
+        return Optional.ofNullable(this.users.get(userId, id -> this.userRepository.findById(id)
+                .map(UserCache::detach)
+                .orElse(null)));
+    }
+
+    /**
+     * Evicts a user and its library.
+     *
+     * @param userId the user id
+     */
+    private void evict(final long userId) {
+        this.users.invalidate(userId);
+        this.libraries.invalidate(userId);
+    }
+
+    /**
+     * Copy the fields of a user entity, leaving its library collection unloaded.
+     *
+     * @param user the user entity
+     * @return the detached user
+     */
+    private static User detach(final User user) {
+        User detached = new User(user.getId(), user.getName(), user.getEmail(), Collections.emptySet());
+        detached.setLibraryVersion(user.getLibraryVersion());
+        return detached;
+    }
+
+    private static CacheStatistics toStatistics(final Cache<?, ?> cache) {
+        CacheStats stats = cache.stats();
+
+        return new CacheStatistics(cache.estimatedSize(),
+                stats.hitCount(),
+                stats.missCount(),
+                stats.evictionCount());
+    }
+
+}
@@ -10,6 +10,10 @@ import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
 import org.springframework.data.elasticsearch.repository.config.EnableElasticsearchRepositories;
 
+import com.halj.music.library.metrics.ElasticsearchOperationsMetrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
 /**
  * The Class ElasticConfig.
  * Configuration for Elasticsearch client
@@ -35,6 +39,16 @@ public class ElasticConfig {
     @Value("${elasticsearch.auth.password:password}")
     private String password;
 
+    /**
+     * Client configuration, shared by the blocking and the reactive clients.
+     *
+     * @return the client configuration
+     */
+    @Bean
+    public ClientConfiguration clientConfiguration() {
+        return this.authentication ? authenticationClientConfiguration() : simpleClientConfiguration();
+    }
+
     /**
      * Client.
      *
@@ -42,9 +56,7 @@ public class ElasticConfig {
      */
     @Bean
     public RestHighLevelClient client() {
-        ClientConfiguration clientConfiguration = this.authentication ? authenticationClientConfiguration() : simpleClientConfiguration();
-
-        return RestClients.create(clientConfiguration).rest();
+        return RestClients.create(clientConfiguration()).rest();
     }
 
     private ClientConfiguration simpleClientConfiguration() {
@@ -62,12 +74,13 @@ public class ElasticConfig {
     }
 
     /**
-     * Elasticsearch template.
+     * Elasticsearch template, timed.
      *
+     * @param meterRegistry the meter registry
      * @return the elasticsearch operations
      */
     @Bean
-    public ElasticsearchOperations elasticsearchTemplate() {
-        return new ElasticsearchRestTemplate(client());
+    public ElasticsearchOperations elasticsearchTemplate(MeterRegistry meterRegistry) {
+        return ElasticsearchOperationsMetrics.monitor(new ElasticsearchRestTemplate(client()), meterRegistry);
     }
 }
@@ -0,0 +1,27 @@
+package com.halj.music.library.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * The Class MetricsConfig.
+ * Configuration for metrics: enables @Timed on services and repositories
+ */
+@Configuration
+public class MetricsConfig {
+
+    /**
+     * Timed aspect.
+     *
+     * @param meterRegistry the meter registry
+     * @return the timed aspect
+     */
+    @Bean
+    public TimedAspect timedAspect(MeterRegistry meterRegistry) {
+        return new TimedAspect(meterRegistry);
+    }
+
+}
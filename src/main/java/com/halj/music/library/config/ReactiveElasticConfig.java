@@ -0,0 +1,46 @@
+package com.halj.music.library.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.elasticsearch.client.ClientConfiguration;
+import org.springframework.data.elasticsearch.client.reactive.ReactiveElasticsearchClient;
+import org.springframework.data.elasticsearch.client.reactive.ReactiveRestClients;
+import org.springframework.data.elasticsearch.core.ReactiveElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.ReactiveElasticsearchTemplate;
+import org.springframework.data.elasticsearch.core.convert.ElasticsearchConverter;
+
+/**
+ * The Class ReactiveElasticConfig.
+ * Configuration for the reactive Elasticsearch client, enabled with library.reactive.enabled=true.
+ * The client runs on a small fixed set of event loop threads, whatever the number of requests in flight.
+ */
+@Configuration
+@ConditionalOnProperty(name = "library.reactive.enabled", havingValue = "true")
+public class ReactiveElasticConfig {
+
+    /**
+     * Reactive client.
+     *
+     * @param clientConfiguration the client configuration
+     * @return the reactive elasticsearch client
+     */
+    @Bean
+    public ReactiveElasticsearchClient reactiveElasticsearchClient(ClientConfiguration clientConfiguration) {
+        return ReactiveRestClients.create(clientConfiguration);
+    }
+
+    /**
+     * Reactive elasticsearch template, sharing the entity mapping of the blocking template.
+     *
+     * @param reactiveElasticsearchClient the reactive elasticsearch client
+     * @param elasticsearchConverter the elasticsearch converter
+     * @return the reactive elasticsearch operations
+     */
+    @Bean
+    public ReactiveElasticsearchOperations reactiveElasticsearchTemplate(ReactiveElasticsearchClient reactiveElasticsearchClient,
+            ElasticsearchConverter elasticsearchConverter) {
+        return new ReactiveElasticsearchTemplate(reactiveElasticsearchClient, elasticsearchConverter);
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.halj.music.library.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * The Class BulkJobNotFoundException.
+ */
+@ResponseStatus(value = HttpStatus.NOT_FOUND)
+public class BulkJobNotFoundException extends RuntimeException {
+
+    /**
+     * serialVersionUID
+     */
+    private static final long serialVersionUID = -3325784201395170452L;
+
+    /**
+     * Instantiates a new bulk job not found exception.
+     */
+    public BulkJobNotFoundException() {
+        super();
+    }
+
+    /**
+     * Instantiates a new bulk job not found exception.
+     *
+     * @param message the message
+     * @param cause the cause
+     */
+    public BulkJobNotFoundException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Instantiates a new bulk job not found exception.
+     *
+     * @param message the message
+     */
+    public BulkJobNotFoundException(final String message) {
+        super(message);
+    }
+
+    /**
+     * Instantiates a new bulk job not found exception.
+     *
+     * @param cause the cause
+     */
+    public BulkJobNotFoundException(final Throwable cause) {
+        super(cause);
+    }
+}
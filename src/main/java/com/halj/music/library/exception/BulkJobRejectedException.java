@@ -0,0 +1,52 @@
+package com.halj.music.library.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * The Class BulkJobRejectedException.
+ * Thrown when a bulk job is submitted while as many jobs as allowed are already running or queued.
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+public class BulkJobRejectedException extends RuntimeException {
+
+    /**
+     * serialVersionUID
+     */
+    private static final long serialVersionUID = 4471093526823140561L;
+
+    /**
+     * Instantiates a new bulk job rejected exception.
+     */
+    public BulkJobRejectedException() {
+        super();
+    }
+
+    /**
+     * Instantiates a new bulk job rejected exception.
+     *
+     * @param message the message
+     * @param cause the cause
+     */
+    public BulkJobRejectedException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Instantiates a new bulk job rejected exception.
+     *
+     * @param message the message
+     */
+    public BulkJobRejectedException(final String message) {
+        super(message);
+    }
+
+    /**
+     * Instantiates a new bulk job rejected exception.
+     *
+     * @param cause the cause
+     */
+    public BulkJobRejectedException(final Throwable cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,35 @@
+package com.halj.music.library.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * The Class InvalidRequestException.
+ */
+@ResponseStatus(value = HttpStatus.BAD_REQUEST)
+public class InvalidRequestException extends RuntimeException {
+
+    /**
+     * serialVersionUID
+     */
+    private static final long serialVersionUID = -2387710293455118842L;
+
+    /**
+     * Instantiates a new invalid request exception.
+     *
+     * @param message the message
+     * @param cause the cause
+     */
+    public InvalidRequestException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+
+    /**
+     * Instantiates a new invalid request exception.
+     *
+     * @param message the message
+     */
+    public InvalidRequestException(final String message) {
+        super(message);
+    }
+}
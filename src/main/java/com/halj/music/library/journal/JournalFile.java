@@ -0,0 +1,274 @@
+package com.halj.music.library.journal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class JournalFile.
+ * Append-only log of library changes, split in numbered segments. Each record holds a sequence number, a user id, an
+ * operation and album ids, framed by its length and a CRC32 of its content, so that a record torn by a crash ends the
+ * replay of its segment. Sequence numbers increase across segments, so that the records already in the database can
+ * be told apart. Segments are rotated by the writer before each flush, and deleted once all the changes they hold are
+ * in the database.
+ */
+final class JournalFile implements Closeable {
+
+    /** The Constant ADD, albums added to a library. */
+    static final byte ADD = 1;
+
+    /** The Constant REMOVE, albums removed from a library. */
+    static final byte REMOVE = 2;
+
+    /** The Constant DISCARD, pending changes of a library dropped, its albums having been replaced. */
+    static final byte DISCARD = 3;
+
+    /** The Constant LOG. */
+    private static final Logger LOG = LoggerFactory.getLogger(JournalFile.class);
+
+    /** The Constant SEGMENT_NAME. */
+    private static final Pattern SEGMENT_NAME = Pattern.compile("journal-(\\d{19})\\.log");
+
+    /** The Constant HEADER_SIZE, sequence number, user id, operation and number of albums. */
+    private static final int HEADER_SIZE = Long.BYTES + Long.BYTES + 1 + Integer.BYTES;
+
+    /** The Constant MAX_RECORD_SIZE, beyond which a record length can only be garbage. */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Consumer of replayed records.
+     */
+    interface RecordConsumer {
+
+        /**
+         * Accept a record.
+         *
+         * @param sequence the sequence number of the record
+         * @param userId the user id
+         * @param operation the operation
+         * @param albumIds the album ids
+         */
+        void accept(long sequence, long userId, byte operation, List<UUID> albumIds);
+
+    }
+
+    /** The directory of the segments. */
+    private final Path directory;
+
+    /** Whether appends are forced to the storage device, rather than only handed to the operating system. */
+    private final boolean fsync;
+
+    /** The number of the current segment. */
+    private long segment;
+
+    /** The channel of the current segment, null until the first rotation. */
+    private FileChannel channel;
+
+    /** The sequence number of the last record appended or replayed. */
+    private long sequence;
+
+    /**
+     * Instantiates a new journal file. Records are not appended before the first rotation, so that the existing
+     * segments can be replayed first.
+     *
+     * @param directory the directory of the segments
+     * @param fsync whether appends are forced to the storage device
+     * @throws IOException Signals that the directory could not be created or listed.
+     */
+    JournalFile(final Path directory, final boolean fsync) throws IOException {
+        this.directory = directory;
+        this.fsync = fsync;
+        Files.createDirectories(directory);
+        List<Long> segments = segments();
+        this.segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Replay the records of the existing segments, oldest first.
+     *
+     * @param consumer the consumer of the records
+     * @return the number of records replayed
+     * @throws IOException Signals that a segment could not be read.
+     */
+    synchronized int replay(final RecordConsumer consumer) throws IOException {
+        int records = 0;
+        for (long number : segments()) {
+            if (number > this.segment || (number == this.segment && this.channel != null)) {
+                continue;
+            }
+            Path path = segmentPath(number);
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                while (true) {
+                    int length;
+                    try {
+                        length = input.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length < HEADER_SIZE || length > MAX_RECORD_SIZE) {
+                        LOG.warn("Library journal segment {} is corrupted after {} records, its tail is ignored", path, records);
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    int crc;
+                    try {
+                        input.readFully(payload);
+                        crc = input.readInt();
+                    } catch (EOFException e) {
+                        LOG.warn("Library journal segment {} ends with a torn record, ignored", path);
+                        break;
+                    }
+                    CRC32 checksum = new CRC32();
+                    checksum.update(payload);
+                    if ((int) checksum.getValue() != crc) {
+                        LOG.warn("Library journal segment {} has a record with a wrong checksum, its tail is ignored", path);
+                        break;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(payload);
+                    long recordSequence = buffer.getLong();
+                    long userId = buffer.getLong();
+                    byte operation = buffer.get();
+                    int count = buffer.getInt();
+                    List<UUID> albumIds = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        albumIds.add(new UUID(buffer.getLong(), buffer.getLong()));
+                    }
+                    this.sequence = Math.max(this.sequence, recordSequence);
+                    consumer.accept(recordSequence, userId, operation, albumIds);
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Make sure the next records are numbered after a sequence number, e.g. the last one recorded in the database,
+     * when the segments holding it have been deleted.
+     *
+     * @param last the last sequence number used
+     */
+    synchronized void advanceSequence(final long last) {
+        this.sequence = Math.max(this.sequence, last);
+    }
+
+    /**
+     * Append a record to the current segment.
+     *
+     * @param userId the user id
+     * @param operation the operation
+     * @param albumIds the album ids
+     * @return the sequence number of the record
+     */
+    synchronized long append(final long userId, final byte operation, final Collection<UUID> albumIds) {
+        if (this.channel == null) {
+            throw new IllegalStateException("Library journal is not open");
+        }
+        int length = HEADER_SIZE + albumIds.size() * 2 * Long.BYTES;
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + length + Integer.BYTES);
+        long recordSequence = this.sequence + 1;
+        record.putInt(length)
+                .putLong(recordSequence)
+                .putLong(userId)
+                .put(operation)
+                .putInt(albumIds.size());
+        albumIds.forEach(albumId -> record.putLong(albumId.getMostSignificantBits()).putLong(albumId.getLeastSignificantBits()));
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), Integer.BYTES, length);
+        record.putInt((int) checksum.getValue());
+        record.flip();
+
+        try {
+            while (record.hasRemaining()) {
+                this.channel.write(record);
+            }
+            if (this.fsync) {
+                this.channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not append to the library journal", e);
+        }
+        this.sequence = recordSequence;
+        return recordSequence;
+    }
+
+    /**
+     * Close the current segment and start a new one.
+     *
+     * @return the number of the new segment, all the previous segments being closed
+     * @throws IOException Signals that the new segment could not be created.
+     */
+    synchronized long rotate() throws IOException {
+        closeChannel();
+        this.segment++;
+        this.channel = FileChannel.open(segmentPath(this.segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return this.segment;
+    }
+
+    /**
+     * Delete the segments older than a segment, once their changes are in the database.
+     *
+     * @param number the number of the oldest segment to keep
+     * @throws IOException Signals that a segment could not be deleted.
+     */
+    synchronized void deleteBefore(final long number) throws IOException {
+        for (long older : segments()) {
+            if (older < number) {
+                Files.deleteIfExists(segmentPath(older));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeChannel();
+    }
+
+    private void closeChannel() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+
+    /**
+     * List the numbers of the segments of the directory.
+     *
+     * @return the segment numbers, ascending
+     * @throws IOException Signals that the directory could not be listed.
+     */
+    private List<Long> segments() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files.map(file -> SEGMENT_NAME.matcher(file.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(matcher -> Long.parseLong(matcher.group(1)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path segmentPath(final long number) {
+        return this.directory.resolve(String.format("journal-%019d.log", number));
+    }
+
+}
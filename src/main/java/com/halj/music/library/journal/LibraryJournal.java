@@ -0,0 +1,624 @@
+package com.halj.music.library.journal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.halj.music.library.bitmap.AlbumOrdinals;
+import com.halj.music.library.bitmap.CompressedBitmap;
+import com.halj.music.library.cache.UserCache;
+import com.halj.music.library.model.LibraryDelta;
+import com.halj.music.library.model.User;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.repository.UserLibraryRepository;
+import com.halj.music.library.repository.UserRepository;
+import com.halj.music.library.service.LibraryChangeListener;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * The Class LibraryJournal.
+ * Write-behind of the library changes, off by default. A change is appended to a journal file, then kept in memory with
+ * the other pending changes of the same user, coalesced against the library in the database: adding then removing an
+ * album which is not in the database leaves nothing to write. Pending changes are flushed in the background, in
+ * transactions of about batch-size album changes, every flush-interval or as soon as max-pending changes are waiting.
+ * Reads of a library or of a user through the journal see its pending changes, and each change increments the library
+ * version as a direct write would. Other reads (owners, summaries, recommendations) see the changes once flushed.
+ * At start, the journal segments left by a stopped or crashed process are replayed, and flushed with the next changes.
+ * Each flush records the sequence number of the last journal record of a user in the same transaction as its changes,
+ * and replacing or deleting a user always journals a discard recorded the same way, so that the records already in
+ * the database, or made obsolete by a direct write, are skipped by the replay.
+ * Appends reach the operating system, not the storage device, unless fsync is set.
+ */
+@Component
+public class LibraryJournal implements MeterBinder {
+
+    /** The Constant LOG. */
+    private static final Logger LOG = LoggerFactory.getLogger(LibraryJournal.class);
+
+    /** The user cache. */
+    private UserCache userCache;
+
+    /** The user repository. */
+    private UserRepository userRepository;
+
+    /** The user library repository. */
+    private UserLibraryRepository userLibraryRepository;
+
+    /** The album ordinals. */
+    private AlbumOrdinals albumOrdinals;
+
+    /** The album popularity counters. */
+    private AlbumPopularity albumPopularity;
+
+    /** The library change listeners. */
+    private List<LibraryChangeListener> libraryChangeListeners;
+
+    /** The transaction template. */
+    private TransactionTemplate transactionTemplate;
+
+    /** Whether library changes are written behind. */
+    private boolean enabled;
+
+    /** The number of album changes per flush transaction. */
+    private int batchSize;
+
+    /** The number of pending album changes triggering a flush before the flush interval. */
+    private int maxPending;
+
+    /** The pending changes by user id. */
+    private ConcurrentHashMap<Long, PendingLibrary> pending = new ConcurrentHashMap<>();
+
+    /** The number of pending album changes. */
+    private AtomicInteger pendingChanges = new AtomicInteger();
+
+    /** Whether a flush triggered by the number of pending changes is queued. */
+    private AtomicBoolean flushQueued = new AtomicBoolean();
+
+    /** The journal file, null when disabled. */
+    private JournalFile journalFile;
+
+    /** The flush scheduler, null when disabled. */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Instantiates a new library journal, replaying the pending changes left in the journal directory.
+     *
+     * @param userCache the user cache
+     * @param userRepository the user repository
+     * @param userLibraryRepository the user library repository
+     * @param albumOrdinals the album ordinals
+     * @param albumPopularity the album popularity counters
+     * @param libraryChangeListeners the library change listeners
+     * @param transactionManager the transaction manager
+     * @param enabled whether library changes are written behind
+     * @param journalPath the directory of the journal segments
+     * @param flushInterval the delay between two flushes
+     * @param batchSize the number of album changes per flush transaction
+     * @param maxPending the number of pending album changes triggering a flush before the flush interval
+     * @param fsync whether appends are forced to the storage device
+     * @throws IOException Signals that the journal could not be replayed or opened.
+     */
+    public LibraryJournal(UserCache userCache, UserRepository userRepository, UserLibraryRepository userLibraryRepository,
+            AlbumOrdinals albumOrdinals, AlbumPopularity albumPopularity, List<LibraryChangeListener> libraryChangeListeners,
+            PlatformTransactionManager transactionManager,
+            @Value("${library.write-behind.enabled:false}") boolean enabled,
+            @Value("${library.write-behind.journal-path:${java.io.tmpdir}/music-library/journal}") Path journalPath,
+            @Value("${library.write-behind.flush-interval:100ms}") Duration flushInterval,
+            @Value("${library.write-behind.batch-size:1000}") int batchSize,
+            @Value("${library.write-behind.max-pending:10000}") int maxPending,
+            @Value("${library.write-behind.fsync:false}") boolean fsync) throws IOException {
+        super();
+        this.userCache = userCache;
+        this.userRepository = userRepository;
+        this.userLibraryRepository = userLibraryRepository;
+        this.albumOrdinals = albumOrdinals;
+        this.albumPopularity = albumPopularity;
+        this.libraryChangeListeners = libraryChangeListeners;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+        if (!enabled) {
+            return;
+        }
+
+        this.journalFile = new JournalFile(journalPath, fsync);
+        Map<Long, Long> flushedSequences = new HashMap<>();
+        int records = this.journalFile.replay((sequence, userId, operation, albumIds) -> {
+            long flushed = flushedSequences.computeIfAbsent(userId,
+                    id -> this.userRepository.findJournalSequence(id).orElse(0L));
+            if (sequence > flushed) {
+                replay(sequence, userId, operation, albumIds);
+            }
+        });
+        // the segments holding the last flushed records may have been deleted
+        this.journalFile.advanceSequence(this.userRepository.findMaxJournalSequence());
+        this.journalFile.rotate();
+        if (records > 0) {
+            LOG.info("Replayed {} library changes of {} users from {}", records, this.pending.size(), journalPath);
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("library-journal-"));
+        this.scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        Gauge.builder("library.journal.pending", this.pendingChanges, AtomicInteger::get)
+                .description("Number of album changes written behind and not flushed yet")
+                .baseUnit("changes")
+                .register(registry);
+    }
+
+    /**
+     * Stop the flushes, flush the last pending changes and close the journal.
+     * Changes which could not be flushed stay in the journal, to be replayed at the next start.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (!this.enabled) {
+            return;
+        }
+        this.scheduler.shutdown();
+        try {
+            this.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+        try {
+            this.journalFile.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close the library journal", e);
+        }
+    }
+
+    /**
+     * Check if library changes are written behind.
+     *
+     * @return true if enabled
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Add albums to a user library, written behind.
+     *
+     * @param userId the user id
+     * @param albumIds the album ids
+     * @return the library delta, as seen by the reads through the journal
+     */
+    public LibraryDelta addAlbums(final long userId, final Collection<UUID> albumIds) {
+        return change(userId, JournalFile.ADD, albumIds);
+    }
+
+    /**
+     * Remove albums from a user library, written behind.
+     *
+     * @param userId the user id
+     * @param albumIds the album ids
+     * @return the library delta, as seen by the reads through the journal
+     */
+    public LibraryDelta removeAlbums(final long userId, final Collection<UUID> albumIds) {
+        return change(userId, JournalFile.REMOVE, albumIds);
+    }
+
+    /**
+     * Remove all albums from a user library, written behind.
+     *
+     * @param userId the user id
+     * @return the library delta, as seen by the reads through the journal
+     */
+    public LibraryDelta clearAlbums(final long userId) {
+        return change(userId, JournalFile.REMOVE, null);
+    }
+
+    /**
+     * Gets a user library, with its pending changes.
+     *
+     * @param userId the user id
+     * @return the library bitmap, empty if the user does not exist
+     */
+    public CompressedBitmap getLibrary(final long userId) {
+        PendingLibrary library = this.pending.get(userId);
+        if (library == null) {
+            return this.userCache.getLibrary(userId);
+        }
+        library.lock.lock();
+        try {
+            // a retired entry has been flushed, the cache is up to date
+            return library.retired ? this.userCache.getLibrary(userId) : library.applyTo(this.userCache.getLibrary(userId));
+        } finally {
+            library.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a user with its library, with the pending changes of the library and their versions.
+     *
+     * @param userId the user id
+     * @return the user, empty if it does not exist
+     */
+    public Optional<User> getUser(final long userId) {
+        PendingLibrary library = this.pending.get(userId);
+        if (library == null) {
+            return this.userCache.getUser(userId);
+        }
+        library.lock.lock();
+        try {
+            if (library.retired) {
+                return this.userCache.getUser(userId);
+            }
+            return this.userCache.getUser(userId).map(user -> {
+                User withChanges = new User(user.getId(), user.getName(), user.getEmail(),
+                        this.albumOrdinals.asSet(library.applyTo(this.userCache.getLibrary(userId))));
+                withChanges.setLibraryVersion(user.getLibraryVersion() + library.versions);
+                return withChanges;
+            });
+        } finally {
+            library.lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the pending changes of a user library, before the library is replaced or deleted in the caller transaction.
+     * The discard is journaled and its sequence number recorded in the caller transaction even if no change is
+     * pending, so that older records of the user are never replayed over the new library.
+     * The versions of the dropped changes are added to the library version, so that it never goes back.
+     *
+     * @param userId the user id
+     */
+    public void discard(final long userId) {
+        if (!this.enabled) {
+            return;
+        }
+        while (true) {
+            PendingLibrary library = this.pending.computeIfAbsent(userId, PendingLibrary::new);
+            library.lock.lock();
+            try {
+                if (library.retired) {
+                    // flushed meanwhile, retry with a new entry
+                    continue;
+                }
+                long sequence = this.journalFile.append(userId, JournalFile.DISCARD, Collections.emptyList());
+                this.userRepository.incrementLibraryVersion(userId, library.versions, sequence);
+                retire(library);
+                return;
+            } finally {
+                library.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of pending album changes.
+     *
+     * @return the number of changes
+     */
+    public int getPendingChanges() {
+        return this.pendingChanges.get();
+    }
+
+    /**
+     * Flush the pending changes to the database, in transactions of about batch-size album changes.
+     * The journal segments are deleted once all their changes are flushed; after a failure, the changes stay pending.
+     *
+     * @return the number of users flushed
+     */
+    public synchronized int flush() {
+        if (!this.enabled) {
+            return 0;
+        }
+        long segment;
+        try {
+            // the changes appended from now on go to the new segment, and are kept with it
+            segment = this.journalFile.rotate();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not rotate the library journal", e);
+        }
+
+        boolean complete = true;
+        int users = 0;
+        List<PendingLibrary> batch = new ArrayList<>();
+        int batchChanges = 0;
+        for (PendingLibrary library : this.pending.values()) {
+            batch.add(library);
+            batchChanges += Math.max(1, library.size);
+            if (batchChanges >= this.batchSize) {
+                int flushed = flush(batch);
+                complete &= flushed >= 0;
+                users += Math.max(0, flushed);
+                batch = new ArrayList<>();
+                batchChanges = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            int flushed = flush(batch);
+            complete &= flushed >= 0;
+            users += Math.max(0, flushed);
+        }
+
+        if (complete) {
+            try {
+                this.journalFile.deleteBefore(segment);
+            } catch (IOException e) {
+                LOG.warn("Could not delete the flushed library journal segments", e);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Flush the pending changes of a batch of users in one transaction. The users are locked until the changes are
+     * committed and the cache invalidated, so that their reads never miss the changes; the listeners are notified after.
+     *
+     * @param batch the pending libraries
+     * @return the number of users flushed, -1 if the transaction failed
+     */
+    private int flush(final List<PendingLibrary> batch) {
+        Map<Long, List<UUID>> added = new LinkedHashMap<>();
+        Map<Long, List<UUID>> removed = new LinkedHashMap<>();
+        batch.forEach(library -> library.lock.lock());
+        try {
+            List<PendingLibrary> libraries = new ArrayList<>();
+            for (PendingLibrary library : batch) {
+                if (library.retired) {
+                    continue;
+                }
+                if (this.userCache.exists(library.userId)) {
+                    libraries.add(library);
+                } else {
+                    // the user has been deleted since
+                    retire(library);
+                }
+            }
+
+            if (libraries.isEmpty()) {
+                return 0;
+            }
+            this.transactionTemplate.executeWithoutResult(status -> {
+                for (PendingLibrary library : libraries) {
+                    added.put(library.userId, this.userLibraryRepository.addAlbums(library.userId, library.changes(true)));
+                    removed.put(library.userId, this.userLibraryRepository.removeAlbums(library.userId, library.changes(false)));
+                    this.userRepository.incrementLibraryVersion(library.userId, library.versions, library.sequence);
+                    this.userCache.invalidate(library.userId);
+                }
+            });
+            libraries.forEach(this::retire);
+        } catch (RuntimeException e) {
+            LOG.error("Could not flush the library changes of {} users, they stay pending", batch.size(), e);
+            return -1;
+        } finally {
+            batch.forEach(library -> library.lock.unlock());
+        }
+
+        added.forEach((userId, albumIds) -> this.albumPopularity.albumsAdded(albumIds));
+        removed.forEach((userId, albumIds) -> this.albumPopularity.albumsRemoved(albumIds));
+        added.keySet().forEach(userId -> this.libraryChangeListeners.forEach(listener -> listener.onLibraryChanged(userId)));
+        return added.size();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOG.error("Could not flush the library journal", e);
+        }
+    }
+
+    /**
+     * Apply a change to the pending library of a user: journal the albums it actually adds or removes, as seen by
+     * the reads through the journal, and coalesce them with the pending changes.
+     *
+     * @param userId the user id
+     * @param operation the operation, add or remove
+     * @param albumIds the album ids, null to remove all albums
+     * @return the library delta
+     */
+    private LibraryDelta change(final long userId, final byte operation, final Collection<UUID> albumIds) {
+        if (!this.enabled) {
+            throw new IllegalStateException("Library write-behind is not enabled");
+        }
+        LibraryDelta delta;
+        while (true) {
+            PendingLibrary library = this.pending.computeIfAbsent(userId, PendingLibrary::new);
+            library.lock.lock();
+            try {
+                if (library.retired) {
+                    // flushed or discarded meanwhile, retry with a new entry
+                    continue;
+                }
+                CompressedBitmap base = this.userCache.getLibrary(userId);
+                CompressedBitmap current = library.applyTo(base);
+                List<UUID> changed = new ArrayList<>();
+                boolean add = operation == JournalFile.ADD;
+                for (UUID albumId : albumIds == null ? this.albumOrdinals.asSet(current) : new LinkedHashSet<>(albumIds)) {
+                    if (current.contains(this.albumOrdinals.getOrdinal(albumId)) != add) {
+                        changed.add(albumId);
+                    }
+                }
+
+                if (!changed.isEmpty()) {
+                    library.sequence = this.journalFile.append(userId, operation, changed);
+                    changed.forEach(albumId -> library.change(albumId, add, base.contains(this.albumOrdinals.getOrdinal(albumId))));
+                    library.versions++;
+                }
+                long version = this.userCache.getUser(userId).map(User::getLibraryVersion).orElse(0L) + library.versions;
+                int size = current.getCardinality() + (add ? changed.size() : -changed.size());
+                if (library.size == 0 && library.versions == 0) {
+                    retire(library);
+                }
+                delta = new LibraryDelta(add ? changed : Collections.emptyList(), add ? Collections.emptyList() : changed,
+                        size, version);
+                break;
+            } finally {
+                library.lock.unlock();
+            }
+        }
+
+        if (this.pendingChanges.get() >= this.maxPending && this.flushQueued.compareAndSet(false, true)) {
+            this.scheduler.execute(() -> {
+                this.flushQueued.set(false);
+                flushQuietly();
+            });
+        }
+        return delta;
+    }
+
+    /**
+     * Apply a replayed journal record, more recent than the last record flushed for its user. The database state at the
+     * time of the record is unknown, so the last change of an album wins, and is written at the next flush whether or
+     * not it is already in the database.
+     *
+     * @param sequence the sequence number of the record
+     * @param userId the user id
+     * @param operation the operation
+     * @param albumIds the album ids
+     */
+    private void replay(final long sequence, final long userId, final byte operation, final List<UUID> albumIds) {
+        PendingLibrary library = this.pending.computeIfAbsent(userId, PendingLibrary::new);
+        if (operation == JournalFile.DISCARD) {
+            retire(library);
+            return;
+        }
+        albumIds.forEach(albumId -> library.replay(albumId, operation == JournalFile.ADD));
+        library.versions++;
+        library.sequence = sequence;
+    }
+
+    /**
+     * Remove a pending library, once its changes are flushed or dropped. Writers holding it retry with a new one.
+     * Must be called with the library locked, or before the journal is in use.
+     *
+     * @param library the pending library
+     */
+    private void retire(final PendingLibrary library) {
+        library.retired = true;
+        this.pending.remove(library.userId, library);
+        this.pendingChanges.addAndGet(-library.size);
+        library.changes.clear();
+        library.size = 0;
+    }
+
+    /**
+     * The pending changes of a user library, guarded by its lock.
+     */
+    private final class PendingLibrary {
+
+        /** The lock. */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** The user id. */
+        private final long userId;
+
+        /** The pending changes by album id: true to add the album, false to remove it. */
+        private final Map<UUID, Boolean> changes = new LinkedHashMap<>();
+
+        /** The number of pending changes, read without the lock to size the flush batches. */
+        private volatile int size;
+
+        /** The number of library versions of the pending changes. */
+        private long versions;
+
+        /** The sequence number of the last journal record of the pending changes. */
+        private long sequence;
+
+        /** Whether the changes have been flushed or dropped, the entry being removed from the pending libraries. */
+        private boolean retired;
+
+        private PendingLibrary(final long userId) {
+            this.userId = userId;
+        }
+
+        /**
+         * Coalesce a change with the pending ones: a change back to the database state cancels the pending change.
+         *
+         * @param albumId the album id
+         * @param add true to add the album, false to remove it
+         * @param inDatabase whether the album is in the library in the database
+         */
+        private void change(final UUID albumId, final boolean add, final boolean inDatabase) {
+            if (add == inDatabase) {
+                this.changes.remove(albumId);
+            } else {
+                this.changes.put(albumId, add);
+            }
+            updateSize();
+        }
+
+        private void replay(final UUID albumId, final boolean add) {
+            this.changes.put(albumId, add);
+            updateSize();
+        }
+
+        private void updateSize() {
+            int previous = this.size;
+            this.size = this.changes.size();
+            LibraryJournal.this.pendingChanges.addAndGet(this.size - previous);
+        }
+
+        /**
+         * Gets the ids of the albums to add or to remove.
+         *
+         * @param add true for the albums to add, false for the albums to remove
+         * @return the album ids
+         */
+        private List<UUID> changes(final boolean add) {
+            List<UUID> albumIds = new ArrayList<>();
+            this.changes.forEach((albumId, change) -> {
+                if (change == add) {
+                    albumIds.add(albumId);
+                }
+            });
+            return albumIds;
+        }
+
+        /**
+         * Apply the pending changes to the library in the database.
+         *
+         * @param base the library in the database
+         * @return the library with the pending changes
+         */
+        private CompressedBitmap applyTo(final CompressedBitmap base) {
+            if (this.changes.isEmpty()) {
+                return base;
+            }
+            return base.or(LibraryJournal.this.albumOrdinals.encode(changes(true)))
+                    .andNot(LibraryJournal.this.albumOrdinals.encode(changes(false)));
+        }
+
+    }
+
+}
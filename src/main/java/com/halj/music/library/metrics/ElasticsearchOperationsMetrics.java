@@ -0,0 +1,130 @@
+package com.halj.music.library.metrics;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The Class ElasticsearchOperationsMetrics.
+ * Times every call of an ElasticsearchOperations, repositories included since they delegate to it,
+ * tagged by operation and exception. The IndexOperations it hands out are timed too, their operations being
+ * prefixed with "index.". Timers are registered once per operation and exception, then reused.
+ */
+public final class ElasticsearchOperationsMetrics {
+
+    /** The Constant METRIC_NAME. */
+    public static final String METRIC_NAME = "library.elasticsearch.requests";
+
+    /** The Constant NO_EXCEPTION, the exception tag of successful calls. */
+    private static final String NO_EXCEPTION = "none";
+
+    /** The Constant INDEX_OPERATION_PREFIX. */
+    private static final String INDEX_OPERATION_PREFIX = "index.";
+
+    /** The meter registry. */
+    private final MeterRegistry meterRegistry;
+
+    /** The timers, by method then exception tag. */
+    private final ConcurrentMap<Method, ConcurrentMap<String, Timer>> timers = new ConcurrentHashMap<>();
+
+    private ElasticsearchOperationsMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Wrap elasticsearch operations in a timing proxy.
+     *
+     * @param elasticsearchOperations the elasticsearch operations
+     * @param meterRegistry the meter registry
+     * @return the timed elasticsearch operations
+     */
+    public static ElasticsearchOperations monitor(final ElasticsearchOperations elasticsearchOperations, final MeterRegistry meterRegistry) {
+        return new ElasticsearchOperationsMetrics(meterRegistry).timed(ElasticsearchOperations.class, elasticsearchOperations, "");
+    }
+
+    /**
+     * Wrap a target in a proxy timing the calls of its interface. Index operations returned by the target are
+     * wrapped too, without timing the calls returning them, which do not reach Elasticsearch.
+     *
+     * @param <T> the interface type
+     * @param type the interface
+     * @param target the target
+     * @param operationPrefix the prefix of the operation tags
+     * @return the timed target
+     */
+    private <T> T timed(final Class<T> type, final T target, final String operationPrefix) {
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(),
+                new Class<?>[] { type },
+                (instance, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(target, args);
+                    }
+                    if (method.getReturnType() == IndexOperations.class) {
+                        IndexOperations indexOperations = (IndexOperations) invoke(target, method, args);
+                        return timed(IndexOperations.class, indexOperations, INDEX_OPERATION_PREFIX);
+                    }
+
+                    Timer.Sample sample = Timer.start(this.meterRegistry);
+                    String exception = NO_EXCEPTION;
+                    try {
+                        return invoke(target, method, args);
+                    } catch (Throwable e) {
+                        exception = e.getClass().getSimpleName();
+                        throw e;
+                    } finally {
+                        sample.stop(timer(method, operationPrefix, exception));
+                    }
+                });
+        return type.cast(proxy);
+    }
+
+    /**
+     * Invoke a method on the target, throwing the exceptions of the target as they are.
+     *
+     * @param target the target
+     * @param method the method
+     * @param args the arguments
+     * @return the result
+     * @throws Throwable the exception thrown by the target
+     */
+    private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Get the timer of a method and exception, registering it on first use.
+     *
+     * @param method the method
+     * @param operationPrefix the prefix of the operation tag
+     * @param exception the exception tag
+     * @return the timer
+     */
+    private Timer timer(final Method method, final String operationPrefix, final String exception) {
+        ConcurrentMap<String, Timer> methodTimers = this.timers.get(method);
+        if (methodTimers == null) {
+            methodTimers = this.timers.computeIfAbsent(method, m -> new ConcurrentHashMap<>());
+        }
+        Timer timer = methodTimers.get(exception);
+        if (timer == null) {
+            timer = methodTimers.computeIfAbsent(exception, e -> Timer.builder(METRIC_NAME)
+                    .description("Elasticsearch operations calls")
+                    .tag("operation", operationPrefix + method.getName())
+                    .tag("exception", e)
+                    .register(this.meterRegistry));
+        }
+        return timer;
+    }
+
+}
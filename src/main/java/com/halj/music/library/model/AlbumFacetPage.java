@@ -0,0 +1,134 @@
+package com.halj.music.library.model;
+
+import java.util.List;
+
+import com.halj.music.library.model.elastic.Album;
+
+/**
+ * The Class AlbumFacetPage.
+ * Represents a page of faceted album search results, with the facets of all the matching albums
+ */
+public class AlbumFacetPage {
+
+    /** The albums of the page. */
+    private List<Album> albums;
+
+    /** The page number. */
+    private int page;
+
+    /** The page size. */
+    private int size;
+
+    /** The total hits count, a lower bound when relation is 'gte'. */
+    private long totalHits;
+
+    /** The total hits relation: 'eq' or 'gte' when the count was capped. */
+    private String totalHitsRelation;
+
+    /** The number of matching albums per decade. */
+    private List<FacetBucket> decades;
+
+    /** The number of matching albums per release year. */
+    private List<FacetBucket> years;
+
+    /** The artists with the most matching albums. */
+    private List<FacetBucket> artists;
+
+    /**
+     * Instantiates a new album facet page.
+     *
+     * @param albums the albums
+     * @param page the page number
+     * @param size the page size
+     * @param totalHits the total hits
+     * @param totalHitsRelation the total hits relation
+     * @param decades the decades facet
+     * @param years the years facet
+     * @param artists the top artists facet
+     */
+    public AlbumFacetPage(List<Album> albums, int page, int size, long totalHits, String totalHitsRelation,
+            List<FacetBucket> decades, List<FacetBucket> years, List<FacetBucket> artists) {
+        super();
+        this.albums = albums;
+        this.page = page;
+        this.size = size;
+        this.totalHits = totalHits;
+        this.totalHitsRelation = totalHitsRelation;
+        this.decades = decades;
+        this.years = years;
+        this.artists = artists;
+    }
+
+    /**
+     * Gets the albums.
+     *
+     * @return the albums
+     */
+    public List<Album> getAlbums() {
+        return this.albums;
+    }
+
+    /**
+     * Gets the page number.
+     *
+     * @return the page
+     */
+    public int getPage() {
+        return this.page;
+    }
+
+    /**
+     * Gets the page size.
+     *
+     * @return the size
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Gets the total hits.
+     *
+     * @return the total hits
+     */
+    public long getTotalHits() {
+        return this.totalHits;
+    }
+
+    /**
+     * Gets the total hits relation.
+     *
+     * @return the total hits relation
+     */
+    public String getTotalHitsRelation() {
+        return this.totalHitsRelation;
+    }
+
+    /**
+     * Gets the decades facet.
+     *
+     * @return the decades
+     */
+    public List<FacetBucket> getDecades() {
+        return this.decades;
+    }
+
+    /**
+     * Gets the years facet.
+     *
+     * @return the years
+     */
+    public List<FacetBucket> getYears() {
+        return this.years;
+    }
+
+    /**
+     * Gets the top artists facet.
+     *
+     * @return the artists
+     */
+    public List<FacetBucket> getArtists() {
+        return this.artists;
+    }
+
+}
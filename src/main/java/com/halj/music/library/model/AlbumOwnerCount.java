@@ -0,0 +1,46 @@
+package com.halj.music.library.model;
+
+import java.util.UUID;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * The Class AlbumOwnerCount.
+ * Represents the number of users having an album in their library, maintained by the library writes so that it is
+ * read without counting user_library rows. Only mapped for the schema generation, rows are accessed with JDBC.
+ */
+@Entity
+@Table(name = "album_owner_count")
+public class AlbumOwnerCount {
+
+    /** The album id. */
+    @Id
+    @Column(name = "album_id")
+    private UUID albumId;
+
+    /** The number of owners. */
+    @Column(name = "owners", nullable = false)
+    private long owners;
+
+    /**
+     * Gets the album id.
+     *
+     * @return the album id
+     */
+    public UUID getAlbumId() {
+        return this.albumId;
+    }
+
+    /**
+     * Gets the number of owners.
+     *
+     * @return the owners
+     */
+    public long getOwners() {
+        return this.owners;
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.halj.music.library.model;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The Class AlbumOwnerPage.
+ * Represents a page of the users having an album in their library, ordered by user id
+ */
+public class AlbumOwnerPage {
+
+    /** The album id. */
+    private UUID albumId;
+
+    /** The total number of owners. */
+    private long totalOwners;
+
+    /** The ids of the owners of the page. */
+    private List<Long> userIds;
+
+    /** The cursor to fetch the next page (last user id of the page), null on the last page. */
+    private Long nextCursor;
+
+    /**
+     * Instantiates a new album owner page.
+     *
+     * @param albumId the album id
+     * @param totalOwners the total number of owners
+     * @param userIds the ids of the owners of the page
+     * @param nextCursor the next cursor
+     */
+    public AlbumOwnerPage(UUID albumId, long totalOwners, List<Long> userIds, Long nextCursor) {
+        super();
+        this.albumId = albumId;
+        this.totalOwners = totalOwners;
+        this.userIds = userIds;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Gets the album id.
+     *
+     * @return the album id
+     */
+    public UUID getAlbumId() {
+        return this.albumId;
+    }
+
+    /**
+     * Gets the total number of owners.
+     *
+     * @return the total owners
+     */
+    public long getTotalOwners() {
+        return this.totalOwners;
+    }
+
+    /**
+     * Gets the ids of the owners of the page.
+     *
+     * @return the user ids
+     */
+    public List<Long> getUserIds() {
+        return this.userIds;
+    }
+
+    /**
+     * Gets the cursor to fetch the next page.
+     *
+     * @return the next cursor
+     */
+    public Long getNextCursor() {
+        return this.nextCursor;
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.halj.music.library.model;
+
+import java.util.List;
+
+import com.halj.music.library.model.elastic.Album;
+
+/**
+ * The Class AlbumSearchPage.
+ * Represents a page of album search results, ordered by relevance
+ */
+public class AlbumSearchPage {
+
+    /** The albums of the page. */
+    private List<Album> albums;
+
+    /** The page number, 0 when the page was fetched with a cursor. */
+    private int page;
+
+    /** The page size. */
+    private int size;
+
+    /** The total hits count, a lower bound when relation is 'gte'. */
+    private long totalHits;
+
+    /** The total hits relation: 'eq' or 'gte' when the count was capped. */
+    private String totalHitsRelation;
+
+    /** The cursor to fetch the next page, null on the last page. */
+    private String nextCursor;
+
+    /**
+     * Instantiates a new album search page.
+     *
+     * @param albums the albums
+     * @param page the page number
+     * @param size the page size
+     * @param totalHits the total hits
+     * @param totalHitsRelation the total hits relation
+     * @param nextCursor the next cursor
+     */
+    public AlbumSearchPage(List<Album> albums, int page, int size, long totalHits, String totalHitsRelation, String nextCursor) {
+        super();
+        this.albums = albums;
+        this.page = page;
+        this.size = size;
+        this.totalHits = totalHits;
+        this.totalHitsRelation = totalHitsRelation;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Gets the albums.
+     *
+     * @return the albums
+     */
+    public List<Album> getAlbums() {
+        return this.albums;
+    }
+
+    /**
+     * Gets the page number.
+     *
+     * @return the page
+     */
+    public int getPage() {
+        return this.page;
+    }
+
+    /**
+     * Gets the page size.
+     *
+     * @return the size
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Gets the total hits.
+     *
+     * @return the total hits
+     */
+    public long getTotalHits() {
+        return this.totalHits;
+    }
+
+    /**
+     * Gets the total hits relation.
+     *
+     * @return the total hits relation
+     */
+    public String getTotalHitsRelation() {
+        return this.totalHitsRelation;
+    }
+
+    /**
+     * Gets the next cursor.
+     *
+     * @return the next cursor
+     */
+    public String getNextCursor() {
+        return this.nextCursor;
+    }
+
+}
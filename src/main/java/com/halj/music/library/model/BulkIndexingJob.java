@@ -0,0 +1,305 @@
+package com.halj.music.library.model;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Class BulkIndexingJob.
+ * Represents an asynchronous bulk indexing of albums and its progress.
+ * Counters are updated concurrently by the bulk indexing threads and read by status requests.
+ */
+public class BulkIndexingJob {
+
+    /** The Constant MAX_ERRORS, number of record errors kept as samples. */
+    private static final int MAX_ERRORS = 20;
+
+    /**
+     * The job status.
+     */
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    /** The id. */
+    private final UUID id;
+
+    /** The status. */
+    private volatile Status status = Status.QUEUED;
+
+    /** The submission time. */
+    private final Instant submittedAt = Instant.now();
+
+    /** The start time. */
+    private volatile Instant startedAt;
+
+    /** The end time. */
+    private volatile Instant finishedAt;
+
+    /** The number of records read. */
+    private final AtomicLong read = new AtomicLong();
+
+    /** The number of indexed albums. */
+    private final AtomicLong indexed = new AtomicLong();
+
+    /** The number of albums that failed to be indexed. */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** The number of invalid records. */
+    private final AtomicLong invalid = new AtomicLong();
+
+    /** The number of albums sent again after a rejection. */
+    private final AtomicLong retried = new AtomicLong();
+
+    /** The first record errors. */
+    private final List<String> errors = new ArrayList<>();
+
+    /** The error that stopped the job. */
+    private volatile String error;
+
+    /**
+     * Instantiates a new bulk indexing job.
+     *
+     * @param id the id
+     */
+    public BulkIndexingJob(UUID id) {
+        super();
+        this.id = id;
+    }
+
+    /**
+     * Mark the job as started.
+     */
+    public void start() {
+        this.startedAt = Instant.now();
+        this.status = Status.RUNNING;
+    }
+
+    /**
+     * Mark the job as completed.
+     */
+    public void complete() {
+        this.finishedAt = Instant.now();
+        this.status = Status.COMPLETED;
+    }
+
+    /**
+     * Mark the job as failed.
+     *
+     * @param error the error that stopped the job
+     */
+    public void fail(final String error) {
+        this.error = error;
+        this.finishedAt = Instant.now();
+        this.status = Status.FAILED;
+    }
+
+    /**
+     * Count a record read.
+     *
+     * @return the record number, starting at 1
+     */
+    public long recordRead() {
+        return this.read.incrementAndGet();
+    }
+
+    /**
+     * Count indexed albums.
+     *
+     * @param count the count
+     */
+    public void albumsIndexed(final long count) {
+        this.indexed.addAndGet(count);
+    }
+
+    /**
+     * Count albums that failed to be indexed.
+     *
+     * @param count the count
+     */
+    public void albumsFailed(final long count) {
+        this.failed.addAndGet(count);
+    }
+
+    /**
+     * Count albums sent again after a rejection.
+     *
+     * @param count the count
+     */
+    public void albumsRetried(final long count) {
+        this.retried.addAndGet(count);
+    }
+
+    /**
+     * Count an invalid record, keeping its error as sample.
+     *
+     * @param record the record number
+     * @param message the error message
+     */
+    public void recordInvalid(final long record, final String message) {
+        this.invalid.incrementAndGet();
+        synchronized (this.errors) {
+            if (this.errors.size() < MAX_ERRORS) {
+                this.errors.add("record " + record + ": " + message);
+            }
+        }
+    }
+
+    /**
+     * Gets the id.
+     *
+     * @return the id
+     */
+    public UUID getId() {
+        return this.id;
+    }
+
+    /**
+     * Gets the status.
+     *
+     * @return the status
+     */
+    public Status getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Gets the submission time.
+     *
+     * @return the submission time
+     */
+    public Instant getSubmittedAt() {
+        return this.submittedAt;
+    }
+
+    /**
+     * Gets the start time.
+     *
+     * @return the start time, null while queued
+     */
+    public Instant getStartedAt() {
+        return this.startedAt;
+    }
+
+    /**
+     * Gets the end time.
+     *
+     * @return the end time, null while running
+     */
+    public Instant getFinishedAt() {
+        return this.finishedAt;
+    }
+
+    /**
+     * Gets the number of processed records: indexed, failed or invalid.
+     *
+     * @return the processed
+     */
+    public long getProcessed() {
+        return this.indexed.get() + this.failed.get() + this.invalid.get();
+    }
+
+    /**
+     * Gets the number of indexed albums.
+     *
+     * @return the indexed
+     */
+    public long getIndexed() {
+        return this.indexed.get();
+    }
+
+    /**
+     * Gets the number of albums that failed to be indexed.
+     *
+     * @return the failed
+     */
+    public long getFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * Gets the number of invalid records.
+     *
+     * @return the invalid
+     */
+    public long getInvalid() {
+        return this.invalid.get();
+    }
+
+    /**
+     * Gets the number of albums sent again after a rejection.
+     *
+     * @return the retried
+     */
+    public long getRetried() {
+        return this.retried.get();
+    }
+
+    /**
+     * Gets the first record errors.
+     *
+     * @return the errors
+     */
+    public List<String> getErrors() {
+        synchronized (this.errors) {
+            return new ArrayList<>(this.errors);
+        }
+    }
+
+    /**
+     * Gets the error that stopped the job.
+     *
+     * @return the error
+     */
+    public String getError() {
+        return this.error;
+    }
+
+    /**
+     * Gets the elapsed time since start.
+     *
+     * @return the elapsed time, in milliseconds
+     */
+    public long getElapsedMillis() {
+        if (this.startedAt == null) {
+            return 0;
+        }
+        Instant end = this.finishedAt == null ? Instant.now() : this.finishedAt;
+        return Math.max(0, end.toEpochMilli() - this.startedAt.toEpochMilli());
+    }
+
+    /**
+     * Gets the processed records per second.
+     *
+     * @return the processed records per second
+     */
+    public long getProcessedPerSecond() {
+        return perSecond(getProcessed());
+    }
+
+    /**
+     * Gets the indexed albums per second.
+     *
+     * @return the indexed albums per second
+     */
+    public long getIndexedPerSecond() {
+        return perSecond(getIndexed());
+    }
+
+    /**
+     * Gets the failed albums per second.
+     *
+     * @return the failed albums per second
+     */
+    public long getFailedPerSecond() {
+        return perSecond(getFailed() + getInvalid());
+    }
+
+    private long perSecond(final long count) {
+        long elapsedMillis = getElapsedMillis();
+        return elapsedMillis == 0 ? count : count * 1000 / elapsedMillis;
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.halj.music.library.model;
+
+/**
+ * The Class BulkIndexingResult.
+ * Represents the outcome of a bulk indexing of albums
+ */
+public class BulkIndexingResult {
+
+    /** The number of indexed albums. */
+    private long indexed;
+
+    /** The number of albums that failed to be indexed. */
+    private long failed;
+
+    /** The elapsed time, in milliseconds. */
+    private long elapsedMillis;
+
+    /**
+     * Instantiates a new bulk indexing result.
+     *
+     * @param indexed the number of indexed albums
+     * @param failed the number of albums that failed to be indexed
+     * @param elapsedMillis the elapsed time, in milliseconds
+     */
+    public BulkIndexingResult(long indexed, long failed, long elapsedMillis) {
+        super();
+        this.indexed = indexed;
+        this.failed = failed;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Gets the number of indexed albums.
+     *
+     * @return the indexed
+     */
+    public long getIndexed() {
+        return this.indexed;
+    }
+
+    /**
+     * Gets the number of albums that failed to be indexed.
+     *
+     * @return the failed
+     */
+    public long getFailed() {
+        return this.failed;
+    }
+
+    /**
+     * Gets the elapsed time.
+     *
+     * @return the elapsed time, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return this.elapsedMillis;
+    }
+
+    /**
+     * Gets the throughput.
+     *
+     * @return the number of indexed albums per second
+     */
+    public long getThroughput() {
+        return this.indexed * 1000 / Math.max(1, this.elapsedMillis);
+    }
+
+}
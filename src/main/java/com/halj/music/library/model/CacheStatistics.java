@@ -0,0 +1,83 @@
+package com.halj.music.library.model;
+
+/**
+ * The Class CacheStatistics.
+ * Represents the hit, miss and eviction counters of an in-process cache
+ */
+public class CacheStatistics {
+
+    /** The estimated number of cached entries. */
+    private long size;
+
+    /** The hit count. */
+    private long hitCount;
+
+    /** The miss count. */
+    private long missCount;
+
+    /** The eviction count. */
+    private long evictionCount;
+
+    /**
+     * Instantiates new cache statistics.
+     *
+     * @param size the estimated number of cached entries
+     * @param hitCount the hit count
+     * @param missCount the miss count
+     * @param evictionCount the eviction count
+     */
+    public CacheStatistics(long size, long hitCount, long missCount, long evictionCount) {
+        super();
+        this.size = size;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+    }
+
+    /**
+     * Gets the estimated number of cached entries.
+     *
+     * @return the size
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Gets the hit count.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * Gets the miss count.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * Gets the eviction count.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    /**
+     * Gets the hit ratio.
+     *
+     * @return the hit ratio, 1.0 when no request has been made yet
+     */
+    public double getHitRatio() {
+        long requestCount = this.hitCount + this.missCount;
+        return requestCount == 0 ? 1.0 : (double) this.hitCount / requestCount;
+    }
+
+}
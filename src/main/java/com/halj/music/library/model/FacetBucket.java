@@ -0,0 +1,45 @@
+package com.halj.music.library.model;
+
+/**
+ * The Class FacetBucket.
+ * Represents a facet value and the number of matching albums carrying it
+ */
+public class FacetBucket {
+
+    /** The facet value: a year, the first year of a decade or an artist. */
+    private String key;
+
+    /** The number of matching albums. */
+    private long count;
+
+    /**
+     * Instantiates a new facet bucket.
+     *
+     * @param key the facet value
+     * @param count the number of matching albums
+     */
+    public FacetBucket(String key, long count) {
+        super();
+        this.key = key;
+        this.count = count;
+    }
+
+    /**
+     * Gets the facet value.
+     *
+     * @return the key
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Gets the number of matching albums.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.halj.music.library.model;
+
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * The Class LibraryDelta.
+ * Represents the outcome of a user library change: the albums actually added or removed,
+ * the library size and version after the change
+ */
+public class LibraryDelta {
+
+    /** The ids of the albums added. */
+    private Collection<UUID> added;
+
+    /** The ids of the albums removed. */
+    private Collection<UUID> removed;
+
+    /** The library size. */
+    private long size;
+
+    /** The library version. */
+    private long libraryVersion;
+
+    /**
+     * Instantiates a new library delta.
+     *
+     * @param added the ids of the albums added
+     * @param removed the ids of the albums removed
+     * @param size the library size
+     * @param libraryVersion the library version
+     */
+    public LibraryDelta(Collection<UUID> added, Collection<UUID> removed, long size, long libraryVersion) {
+        super();
+        this.added = added;
+        this.removed = removed;
+        this.size = size;
+        this.libraryVersion = libraryVersion;
+    }
+
+    /**
+     * Gets the ids of the albums added.
+     *
+     * @return the added album ids
+     */
+    public Collection<UUID> getAdded() {
+        return this.added;
+    }
+
+    /**
+     * Gets the ids of the albums removed.
+     *
+     * @return the removed album ids
+     */
+    public Collection<UUID> getRemoved() {
+        return this.removed;
+    }
+
+    /**
+     * Gets the library size.
+     *
+     * @return the size
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Gets the library version.
+     *
+     * @return the library version
+     */
+    public long getLibraryVersion() {
+        return this.libraryVersion;
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.halj.music.library.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import com.halj.music.library.exception.InvalidRequestException;
+
+/**
+ * The Class SearchCursor.
+ * Opaque position of the last hit of a search page (score and album id), used to fetch the next page with search_after
+ */
+public class SearchCursor {
+
+    /** The Constant SEPARATOR. */
+    private static final String SEPARATOR = ":";
+
+    /** The score of the last hit. */
+    private float score;
+
+    /** The album id of the last hit. */
+    private String albumId;
+
+    /**
+     * Instantiates a new search cursor.
+     *
+     * @param score the score of the last hit
+     * @param albumId the album id of the last hit
+     */
+    public SearchCursor(float score, String albumId) {
+        super();
+        this.score = score;
+        this.albumId = albumId;
+    }
+
+    /**
+     * Decode a cursor.
+     *
+     * @param cursor the encoded cursor
+     * @return the search cursor
+     */
+    public static SearchCursor decode(final String cursor) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = decoded.indexOf(SEPARATOR);
+
+            return new SearchCursor(Float.parseFloat(decoded.substring(0, separator)), decoded.substring(separator + 1));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new InvalidRequestException("Invalid search cursor " + cursor, e);
+        }
+    }
+
+    /**
+     * Encode the cursor.
+     *
+     * @return the encoded cursor
+     */
+    public String encode() {
+        String decoded = this.score + SEPARATOR + this.albumId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(decoded.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets the search_after values matching the (score, id) sort.
+     *
+     * @return the search after values
+     */
+    public List<Object> toSearchAfter() {
+        return List.of(this.score, this.albumId);
+    }
+
+    /**
+     * Gets the score of the last hit.
+     *
+     * @return the score
+     */
+    public float getScore() {
+        return this.score;
+    }
+
+    /**
+     * Gets the album id of the last hit.
+     *
+     * @return the album id
+     */
+    public String getAlbumId() {
+        return this.albumId;
+    }
+
+}
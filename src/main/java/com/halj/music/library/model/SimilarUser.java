@@ -0,0 +1,45 @@
+package com.halj.music.library.model;
+
+/**
+ * The Class SimilarUser.
+ * A user whose library is close to the library of another user, with the estimated Jaccard similarity of both libraries
+ */
+public class SimilarUser {
+
+    /** The user id. */
+    private long userId;
+
+    /** The estimated Jaccard similarity, between 0 and 1. */
+    private double similarity;
+
+    /**
+     * Instantiates a new similar user.
+     *
+     * @param userId the user id
+     * @param similarity the estimated Jaccard similarity
+     */
+    public SimilarUser(long userId, double similarity) {
+        super();
+        this.userId = userId;
+        this.similarity = similarity;
+    }
+
+    /**
+     * Gets the user id.
+     *
+     * @return the user id
+     */
+    public long getUserId() {
+        return this.userId;
+    }
+
+    /**
+     * Gets the estimated Jaccard similarity.
+     *
+     * @return the similarity, between 0 and 1
+     */
+    public double getSimilarity() {
+        return this.similarity;
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.halj.music.library.model;
+
+/**
+ * The Class Suggestion.
+ * Represents a typeahead completion: an album title or an artist name
+ */
+public class Suggestion {
+
+    /** The completed text. */
+    private String text;
+
+    /** The type of completion: 'title' or 'artist'. */
+    private String type;
+
+    /** The weight the completion is ranked by. */
+    private long weight;
+
+    /**
+     * Instantiates a new suggestion.
+     *
+     * @param text the completed text
+     * @param type the type of completion
+     * @param weight the weight
+     */
+    public Suggestion(String text, String type, long weight) {
+        super();
+        this.text = text;
+        this.type = type;
+        this.weight = weight;
+    }
+
+    /**
+     * Gets the completed text.
+     *
+     * @return the text
+     */
+    public String getText() {
+        return this.text;
+    }
+
+    /**
+     * Gets the type of completion.
+     *
+     * @return the type
+     */
+    public String getType() {
+        return this.type;
+    }
+
+    /**
+     * Gets the weight.
+     *
+     * @return the weight
+     */
+    public long getWeight() {
+        return this.weight;
+    }
+
+}
@@ -11,11 +11,16 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
+import javax.persistence.SequenceGenerator;
 import javax.validation.constraints.Email;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 
+import org.hibernate.annotations.BatchSize;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
@@ -25,10 +30,17 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 @Entity
 public class User {
 
-    /** The id. */
+    /** The Constant ID_GENERATOR. */
+    public static final String ID_GENERATOR = "user_id_generator";
+
+    /**
+     * The id, allocated from a sequence by blocks of 100 with the pooled optimizer, so that inserts can be batched
+     * and the user imports draw their ids from the same blocks.
+     */
     @JsonProperty(access = JsonProperty.Access.READ_ONLY)
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = User.ID_GENERATOR)
+    @SequenceGenerator(name = User.ID_GENERATOR, sequenceName = "user_seq", allocationSize = 100)
     private long id;
 
     /** The name. */
@@ -42,11 +54,30 @@ public class User {
     @Column(unique = true)
     private String email;
 
-    /** The album ids. */
+    /**
+     * The album ids, initialized for up to 100 users at once when users are listed with their libraries.
+     * The (album_id, user_id) index serves the owners of an album, ordered by user.
+     */
     @ElementCollection
-    @CollectionTable(name = "user_library", joinColumns = @JoinColumn(name = "user_id"))
+    @BatchSize(size = 100)
+    @CollectionTable(name = "user_library", joinColumns = @JoinColumn(name = "user_id"),
+            indexes = @Index(name = "user_library_album_idx", columnList = "album_id, user_id"))
+    @Column(name = "album_id", nullable = false)
     private Set<UUID> albumIds = new HashSet<>();
 
+    /** The library version, incremented on each library change. Never written by entity updates. */
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    @Column(name = "library_version", nullable = false, updatable = false)
+    private long libraryVersion;
+
+    /**
+     * The sequence number of the last library journal record written to the library, records up to it are not replayed.
+     * Never written by entity updates.
+     */
+    @JsonIgnore
+    @Column(name = "journal_sequence", nullable = false, updatable = false)
+    private long journalSequence;
+
     /**
      * Instantiates a new user.
      */
@@ -169,4 +200,40 @@ public class User {
         this.albumIds = albumIds;
     }
 
+    /**
+     * Gets the library version.
+     *
+     * @return the library version
+     */
+    public long getLibraryVersion() {
+        return this.libraryVersion;
+    }
+
+    /**
+     * Sets the library version.
+     *
+     * @param libraryVersion the new library version
+     */
+    public void setLibraryVersion(long libraryVersion) {
+        this.libraryVersion = libraryVersion;
+    }
+
+    /**
+     * Gets the sequence number of the last library journal record written to the library.
+     *
+     * @return the journal sequence number
+     */
+    public long getJournalSequence() {
+        return this.journalSequence;
+    }
+
+    /**
+     * Sets the sequence number of the last library journal record written to the library.
+     *
+     * @param journalSequence the new journal sequence number
+     */
+    public void setJournalSequence(long journalSequence) {
+        this.journalSequence = journalSequence;
+    }
+
 }
@@ -0,0 +1,316 @@
+package com.halj.music.library.model;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Class UserImportJob.
+ * Represents an asynchronous import of users and their libraries, and its progress.
+ * Counters are updated by the import thread and read by status requests.
+ */
+public class UserImportJob {
+
+    /** The Constant MAX_ERRORS, number of record errors kept as samples. */
+    private static final int MAX_ERRORS = 20;
+
+    /**
+     * The job status.
+     */
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    /** The id. */
+    private final UUID id;
+
+    /** The status. */
+    private volatile Status status = Status.QUEUED;
+
+    /** The submission time. */
+    private final Instant submittedAt = Instant.now();
+
+    /** The start time. */
+    private volatile Instant startedAt;
+
+    /** The end time. */
+    private volatile Instant finishedAt;
+
+    /** The number of records read. */
+    private final AtomicLong read = new AtomicLong();
+
+    /** The number of imported users. */
+    private final AtomicLong imported = new AtomicLong();
+
+    /** The number of albums added to the libraries of the imported users. */
+    private final AtomicLong albums = new AtomicLong();
+
+    /** The number of users skipped because their email is already used. */
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /** The number of invalid records. */
+    private final AtomicLong invalid = new AtomicLong();
+
+    /** The number of users that failed to be imported. */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** The first record errors. */
+    private final List<String> errors = new ArrayList<>();
+
+    /** The error that stopped the job. */
+    private volatile String error;
+
+    /**
+     * Instantiates a new user import job.
+     *
+     * @param id the id
+     */
+    public UserImportJob(UUID id) {
+        super();
+        this.id = id;
+    }
+
+    /**
+     * Mark the job as started.
+     */
+    public void start() {
+        this.startedAt = Instant.now();
+        this.status = Status.RUNNING;
+    }
+
+    /**
+     * Mark the job as completed.
+     */
+    public void complete() {
+        this.finishedAt = Instant.now();
+        this.status = Status.COMPLETED;
+    }
+
+    /**
+     * Mark the job as failed.
+     *
+     * @param error the error that stopped the job
+     */
+    public void fail(final String error) {
+        this.error = error;
+        this.finishedAt = Instant.now();
+        this.status = Status.FAILED;
+    }
+
+    /**
+     * Count a record read.
+     *
+     * @return the record number, starting at 1
+     */
+    public long recordRead() {
+        return this.read.incrementAndGet();
+    }
+
+    /**
+     * Count imported users.
+     *
+     * @param users the number of users
+     * @param albumCount the number of albums added to their libraries
+     */
+    public void usersImported(final long users, final long albumCount) {
+        this.imported.addAndGet(users);
+        this.albums.addAndGet(albumCount);
+    }
+
+    /**
+     * Count a user skipped because its email is already used, keeping the record as sample.
+     *
+     * @param record the record number
+     * @param email the email
+     */
+    public void recordDuplicate(final long record, final String email) {
+        this.duplicates.incrementAndGet();
+        addError(record, "duplicate email " + email);
+    }
+
+    /**
+     * Count an invalid record, keeping its error as sample.
+     *
+     * @param record the record number
+     * @param message the error message
+     */
+    public void recordInvalid(final long record, final String message) {
+        this.invalid.incrementAndGet();
+        addError(record, message);
+    }
+
+    /**
+     * Count users that failed to be imported.
+     *
+     * @param count the count
+     */
+    public void usersFailed(final long count) {
+        this.failed.addAndGet(count);
+    }
+
+    /**
+     * Gets the id.
+     *
+     * @return the id
+     */
+    public UUID getId() {
+        return this.id;
+    }
+
+    /**
+     * Gets the status.
+     *
+     * @return the status
+     */
+    public Status getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Gets the submission time.
+     *
+     * @return the submission time
+     */
+    public Instant getSubmittedAt() {
+        return this.submittedAt;
+    }
+
+    /**
+     * Gets the start time.
+     *
+     * @return the start time
+     */
+    public Instant getStartedAt() {
+        return this.startedAt;
+    }
+
+    /**
+     * Gets the end time.
+     *
+     * @return the end time
+     */
+    public Instant getFinishedAt() {
+        return this.finishedAt;
+    }
+
+    /**
+     * Gets the number of records processed.
+     *
+     * @return the number of records read
+     */
+    public long getProcessed() {
+        return this.read.get();
+    }
+
+    /**
+     * Gets the number of imported users.
+     *
+     * @return the number of imported users
+     */
+    public long getImported() {
+        return this.imported.get();
+    }
+
+    /**
+     * Gets the number of albums added to the libraries of the imported users.
+     *
+     * @return the number of albums
+     */
+    public long getAlbums() {
+        return this.albums.get();
+    }
+
+    /**
+     * Gets the number of users skipped because their email is already used.
+     *
+     * @return the number of duplicates
+     */
+    public long getDuplicates() {
+        return this.duplicates.get();
+    }
+
+    /**
+     * Gets the number of invalid records.
+     *
+     * @return the number of invalid records
+     */
+    public long getInvalid() {
+        return this.invalid.get();
+    }
+
+    /**
+     * Gets the number of users that failed to be imported.
+     *
+     * @return the number of failed users
+     */
+    public long getFailed() {
+        return this.failed.get();
+    }
+
+    /**
+     * Gets the first record errors.
+     *
+     * @return the errors
+     */
+    public List<String> getErrors() {
+        synchronized (this.errors) {
+            return new ArrayList<>(this.errors);
+        }
+    }
+
+    /**
+     * Gets the error that stopped the job.
+     *
+     * @return the error
+     */
+    public String getError() {
+        return this.error;
+    }
+
+    /**
+     * Gets the elapsed time since start.
+     *
+     * @return the elapsed time, in milliseconds
+     */
+    public long getElapsedMillis() {
+        if (this.startedAt == null) {
+            return 0;
+        }
+        Instant end = this.finishedAt == null ? Instant.now() : this.finishedAt;
+        return Math.max(0, end.toEpochMilli() - this.startedAt.toEpochMilli());
+    }
+
+    /**
+     * Gets the processed records per second.
+     *
+     * @return the processed records per second
+     */
+    public long getProcessedPerSecond() {
+        return perSecond(getProcessed());
+    }
+
+    /**
+     * Gets the imported users per second.
+     *
+     * @return the imported users per second
+     */
+    public long getImportedPerSecond() {
+        return perSecond(getImported());
+    }
+
+    private void addError(final long record, final String message) {
+        synchronized (this.errors) {
+            if (this.errors.size() < MAX_ERRORS) {
+                this.errors.add("record " + record + ": " + message);
+            }
+        }
+    }
+
+    private long perSecond(final long count) {
+        long elapsedMillis = getElapsedMillis();
+        return elapsedMillis == 0 ? count : count * 1000 / elapsedMillis;
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.halj.music.library.model;
+
+/**
+ * The Class UserSummary.
+ * Lightweight projection of a user for listings: the library size is counted in SQL, library rows are never loaded
+ */
+public class UserSummary {
+
+    /** The id. */
+    private long id;
+
+    /** The name. */
+    private String name;
+
+    /** The email. */
+    private String email;
+
+    /** The number of albums in library. */
+    private int librarySize;
+
+    /**
+     * Instantiates a new user summary.
+     *
+     * @param id the id
+     * @param name the name
+     * @param email the email
+     * @param librarySize the number of albums in library
+     */
+    public UserSummary(long id, String name, String email, int librarySize) {
+        super();
+        this.id = id;
+        this.name = name;
+        this.email = email;
+        this.librarySize = librarySize;
+    }
+
+    /**
+     * Gets the id.
+     *
+     * @return the id
+     */
+    public long getId() {
+        return this.id;
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Gets the email.
+     *
+     * @return the email
+     */
+    public String getEmail() {
+        return this.email;
+    }
+
+    /**
+     * Gets the number of albums in library.
+     *
+     * @return the library size
+     */
+    public int getLibrarySize() {
+        return this.librarySize;
+    }
+
+}
@@ -3,43 +3,59 @@ package com.halj.music.library.model.elastic;
 import java.util.UUID;
 
 import javax.persistence.Id;
-import javax.validation.constraints.Digits;
 import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.Pattern;
 
 import org.springframework.data.elasticsearch.annotations.Document;
 import org.springframework.data.elasticsearch.annotations.Field;
 import org.springframework.data.elasticsearch.annotations.FieldType;
+import org.springframework.data.elasticsearch.annotations.InnerField;
+import org.springframework.data.elasticsearch.annotations.MultiField;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
  * The Class Album.
- * Represents an Album in Elasticsearch
+ * Represents an Album in Elasticsearch.
+ * The mapping is explicit: analyzed title and artist with keyword subfields for exact filters and aggregations,
+ * numeric release year for range filters, sorts and histograms, a cover URL kept in _source only and a numeric
+ * popularity, blended into the search scores.
+ * "albums" is an alias to the live generation of the index, generations are created by the AlbumIndexManager.
  */
-@Document(indexName = "albums")
+@Document(indexName = "albums", createIndex = false)
 public class Album {
 
-    /** The id. */
+    /** The id, also indexed as a keyword to sort and paginate on. */
     @Id
+    @Field(type = FieldType.Keyword, name = "id")
     private UUID id;
 
-    /** The title. */
+    /** The title, also indexed as a keyword ("title.keyword"). */
     @NotBlank
-    @Field(type = FieldType.Text, name = "title")
+    @MultiField(mainField = @Field(type = FieldType.Text, name = "title"),
+            otherFields = @InnerField(suffix = "keyword", type = FieldType.Keyword, ignoreAbove = 256))
     private String title;
 
-    /** The artist. */
+    /** The artist, also indexed as a keyword ("artist.keyword"). */
     @NotBlank
-    @Field(type = FieldType.Text, name = "artist")
+    @MultiField(mainField = @Field(type = FieldType.Text, name = "artist"),
+            otherFields = @InnerField(suffix = "keyword", type = FieldType.Keyword, ignoreAbove = 256))
     private String artist;
 
-    /** The release year. */
-    @Digits(fraction = 0, integer = 4)
-    @Field(type = FieldType.Text, name = "releaseYear")
+    /** The release year, indexed as a number (empty years are indexed as missing). */
+    @Pattern(regexp = "\\d{0,4}", message = "must be a year of at most 4 digits, or empty")
+    @Field(type = FieldType.Short, name = "releaseYear")
     private String releaseYear;
 
-    /** The cover URL. */
-    @Field(type = FieldType.Text, name = "coverURL")
+    /** The cover URL, neither indexed nor aggregatable. */
+    @Field(type = FieldType.Keyword, name = "coverURL", index = false, docValues = false)
     private String coverURL;
 
+    /** The popularity, maintained by the AlbumPopularity counters and never written by clients. */
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    @Field(type = FieldType.Long, name = "popularity")
+    private Long popularity;
+
     /**
      * Instantiates a new album.
      */
@@ -155,4 +171,22 @@ public class Album {
         this.coverURL = coverURL;
     }
 
+    /**
+     * Gets the popularity.
+     *
+     * @return the popularity, null until the album is counted
+     */
+    public Long getPopularity() {
+        return this.popularity;
+    }
+
+    /**
+     * Sets the popularity.
+     *
+     * @param popularity the new popularity
+     */
+    public void setPopularity(Long popularity) {
+        this.popularity = popularity;
+    }
+
 }
@@ -0,0 +1,222 @@
+package com.halj.music.library.popularity;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.BulkFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import com.halj.music.library.service.AlbumChangeListener;
+import com.halj.music.library.service.AlbumWriteLog;
+
+/**
+ * The Class AlbumPopularity.
+ * Counts the popularity signals of albums (library adds and removes, album views) and periodically adds them to the
+ * "popularity" field of the albums, blended into the free text search scores.
+ * Signals are counted in striped LongAdders, so that recording never blocks nor contends on the request path.
+ * A background flush sends the accumulated deltas as scripted partial updates, in bulk requests;
+ * the deltas of albums missing from the index are dropped. The album change listeners are then given the flushed deltas.
+ */
+@Component
+public class AlbumPopularity {
+
+    /** The Constant LOG. */
+    private static final Logger LOG = LoggerFactory.getLogger(AlbumPopularity.class);
+
+    /** The Constant ALBUM_ES_INDEX. */
+    private static final String ALBUM_ES_INDEX = "albums";
+
+    /** The Constant FLUSH_CHUNK_SIZE, maximum number of updates per bulk request. */
+    private static final int FLUSH_CHUNK_SIZE = 1000;
+
+    /** The Constant ADD_POPULARITY script, popularity never goes below 0 so that it can be used in a log score function. */
+    private static final String ADD_POPULARITY = "ctx._source.popularity = "
+            + "Math.max(0L, (ctx._source.popularity == null ? 0L : ctx._source.popularity) + params.delta)";
+
+    /** The elasticsearch operations. */
+    private ElasticsearchOperations elasticsearchOperations;
+
+    /** The album change listeners, given the flushed deltas. */
+    private List<AlbumChangeListener> albumChangeListeners;
+
+    /** The log of the albums written through the alias. */
+    private AlbumWriteLog albumWriteLog;
+
+    /** The popularity weight of a library add, a view weighing 1. */
+    private long ownerWeight;
+
+    /** The popularity deltas not flushed yet, by album id. */
+    private ConcurrentHashMap<UUID, LongAdder> deltas = new ConcurrentHashMap<>();
+
+    /** The flush scheduler. */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Instantiates a new album popularity.
+     *
+     * @param elasticsearchOperations the elasticsearch operations
+     * @param albumChangeListeners the album change listeners
+     * @param albumWriteLog the log of the albums written through the alias
+     * @param ownerWeight the popularity weight of a library add, a view weighing 1
+     * @param flushInterval the delay between two flushes
+     */
+    public AlbumPopularity(ElasticsearchOperations elasticsearchOperations,
+            List<AlbumChangeListener> albumChangeListeners,
+            AlbumWriteLog albumWriteLog,
+            @Value("${library.popularity.owner-weight:10}") long ownerWeight,
+            @Value("${library.popularity.flush-interval:10s}") Duration flushInterval) {
+        super();
+        this.elasticsearchOperations = elasticsearchOperations;
+        this.albumChangeListeners = albumChangeListeners;
+        this.albumWriteLog = albumWriteLog;
+        this.ownerWeight = ownerWeight;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("album-popularity-"));
+        this.scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the flushes, then flush the last deltas.
+     */
+    @PreDestroy
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+        flushQuietly();
+    }
+
+    /**
+     * Count albums added to a library.
+     *
+     * @param albumIds the album ids
+     */
+    public void albumsAdded(final Collection<UUID> albumIds) {
+        albumIds.forEach(albumId -> add(albumId, this.ownerWeight));
+    }
+
+    /**
+     * Count albums removed from a library.
+     *
+     * @param albumIds the album ids
+     */
+    public void albumsRemoved(final Collection<UUID> albumIds) {
+        albumIds.forEach(albumId -> add(albumId, -this.ownerWeight));
+    }
+
+    /**
+     * Count an album view.
+     *
+     * @param albumId the album id
+     */
+    public void albumViewed(final UUID albumId) {
+        add(albumId, 1);
+    }
+
+    /**
+     * Gets the number of albums with counters.
+     *
+     * @return the number of albums
+     */
+    public int getPendingAlbums() {
+        return this.deltas.size();
+    }
+
+    /**
+     * Flush the accumulated deltas to the albums index.
+     *
+     * @return the number of albums updated
+     */
+    public int flush() {
+        List<UpdateQuery> updates = new ArrayList<>();
+        for (Map.Entry<UUID, LongAdder> entry : this.deltas.entrySet()) {
+            LongAdder counter = entry.getValue();
+            long delta = counter.sum();
+            if (delta == 0) {
+                // idle since the previous flush: an increment racing with this removal is lost, which a
+                // popularity signal can afford
+                this.deltas.remove(entry.getKey(), counter);
+                continue;
+            }
+            // subtracted rather than reset, so that concurrent increments are kept for the next flush
+            counter.add(-delta);
+            updates.add(UpdateQuery.builder(entry.getKey().toString())
+                    .withScript(ADD_POPULARITY)
+                    .withLang("painless")
+                    .withParams(Map.of("delta", delta))
+                    .withRetryOnConflict(3)
+                    .build());
+        }
+
+        Map<UUID, Long> flushed = new HashMap<>();
+        for (int from = 0; from < updates.size(); from += FLUSH_CHUNK_SIZE) {
+            List<UpdateQuery> chunk = updates.subList(from, Math.min(from + FLUSH_CHUNK_SIZE, updates.size()));
+            Map<String, String> failed = Map.of();
+            List<UUID> albumIds = new ArrayList<>(chunk.size());
+            chunk.forEach(update -> albumIds.add(UUID.fromString(update.getId())));
+            try {
+                this.albumWriteLog.write(albumIds,
+                        () -> this.elasticsearchOperations.bulkUpdate(chunk, IndexCoordinates.of(ALBUM_ES_INDEX)));
+            } catch (BulkFailureException e) {
+                // typically albums deleted since they were counted
+                failed = e.getFailedDocuments();
+                LOG.debug("Popularity of {} albums not updated: {}", failed.size(), failed);
+            }
+            for (UpdateQuery update : chunk) {
+                if (!failed.containsKey(update.getId())) {
+                    flushed.put(UUID.fromString(update.getId()), (Long) update.getParams().get("delta"));
+                }
+            }
+        }
+        if (!flushed.isEmpty()) {
+            this.albumChangeListeners.forEach(listener -> listener.onPopularityChanged(flushed));
+        }
+        return flushed.size();
+    }
+
+    /**
+     * Flush, logging failures so that the next scheduled flushes still run.
+     */
+    private void flushQuietly() {
+        try {
+            int updated = flush();
+            if (updated > 0) {
+                LOG.debug("Popularity of {} albums updated", updated);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Album popularity flush failed, its deltas are dropped", e);
+        }
+    }
+
+    /**
+     * Add to the popularity delta of an album. Existing counters are found without locking.
+     *
+     * @param albumId the album id
+     * @param delta the delta
+     */
+    private void add(final UUID albumId, final long delta) {
+        LongAdder counter = this.deltas.get(albumId);
+        if (counter == null) {
+            counter = this.deltas.computeIfAbsent(albumId, id -> new LongAdder());
+        }
+        counter.add(delta);
+    }
+
+}
@@ -0,0 +1,541 @@
+package com.halj.music.library.recommend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.halj.music.library.bitmap.AlbumOrdinals;
+import com.halj.music.library.bitmap.CompressedBitmap;
+import com.halj.music.library.repository.UserLibraryRepository;
+import com.halj.music.library.service.LibraryChangeListener;
+
+/**
+ * The Class AlbumRecommender.
+ * Item-to-item recommendations: albums are recommended for the albums they share libraries with.
+ * Co-occurrence counts of album pairs are kept by album ordinal in primitive maps, and each album keeps a precomputed
+ * list of its nearest neighbours, scored by cosine similarity of their owner sets, so that recommending only merges
+ * the neighbours of the albums of a library.
+ * Counts are built at startup from all the libraries, one album per task in parallel, then updated incrementally
+ * by a single writer thread, which diffs a changed library against the one it last counted.
+ * Libraries larger than the maximum library size are not counted: they weigh little per pair and cost quadratically.
+ */
+@Service
+public class AlbumRecommender implements LibraryChangeListener {
+
+    /** The Constant LOG. */
+    private static final Logger LOG = LoggerFactory.getLogger(AlbumRecommender.class);
+
+    /** The Constant NO_NEIGHBOURS. */
+    private static final Neighbours NO_NEIGHBOURS = new Neighbours(new int[0], new float[0]);
+
+    /** The user library repository. */
+    private UserLibraryRepository userLibraryRepository;
+
+    /** The album ordinals. */
+    private AlbumOrdinals albumOrdinals;
+
+    /** The number of neighbours kept per album. */
+    private int neighboursSize;
+
+    /** The maximum size of the libraries counted. */
+    private int maxLibrarySize;
+
+    /** The writer, owning the counts below. */
+    private ExecutorService writer;
+
+    /** The libraries counted, by user id. Written by the writer only. */
+    private Map<Long, CompressedBitmap> libraries = new HashMap<>();
+
+    /** The co-occurrence counts of each album, by ordinal. Written by the writer only. */
+    private IntCountMap[] cooccurrences = new IntCountMap[0];
+
+    /** The number of counted libraries holding each album, by ordinal. Written by the writer only. */
+    private int[] owners = new int[0];
+
+    /** The neighbours of each album, by ordinal, read by the requests. Replaced when grown, by the writer only. */
+    private volatile AtomicReferenceArray<Neighbours> neighbours = new AtomicReferenceArray<>(0);
+
+    /**
+     * Instantiates a new album recommender.
+     *
+     * @param userLibraryRepository the user library repository
+     * @param albumOrdinals the album ordinals
+     * @param neighboursSize the number of neighbours kept per album
+     * @param maxLibrarySize the maximum size of the libraries counted
+     */
+    public AlbumRecommender(UserLibraryRepository userLibraryRepository, AlbumOrdinals albumOrdinals,
+            @Value("${library.recommendations.neighbours:50}") int neighboursSize,
+            @Value("${library.recommendations.max-library-size:1000}") int maxLibrarySize) {
+        super();
+        this.userLibraryRepository = userLibraryRepository;
+        this.albumOrdinals = albumOrdinals;
+        this.neighboursSize = neighboursSize;
+        this.maxLibrarySize = maxLibrarySize;
+        this.writer = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("album-recommender-"));
+    }
+
+    /**
+     * Build the counts once the application is ready, the user_library table being created by then.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        rebuild();
+    }
+
+    /**
+     * Stop the writer.
+     */
+    @PreDestroy
+    public void shutdown() {
+        this.writer.shutdownNow();
+    }
+
+    /**
+     * Rebuild the counts from all the libraries, in the background, once the current transaction is committed.
+     */
+    public void rebuild() {
+        afterCommit(this::build);
+    }
+
+    /**
+     * Update the counts of a changed library, in the background, once the current transaction is committed.
+     * Updates read the committed library, so they can be repeated or reordered.
+     *
+     * @param userId the user id
+     */
+    @Override
+    public void onLibraryChanged(final long userId) {
+        afterCommit(() -> update(userId));
+    }
+
+    @Override
+    public void onAllLibrariesChanged() {
+        rebuild();
+    }
+
+    /**
+     * Wait for the updates submitted so far to be applied.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitUpdates() throws InterruptedException {
+        try {
+            this.writer.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Recommend albums for a library: the neighbours of its albums, not in the library, by decreasing sum of their
+     * similarities.
+     *
+     * @param library the library bitmap
+     * @param size the maximum number of albums
+     * @return the album ids, best first
+     */
+    public List<UUID> recommend(final CompressedBitmap library, final int size) {
+        AtomicReferenceArray<Neighbours> published = this.neighbours;
+        // candidate slots are stored plus one, 0 meaning absent
+        IntCountMap slots = new IntCountMap(library.getCardinality() * 4);
+        int[] candidates = new int[64];
+        float[] scores = new float[64];
+        int count = 0;
+        for (PrimitiveIterator.OfInt albums = library.iterator(); albums.hasNext();) {
+            int album = albums.nextInt();
+            Neighbours albumNeighbours = album < published.length() ? published.get(album) : null;
+            if (albumNeighbours == null) {
+                continue;
+            }
+            for (int i = 0; i < albumNeighbours.ordinals.length; i++) {
+                int neighbour = albumNeighbours.ordinals[i];
+                if (library.contains(neighbour)) {
+                    continue;
+                }
+                int slot = slots.get(neighbour) - 1;
+                if (slot < 0) {
+                    slot = count++;
+                    slots.add(neighbour, slot + 1);
+                    if (slot == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, slot * 2);
+                        scores = Arrays.copyOf(scores, slot * 2);
+                    }
+                    candidates[slot] = neighbour;
+                }
+                scores[slot] += albumNeighbours.scores[i];
+            }
+        }
+
+        TopK top = new TopK(size);
+        for (int slot = 0; slot < count; slot++) {
+            top.offer(candidates[slot], scores[slot]);
+        }
+        int[] best = top.toNeighbours().ordinals;
+        List<UUID> albumIds = new ArrayList<>(best.length);
+        for (int ordinal : best) {
+            albumIds.add(this.albumOrdinals.getAlbumId(ordinal));
+        }
+        return albumIds;
+    }
+
+    /**
+     * Gets the number of counted libraries holding two albums. To be called from the writer, or after
+     * {@link #awaitUpdates()}.
+     *
+     * @param albumId the album id
+     * @param otherAlbumId the other album id
+     * @return the co-occurrence count
+     */
+    int getCooccurrences(final UUID albumId, final UUID otherAlbumId) {
+        int album = this.albumOrdinals.findOrdinal(albumId);
+        int other = this.albumOrdinals.findOrdinal(otherAlbumId);
+        if (album < 0 || other < 0 || album >= this.cooccurrences.length || this.cooccurrences[album] == null) {
+            return 0;
+        }
+        return this.cooccurrences[album].get(other);
+    }
+
+    /**
+     * Submit a task to the writer once the current transaction is committed, or right away outside of a transaction.
+     *
+     * @param task the task
+     */
+    private void afterCommit(final Runnable task) {
+        Runnable logged = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Album recommendations update failed", e);
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    AlbumRecommender.this.writer.execute(logged);
+                }
+            });
+        } else {
+            this.writer.execute(logged);
+        }
+    }
+
+    /**
+     * Build the counts and neighbours from all the libraries. Each album row is counted by its own task, from the
+     * libraries holding the album, so that the tasks run in parallel without sharing any mutable state.
+     */
+    private void build() {
+        long start = System.nanoTime();
+        Map<Long, CompressedBitmap> allLibraries = new HashMap<>();
+        this.userLibraryRepository.forEachLibrary((userId, albumIds) -> allLibraries.put(userId, this.albumOrdinals.encode(albumIds)));
+
+        // read after the libraries are encoded, so that all their ordinals are covered
+        int albumCount = this.albumOrdinals.size();
+        int[] albumOwners = new int[albumCount];
+        List<int[]> counted = new ArrayList<>();
+        for (CompressedBitmap library : allLibraries.values()) {
+            if (isCounted(library)) {
+                int[] albums = library.toArray();
+                counted.add(albums);
+                for (int album : albums) {
+                    albumOwners[album]++;
+                }
+            }
+        }
+
+        // libraries holding each album
+        int[][] holders = new int[albumCount][];
+        int[] filled = new int[albumCount];
+        for (int album = 0; album < albumCount; album++) {
+            holders[album] = new int[albumOwners[album]];
+        }
+        for (int library = 0; library < counted.size(); library++) {
+            for (int album : counted.get(library)) {
+                holders[album][filled[album]++] = library;
+            }
+        }
+
+        IntCountMap[] rows = new IntCountMap[albumCount];
+        AtomicReferenceArray<Neighbours> built = new AtomicReferenceArray<>(albumCount);
+        IntStream.range(0, albumCount).parallel().forEach(album -> {
+            if (holders[album].length == 0) {
+                return;
+            }
+            IntCountMap row = new IntCountMap();
+            for (int library : holders[album]) {
+                for (int other : counted.get(library)) {
+                    if (other != album) {
+                        row.add(other, 1);
+                    }
+                }
+            }
+            rows[album] = row;
+            built.set(album, neighbours(album, row, albumOwners));
+        });
+
+        this.libraries = allLibraries;
+        this.cooccurrences = rows;
+        this.owners = albumOwners;
+        this.neighbours = built;
+        LOG.info("Album recommendations built from {} libraries ({} counted) in {} ms",
+                allLibraries.size(), counted.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Update the counts with the changes of a library since it was last counted, then the neighbours of its albums.
+     *
+     * @param userId the user id
+     */
+    private void update(final long userId) {
+        CompressedBitmap library = this.albumOrdinals.encode(this.userLibraryRepository.findAlbumIds(userId));
+        CompressedBitmap previous = library.isEmpty() ? this.libraries.remove(userId) : this.libraries.put(userId, library);
+
+        CompressedBitmap before = previous != null && isCounted(previous) ? previous : CompressedBitmap.of();
+        CompressedBitmap after = isCounted(library) ? library : CompressedBitmap.of();
+        CompressedBitmap removed = before.andNot(after);
+        CompressedBitmap added = after.andNot(before);
+        if (removed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+        CompressedBitmap kept = before.and(after);
+        grow(this.albumOrdinals.size());
+
+        // pairs of a removed album with the albums of the previous library, then of an added album with the new one
+        removed.forEach(album -> count(album, before, kept, -1));
+        added.forEach(album -> count(album, after, kept, 1));
+
+        // the similarities to the albums whose owners changed go stale in the other rows, until these are updated
+        AtomicReferenceArray<Neighbours> published = this.neighbours;
+        before.or(after).forEach(album -> published.set(album, neighbours(album, this.cooccurrences[album], this.owners)));
+    }
+
+    /**
+     * Count the pairs of an album with the albums of a library.
+     *
+     * @param album the album ordinal
+     * @param library the library
+     * @param kept the albums of the library before and after the change
+     * @param delta 1 for an added album, -1 for a removed one
+     */
+    private void count(final int album, final CompressedBitmap library, final CompressedBitmap kept, final int delta) {
+        this.owners[album] += delta;
+        IntCountMap row = this.cooccurrences[album];
+        if (row == null) {
+            row = new IntCountMap();
+            this.cooccurrences[album] = row;
+        }
+        IntCountMap albumRow = row;
+        library.forEach(other -> {
+            if (other == album) {
+                return;
+            }
+            albumRow.add(other, delta);
+            // rows of the other changed albums are counted by their own call
+            if (kept.contains(other)) {
+                this.cooccurrences[other].add(album, delta);
+            }
+        });
+    }
+
+    /**
+     * Grow the per album arrays to the number of ordinals.
+     *
+     * @param albumCount the number of ordinals
+     */
+    private void grow(final int albumCount) {
+        if (albumCount <= this.owners.length) {
+            return;
+        }
+        int capacity = Math.max(albumCount, this.owners.length * 2);
+        this.owners = Arrays.copyOf(this.owners, capacity);
+        this.cooccurrences = Arrays.copyOf(this.cooccurrences, capacity);
+
+        AtomicReferenceArray<Neighbours> published = this.neighbours;
+        AtomicReferenceArray<Neighbours> grown = new AtomicReferenceArray<>(capacity);
+        for (int album = 0; album < published.length(); album++) {
+            grown.set(album, published.get(album));
+        }
+        this.neighbours = grown;
+    }
+
+    /**
+     * Checks if a library is counted.
+     *
+     * @param library the library
+     * @return true, if it has pairs of albums and is not larger than the max library size
+     */
+    private boolean isCounted(final CompressedBitmap library) {
+        int size = library.getCardinality();
+        return size >= 2 && size <= this.maxLibrarySize;
+    }
+
+    /**
+     * Select the nearest neighbours of an album, by cosine similarity of the owner sets:
+     * co-occurrences / sqrt(owners of the album * owners of the neighbour).
+     *
+     * @param album the album ordinal
+     * @param row the co-occurrence counts of the album
+     * @param albumOwners the number of owners of each album
+     * @return the neighbours
+     */
+    private Neighbours neighbours(final int album, final IntCountMap row, final int[] albumOwners) {
+        if (row == null || row.size() == 0) {
+            return NO_NEIGHBOURS;
+        }
+        TopK top = new TopK(this.neighboursSize);
+        double owners = albumOwners[album];
+        row.forEach((other, count) -> top.offer(other, (float) (count / Math.sqrt(owners * albumOwners[other]))));
+        return top.toNeighbours();
+    }
+
+    /**
+     * The Class Neighbours.
+     * Immutable list of albums, best first.
+     */
+    private static final class Neighbours {
+
+        /** The album ordinals. */
+        private final int[] ordinals;
+
+        /** The scores. */
+        private final float[] scores;
+
+        /**
+         * Instantiates new neighbours.
+         *
+         * @param ordinals the album ordinals
+         * @param scores the scores
+         */
+        private Neighbours(final int[] ordinals, final float[] scores) {
+            this.ordinals = ordinals;
+            this.scores = scores;
+        }
+    }
+
+    /**
+     * The Class TopK.
+     * Selects the k best scored albums with a bounded min-heap, ties broken by lowest ordinal.
+     */
+    private static final class TopK {
+
+        /** The heap ordinals. */
+        private final int[] ordinals;
+
+        /** The heap scores. */
+        private final float[] scores;
+
+        /** The heap size. */
+        private int size;
+
+        /**
+         * Instantiates a new top k.
+         *
+         * @param k the number of albums kept
+         */
+        private TopK(final int k) {
+            this.ordinals = new int[k];
+            this.scores = new float[k];
+        }
+
+        /**
+         * Offer an album.
+         *
+         * @param ordinal the album ordinal
+         * @param score the score
+         */
+        private void offer(final int ordinal, final float score) {
+            if (this.size < this.ordinals.length) {
+                this.ordinals[this.size] = ordinal;
+                this.scores[this.size] = score;
+                siftUp(this.size++);
+            } else if (this.size > 0 && isWorse(this.ordinals[0], this.scores[0], ordinal, score)) {
+                this.ordinals[0] = ordinal;
+                this.scores[0] = score;
+                siftDown(0);
+            }
+        }
+
+        /**
+         * Gets the albums kept, best first.
+         *
+         * @return the neighbours
+         */
+        private Neighbours toNeighbours() {
+            int count = this.size;
+            int[] sortedOrdinals = new int[count];
+            float[] sortedScores = new float[count];
+            // the worst album is popped first
+            for (int i = count - 1; i >= 0; i--) {
+                sortedOrdinals[i] = this.ordinals[0];
+                sortedScores[i] = this.scores[0];
+                this.size--;
+                this.ordinals[0] = this.ordinals[this.size];
+                this.scores[0] = this.scores[this.size];
+                siftDown(0);
+            }
+            return new Neighbours(sortedOrdinals, sortedScores);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!isWorse(this.ordinals[i], this.scores[i], this.ordinals[parent], this.scores[parent])) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int worst = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < this.size; child++) {
+                    if (isWorse(this.ordinals[child], this.scores[child], this.ordinals[worst], this.scores[worst])) {
+                        worst = child;
+                    }
+                }
+                if (worst == i) {
+                    return;
+                }
+                swap(i, worst);
+                i = worst;
+            }
+        }
+
+        private void swap(final int i, final int j) {
+            int ordinal = this.ordinals[i];
+            float score = this.scores[i];
+            this.ordinals[i] = this.ordinals[j];
+            this.scores[i] = this.scores[j];
+            this.ordinals[j] = ordinal;
+            this.scores[j] = score;
+        }
+
+        private static boolean isWorse(final int ordinal, final float score, final int otherOrdinal, final float otherScore) {
+            return score < otherScore || (score == otherScore && ordinal > otherOrdinal);
+        }
+    }
+
+}
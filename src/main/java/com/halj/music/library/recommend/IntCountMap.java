@@ -0,0 +1,185 @@
+package com.halj.music.library.recommend;
+
+import java.util.Arrays;
+
+/**
+ * The Class IntCountMap.
+ * Open addressing map of non negative int keys (album ordinals) to int counts, without boxing.
+ * Keys are probed linearly, and entries whose count drops to 0 are removed with backward shifts, so there are no tombstones.
+ * Not thread safe.
+ */
+final class IntCountMap {
+
+    /**
+     * Consumer of the entries of the map.
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+
+        /**
+         * Accept an entry.
+         *
+         * @param key the key
+         * @param count the count
+         */
+        void accept(int key, int count);
+    }
+
+    /** The Constant EMPTY key. */
+    private static final int EMPTY = -1;
+
+    /** The keys, EMPTY for free slots. */
+    private int[] keys;
+
+    /** The counts. */
+    private int[] counts;
+
+    /** The number of entries. */
+    private int size;
+
+    /**
+     * Instantiates a new empty map.
+     */
+    IntCountMap() {
+        this(8);
+    }
+
+    /**
+     * Instantiates a new empty map.
+     *
+     * @param expectedSize the expected number of entries
+     */
+    IntCountMap(final int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        this.keys = new int[capacity];
+        this.counts = new int[capacity];
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    /**
+     * Gets the count of a key.
+     *
+     * @param key the key
+     * @return the count, 0 if absent
+     */
+    int get(final int key) {
+        int mask = this.keys.length - 1;
+        for (int slot = hash(key) & mask; this.keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (this.keys[slot] == key) {
+                return this.counts[slot];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Add to the count of a key, removing the entry when the count drops to 0.
+     *
+     * @param key the key, not negative
+     * @param delta the delta
+     * @return the new count
+     */
+    int add(final int key, final int delta) {
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+        for (; this.keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (this.keys[slot] == key) {
+                int count = this.counts[slot] + delta;
+                if (count == 0) {
+                    remove(slot);
+                } else {
+                    this.counts[slot] = count;
+                }
+                return count;
+            }
+        }
+        if (delta == 0) {
+            return 0;
+        }
+        this.keys[slot] = key;
+        this.counts[slot] = delta;
+        // load factor kept at or below 1/2, so that probe sequences stay short
+        if (++this.size * 2 > this.keys.length) {
+            rehash(this.keys.length * 2);
+        }
+        return delta;
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the size
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Iterate over the entries, in no particular order.
+     *
+     * @param consumer the entry consumer
+     */
+    void forEach(final EntryConsumer consumer) {
+        for (int slot = 0; slot < this.keys.length; slot++) {
+            if (this.keys[slot] != EMPTY) {
+                consumer.accept(this.keys[slot], this.counts[slot]);
+            }
+        }
+    }
+
+    /**
+     * Remove the entry of a slot, shifting back the following entries of the probe sequence.
+     *
+     * @param slot the slot
+     */
+    private void remove(int slot) {
+        int mask = this.keys.length - 1;
+        this.size--;
+        for (int next = (slot + 1) & mask; this.keys[next] != EMPTY; next = (next + 1) & mask) {
+            int home = hash(this.keys[next]) & mask;
+            // an entry can move back to the freed slot only if its home slot is not between the freed slot and its own
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                this.keys[slot] = this.keys[next];
+                this.counts[slot] = this.counts[next];
+                slot = next;
+            }
+        }
+        this.keys[slot] = EMPTY;
+    }
+
+    /**
+     * Grow the slots.
+     *
+     * @param capacity the new capacity, a power of 2
+     */
+    private void rehash(final int capacity) {
+        int[] oldKeys = this.keys;
+        int[] oldCounts = this.counts;
+        this.keys = new int[capacity];
+        this.counts = new int[capacity];
+        Arrays.fill(this.keys, EMPTY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (this.keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                this.keys[slot] = oldKeys[i];
+                this.counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    /**
+     * Spread dense ordinals over the slots.
+     *
+     * @param key the key
+     * @return the hash
+     */
+    private static int hash(final int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,333 @@
+package com.halj.music.library.recommend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.halj.music.library.model.SimilarUser;
+import com.halj.music.library.repository.UserLibraryRepository;
+import com.halj.music.library.service.LibraryChangeListener;
+
+/**
+ * The Class SimilarUserIndex.
+ * Approximate nearest neighbours of users libraries by Jaccard similarity, with MinHash signatures and
+ * locality-sensitive hashing.
+ * Each library is summarized by the minimum of several hash functions over its album ids: two libraries agree on a
+ * signature value with a probability equal to their Jaccard similarity. Signatures are cut into bands, and users sharing
+ * at least one identical band are candidates, so that a lookup only reads the users of a few buckets.
+ * More rows per band find fewer, more similar candidates; more bands find more of the similar users, at a higher cost.
+ * Signatures are computed at startup from all the libraries, then recomputed by a single writer thread after each
+ * committed library change.
+ */
+@Service
+public class SimilarUserIndex implements LibraryChangeListener {
+
+    /** The Constant LOG. */
+    private static final Logger LOG = LoggerFactory.getLogger(SimilarUserIndex.class);
+
+    /** The Constant SEED, fixed so that signatures are stable across restarts. */
+    private static final long SEED = 0x5DEECE66DL;
+
+    /** The user library repository. */
+    private UserLibraryRepository userLibraryRepository;
+
+    /** The number of bands. */
+    private int bands;
+
+    /** The number of signature values per band. */
+    private int rows;
+
+    /** The maximum number of candidates scored per lookup. */
+    private int maxCandidates;
+
+    /** The seeds of the hash functions, one per signature value. */
+    private long[] seeds;
+
+    /** The writer. */
+    private ExecutorService writer;
+
+    /** The signatures, by user id. */
+    private volatile Map<Long, int[]> signatures = new ConcurrentHashMap<>();
+
+    /** The users of each band bucket, by band and band hash. */
+    private volatile Map<Long, Set<Long>> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Instantiates a new similar user index.
+     *
+     * @param userLibraryRepository the user library repository
+     * @param bands the number of bands
+     * @param rows the number of signature values per band
+     * @param maxCandidates the maximum number of candidates scored per lookup
+     */
+    public SimilarUserIndex(UserLibraryRepository userLibraryRepository,
+            @Value("${library.similar-users.bands:20}") int bands,
+            @Value("${library.similar-users.rows:5}") int rows,
+            @Value("${library.similar-users.max-candidates:1000}") int maxCandidates) {
+        super();
+        if (bands < 1 || rows < 1) {
+            throw new IllegalArgumentException("Similar users bands and rows must be positive");
+        }
+        this.userLibraryRepository = userLibraryRepository;
+        this.bands = bands;
+        this.rows = rows;
+        this.maxCandidates = maxCandidates;
+        this.seeds = new SplittableRandom(SEED).longs(bands * rows).toArray();
+        this.writer = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("similar-users-"));
+    }
+
+    /**
+     * Index all the libraries once the application is ready, the user_library table being created by then.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        afterCommit(this::build);
+    }
+
+    /**
+     * Stop the writer.
+     */
+    @PreDestroy
+    public void shutdown() {
+        this.writer.shutdownNow();
+    }
+
+    @Override
+    public void onLibraryChanged(final long userId) {
+        afterCommit(() -> update(userId));
+    }
+
+    @Override
+    public void onAllLibrariesChanged() {
+        afterCommit(this::build);
+    }
+
+    /**
+     * Wait for the updates submitted so far to be applied.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitUpdates() throws InterruptedException {
+        try {
+            this.writer.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Find the users whose libraries are the most similar to the library of a user.
+     * Only the users sharing a band with the user are scored, by the fraction of their signature values in common.
+     *
+     * @param userId the user id
+     * @param size the maximum number of users
+     * @return the similar users, most similar first, empty if the library of the user is empty
+     */
+    public List<SimilarUser> findSimilar(final long userId, final int size) {
+        Map<Long, int[]> currentSignatures = this.signatures;
+        Map<Long, Set<Long>> currentBuckets = this.buckets;
+        int[] signature = currentSignatures.get(userId);
+        if (signature == null) {
+            return List.of();
+        }
+
+        Set<Long> candidates = new HashSet<>();
+        for (int band = 0; band < this.bands && candidates.size() < this.maxCandidates; band++) {
+            Set<Long> bucket = currentBuckets.get(bucketKey(signature, band));
+            if (bucket == null) {
+                continue;
+            }
+            for (Long candidate : bucket) {
+                if (candidate != userId) {
+                    candidates.add(candidate);
+                    if (candidates.size() == this.maxCandidates) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<SimilarUser> similar = new ArrayList<>(candidates.size());
+        for (Long candidate : candidates) {
+            int[] candidateSignature = currentSignatures.get(candidate);
+            if (candidateSignature != null) {
+                similar.add(new SimilarUser(candidate, similarity(signature, candidateSignature)));
+            }
+        }
+        similar.sort(Comparator.comparingDouble(SimilarUser::getSimilarity).reversed()
+                .thenComparingLong(SimilarUser::getUserId));
+        return similar.size() > size ? new ArrayList<>(similar.subList(0, size)) : similar;
+    }
+
+    /**
+     * Submit a task to the writer once the current transaction is committed, or right away outside of a transaction.
+     *
+     * @param task the task
+     */
+    private void afterCommit(final Runnable task) {
+        Runnable logged = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Similar users index update failed", e);
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    SimilarUserIndex.this.writer.execute(logged);
+                }
+            });
+        } else {
+            this.writer.execute(logged);
+        }
+    }
+
+    /**
+     * Index all the libraries into new maps, swapped in once complete.
+     */
+    private void build() {
+        long start = System.nanoTime();
+        Map<Long, int[]> builtSignatures = new ConcurrentHashMap<>();
+        Map<Long, Set<Long>> builtBuckets = new ConcurrentHashMap<>();
+        this.userLibraryRepository.forEachLibrary((userId, albumIds) -> {
+            int[] signature = signature(albumIds);
+            builtSignatures.put(userId, signature);
+            addToBuckets(builtBuckets, userId, signature);
+        });
+        this.signatures = builtSignatures;
+        this.buckets = builtBuckets;
+        LOG.info("Similar users index built from {} libraries in {} ms", builtSignatures.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Recompute the signature of a changed library, and move the user to the buckets of its new bands.
+     *
+     * @param userId the user id
+     */
+    private void update(final long userId) {
+        Set<UUID> albumIds = this.userLibraryRepository.findAlbumIds(userId);
+        int[] signature = albumIds.isEmpty() ? null : signature(albumIds);
+
+        int[] previous = signature == null ? this.signatures.remove(userId) : this.signatures.put(userId, signature);
+        if (previous != null) {
+            for (int band = 0; band < this.bands; band++) {
+                long key = bucketKey(previous, band);
+                Set<Long> bucket = this.buckets.get(key);
+                if (bucket != null) {
+                    bucket.remove(userId);
+                    if (bucket.isEmpty()) {
+                        // only the writer adds users, so an empty bucket stays empty
+                        this.buckets.remove(key, bucket);
+                    }
+                }
+            }
+        }
+        if (signature != null) {
+            addToBuckets(this.buckets, userId, signature);
+        }
+    }
+
+    /**
+     * Add a user to the buckets of the bands of its signature.
+     *
+     * @param bucketsByKey the buckets
+     * @param userId the user id
+     * @param signature the signature
+     */
+    private void addToBuckets(final Map<Long, Set<Long>> bucketsByKey, final long userId, final int[] signature) {
+        for (int band = 0; band < this.bands; band++) {
+            bucketsByKey.computeIfAbsent(bucketKey(signature, band), key -> ConcurrentHashMap.newKeySet()).add(userId);
+        }
+    }
+
+    /**
+     * Compute the MinHash signature of a library.
+     *
+     * @param albumIds the album ids, not empty
+     * @return the signature
+     */
+    private int[] signature(final Collection<UUID> albumIds) {
+        int[] signature = new int[this.seeds.length];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (UUID albumId : albumIds) {
+            long album = albumId.getMostSignificantBits() * 31 + albumId.getLeastSignificantBits();
+            for (int i = 0; i < this.seeds.length; i++) {
+                int hash = (int) (mix(album ^ this.seeds[i]) >>> 33);
+                if (hash < signature[i]) {
+                    signature[i] = hash;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Gets the key of the bucket of a band of a signature.
+     *
+     * @param signature the signature
+     * @param band the band
+     * @return the bucket key, the band in the high bits and the hash of its values in the low bits
+     */
+    private long bucketKey(final int[] signature, final int band) {
+        int hash = 1;
+        for (int i = band * this.rows; i < (band + 1) * this.rows; i++) {
+            hash = 31 * hash + signature[i];
+        }
+        return ((long) band << 32) | (hash & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Estimate the Jaccard similarity of two libraries from their signatures.
+     *
+     * @param signature the signature
+     * @param other the other signature
+     * @return the fraction of equal signature values
+     */
+    private static double similarity(final int[] signature, final int[] other) {
+        int equal = 0;
+        for (int i = 0; i < signature.length; i++) {
+            if (signature[i] == other[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / signature.length;
+    }
+
+    /**
+     * Mix the bits of a long, see the SplitMix64 finalizer.
+     *
+     * @param value the value
+     * @return the mixed value
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+}
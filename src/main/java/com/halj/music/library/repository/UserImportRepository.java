@@ -0,0 +1,94 @@
+package com.halj.music.library.repository;
+
+import java.util.List;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import com.halj.music.library.model.User;
+
+import io.micrometer.core.annotation.Timed;
+
+/**
+ * The Class UserImportRepository.
+ * Batched inserts of new users, bypassing the persistence context.
+ * Ids are drawn from the Hibernate generator of the User entity: the pooled optimizer hands out blocks of the
+ * user_seq sequence, so that imported users and users persisted by JPA never share an id, and the sequence is only
+ * read once per block.
+ */
+@Repository
+public class UserImportRepository {
+
+    /** The Constant INSERT_IF_ABSENT, skipping the users whose email is already used. */
+    private static final String INSERT_IF_ABSENT = "INSERT INTO user (id, name, email, library_version, journal_sequence) "
+            + "SELECT ?, ?, ?, 0, 0 WHERE NOT EXISTS "
+            + "(SELECT 1 FROM user WHERE email = ?)";
+
+    /** The jdbc template. */
+    private JdbcTemplate jdbcTemplate;
+
+    /** The session factory. */
+    private SessionFactoryImplementor sessionFactory;
+
+    /** The user id generator. */
+    private IdentifierGenerator idGenerator;
+
+    /**
+     * Instantiates a new user import repository.
+     *
+     * @param jdbcTemplate the jdbc template
+     * @param entityManagerFactory the entity manager factory
+     */
+    public UserImportRepository(JdbcTemplate jdbcTemplate, EntityManagerFactory entityManagerFactory) {
+        super();
+        this.jdbcTemplate = jdbcTemplate;
+        this.sessionFactory = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+        this.idGenerator = this.sessionFactory.getIdentifierGenerator(User.class.getName());
+    }
+
+    /**
+     * Insert new users with a batched insert, skipping the users whose email is already used, by an existing user
+     * or by a previous user of the list. Ids are set on the users before the insert, their libraries are not written.
+     *
+     * @param users the users
+     * @return for each user, true if inserted, false if its email is already used
+     */
+    @Timed("library.jdbc.requests")
+    public boolean[] insertUsers(final List<User> users) {
+        allocateIds(users);
+
+        int[][] counts = this.jdbcTemplate.batchUpdate(INSERT_IF_ABSENT, users, users.size(), (ps, user) -> {
+            ps.setLong(1, user.getId());
+            ps.setString(2, user.getName());
+            ps.setString(3, user.getEmail());
+            ps.setString(4, user.getEmail());
+        });
+
+        boolean[] inserted = new boolean[users.size()];
+        for (int i = 0; i < users.size(); i++) {
+            inserted[i] = counts[0][i] > 0;
+        }
+        return inserted;
+    }
+
+    /**
+     * Set new ids on users. The sequence is read through a stateless session only when the current block is used up,
+     * sequence values not being transactional.
+     *
+     * @param users the users
+     */
+    private void allocateIds(final List<User> users) {
+        try (StatelessSession session = this.sessionFactory.openStatelessSession()) {
+            for (User user : users) {
+                user.setId(((Number) this.idGenerator.generate((SharedSessionContractImplementor) session, user)).longValue());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,441 @@
+package com.halj.music.library.repository;
+
+import java.nio.ByteBuffer;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import io.micrometer.core.annotation.Timed;
+
+/**
+ * The Class UserLibraryRepository.
+ * Set-based access to the user_library table, without hydrating the User.albumIds collection:
+ * the cost of a mutation depends on the number of albums changed, not on the size of the library.
+ * Album ids are stored as 16 bytes binaries, like Hibernate does for the element collection.
+ * The number of owners of each album is maintained in album_owner_count by the same statements, and must be
+ * adjusted by the writers of the User.albumIds collection.
+ */
+@Repository
+public class UserLibraryRepository {
+
+    /** The Constant BATCH_SIZE, max number of rows per batch and of ids per IN list. */
+    private static final int BATCH_SIZE = 1000;
+
+    /** The Constant INSERT_IF_ABSENT, portable equivalent of INSERT ... ON CONFLICT DO NOTHING, see insertIfAbsent for concurrent inserts. */
+    private static final String INSERT_IF_ABSENT = "INSERT INTO user_library (user_id, album_id) "
+            + "SELECT ?, ? WHERE NOT EXISTS "
+            + "(SELECT 1 FROM user_library WHERE user_id = ? AND album_id = ?)";
+
+    /** The Constant DELETE_ALBUM. */
+    private static final String DELETE_ALBUM = "DELETE FROM user_library WHERE user_id = ? AND album_id = ?";
+
+    /** The Constant DELETE_ALL_ALBUMS, returning the deleted rows (H2 data change delta table). */
+    private static final String DELETE_ALL_ALBUMS = "SELECT album_id FROM OLD TABLE (DELETE FROM user_library WHERE user_id = ?)";
+
+    /** The Constant INSERT_OWNER_COUNT_IF_ABSENT. */
+    private static final String INSERT_OWNER_COUNT_IF_ABSENT = "INSERT INTO album_owner_count (album_id, owners) "
+            + "SELECT ?, 0 WHERE NOT EXISTS "
+            + "(SELECT 1 FROM album_owner_count WHERE album_id = ?)";
+
+    /** The Constant ADD_OWNERS. */
+    private static final String ADD_OWNERS = "UPDATE album_owner_count SET owners = owners + ? WHERE album_id = ?";
+
+    /** The jdbc template. */
+    private JdbcTemplate jdbcTemplate;
+
+    /** The named parameter jdbc template. */
+    private NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+
+    /**
+     * Instantiates a new user library repository.
+     *
+     * @param jdbcTemplate the jdbc template
+     */
+    public UserLibraryRepository(JdbcTemplate jdbcTemplate) {
+        super();
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    }
+
+    /**
+     * Find the album ids of a user library.
+     *
+     * @param userId the user id
+     * @return the album ids
+     */
+    @Timed("library.jdbc.requests")
+    public Set<UUID> findAlbumIds(final long userId) {
+        Set<UUID> albumIds = new HashSet<>();
+        this.jdbcTemplate.query("SELECT album_id FROM user_library WHERE user_id = ?",
+                rs -> {
+                    albumIds.add(toUUID(rs.getBytes(1)));
+                },
+                userId);
+        return albumIds;
+    }
+
+    /**
+     * Scan all the libraries, one user at a time. The rows are streamed in user id order, so that only one library
+     * is held in memory by the scan.
+     *
+     * @param libraryConsumer the consumer of the user ids and album ids of the libraries
+     */
+    @Timed("library.jdbc.requests")
+    public void forEachLibrary(final BiConsumer<Long, List<UUID>> libraryConsumer) {
+        long[] userId = { 0 };
+        List<UUID> albumIds = new ArrayList<>();
+        this.jdbcTemplate.query("SELECT user_id, album_id FROM user_library ORDER BY user_id",
+                rs -> {
+                    long rowUserId = rs.getLong(1);
+                    if (rowUserId != userId[0] && !albumIds.isEmpty()) {
+                        libraryConsumer.accept(userId[0], new ArrayList<>(albumIds));
+                        albumIds.clear();
+                    }
+                    userId[0] = rowUserId;
+                    albumIds.add(toUUID(rs.getBytes(2)));
+                });
+        if (!albumIds.isEmpty()) {
+            libraryConsumer.accept(userId[0], albumIds);
+        }
+    }
+
+    /**
+     * Count the albums of a user library.
+     *
+     * @param userId the user id
+     * @return the number of albums
+     */
+    @Timed("library.jdbc.requests")
+    public long countAlbums(final long userId) {
+        Long count = this.jdbcTemplate.queryForObject("SELECT COUNT(*) FROM user_library WHERE user_id = ?", Long.class, userId);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Add albums to a user library, with batched inserts skipping the albums already in library.
+     * An album added by a concurrent transaction is not added, see {@link #insertIfAbsent(String, List, ParameterizedPreparedStatementSetter)}.
+     *
+     * @param userId the user id
+     * @param albumIds the album ids
+     * @return the album ids actually added
+     */
+    @Timed("library.jdbc.requests")
+    public List<UUID> addAlbums(final long userId, final Collection<UUID> albumIds) {
+        List<UUID> added = new ArrayList<>();
+
+        for (List<UUID> batch : batches(albumIds)) {
+            int[] counts = insertIfAbsent(INSERT_IF_ABSENT, batch, (ps, albumId) -> {
+                byte[] album = toBytes(albumId);
+                ps.setLong(1, userId);
+                ps.setBytes(2, album);
+                ps.setLong(3, userId);
+                ps.setBytes(4, album);
+            });
+
+            for (int i = 0; i < batch.size(); i++) {
+                if (counts[i] > 0) {
+                    added.add(batch.get(i));
+                }
+            }
+        }
+        addOwners(added);
+        return added;
+    }
+
+    /**
+     * Run a batch of inserts guarded by a NOT EXISTS check. The check does not see the rows of concurrent transactions,
+     * whose inserts then fail on the primary key: the batch runs under a savepoint, and is rolled back and replayed one
+     * album at a time if any of its inserts fails, a duplicate row being not inserted.
+     * Outside of a transaction, the albums are inserted one at a time.
+     *
+     * @param sql the insert statement
+     * @param batch the album ids
+     * @param setter the setter of the statement parameters
+     * @return the number of rows inserted, by album
+     */
+    private int[] insertIfAbsent(final String sql, final List<UUID> batch, final ParameterizedPreparedStatementSetter<UUID> setter) {
+        return this.jdbcTemplate.execute((ConnectionCallback<int[]>) connection -> {
+            if (!connection.getAutoCommit()) {
+                Savepoint savepoint = connection.setSavepoint();
+                try {
+                    int[][] counts = this.jdbcTemplate.batchUpdate(sql, batch, batch.size(), setter);
+                    connection.releaseSavepoint(savepoint);
+                    return counts[0];
+                } catch (DuplicateKeyException e) {
+                    connection.rollback(savepoint);
+                }
+            }
+
+            int[] counts = new int[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                UUID albumId = batch.get(i);
+                try {
+                    counts[i] = this.jdbcTemplate.update(sql, ps -> setter.setValues(ps, albumId));
+                } catch (DuplicateKeyException e) {
+                    // inserted by a concurrent transaction
+                    counts[i] = 0;
+                }
+            }
+            return counts;
+        });
+    }
+
+    /**
+     * Insert the libraries of new users, with batched inserts across users. The users must not have any album yet.
+     * The owner counts are not updated, so that bulk writers can add them once, see {@link #addOwners(Map)}.
+     *
+     * @param libraries the album ids, by user id
+     * @return the number of albums inserted
+     */
+    @Timed("library.jdbc.requests")
+    public long insertLibraries(final Map<Long, ? extends Collection<UUID>> libraries) {
+        List<Object[]> rows = new ArrayList<>();
+        libraries.forEach((userId, albumIds) -> new LinkedHashSet<>(albumIds)
+                .forEach(albumId -> rows.add(new Object[] { userId, toBytes(albumId) })));
+
+        for (int from = 0; from < rows.size(); from += BATCH_SIZE) {
+            this.jdbcTemplate.batchUpdate("INSERT INTO user_library (user_id, album_id) VALUES (?, ?)",
+                    rows.subList(from, Math.min(from + BATCH_SIZE, rows.size())));
+        }
+        return rows.size();
+    }
+
+    /**
+     * Remove albums from a user library, with batched deletes. An album is removed by the delete that actually deleted
+     * its row, so that concurrent removals of the same album only count one owner less.
+     *
+     * @param userId the user id
+     * @param albumIds the album ids
+     * @return the album ids actually removed
+     */
+    @Timed("library.jdbc.requests")
+    public List<UUID> removeAlbums(final long userId, final Collection<UUID> albumIds) {
+        List<UUID> removed = new ArrayList<>();
+
+        for (List<UUID> batch : batches(albumIds)) {
+            int[][] counts = this.jdbcTemplate.batchUpdate(DELETE_ALBUM, batch, batch.size(), (ps, albumId) -> {
+                ps.setLong(1, userId);
+                ps.setBytes(2, toBytes(albumId));
+            });
+
+            for (int i = 0; i < batch.size(); i++) {
+                if (counts[0][i] == 1) {
+                    removed.add(batch.get(i));
+                }
+            }
+        }
+        removeOwners(removed);
+        return removed;
+    }
+
+    /**
+     * Remove all albums from a user library, reading the deleted rows from the delete statement itself, so that
+     * rows deleted or inserted concurrently are counted exactly once.
+     *
+     * @param userId the user id
+     * @return the album ids removed
+     */
+    @Timed("library.jdbc.requests")
+    public Set<UUID> clearAlbums(final long userId) {
+        Set<UUID> removed = new HashSet<>();
+        this.jdbcTemplate.query(DELETE_ALL_ALBUMS,
+                rs -> {
+                    removed.add(toUUID(rs.getBytes(1)));
+                },
+                userId);
+        removeOwners(removed);
+        return removed;
+    }
+
+    /**
+     * Find a page of the owners of an album, with an index range scan on (album_id, user_id).
+     *
+     * @param albumId the album id
+     * @param afterUserId the last user id of the previous page, null for the first page
+     * @param size the page size
+     * @return the user ids, ordered
+     */
+    @Timed("library.jdbc.requests")
+    public List<Long> findOwners(final UUID albumId, final Long afterUserId, final int size) {
+        return this.jdbcTemplate.queryForList("SELECT user_id FROM user_library WHERE album_id = ? AND user_id > ? "
+                + "ORDER BY user_id LIMIT ?", Long.class, toBytes(albumId), afterUserId == null ? Long.MIN_VALUE : afterUserId, size);
+    }
+
+    /**
+     * Count the owners of an album.
+     *
+     * @param albumId the album id
+     * @return the number of users having the album in their library
+     */
+    @Timed("library.jdbc.requests")
+    public long countOwners(final UUID albumId) {
+        List<Long> owners = this.jdbcTemplate.queryForList("SELECT owners FROM album_owner_count WHERE album_id = ?",
+                Long.class, toBytes(albumId));
+        return owners.isEmpty() ? 0 : owners.get(0);
+    }
+
+    /**
+     * Count a new owner of albums.
+     *
+     * @param albumIds the ids of the albums added to a library
+     */
+    @Timed("library.jdbc.requests")
+    public void addOwners(final Collection<UUID> albumIds) {
+        addOwners(1, albumIds);
+    }
+
+    /**
+     * Count new owners of albums, with a batched statement. The counts are written in album id order, so that
+     * concurrent bulk writers lock them in the same order rather than deadlocking.
+     *
+     * @param owners the number of new owners, by album id
+     */
+    @Timed("library.jdbc.requests")
+    public void addOwners(final Map<UUID, Integer> owners) {
+        for (List<UUID> batch : batches(sorted(owners.keySet()))) {
+            insertOwnerCounts(batch);
+            this.jdbcTemplate.batchUpdate(ADD_OWNERS, batch, batch.size(), (ps, albumId) -> {
+                ps.setInt(1, owners.get(albumId));
+                ps.setBytes(2, toBytes(albumId));
+            });
+        }
+    }
+
+    /**
+     * Count new owners of albums, creating the missing counts. The counts are written in album id order, like the
+     * bulk ones.
+     *
+     * @param delta the number of new owners
+     * @param albumIds the album ids
+     */
+    private void addOwners(final int delta, final Collection<UUID> albumIds) {
+        for (List<UUID> batch : batches(sorted(albumIds))) {
+            insertOwnerCounts(batch);
+            updateOwners(batch, delta);
+        }
+    }
+
+    /**
+     * Sort album ids, the order in which their owner counts are locked.
+     *
+     * @param albumIds the album ids
+     * @return the sorted album ids
+     */
+    private static List<UUID> sorted(final Collection<UUID> albumIds) {
+        List<UUID> sorted = new ArrayList<>(albumIds);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Create the missing owner counts of albums, at 0.
+     *
+     * @param albumIds the album ids
+     */
+    private void insertOwnerCounts(final List<UUID> albumIds) {
+        insertIfAbsent(INSERT_OWNER_COUNT_IF_ABSENT, albumIds, (ps, albumId) -> {
+            byte[] album = toBytes(albumId);
+            ps.setBytes(1, album);
+            ps.setBytes(2, album);
+        });
+    }
+
+    /**
+     * Count an owner less of albums, in album id order.
+     *
+     * @param albumIds the ids of the albums removed from a library
+     */
+    @Timed("library.jdbc.requests")
+    public void removeOwners(final Collection<UUID> albumIds) {
+        for (List<UUID> batch : batches(sorted(albumIds))) {
+            updateOwners(batch, -1);
+        }
+    }
+
+    /**
+     * Reset the owner counts, once all libraries have been deleted.
+     */
+    @Timed("library.jdbc.requests")
+    public void clearOwners() {
+        this.jdbcTemplate.update("DELETE FROM album_owner_count");
+    }
+
+    /**
+     * Update the owner counts of albums, with a single set-based statement.
+     *
+     * @param albumIds the album ids
+     * @param delta the number of owners to add
+     */
+    private void updateOwners(final List<UUID> albumIds, final int delta) {
+        this.namedParameterJdbcTemplate.update("UPDATE album_owner_count SET owners = owners + :delta WHERE album_id IN (:albumIds)",
+                Map.of("delta", delta, "albumIds", toBytes(albumIds)));
+    }
+
+    /**
+     * Split album ids in batches, removing duplicates.
+     *
+     * @param albumIds the album ids
+     * @return the batches
+     */
+    private static List<List<UUID>> batches(final Collection<UUID> albumIds) {
+        List<UUID> distinct = new ArrayList<>(new LinkedHashSet<>(albumIds));
+
+        List<List<UUID>> batches = new ArrayList<>();
+        for (int from = 0; from < distinct.size(); from += BATCH_SIZE) {
+            batches.add(distinct.subList(from, Math.min(from + BATCH_SIZE, distinct.size())));
+        }
+        return batches;
+    }
+
+    /**
+     * Convert album ids to their binary column values.
+     *
+     * @param albumIds the album ids
+     * @return the binary values
+     */
+    private static List<byte[]> toBytes(final List<UUID> albumIds) {
+        List<byte[]> values = new ArrayList<>(albumIds.size());
+        albumIds.forEach(albumId -> values.add(toBytes(albumId)));
+        return values;
+    }
+
+    /**
+     * Convert an album id to its binary column value.
+     *
+     * @param albumId the album id
+     * @return the binary value
+     */
+    static byte[] toBytes(final UUID albumId) {
+        return ByteBuffer.allocate(16)
+                .putLong(albumId.getMostSignificantBits())
+                .putLong(albumId.getLeastSignificantBits())
+                .array();
+    }
+
+    /**
+     * Convert a binary column value to an album id.
+     *
+     * @param value the binary value
+     * @return the album id
+     */
+    static UUID toUUID(final byte[] value) {
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+}
@@ -1,18 +1,34 @@
 package com.halj.music.library.repository;
 
 import java.util.List;
+import java.util.Optional;
 
-import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import com.halj.music.library.model.User;
+import com.halj.music.library.model.UserSummary;
 
 /**
  * The Interface UserRepository.
  */
 @Repository
-public interface UserRepository extends CrudRepository<User, Long> {
+public interface UserRepository extends PagingAndSortingRepository<User, Long> {
+
+    /**
+     * Find a page of user summaries, the library sizes being counted by a subquery on user_library.
+     *
+     * @param pageable the page request, sortable by id, name and email
+     * @return the page of user summaries
+     */
+    @Query(value = "SELECT new com.halj.music.library.model.UserSummary(u.id, u.name, u.email, SIZE(u.albumIds)) FROM User u",
+            countQuery = "SELECT COUNT(u) FROM User u")
+    Page<UserSummary> findSummaries(Pageable pageable);
 
     /**
      * Find by name.
@@ -30,4 +46,55 @@ public interface UserRepository extends CrudRepository<User, Long> {
      */
     User findByEmail(@Param("email") String email);
 
+    /**
+     * Find the library version of a user.
+     *
+     * @param userId the user id
+     * @return the library version, empty if the user does not exist
+     */
+    @Query("SELECT u.libraryVersion FROM User u WHERE u.id = :userId")
+    Optional<Long> findLibraryVersion(@Param("userId") Long userId);
+
+    /**
+     * Increment the library version of a user.
+     *
+     * @param userId the user id
+     * @return the number of updated users
+     */
+    @Modifying
+    @Query("UPDATE User u SET u.libraryVersion = u.libraryVersion + 1 WHERE u.id = :userId")
+    int incrementLibraryVersion(@Param("userId") Long userId);
+
+    /**
+     * Add library versions to a user, for several library changes written at once from the library journal, and
+     * record the sequence number of the last journal record written.
+     *
+     * @param userId the user id
+     * @param increment the number of versions
+     * @param journalSequence the sequence number of the last journal record written
+     * @return the number of updated users
+     */
+    @Modifying
+    @Query("UPDATE User u SET u.libraryVersion = u.libraryVersion + :increment, u.journalSequence = :journalSequence "
+            + "WHERE u.id = :userId")
+    int incrementLibraryVersion(@Param("userId") Long userId, @Param("increment") long increment,
+            @Param("journalSequence") long journalSequence);
+
+    /**
+     * Find the sequence number of the last library journal record written for a user.
+     *
+     * @param userId the user id
+     * @return the sequence number, empty if the user does not exist
+     */
+    @Query("SELECT u.journalSequence FROM User u WHERE u.id = :userId")
+    Optional<Long> findJournalSequence(@Param("userId") Long userId);
+
+    /**
+     * Find the sequence number of the last library journal record written, whatever the user.
+     *
+     * @return the sequence number, 0 if none
+     */
+    @Query("SELECT COALESCE(MAX(u.journalSequence), 0) FROM User u")
+    long findMaxJournalSequence();
+
 }
@@ -0,0 +1,482 @@
+package com.halj.music.library.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.SearchCursor;
+import com.halj.music.library.model.elastic.Album;
+
+/**
+ * The Class AlbumInvertedIndex.
+ * In-process inverted index of albums on title, artist and release year, scored with BM25.
+ * Albums are identified by dense int ordinals, and posting lists are primitive int arrays sorted by ordinal,
+ * so a query is a document-at-a-time merge of a few arrays. Field scores are combined like Elasticsearch
+ * multi_match best_fields: the best boosted field score wins, and is then multiplied by ln(2 + popularity) like the
+ * Elasticsearch backend. The popularity of an album is taken from its first indexed version, then only changed by the
+ * popularity deltas, as album writes never carry it.
+ * Thread safe: searches share a read lock, writes take the write lock.
+ */
+public class AlbumInvertedIndex {
+
+    /** The Constant K1, BM25 term frequency saturation. */
+    private static final float K1 = 1.2f;
+
+    /** The Constant B, BM25 field length normalization. */
+    private static final float B = 0.75f;
+
+    /** The Constant INITIAL_CAPACITY. */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** The Constant TOKEN_SEPARATOR, anything but letters and digits. */
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /** The Constant FIELDS. */
+    private static final SearchField[] FIELDS = SearchField.values();
+
+    /** The lock. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The ordinals by album id. */
+    private final Map<UUID, Integer> ordinals = new HashMap<>();
+
+    /** The albums by ordinal. */
+    private Album[] albums = new Album[INITIAL_CAPACITY];
+
+    /** The popularities, by ordinal. */
+    private long[] popularities = new long[INITIAL_CAPACITY];
+
+    /** The field lengths (number of terms), by field then ordinal. */
+    private int[][] fieldLengths = new int[FIELDS.length][INITIAL_CAPACITY];
+
+    /** The sum of field lengths, by field. */
+    private final long[] totalFieldLengths = new long[FIELDS.length];
+
+    /** The posting lists, by field then term. */
+    private final List<Map<String, PostingList>> postings = new ArrayList<>(FIELDS.length);
+
+    /** The ordinals freed by deletions, reused by next albums to keep ordinals dense. */
+    private int[] freeOrdinals = new int[16];
+
+    /** The number of free ordinals. */
+    private int freeOrdinalCount;
+
+    /** The next never used ordinal. */
+    private int nextOrdinal;
+
+    /**
+     * The searchable fields, with their boost.
+     */
+    private enum SearchField {
+
+        TITLE(3f, Album::getTitle),
+        ARTIST(3f, Album::getArtist),
+        RELEASE_YEAR(1f, Album::getReleaseYear);
+
+        /** The boost. */
+        private final float boost;
+
+        /** The field value extractor. */
+        private final Function<Album, String> value;
+
+        SearchField(float boost, Function<Album, String> value) {
+            this.boost = boost;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Instantiates a new album inverted index.
+     */
+    public AlbumInvertedIndex() {
+        super();
+        for (int i = 0; i < FIELDS.length; i++) {
+            this.postings.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * Index an album, replacing the previous version of the album if any.
+     *
+     * @param album the album
+     */
+    public void index(final Album album) {
+        this.lock.writeLock().lock();
+        try {
+            Integer existing = this.ordinals.get(album.getId());
+            int ordinal;
+            if (existing != null) {
+                ordinal = existing;
+                unindex(ordinal);
+            } else {
+                ordinal = allocateOrdinal();
+                this.ordinals.put(album.getId(), ordinal);
+                this.popularities[ordinal] = album.getPopularity() == null ? 0 : Math.max(0, album.getPopularity());
+            }
+            this.albums[ordinal] = album;
+
+            for (SearchField field : FIELDS) {
+                List<String> terms = analyze(field.value.apply(album));
+                this.fieldLengths[field.ordinal()][ordinal] = terms.size();
+                this.totalFieldLengths[field.ordinal()] += terms.size();
+
+                Map<String, Integer> frequencies = new HashMap<>();
+                terms.forEach(term -> frequencies.merge(term, 1, Integer::sum));
+
+                Map<String, PostingList> fieldPostings = this.postings.get(field.ordinal());
+                frequencies.forEach((term, frequency) -> fieldPostings.computeIfAbsent(term, t -> new PostingList()).add(ordinal, frequency));
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an album.
+     *
+     * @param albumId the album id
+     */
+    public void remove(final UUID albumId) {
+        this.lock.writeLock().lock();
+        try {
+            Integer ordinal = this.ordinals.remove(albumId);
+            if (ordinal == null) {
+                return;
+            }
+            unindex(ordinal);
+            this.albums[ordinal] = null;
+            this.popularities[ordinal] = 0;
+
+            if (this.freeOrdinalCount == this.freeOrdinals.length) {
+                this.freeOrdinals = Arrays.copyOf(this.freeOrdinals, this.freeOrdinalCount * 2);
+            }
+            this.freeOrdinals[this.freeOrdinalCount++] = ordinal;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all albums.
+     */
+    public void clear() {
+        this.lock.writeLock().lock();
+        try {
+            this.ordinals.clear();
+            this.albums = new Album[INITIAL_CAPACITY];
+            this.popularities = new long[INITIAL_CAPACITY];
+            this.fieldLengths = new int[FIELDS.length][INITIAL_CAPACITY];
+            Arrays.fill(this.totalFieldLengths, 0);
+            this.postings.forEach(Map::clear);
+            this.freeOrdinalCount = 0;
+            this.nextOrdinal = 0;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add popularity deltas, the popularity never going below 0. Albums not indexed are ignored.
+     *
+     * @param deltas the popularity deltas, by album id
+     */
+    public void addPopularity(final Map<UUID, Long> deltas) {
+        this.lock.writeLock().lock();
+        try {
+            deltas.forEach((albumId, delta) -> {
+                Integer ordinal = this.ordinals.get(albumId);
+                if (ordinal != null) {
+                    this.popularities[ordinal] = Math.max(0, this.popularities[ordinal] + delta);
+                }
+            });
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of indexed albums.
+     *
+     * @return the size
+     */
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.ordinals.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Free text search, ordered by score then album id.
+     *
+     * @param query the query
+     * @param page the page number, 0 when a cursor is given
+     * @param size the page size
+     * @param cursor the cursor of the previous page, null for page based pagination
+     * @return the album search page
+     */
+    public AlbumSearchPage search(final String query, final int page, final int size, final String cursor) {
+        List<String> terms = analyze(query);
+        SearchCursor after = cursor != null ? SearchCursor.decode(cursor) : null;
+
+        this.lock.readLock().lock();
+        try {
+            Matches matches = null;
+            for (SearchField field : FIELDS) {
+                Matches fieldMatches = matchField(field, terms);
+                matches = matches == null ? fieldMatches : Matches.max(matches, fieldMatches);
+            }
+            if (matches == null || matches.size == 0) {
+                return new AlbumSearchPage(Collections.emptyList(), page, size, 0, "eq", null);
+            }
+
+            // keep the best hits of the requested window, after the cursor if any
+            int window = (page + 1) * size;
+            Comparator<Hit> ranking = Comparator.comparingDouble((Hit hit) -> -hit.score).thenComparing(hit -> hit.albumId);
+            PriorityQueue<Hit> best = new PriorityQueue<>(window + 1, ranking.reversed());
+            for (int i = 0; i < matches.size; i++) {
+                int ordinal = matches.ordinals[i];
+                Hit hit = new Hit(this.albums[ordinal], matches.scores[i] * (float) Math.log(2 + this.popularities[ordinal]));
+                if (after != null && !isAfter(hit, after)) {
+                    continue;
+                }
+                best.add(hit);
+                if (best.size() > window) {
+                    best.poll();
+                }
+            }
+
+            List<Hit> ranked = new ArrayList<>(best);
+            ranked.sort(ranking);
+            List<Hit> pageHits = ranked.subList(Math.min(page * size, ranked.size()), ranked.size());
+
+            List<Album> pageAlbums = new ArrayList<>(pageHits.size());
+            pageHits.forEach(hit -> pageAlbums.add(hit.album));
+
+            String nextCursor = null;
+            if (pageHits.size() == size) {
+                Hit lastHit = pageHits.get(pageHits.size() - 1);
+                nextCursor = new SearchCursor(lastHit.score, lastHit.albumId).encode();
+            }
+
+            return new AlbumSearchPage(pageAlbums, page, size, matches.size, "eq", nextCursor);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Analyze a text: lower cased tokens split on anything but letters and digits.
+     *
+     * @param text the text
+     * @return the terms
+     */
+    static List<String> analyze(final String text) {
+        if (text == null || text.isBlank()) {
+            return Collections.emptyList();
+        }
+        List<String> terms = new ArrayList<>();
+        for (String token : TOKEN_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+            if (!token.isEmpty()) {
+                terms.add(token);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Score the albums matching at least one term in a field, merging the term posting lists document at a time.
+     *
+     * @param field the field
+     * @param terms the query terms
+     * @return the boosted field matches, sorted by ordinal
+     */
+    private Matches matchField(final SearchField field, final List<String> terms) {
+        Map<String, PostingList> fieldPostings = this.postings.get(field.ordinal());
+        int albumCount = this.ordinals.size();
+
+        List<PostingList> lists = new ArrayList<>(terms.size());
+        List<Float> idfs = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            PostingList postingList = fieldPostings.get(term);
+            if (postingList != null) {
+                lists.add(postingList);
+                idfs.add((float) Math.log(1 + (albumCount - postingList.size() + 0.5) / (postingList.size() + 0.5)));
+            }
+        }
+
+        Matches matches = new Matches();
+        if (lists.isEmpty()) {
+            return matches;
+        }
+
+        float averageLength = Math.max(1f, (float) this.totalFieldLengths[field.ordinal()] / albumCount);
+        int[] positions = new int[lists.size()];
+
+        while (true) {
+            int ordinal = Integer.MAX_VALUE;
+            for (int i = 0; i < lists.size(); i++) {
+                if (positions[i] < lists.get(i).size()) {
+                    ordinal = Math.min(ordinal, lists.get(i).ordinal(positions[i]));
+                }
+            }
+            if (ordinal == Integer.MAX_VALUE) {
+                return matches;
+            }
+
+            float norm = K1 * (1 - B + B * this.fieldLengths[field.ordinal()][ordinal] / averageLength);
+            float score = 0;
+            for (int i = 0; i < lists.size(); i++) {
+                PostingList postingList = lists.get(i);
+                if (positions[i] < postingList.size() && postingList.ordinal(positions[i]) == ordinal) {
+                    int frequency = postingList.frequency(positions[i]);
+                    score += idfs.get(i) * frequency * (K1 + 1) / (frequency + norm);
+                    positions[i]++;
+                }
+            }
+            matches.add(ordinal, field.boost * score);
+        }
+    }
+
+    /**
+     * Remove the postings of an album.
+     *
+     * @param ordinal the album ordinal
+     */
+    private void unindex(final int ordinal) {
+        Album album = this.albums[ordinal];
+        for (SearchField field : FIELDS) {
+            Map<String, PostingList> fieldPostings = this.postings.get(field.ordinal());
+            for (String term : analyze(field.value.apply(album))) {
+                PostingList postingList = fieldPostings.get(term);
+                if (postingList != null) {
+                    postingList.remove(ordinal);
+                    if (postingList.size() == 0) {
+                        fieldPostings.remove(term);
+                    }
+                }
+            }
+            this.totalFieldLengths[field.ordinal()] -= this.fieldLengths[field.ordinal()][ordinal];
+            this.fieldLengths[field.ordinal()][ordinal] = 0;
+        }
+    }
+
+    /**
+     * Allocate an ordinal, reusing a freed one first.
+     *
+     * @return the ordinal
+     */
+    private int allocateOrdinal() {
+        if (this.freeOrdinalCount > 0) {
+            return this.freeOrdinals[--this.freeOrdinalCount];
+        }
+        if (this.nextOrdinal == this.albums.length) {
+            int capacity = this.albums.length * 2;
+            this.albums = Arrays.copyOf(this.albums, capacity);
+            this.popularities = Arrays.copyOf(this.popularities, capacity);
+            for (int i = 0; i < FIELDS.length; i++) {
+                this.fieldLengths[i] = Arrays.copyOf(this.fieldLengths[i], capacity);
+            }
+        }
+        return this.nextOrdinal++;
+    }
+
+    /**
+     * Checks if a hit ranks after the cursor.
+     *
+     * @param hit the hit
+     * @param cursor the cursor
+     * @return true, if after
+     */
+    private static boolean isAfter(final Hit hit, final SearchCursor cursor) {
+        return hit.score < cursor.getScore() || (hit.score == cursor.getScore() && hit.albumId.compareTo(cursor.getAlbumId()) > 0);
+    }
+
+    /**
+     * A scored album.
+     */
+    private static final class Hit {
+
+        /** The album. */
+        private final Album album;
+
+        /** The album id, as sorted by Elasticsearch on the keyword field. */
+        private final String albumId;
+
+        /** The score. */
+        private final float score;
+
+        Hit(Album album, float score) {
+            this.album = album;
+            this.albumId = album.getId().toString();
+            this.score = score;
+        }
+    }
+
+    /**
+     * Scored ordinals, sorted by ordinal.
+     */
+    private static final class Matches {
+
+        /** The ordinals. */
+        private int[] ordinals = new int[16];
+
+        /** The scores. */
+        private float[] scores = new float[16];
+
+        /** The size. */
+        private int size;
+
+        void add(final int ordinal, final float score) {
+            if (this.size == this.ordinals.length) {
+                this.ordinals = Arrays.copyOf(this.ordinals, this.size * 2);
+                this.scores = Arrays.copyOf(this.scores, this.size * 2);
+            }
+            this.ordinals[this.size] = ordinal;
+            this.scores[this.size] = score;
+            this.size++;
+        }
+
+        /**
+         * Merge two sorted matches, keeping the best score of each ordinal.
+         *
+         * @param left the left matches
+         * @param right the right matches
+         * @return the merged matches
+         */
+        static Matches max(final Matches left, final Matches right) {
+            Matches merged = new Matches();
+            int l = 0;
+            int r = 0;
+            while (l < left.size || r < right.size) {
+                if (r == right.size || (l < left.size && left.ordinals[l] < right.ordinals[r])) {
+                    merged.add(left.ordinals[l], left.scores[l]);
+                    l++;
+                } else if (l == left.size || right.ordinals[r] < left.ordinals[l]) {
+                    merged.add(right.ordinals[r], right.scores[r]);
+                    r++;
+                } else {
+                    merged.add(left.ordinals[l], Math.max(left.scores[l], right.scores[r]));
+                    l++;
+                    r++;
+                }
+            }
+            return merged;
+        }
+    }
+
+}
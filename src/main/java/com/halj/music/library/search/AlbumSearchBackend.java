@@ -0,0 +1,22 @@
+package com.halj.music.library.search;
+
+import com.halj.music.library.model.AlbumSearchPage;
+
+/**
+ * The Interface AlbumSearchBackend.
+ * Free text search engine of global library, selected with the 'library.search.backend' property
+ */
+public interface AlbumSearchBackend {
+
+    /**
+     * Free text search on title, artist and release year, ordered by relevance then album id.
+     *
+     * @param query the query
+     * @param page the page number, 0 when a cursor is given
+     * @param size the page size, already validated
+     * @param cursor the cursor of the previous page, null for page based pagination
+     * @return the album search page
+     */
+    AlbumSearchPage search(String query, int page, int size, String cursor);
+
+}
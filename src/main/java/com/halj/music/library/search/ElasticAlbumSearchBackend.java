@@ -0,0 +1,164 @@
+package com.halj.music.library.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.common.lucene.search.function.CombineFunction;
+import org.elasticsearch.common.lucene.search.function.FieldValueFactorFunction;
+import org.elasticsearch.index.query.MultiMatchQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.TotalHitsRelation;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Component;
+
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.SearchCursor;
+import com.halj.music.library.model.elastic.Album;
+
+/**
+ * The Class ElasticAlbumSearchBackend.
+ * Default search backend, running scored multi_match queries on the Elasticsearch albums index,
+ * scores being multiplied by a logarithm of the album popularity
+ */
+@Component
+@ConditionalOnProperty(name = "library.search.backend", havingValue = "elasticsearch", matchIfMissing = true)
+public class ElasticAlbumSearchBackend implements AlbumSearchBackend {
+
+    /** The Constant ALBUM_ES_INDEX. */
+    private static final String ALBUM_ES_INDEX = "albums";
+
+    /** The Constant SEARCH_FIELDS, title and artist matches weigh more than year matches. */
+    private static final String[] SEARCH_FIELDS = { "title^3", "artist^3", "releaseYear" };
+
+    /** The elasticsearch operations. */
+    private ElasticsearchOperations elasticsearchOperations;
+
+    /** The number of hits up to which the total hits count is exact. */
+    private int trackTotalHitsUpTo;
+
+    /**
+     * Instantiates a new elastic album search backend.
+     *
+     * @param elasticsearchOperations the elasticsearch operations
+     * @param trackTotalHitsUpTo the number of hits up to which the total hits count is exact
+     */
+    public ElasticAlbumSearchBackend(ElasticsearchOperations elasticsearchOperations,
+            @Value("${library.search.track-total-hits-up-to:10000}") int trackTotalHitsUpTo) {
+        super();
+        this.elasticsearchOperations = elasticsearchOperations;
+        this.trackTotalHitsUpTo = trackTotalHitsUpTo;
+    }
+
+    @Override
+    public AlbumSearchPage search(final String query, final int page, final int size, final String cursor) {
+
+        // Execute search
+        SearchHits<Album> albumHits = this.elasticsearchOperations.search(pageQuery(query, page, size, cursor), Album.class, IndexCoordinates.of(ALBUM_ES_INDEX));
+
+        return toPage(albumHits, page, size);
+    }
+
+    /**
+     * Build the query of a page of the free text search, counting the total hits up to the configured limit.
+     * Also used by the reactive search.
+     *
+     * @param query the query
+     * @param page the page number
+     * @param size the page size
+     * @param cursor the cursor of the previous page, null for offset pagination
+     * @return the native search query
+     */
+    public NativeSearchQuery pageQuery(final String query, final int page, final int size, final String cursor) {
+        NativeSearchQuery searchQuery = searchQuery(query, page, size, cursor);
+        searchQuery.setTrackTotalHitsUpTo(this.trackTotalHitsUpTo);
+        return searchQuery;
+    }
+
+    /**
+     * Map the hits of a free text search to a search page, with the cursor of the next page when the page is full.
+     * Also used by the reactive search.
+     *
+     * @param albumHits the album hits, sorted by score then id
+     * @param page the page number
+     * @param size the page size
+     * @return the album search page
+     */
+    public static AlbumSearchPage toPage(final SearchHits<Album> albumHits, final int page, final int size) {
+
+        // Map searchHits to album list
+        List<Album> albumMatches = new ArrayList<>(albumHits.getSearchHits().size());
+        albumHits.forEach(hit -> albumMatches.add(hit.getContent()));
+
+        String nextCursor = null;
+        if (albumMatches.size() == size) {
+            SearchHit<Album> lastHit = albumHits.getSearchHit(albumMatches.size() - 1);
+            nextCursor = new SearchCursor(lastHit.getScore(), lastHit.getContent().getId().toString()).encode();
+        }
+
+        String totalHitsRelation = albumHits.getTotalHitsRelation() == TotalHitsRelation.EQUAL_TO ? "eq" : "gte";
+
+        return new AlbumSearchPage(albumMatches, page, size, albumHits.getTotalHits(), totalHitsRelation, nextCursor);
+    }
+
+    /**
+     * Build the free text search query.
+     *
+     * @param query the query
+     * @param page the page number
+     * @param size the page size
+     * @param cursor the cursor of the previous page, null for offset pagination
+     * @return the native search query
+     */
+    private static NativeSearchQuery searchQuery(final String query, final int page, final int size, final String cursor) {
+
+        // scored query on multiple fields, sorted by score then id so that ties have a stable order for search_after
+        NativeSearchQuery searchQuery = new NativeSearchQueryBuilder()
+                .withQuery(popularityBoostedQuery(multiMatchQuery(query)))
+                .withSorts(SortBuilders.scoreSort(), SortBuilders.fieldSort("id"))
+                .withPageable(PageRequest.of(page, size))
+                .build();
+        if (cursor != null) {
+            searchQuery.setSearchAfter(SearchCursor.decode(cursor).toSearchAfter());
+        }
+        return searchQuery;
+    }
+
+    /**
+     * Multiply the scores of a query by ln(2 + popularity): albums without popularity keep the relative order of
+     * their text scores, and popular albums rank higher without burying better text matches.
+     * Only the score function runs on the popularity doc values, the matching documents are unchanged.
+     *
+     * @param query the scored query
+     * @return the function score query
+     */
+    public static QueryBuilder popularityBoostedQuery(final QueryBuilder query) {
+        return QueryBuilders.functionScoreQuery(query,
+                ScoreFunctionBuilders.fieldValueFactorFunction("popularity")
+                        .modifier(FieldValueFactorFunction.Modifier.LN2P)
+                        .missing(0))
+                .boostMode(CombineFunction.MULTIPLY);
+    }
+
+    /**
+     * Build the scored free text query, also used by the faceted search.
+     * It is lenient, so that text terms are not rejected by the numeric release year field.
+     *
+     * @param query the query
+     * @return the multi match query builder
+     */
+    public static MultiMatchQueryBuilder multiMatchQuery(final String query) {
+        return QueryBuilders.multiMatchQuery(query, SEARCH_FIELDS).lenient(true);
+    }
+
+}
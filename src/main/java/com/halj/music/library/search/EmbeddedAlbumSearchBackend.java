@@ -0,0 +1,81 @@
+package com.halj.music.library.search;
+
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.stereotype.Component;
+
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.service.AlbumChangeListener;
+
+/**
+ * The Class EmbeddedAlbumSearchBackend.
+ * Search backend for deployments where search must not leave the node: albums are searched in an in-process inverted index,
+ * kept up to date by the album service write paths and the popularity flushes. At startup, it is seeded from the
+ * catalogue snapshot when there is one, so that albums are searchable before the albums index is read.
+ * Albums are still read, written and reloaded through the Elasticsearch albums index, so the application refuses
+ * to start with this backend when the cluster cannot be reached.
+ */
+@Component
+@ConditionalOnProperty(name = "library.search.backend", havingValue = "embedded")
+public class EmbeddedAlbumSearchBackend implements AlbumSearchBackend, AlbumChangeListener {
+
+    /** The elasticsearch operations. */
+    private ElasticsearchOperations elasticsearchOperations;
+
+    /** The inverted index. */
+    private AlbumInvertedIndex index = new AlbumInvertedIndex();
+
+    /**
+     * Instantiates a new embedded album search backend.
+     *
+     * @param elasticsearchOperations the elasticsearch operations
+     */
+    public EmbeddedAlbumSearchBackend(final ElasticsearchOperations elasticsearchOperations) {
+        this.elasticsearchOperations = elasticsearchOperations;
+    }
+
+    /**
+     * Check that the Elasticsearch cluster can be reached, failing the startup otherwise.
+     */
+    @PostConstruct
+    public void checkCluster() {
+        try {
+            this.elasticsearchOperations.cluster().health();
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("The embedded search backend only serves searches in-process, albums are still read "
+                    + "and written in Elasticsearch, which cannot be reached", e);
+        }
+    }
+
+    @Override
+    public AlbumSearchPage search(final String query, final int page, final int size, final String cursor) {
+        return this.index.search(query, page, size, cursor);
+    }
+
+    @Override
+    public void onAlbumsSaved(final Iterable<Album> albums) {
+        albums.forEach(this.index::index);
+    }
+
+    @Override
+    public void onAlbumsDeleted(final Iterable<UUID> albumIds) {
+        albumIds.forEach(this.index::remove);
+    }
+
+    @Override
+    public void onAllAlbumsDeleted() {
+        this.index.clear();
+    }
+
+    @Override
+    public void onPopularityChanged(final Map<UUID, Long> deltas) {
+        this.index.addPopularity(deltas);
+    }
+
+}
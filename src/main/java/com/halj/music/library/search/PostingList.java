@@ -0,0 +1,97 @@
+package com.halj.music.library.search;
+
+import java.util.Arrays;
+
+/**
+ * The Class PostingList.
+ * Album ordinals containing a term, with the term frequency in each album,
+ * stored as primitive arrays sorted by ordinal.
+ */
+class PostingList {
+
+    /** The Constant INITIAL_CAPACITY. */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /** The album ordinals, sorted. */
+    private int[] ordinals = new int[INITIAL_CAPACITY];
+
+    /** The term frequencies, aligned with ordinals. */
+    private int[] frequencies = new int[INITIAL_CAPACITY];
+
+    /** The number of albums in the list. */
+    private int size;
+
+    /**
+     * Adds an album. Ordinals are usually appended in increasing order, recycled ordinals are inserted in place.
+     *
+     * @param ordinal the album ordinal
+     * @param frequency the term frequency
+     */
+    void add(final int ordinal, final int frequency) {
+        int position = this.size == 0 || this.ordinals[this.size - 1] < ordinal
+                ? this.size
+                : Arrays.binarySearch(this.ordinals, 0, this.size, ordinal);
+
+        if (position >= 0 && position < this.size) {
+            // already present
+            this.frequencies[position] = frequency;
+            return;
+        }
+        int insertion = position < 0 ? -position - 1 : position;
+
+        if (this.size == this.ordinals.length) {
+            this.ordinals = Arrays.copyOf(this.ordinals, this.size * 2);
+            this.frequencies = Arrays.copyOf(this.frequencies, this.size * 2);
+        }
+        System.arraycopy(this.ordinals, insertion, this.ordinals, insertion + 1, this.size - insertion);
+        System.arraycopy(this.frequencies, insertion, this.frequencies, insertion + 1, this.size - insertion);
+        this.ordinals[insertion] = ordinal;
+        this.frequencies[insertion] = frequency;
+        this.size++;
+    }
+
+    /**
+     * Removes an album.
+     *
+     * @param ordinal the album ordinal
+     */
+    void remove(final int ordinal) {
+        int position = Arrays.binarySearch(this.ordinals, 0, this.size, ordinal);
+        if (position < 0) {
+            return;
+        }
+        System.arraycopy(this.ordinals, position + 1, this.ordinals, position, this.size - position - 1);
+        System.arraycopy(this.frequencies, position + 1, this.frequencies, position, this.size - position - 1);
+        this.size--;
+    }
+
+    /**
+     * Gets the ordinal at a position.
+     *
+     * @param position the position
+     * @return the ordinal
+     */
+    int ordinal(final int position) {
+        return this.ordinals[position];
+    }
+
+    /**
+     * Gets the frequency at a position.
+     *
+     * @param position the position
+     * @return the frequency
+     */
+    int frequency(final int position) {
+        return this.frequencies[position];
+    }
+
+    /**
+     * Gets the number of albums in the list.
+     *
+     * @return the size
+     */
+    int size() {
+        return this.size;
+    }
+
+}
@@ -0,0 +1,380 @@
+package com.halj.music.library.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+import javax.annotation.PreDestroy;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.BulkFailureException;
+import org.springframework.data.elasticsearch.RestStatusException;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.halj.music.library.model.BulkIndexingJob;
+import com.halj.music.library.model.BulkIndexingResult;
+import com.halj.music.library.model.elastic.Album;
+
+/**
+ * The Class AlbumBulkIndexer.
+ * Streams albums from a JSON array or NDJSON source and indexes them in fixed-size bulk chunks.
+ * Chunks are sent in parallel with a bounded number of in-flight bulk requests,
+ * so memory stays constant whatever the size of the source.
+ * Albums rejected by an overloaded cluster are retried with an exponential backoff.
+ */
+@Service
+public class AlbumBulkIndexer {
+
+    /** The Constant LOG. */
+    private static final Logger LOG = LoggerFactory.getLogger(AlbumBulkIndexer.class);
+
+    /** The Constant PROGRESS_INTERVAL, in number of chunks. */
+    private static final int PROGRESS_INTERVAL = 10;
+
+    /** The Constant TOO_MANY_REQUESTS, HTTP status of requests rejected by an overloaded cluster. */
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /** The Constant MAX_BACKOFF_MILLIS. */
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    /** The Constant ALBUM_ES_INDEX. */
+    private static final IndexCoordinates ALBUM_ES_INDEX = IndexCoordinates.of("albums");
+
+    /** The album service. */
+    private AlbumService albumService;
+
+    /** The object mapper. */
+    private ObjectMapper objectMapper;
+
+    /** The validator. */
+    private Validator validator;
+
+    /** The number of albums per bulk request. */
+    private int chunkSize;
+
+    /** The maximum number of bulk requests in flight. */
+    private int maxInFlight;
+
+    /** The maximum number of retries of rejected albums. */
+    private int maxRetries;
+
+    /** The backoff before the first retry, doubled on each retry. */
+    private Duration initialBackoff;
+
+    /** The bulk executor. */
+    private ExecutorService executor;
+
+    /**
+     * Instantiates a new album bulk indexer.
+     *
+     * @param albumService the album service
+     * @param objectMapper the object mapper
+     * @param validator the validator
+     * @param chunkSize the number of albums per bulk request
+     * @param parallelism the number of bulk requests sent in parallel
+     * @param maxRetries the maximum number of retries of rejected albums
+     * @param initialBackoff the backoff before the first retry, doubled on each retry
+     */
+    public AlbumBulkIndexer(AlbumService albumService,
+            ObjectMapper objectMapper,
+            Validator validator,
+            @Value("${library.albums.bulk.chunk-size:1000}") int chunkSize,
+            @Value("${library.albums.bulk.parallelism:4}") int parallelism,
+            @Value("${library.albums.bulk.max-retries:8}") int maxRetries,
+            @Value("${library.albums.bulk.initial-backoff:100ms}") Duration initialBackoff) {
+        super();
+        this.albumService = albumService;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.chunkSize = chunkSize;
+        this.maxInFlight = parallelism;
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.executor = Executors.newFixedThreadPool(parallelism, new CustomizableThreadFactory("album-bulk-"));
+    }
+
+    /**
+     * Shutdown the bulk executor.
+     */
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Index albums read from a JSON array or a NDJSON stream.
+     * Blocks until every chunk has been indexed.
+     *
+     * @param source the source stream
+     * @return the bulk indexing result
+     * @throws IOException Signals that the source could not be parsed.
+     */
+    public BulkIndexingResult index(final InputStream source) throws IOException {
+        return index(source, (IndexCoordinates) null);
+    }
+
+    /**
+     * Index albums read from a JSON array or a NDJSON stream into a given index, e.g. a generation being built.
+     * Blocks until every chunk has been indexed.
+     *
+     * @param source the source stream
+     * @param target the index to write to, null for the live albums index
+     * @return the bulk indexing result
+     * @throws IOException Signals that the source could not be parsed.
+     */
+    public BulkIndexingResult index(final InputStream source, final IndexCoordinates target) throws IOException {
+        BulkIndexingJob job = new BulkIndexingJob(UUID.randomUUID());
+        job.start();
+        index(source, job, target);
+        job.complete();
+
+        return new BulkIndexingResult(job.getIndexed(), job.getFailed() + job.getInvalid(), job.getElapsedMillis());
+    }
+
+    /**
+     * Index albums read from a JSON array or a NDJSON stream, reporting progress to a job.
+     * Records are validated one by one, invalid records are counted and skipped.
+     * Blocks until every chunk has been indexed.
+     *
+     * @param source the source stream
+     * @param job the job to report progress to
+     * @throws IOException Signals that the source could not be parsed.
+     */
+    public void index(final InputStream source, final BulkIndexingJob job) throws IOException {
+        index(source, job, null);
+    }
+
+    /**
+     * Index albums read from a JSON array or a NDJSON stream into a given index, reporting progress to a job.
+     * Chunks are written without refreshing the index: the live albums index is refreshed once, when the last chunk
+     * has been indexed, a generation being built is refreshed by the index manager.
+     *
+     * @param source the source stream
+     * @param job the job to report progress to
+     * @param target the index to write to, null for the live albums index
+     * @throws IOException Signals that the source could not be parsed.
+     */
+    public void index(final InputStream source, final BulkIndexingJob job, final IndexCoordinates target) throws IOException {
+        long start = System.nanoTime();
+        IndexCoordinates index = target == null ? ALBUM_ES_INDEX : target;
+
+        Semaphore inFlight = new Semaphore(this.maxInFlight);
+        int chunks = 0;
+
+        try (MappingIterator<Album> albums = this.objectMapper.readerFor(Album.class).readValues(source)) {
+            List<Album> chunk = new ArrayList<>(this.chunkSize);
+
+            while (albums.hasNextValue()) {
+                long record = job.recordRead();
+                Album album;
+                try {
+                    album = albums.nextValue();
+                } catch (JsonMappingException e) {
+                    // well-formed JSON that does not bind to an album, the iterator resumes on the next record
+                    job.recordInvalid(record, e.getOriginalMessage());
+                    continue;
+                }
+
+                Set<ConstraintViolation<Album>> violations = this.validator.validate(album);
+                if (!violations.isEmpty()) {
+                    job.recordInvalid(record, violations.stream()
+                            .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+                            .sorted()
+                            .collect(Collectors.joining(", ")));
+                    continue;
+                }
+
+                chunk.add(album);
+                if (chunk.size() == this.chunkSize) {
+                    submit(chunk, inFlight, job, index);
+                    chunk = new ArrayList<>(this.chunkSize);
+
+                    if (++chunks % PROGRESS_INTERVAL == 0) {
+                        LOG.info("Bulk indexing {} in progress: {} albums indexed ({} albums/s)", job.getId(), job.getIndexed(),
+                                throughput(job.getIndexed(), start));
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                submit(chunk, inFlight, job, index);
+            }
+        } finally {
+            // wait for the last in-flight chunks
+            inFlight.acquireUninterruptibly(this.maxInFlight);
+            inFlight.release(this.maxInFlight);
+            if (target == null && job.getIndexed() > 0) {
+                refresh(job);
+            }
+        }
+
+        LOG.info("Bulk indexing {} done: {} albums indexed, {} failed, {} invalid in {} ms ({} albums/s)",
+                job.getId(), job.getIndexed(), job.getFailed(), job.getInvalid(),
+                (System.nanoTime() - start) / 1_000_000, throughput(job.getIndexed(), start));
+    }
+
+    /**
+     * Submit a chunk to the bulk executor, waiting for a free in-flight slot.
+     *
+     * @param chunk the chunk
+     * @param inFlight the in-flight slots
+     * @param job the job to report progress to
+     * @param target the index to write to
+     */
+    private void submit(final List<Album> chunk, final Semaphore inFlight, final BulkIndexingJob job, final IndexCoordinates target) {
+        inFlight.acquireUninterruptibly();
+
+        try {
+            this.executor.execute(() -> {
+                try {
+                    indexChunk(chunk, job, target);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException re) {
+            inFlight.release();
+            throw re;
+        }
+    }
+
+    /**
+     * Index a chunk. Albums rejected because the cluster is overloaded (HTTP 429, or bulk items rejected
+     * by a full write queue) are sent again with an exponential backoff, other failures are counted.
+     *
+     * @param chunk the chunk
+     * @param job the job to report progress to
+     * @param target the index to write to
+     */
+    private void indexChunk(final List<Album> chunk, final BulkIndexingJob job, final IndexCoordinates target) {
+        List<Album> pending = chunk;
+
+        for (int attempt = 0;; attempt++) {
+            try {
+                this.albumService.saveAlbums(pending, target);
+                job.albumsIndexed(pending.size());
+                return;
+            } catch (BulkFailureException e) {
+                Map<String, String> failedDocuments = e.getFailedDocuments();
+                List<Album> rejected = pending.stream()
+                        .filter(album -> isRejection(failedDocuments.get(album.getId().toString())))
+                        .collect(Collectors.toList());
+
+                job.albumsIndexed(pending.size() - failedDocuments.size());
+                job.albumsFailed(failedDocuments.size() - rejected.size());
+                if (rejected.size() < failedDocuments.size()) {
+                    LOG.error("Bulk indexing {}: {} albums failed to be indexed", job.getId(), failedDocuments.size() - rejected.size(), e);
+                }
+                pending = rejected;
+            } catch (RestStatusException e) {
+                if (e.getStatus() != TOO_MANY_REQUESTS) {
+                    fail(pending, job, e);
+                    return;
+                }
+            } catch (RuntimeException re) {
+                fail(pending, job, re);
+                return;
+            }
+
+            if (pending.isEmpty()) {
+                return;
+            }
+            if (attempt == this.maxRetries) {
+                LOG.error("Bulk indexing {}: {} albums still rejected after {} retries", job.getId(), pending.size(), attempt);
+                job.albumsFailed(pending.size());
+                return;
+            }
+
+            job.albumsRetried(pending.size());
+            if (!backoff(attempt)) {
+                job.albumsFailed(pending.size());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Refresh the live albums index once the albums of a job are indexed. A failed refresh does not fail the job,
+     * the albums become searchable at the next periodic refresh.
+     *
+     * @param job the job
+     */
+    private void refresh(final BulkIndexingJob job) {
+        try {
+            this.albumService.refresh();
+        } catch (RuntimeException e) {
+            LOG.warn("Bulk indexing {}: the albums index could not be refreshed", job.getId(), e);
+        }
+    }
+
+    /**
+     * Count a chunk as failed.
+     *
+     * @param pending the albums not indexed
+     * @param job the job
+     * @param e the failure
+     */
+    private static void fail(final List<Album> pending, final BulkIndexingJob job, final RuntimeException e) {
+        LOG.error("Error while indexing a chunk of {} albums", pending.size(), e);
+        job.albumsFailed(pending.size());
+    }
+
+    /**
+     * Wait before a retry: exponential backoff with full jitter: a random wait between 0 and the exponential bound,
+     * so that rejected writers do not retry in lockstep.
+     *
+     * @param attempt the attempt that was rejected, starting at 0
+     * @return false if interrupted
+     */
+    private boolean backoff(final int attempt) {
+        long maxMillis = Math.min(MAX_BACKOFF_MILLIS, this.initialBackoff.toMillis() << Math.min(attempt, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxMillis + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Checks if a bulk item failure is a rejection of an overloaded cluster.
+     *
+     * @param failure the bulk item failure message
+     * @return true if the item can be retried
+     */
+    private static boolean isRejection(final String failure) {
+        return failure != null && (failure.contains("es_rejected_execution_exception") || failure.contains("EsRejectedExecutionException"));
+    }
+
+    /**
+     * Throughput since start.
+     *
+     * @param count the count
+     * @param start the start, in nanoseconds
+     * @return the throughput, per second
+     */
+    private static long throughput(final long count, final long start) {
+        long elapsedNanos = Math.max(1, System.nanoTime() - start);
+        return count * 1_000_000_000L / elapsedNanos;
+    }
+
+}
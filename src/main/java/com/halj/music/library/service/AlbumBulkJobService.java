@@ -0,0 +1,181 @@
+package com.halj.music.library.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.halj.music.library.exception.BulkJobNotFoundException;
+import com.halj.music.library.exception.BulkJobRejectedException;
+import com.halj.music.library.model.BulkIndexingJob;
+
+/**
+ * The Class AlbumBulkJobService.
+ * Runs bulk indexing jobs in the background. Uploads are spooled to a temporary file, so the request
+ * only lasts the time of the transfer, then parsed incrementally by the bulk indexer.
+ * A bounded number of jobs run or wait in the queue: a job is only accepted, and its upload spooled, if it fits.
+ * Queued and running jobs are always tracked; finished jobs are kept for status requests for a retention period.
+ */
+@Service
+public class AlbumBulkJobService {
+
+    /** The Constant LOG. */
+    private static final Logger LOG = LoggerFactory.getLogger(AlbumBulkJobService.class);
+
+    /** The Constant MAX_TRACKED_JOBS. */
+    private static final int MAX_TRACKED_JOBS = 1000;
+
+    /** The album bulk indexer. */
+    private AlbumBulkIndexer albumBulkIndexer;
+
+    /** The job slots, one per running or queued job. */
+    private Semaphore slots;
+
+    /** The job executor. */
+    private ExecutorService executor;
+
+    /** The queued and running jobs by id. */
+    private Map<UUID, BulkIndexingJob> activeJobs = new ConcurrentHashMap<>();
+
+    /** The finished jobs by id. */
+    private Cache<UUID, BulkIndexingJob> jobs;
+
+    /**
+     * Instantiates a new album bulk job service.
+     *
+     * @param albumBulkIndexer the album bulk indexer
+     * @param concurrentJobs the number of jobs running at the same time, the others are queued
+     * @param queuedJobs the number of jobs waiting for a running one to finish, the others are rejected
+     * @param retention the time jobs are kept after they finish
+     */
+    public AlbumBulkJobService(AlbumBulkIndexer albumBulkIndexer,
+            @Value("${library.albums.bulk.concurrent-jobs:1}") int concurrentJobs,
+            @Value("${library.albums.bulk.queued-jobs:4}") int queuedJobs,
+            @Value("${library.albums.bulk.job-retention:24h}") Duration retention) {
+        super();
+        this.albumBulkIndexer = albumBulkIndexer;
+        this.slots = new Semaphore(concurrentJobs + queuedJobs);
+        // the slots bound the queue, its capacity only guards against a job submitted before a finished one is polled
+        this.executor = new ThreadPoolExecutor(concurrentJobs, concurrentJobs, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(concurrentJobs + queuedJobs), new CustomizableThreadFactory("album-bulk-job-"));
+        this.jobs = Caffeine.newBuilder()
+                .maximumSize(MAX_TRACKED_JOBS)
+                .expireAfterWrite(retention)
+                .build();
+    }
+
+    /**
+     * Shutdown the job executor.
+     */
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Submit a bulk indexing job.
+     *
+     * @param upload the albums, as a JSON array or a NDJSON stream
+     * @return the queued job
+     * @throws IOException Signals that the upload could not be spooled.
+     * @throws BulkJobRejectedException if as many jobs as allowed are already running or queued
+     */
+    public BulkIndexingJob submit(final InputStream upload) throws IOException {
+        // accept the job before receiving its upload, so that a rejected upload is not transferred
+        if (!this.slots.tryAcquire()) {
+            throw new BulkJobRejectedException("Too many bulk jobs running or queued, retry later");
+        }
+
+        Path spool = null;
+        try {
+            spool = Files.createTempFile("album-bulk-", ".ndjson");
+            Files.copy(upload, spool, StandardCopyOption.REPLACE_EXISTING);
+
+            BulkIndexingJob job = new BulkIndexingJob(UUID.randomUUID());
+            this.activeJobs.put(job.getId(), job);
+            LOG.info("Bulk indexing {} queued, {} bytes uploaded", job.getId(), Files.size(spool));
+
+            Path jobSpool = spool;
+            try {
+                this.executor.execute(() -> run(job, jobSpool));
+            } catch (RejectedExecutionException e) {
+                this.activeJobs.remove(job.getId());
+                throw new BulkJobRejectedException("Bulk job executor is not accepting jobs, retry later", e);
+            }
+            return job;
+        } catch (IOException | RuntimeException e) {
+            if (spool != null) {
+                Files.deleteIfExists(spool);
+            }
+            this.slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets a job.
+     *
+     * @param jobId the job id
+     * @return the job
+     */
+    public BulkIndexingJob getJob(final UUID jobId) {
+        BulkIndexingJob job = this.activeJobs.get(jobId);
+        if (job == null) {
+            job = this.jobs.getIfPresent(jobId);
+        }
+        if (job == null) {
+            throw new BulkJobNotFoundException("No bulk job found matching id " + jobId);
+        }
+        return job;
+    }
+
+    /**
+     * Run a job, then delete its spooled upload, move the job to the finished jobs and release its slot.
+     *
+     * @param job the job
+     * @param spool the spooled upload
+     */
+    private void run(final BulkIndexingJob job, final Path spool) {
+        job.start();
+        try (InputStream source = new BufferedInputStream(Files.newInputStream(spool))) {
+            this.albumBulkIndexer.index(source, job);
+            job.complete();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Bulk indexing {} failed after {} records", job.getId(), job.getProcessed(), e);
+            job.fail(e.getMessage());
+        } finally {
+            try {
+                Files.deleteIfExists(spool);
+            } catch (IOException e) {
+                LOG.warn("Could not delete bulk upload {}", spool, e);
+            }
+            // tracked as finished before it stops being active, so status requests always find it
+            this.jobs.put(job.getId(), job);
+            this.activeJobs.remove(job.getId());
+            this.slots.release();
+        }
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.halj.music.library.service;
+
+import java.util.Map;
+import java.util.UUID;
+
+import com.halj.music.library.model.elastic.Album;
+
+/**
+ * The Interface AlbumChangeListener.
+ * Notified by the album service after albums of global library have been written, and by the album popularity
+ * after its flushes, to keep in-process structures derived from the catalogue up to date
+ */
+public interface AlbumChangeListener {
+
+    /**
+     * Called after albums have been created or updated.
+     *
+     * @param albums the saved albums
+     */
+    void onAlbumsSaved(Iterable<Album> albums);
+
+    /**
+     * Called after albums have been deleted.
+     *
+     * @param albumIds the deleted album ids
+     */
+    void onAlbumsDeleted(Iterable<UUID> albumIds);
+
+    /**
+     * Called after all albums have been deleted.
+     */
+    void onAllAlbumsDeleted();
+
+    /**
+     * Called after popularity deltas have been added to the albums index by the popularity flush.
+     * A popularity never goes below 0. Ignored by default.
+     *
+     * @param deltas the popularity deltas, by album id
+     */
+    default void onPopularityChanged(Map<UUID, Long> deltas) {
+    }
+
+}
@@ -0,0 +1,456 @@
+package com.halj.music.library.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.elasticsearch.BulkFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexInformation;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.MultiGetItem;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.data.elasticsearch.core.index.AliasAction;
+import org.springframework.data.elasticsearch.core.index.AliasActionParameters;
+import org.springframework.data.elasticsearch.core.index.AliasActions;
+import org.springframework.data.elasticsearch.core.index.AliasData;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.IndexQuery;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.data.elasticsearch.core.query.IndexQueryBuilder;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import com.halj.music.library.model.BulkIndexingJob;
+import com.halj.music.library.model.elastic.Album;
+
+/**
+ * The Class AlbumIndexManager.
+ * Manages the generations of the albums index. Clients always read and write through the "albums" alias,
+ * which points to a single physical generation named "albums-{checksum}-{timestamp}".
+ * A new generation is built in the background, with no replica and no refresh, then swapped in atomically,
+ * so the catalogue stays fully searchable during a reload. Albums written through the alias meanwhile are recorded
+ * by the album write log, and copied from the live generation into the new one before the swap, the last ones while
+ * the writers are held back. The popularity of the other albums is carried over from the live generation too.
+ * The checksum covers the dataset and the index mapping, a reload is skipped when it matches the live generation.
+ */
+@Service
+public class AlbumIndexManager {
+
+    /** The Constant LOG. */
+    private static final Logger LOG = LoggerFactory.getLogger(AlbumIndexManager.class);
+
+    /** The Constant ALIAS, name all the clients use for the albums index. */
+    public static final String ALIAS = "albums";
+
+    /** The Constant GENERATION_PREFIX. */
+    private static final String GENERATION_PREFIX = ALIAS + "-";
+
+    /** The Constant CHECKSUM_LENGTH, number of hex digits of the checksum kept in generation names. */
+    private static final int CHECKSUM_LENGTH = 16;
+
+    /** The Constant POPULARITY, the album field carried over from a generation to the next. */
+    private static final String POPULARITY = "popularity";
+
+    /** The Constant REPLAY_BATCH_SIZE, maximum number of albums per multi-get and bulk request of a replay. */
+    private static final int REPLAY_BATCH_SIZE = 1000;
+
+    /** The elasticsearch operations. */
+    private ElasticsearchOperations elasticsearchOperations;
+
+    /** The rest client, for the index settings updates. */
+    private RestHighLevelClient client;
+
+    /** The album bulk indexer. */
+    private AlbumBulkIndexer albumBulkIndexer;
+
+    /** The album service. */
+    private AlbumService albumService;
+
+    /** The log of the albums written through the alias. */
+    private AlbumWriteLog albumWriteLog;
+
+    /** The number of replicas of the live generation. */
+    private int replicas;
+
+    /** The refresh interval of the live generation. */
+    private String refreshInterval;
+
+    /** The rebuild executor. */
+    private ExecutorService executor;
+
+    /**
+     * Instantiates a new album index manager.
+     *
+     * @param elasticsearchOperations the elasticsearch operations
+     * @param client the rest client
+     * @param albumBulkIndexer the album bulk indexer
+     * @param albumService the album service
+     * @param albumWriteLog the log of the albums written through the alias
+     * @param replicas the number of replicas of the live generation
+     * @param refreshInterval the refresh interval of the live generation
+     */
+    public AlbumIndexManager(ElasticsearchOperations elasticsearchOperations,
+            RestHighLevelClient client,
+            AlbumBulkIndexer albumBulkIndexer,
+            AlbumService albumService,
+            AlbumWriteLog albumWriteLog,
+            @Value("${library.albums.index.replicas:1}") int replicas,
+            @Value("${library.albums.index.refresh-interval:1s}") String refreshInterval) {
+        super();
+        this.elasticsearchOperations = elasticsearchOperations;
+        this.client = client;
+        this.albumBulkIndexer = albumBulkIndexer;
+        this.albumService = albumService;
+        this.albumWriteLog = albumWriteLog;
+        this.replicas = replicas;
+        this.refreshInterval = refreshInterval;
+        this.executor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("album-index-"));
+    }
+
+    /**
+     * Shutdown the rebuild executor.
+     */
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Make sure the albums alias resolves, creating an empty generation on a new cluster.
+     * An albums index created before generations were introduced is kept until the first rebuild replaces it.
+     */
+    public void ensureAlias() {
+        if (getLiveGeneration() == null && !indexOps(ALIAS).exists()) {
+            String generation = createGeneration("0".repeat(CHECKSUM_LENGTH), Map.of());
+            swap(generation);
+            LOG.info("Empty albums generation {} created", generation);
+        }
+    }
+
+    /**
+     * Gets the generation the albums alias points to.
+     *
+     * @return the live generation, null if the alias does not exist
+     */
+    public String getLiveGeneration() {
+        Map<String, Set<AliasData>> aliases = indexOps(ALIAS).getAliases(ALIAS);
+        return aliases.isEmpty() ? null : aliases.keySet().iterator().next();
+    }
+
+    /**
+     * Reload the catalogue in the background, unless the live generation was built from the same dataset and mapping.
+     * When the reload is skipped, the album change listeners are fed from the live generation instead.
+     *
+     * @param dataset the dataset, a JSON array or a NDJSON stream
+     * @return the live generation once done
+     */
+    public CompletableFuture<String> reloadAsync(final InputStreamSource dataset) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return reload(dataset);
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }, this.executor);
+    }
+
+    /**
+     * Reload the catalogue, unless the live generation was built from the same dataset and mapping.
+     *
+     * @param dataset the dataset, a JSON array or a NDJSON stream
+     * @return the live generation
+     * @throws IOException Signals that the dataset could not be read.
+     */
+    public String reload(final InputStreamSource dataset) throws IOException {
+        String checksum = checksum(dataset);
+        String live = getLiveGeneration();
+
+        if (live != null && live.startsWith(GENERATION_PREFIX + checksum + "-")) {
+            LOG.info("Albums generation {} is up to date, reload skipped", live);
+            this.albumService.warmUpListeners(live);
+            return live;
+        }
+
+        return rebuild(dataset, checksum);
+    }
+
+    /**
+     * Build a new generation from a dataset and swap it in. The live generation is kept if any album failed to be indexed.
+     * The album change listeners are fed with the new generation once it is live.
+     *
+     * @param dataset the dataset
+     * @param checksum the checksum of the dataset and mapping
+     * @return the live generation
+     * @throws IOException Signals that the dataset could not be read.
+     */
+    String rebuild(final InputStreamSource dataset, final String checksum) throws IOException {
+        // bulk loading without replicas and refreshes, both are restored before the generation goes live
+        String generation = createGeneration(checksum, Map.of("index.number_of_replicas", 0, "index.refresh_interval", "-1"));
+        LOG.info("Building albums generation {}", generation);
+
+        BulkIndexingJob job = new BulkIndexingJob(UUID.randomUUID());
+        this.albumWriteLog.startRecording();
+        try {
+            job.start();
+            try (InputStream source = dataset.getInputStream()) {
+                this.albumBulkIndexer.index(source, job, IndexCoordinates.of(generation));
+                job.complete();
+            } catch (IOException | RuntimeException e) {
+                indexOps(generation).delete();
+                throw e;
+            }
+            if (job.getFailed() > 0) {
+                // invalid records are skipped whatever the generation, failed albums would be missing from this one only
+                LOG.error("Albums generation {} discarded: {} albums failed to be indexed", generation, job.getFailed());
+                indexOps(generation).delete();
+                return getLiveGeneration();
+            }
+
+            // the popularity of the live generation is carried over, the flushes made meanwhile are recorded and replayed
+            long popular = copyPopularity(generation);
+
+            // the writes made during the load are replayed while the writers keep going, the last ones with the
+            // writers held back until the alias is swapped
+            int replayed = replay(this.albumWriteLog.drain(), generation);
+            updateSettings(generation, Map.of("index.number_of_replicas", this.replicas, "index.refresh_interval", this.refreshInterval));
+            indexOps(generation).refresh();
+            int[] lastReplayed = { 0 };
+            this.albumWriteLog.holdWriters(() -> {
+                lastReplayed[0] = replay(this.albumWriteLog.stopRecording(), generation);
+                indexOps(generation).refresh();
+                swap(generation);
+            });
+            LOG.info("Albums generation {}: popularity of {} albums copied, {} albums written during the load replayed, {} while swapping",
+                    generation, popular, replayed, lastReplayed[0]);
+        } finally {
+            this.albumWriteLog.stopRecording();
+        }
+
+        this.albumService.evictCache();
+        this.albumService.warmUpListeners(generation);
+        LOG.info("Albums generation {} is live: {} albums indexed, {} invalid records skipped, in {} ms",
+                generation, job.getIndexed(), job.getInvalid(), job.getElapsedMillis());
+
+        return generation;
+    }
+
+    /**
+     * Copy the popularity of the albums of the live generation into a generation being built, the dataset having none.
+     * The popular albums are read by pages sorted by id, popularity only, and updated in place in the new generation;
+     * the albums no longer in the dataset are skipped.
+     *
+     * @param generation the generation being built
+     * @return the number of albums whose popularity was copied
+     */
+    private long copyPopularity(final String generation) {
+        if (getLiveGeneration() == null && !indexOps(ALIAS).exists()) {
+            return 0;
+        }
+        IndexCoordinates target = IndexCoordinates.of(generation);
+        long copied = 0;
+        String searchAfter = null;
+
+        while (true) {
+            NativeSearchQuery searchQuery = new NativeSearchQueryBuilder()
+                    .withQuery(QueryBuilders.rangeQuery(POPULARITY).gt(0))
+                    .withSourceFilter(new FetchSourceFilter(new String[] { POPULARITY }, null))
+                    .withPageable(PageRequest.of(0, REPLAY_BATCH_SIZE, Sort.by("id")))
+                    .build();
+            if (searchAfter != null) {
+                searchQuery.setSearchAfter(List.of(searchAfter));
+            }
+
+            List<UpdateQuery> updates = new ArrayList<>(REPLAY_BATCH_SIZE);
+            this.elasticsearchOperations.search(searchQuery, Album.class, IndexCoordinates.of(ALIAS))
+                    .forEach(hit -> updates.add(UpdateQuery.builder(hit.getId())
+                            .withDocument(Document.from(Map.of(POPULARITY, hit.getContent().getPopularity())))
+                            .build()));
+            if (updates.isEmpty()) {
+                return copied;
+            }
+
+            Map<String, String> missing = Map.of();
+            try {
+                this.elasticsearchOperations.bulkUpdate(updates, target);
+            } catch (BulkFailureException e) {
+                missing = e.getFailedDocuments();
+                for (String failure : missing.values()) {
+                    if (!failure.contains("document missing")) {
+                        throw new IllegalStateException("Popularity could not be copied into " + generation + ": " + missing, e);
+                    }
+                }
+            }
+            copied += updates.size() - missing.size();
+            searchAfter = updates.get(updates.size() - 1).getId();
+
+            if (updates.size() < REPLAY_BATCH_SIZE) {
+                return copied;
+            }
+        }
+    }
+
+    /**
+     * Copy albums written through the alias from the live generation into a generation being built, with their
+     * popularity. Albums missing from the live generation were deleted, and are deleted from the new one.
+     *
+     * @param writes the writes recorded
+     * @param generation the generation being built
+     * @return the number of albums replayed
+     */
+    private int replay(final AlbumWriteLog.Writes writes, final String generation) {
+        IndexCoordinates target = IndexCoordinates.of(generation);
+        if (writes.isAllDeleted()) {
+            // the albums written since then are copied back below
+            indexOps(generation).refresh();
+            this.elasticsearchOperations.delete(new NativeSearchQueryBuilder().withQuery(QueryBuilders.matchAllQuery()).build(),
+                    Album.class, target);
+        }
+
+        List<String> albumIds = new ArrayList<>(writes.getAlbumIds().size());
+        writes.getAlbumIds().forEach(albumId -> albumIds.add(albumId.toString()));
+        for (int from = 0; from < albumIds.size(); from += REPLAY_BATCH_SIZE) {
+            List<String> batch = albumIds.subList(from, Math.min(from + REPLAY_BATCH_SIZE, albumIds.size()));
+            List<MultiGetItem<Album>> items = this.elasticsearchOperations.multiGet(new NativeSearchQueryBuilder().withIds(batch).build(),
+                    Album.class, IndexCoordinates.of(ALIAS));
+
+            List<IndexQuery> copies = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                MultiGetItem<Album> item = items.get(i);
+                if (item.isFailed()) {
+                    throw new IllegalStateException("Album " + batch.get(i) + " could not be read from the live generation",
+                            item.getFailure().getException());
+                }
+                if (item.hasItem()) {
+                    copies.add(new IndexQueryBuilder().withId(batch.get(i)).withObject(item.getItem()).build());
+                } else {
+                    this.elasticsearchOperations.delete(batch.get(i), target);
+                }
+            }
+            if (!copies.isEmpty()) {
+                this.elasticsearchOperations.bulkIndex(copies, target);
+            }
+        }
+        return albumIds.size();
+    }
+
+    /**
+     * Point the albums alias to a generation, in a single atomic request, then delete the previous generations.
+     * An albums index created before generations were introduced is removed in the same request.
+     *
+     * @param generation the generation
+     */
+    void swap(final String generation) {
+        AliasActions actions = new AliasActions(new AliasAction.Add(AliasActionParameters.builder()
+                .withIndices(generation)
+                .withAliases(ALIAS)
+                .build()));
+
+        List<String> previous = new ArrayList<>();
+        for (IndexInformation index : indexOps(GENERATION_PREFIX + "*").getInformation()) {
+            if (!index.getName().equals(generation)) {
+                previous.add(index.getName());
+            }
+        }
+        if (!previous.isEmpty()) {
+            actions.add(new AliasAction.Remove(AliasActionParameters.builder()
+                    .withIndices(previous.toArray(new String[0]))
+                    .withAliases(ALIAS)
+                    .build()));
+        }
+        if (getLiveGeneration() == null && indexOps(ALIAS).exists()) {
+            actions.add(new AliasAction.RemoveIndex(AliasActionParameters.builder()
+                    .withIndices(ALIAS)
+                    .build()));
+        }
+
+        indexOps(generation).alias(actions);
+
+        previous.forEach(index -> indexOps(index).delete());
+    }
+
+    /**
+     * Create a generation with the album mapping.
+     *
+     * @param checksum the checksum of the dataset and mapping
+     * @param settings the index settings
+     * @return the generation name
+     */
+    private String createGeneration(final String checksum, final Map<String, Object> settings) {
+        String generation = GENERATION_PREFIX + checksum + "-" + System.currentTimeMillis();
+        IndexOperations indexOps = indexOps(generation);
+        indexOps.create(settings, mapping());
+        return generation;
+    }
+
+    /**
+     * Update the settings of an index.
+     *
+     * @param index the index
+     * @param settings the settings
+     * @throws IOException Signals that the settings could not be updated.
+     */
+    void updateSettings(final String index, final Map<String, Object> settings) throws IOException {
+        this.client.indices().putSettings(new UpdateSettingsRequest(index).settings(settings), RequestOptions.DEFAULT);
+    }
+
+    /**
+     * Checksum of the dataset and of the album mapping, so that a mapping change also triggers a rebuild.
+     *
+     * @param dataset the dataset
+     * @return the checksum prefix, in hex
+     * @throws IOException Signals that the dataset could not be read.
+     */
+    String checksum(final InputStreamSource dataset) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(mapping().toJson().getBytes(StandardCharsets.UTF_8));
+
+        try (InputStream source = new DigestInputStream(dataset.getInputStream(), digest)) {
+            source.transferTo(OutputStream.nullOutputStream());
+        }
+        return String.format("%064x", new BigInteger(1, digest.digest())).substring(0, CHECKSUM_LENGTH);
+    }
+
+    private Document mapping() {
+        return this.elasticsearchOperations.indexOps(Album.class).createMapping();
+    }
+
+    private IndexOperations indexOps(final String index) {
+        return this.elasticsearchOperations.indexOps(IndexCoordinates.of(index));
+    }
+
+}
@@ -1,23 +1,58 @@
 package com.halj.music.library.service;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
-import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.BucketOrder;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.elasticsearch.BulkFailureException;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.TotalHitsRelation;
+import org.springframework.data.elasticsearch.core.clients.elasticsearch7.ElasticsearchAggregations;
+import org.springframework.data.elasticsearch.core.document.Document;
 import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
-import org.springframework.data.elasticsearch.core.query.Query;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
 import org.springframework.stereotype.Service;
 
+import com.halj.music.library.cache.AlbumCache;
+import com.halj.music.library.exception.InvalidRequestException;
+import com.halj.music.library.model.AlbumFacetPage;
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.CacheStatistics;
+import com.halj.music.library.model.FacetBucket;
 import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.popularity.AlbumPopularity;
 import com.halj.music.library.repository.elastic.AlbumRepository;
+import com.halj.music.library.search.AlbumSearchBackend;
+import com.halj.music.library.search.ElasticAlbumSearchBackend;
+import com.halj.music.library.snapshot.AlbumSnapshot;
+
+import io.micrometer.core.annotation.Timed;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 
 /**
  * The Class AlbumService.
@@ -32,33 +67,118 @@ public class AlbumService {
     /** The Constant ALBUM_ES_INDEX. */
     private static final String ALBUM_ES_INDEX = "albums";
 
+    /** The Constant MAX_RESULT_WINDOW, Elasticsearch default max result window. */
+    private static final int MAX_RESULT_WINDOW = 10_000;
+
+    /** The Constant DEFAULT_SEARCH_PAGE_SIZE. */
+    private static final int DEFAULT_SEARCH_PAGE_SIZE = 10;
+
+    /** The Constant WARM_UP_PAGE_SIZE, number of albums per page read to warm up the listeners or write a snapshot. */
+    private static final int WARM_UP_PAGE_SIZE = 1000;
+
+    /** The Constant MAX_TOP_ARTISTS, maximum size of the artists facet. */
+    private static final int MAX_TOP_ARTISTS = 100;
+
+    /** The Constant DECADES facet name. */
+    private static final String DECADES = "decades";
+
+    /** The Constant YEARS facet name. */
+    private static final String YEARS = "years";
+
+    /** The Constant ARTISTS facet name. */
+    private static final String ARTISTS = "artists";
+
+    /** The Constant POPULARITY field name. */
+    private static final String POPULARITY = "popularity";
+
+    /** The Constant CLIENT_FIELDS, the album fields written by clients. */
+    private static final List<String> CLIENT_FIELDS = List.of("title", "artist", "releaseYear", "coverURL");
+
     /** The album repository. */
     private AlbumRepository albumRepository;
 
     /** The elasticsearch operations. */
     private ElasticsearchOperations elasticsearchOperations;
 
+    /** The album cache. */
+    private AlbumCache albumCache;
+
+    /** The album search backend. */
+    private AlbumSearchBackend albumSearchBackend;
+
+    /** The album change listeners. */
+    private List<AlbumChangeListener> albumChangeListeners;
+
+    /** The log of the albums written through the alias, replayed into a generation being built. */
+    private AlbumWriteLog albumWriteLog;
+
+    /** The album popularity counters. */
+    private AlbumPopularity albumPopularity;
+
+    /** The maximum search page size. */
+    private int maxSearchPageSize;
+
+    /** The generation of the albums index the album change listeners were last warmed up from, null if none. */
+    private volatile String warmGeneration;
+
+    /** The distribution of the number of albums per search page. */
+    private DistributionSummary searchResultSizes;
+
     /**
      * Instantiates a new album service.
      *
      * @param albumRepository the album repository
      * @param elasticsearchOperations the elasticsearch operations
+     * @param albumCache the album cache
+     * @param albumSearchBackend the album search backend
+     * @param albumChangeListeners the album change listeners
+     * @param albumWriteLog the log of the albums written through the alias
+     * @param albumPopularity the album popularity counters
+     * @param maxSearchPageSize the maximum search page size
+     * @param meterRegistry the meter registry
      */
-    public AlbumService(AlbumRepository albumRepository, ElasticsearchOperations elasticsearchOperations) {
+    public AlbumService(AlbumRepository albumRepository,
+            ElasticsearchOperations elasticsearchOperations,
+            AlbumCache albumCache,
+            AlbumSearchBackend albumSearchBackend,
+            List<AlbumChangeListener> albumChangeListeners,
+            AlbumWriteLog albumWriteLog,
+            AlbumPopularity albumPopularity,
+            @Value("${library.search.max-page-size:100}") int maxSearchPageSize,
+            MeterRegistry meterRegistry) {
         super();
         this.albumRepository = albumRepository;
         this.elasticsearchOperations = elasticsearchOperations;
+        this.albumCache = albumCache;
+        this.albumSearchBackend = albumSearchBackend;
+        this.albumChangeListeners = albumChangeListeners;
+        this.albumWriteLog = albumWriteLog;
+        this.albumPopularity = albumPopularity;
+        this.maxSearchPageSize = maxSearchPageSize;
+        this.searchResultSizes = DistributionSummary.builder("library.search.results")
+                .description("Number of albums per search page")
+                .baseUnit("albums")
+                .register(meterRegistry);
     }
 
     /**
      * Save album.
+     * The album is upserted without its popularity, so that the popularity flushed by AlbumPopularity is kept.
      *
      * @param album the album
      * @return the album
      */
     public Album saveAlbum(final Album album) {
         checkUUID(album);
-        return this.albumRepository.save(album);
+        // the popularity is not written by clients, the (possibly slightly stale) cached one is returned
+        this.albumCache.getIfPresent(album.getId()).ifPresent(existing -> album.setPopularity(existing.getPopularity()));
+        IndexCoordinates index = IndexCoordinates.of(ALBUM_ES_INDEX);
+        this.albumWriteLog.write(List.of(album.getId()), () -> this.elasticsearchOperations.update(toUpsert(album), index));
+        this.elasticsearchOperations.indexOps(index).refresh();
+        // the indexed popularity may be ahead of the cached one, the album is read again on the next get
+        this.albumCache.invalidate(album.getId());
+        this.albumChangeListeners.forEach(listener -> listener.onAlbumsSaved(List.of(album)));
+        return album;
     }
 
     /**
@@ -68,8 +188,83 @@ public class AlbumService {
      * @return the iterable
      */
     public Iterable<Album> saveAlbums(final List<Album> albums) {
+        IndexCoordinates index = IndexCoordinates.of(ALBUM_ES_INDEX);
+        Iterable<Album> saved = saveAlbums(albums, index);
+        this.elasticsearchOperations.indexOps(index).refresh();
+        return saved;
+    }
+
+    /**
+     * Refresh the albums index, making the albums saved into it without a refresh searchable.
+     */
+    public void refresh() {
+        this.elasticsearchOperations.indexOps(IndexCoordinates.of(ALBUM_ES_INDEX)).refresh();
+    }
+
+    /**
+     * Save albums into a given index, e.g. a generation of the albums index being built, with a bulk of upserts
+     * leaving the popularity of the existing albums untouched. Albums saved through the alias are then propagated,
+     * even if some of them failed; albums saved into a generation being built are propagated once it goes live.
+     *
+     * @param albums the albums
+     * @param index the index
+     * @return the iterable
+     */
+    public Iterable<Album> saveAlbums(final List<Album> albums, final IndexCoordinates index) {
         albums.forEach(this::checkUUID);
-        return this.albumRepository.saveAll(albums);
+
+        List<UpdateQuery> upserts = new ArrayList<>(albums.size());
+        albums.forEach(album -> upserts.add(toUpsert(album)));
+        if (!ALBUM_ES_INDEX.equals(index.getIndexName())) {
+            this.elasticsearchOperations.bulkUpdate(upserts, index);
+            return albums;
+        }
+
+        List<UUID> albumIds = new ArrayList<>(albums.size());
+        albums.forEach(album -> albumIds.add(album.getId()));
+        try {
+            this.albumWriteLog.write(albumIds, () -> this.elasticsearchOperations.bulkUpdate(upserts, index));
+        } catch (BulkFailureException e) {
+            // the albums missing from the failed documents were indexed
+            List<Album> indexed = new ArrayList<>(albums.size());
+            albums.stream()
+                    .filter(album -> !e.getFailedDocuments().containsKey(album.getId().toString()))
+                    .forEach(indexed::add);
+            onAlbumsSaved(indexed);
+            throw e;
+        }
+        onAlbumsSaved(albums);
+        return albums;
+    }
+
+    /**
+     * Build the upsert of an album: a partial update of its client fields, creating the document if missing.
+     * The popularity is left out, it is only written by the AlbumPopularity scripts.
+     *
+     * @param album the album
+     * @return the update query
+     */
+    private UpdateQuery toUpsert(final Album album) {
+        Document document = this.elasticsearchOperations.getElasticsearchConverter().mapObject(album);
+        document.remove(POPULARITY);
+        // null fields are left out by the converter, they are sent as null so that a save still clears them
+        CLIENT_FIELDS.forEach(field -> document.putIfAbsent(field, null));
+        return UpdateQuery.builder(album.getId().toString())
+                .withDocument(document)
+                .withDocAsUpsert(true)
+                .withRetryOnConflict(3)
+                .build();
+    }
+
+    /**
+     * Propagate saved albums to the cache and the album change listeners.
+     *
+     * @param saved the saved albums
+     */
+    private void onAlbumsSaved(final Iterable<Album> saved) {
+        // bulk writes (e.g. catalogue drops) invalidate rather than fill the cache with cold albums
+        saved.forEach(album -> this.albumCache.invalidate(album.getId()));
+        this.albumChangeListeners.forEach(listener -> listener.onAlbumsSaved(saved));
     }
 
     /**
@@ -78,7 +273,9 @@ public class AlbumService {
      * @param albums the albums
      */
     public void deleteAlbums(final List<UUID> albumIds) {
-        this.albumRepository.deleteAllById(albumIds);
+        this.albumWriteLog.write(albumIds, () -> this.albumRepository.deleteAllById(albumIds));
+        this.albumCache.invalidateAll(albumIds);
+        this.albumChangeListeners.forEach(listener -> listener.onAlbumsDeleted(albumIds));
     }
 
     /**
@@ -87,14 +284,72 @@ public class AlbumService {
      * @param albumId the album id
      */
     public void deleteAlbum(final UUID albumId) {
-        this.albumRepository.deleteById(albumId);
+        this.albumWriteLog.write(List.of(albumId), () -> this.albumRepository.deleteById(albumId));
+        this.albumCache.invalidate(albumId);
+        this.albumChangeListeners.forEach(listener -> listener.onAlbumsDeleted(List.of(albumId)));
     }
 
     /**
      * Delete all albums.
      */
     public void deleteAllAlbums() {
-        this.albumRepository.deleteAll();
+        this.albumWriteLog.deleteAll(this.albumRepository::deleteAll);
+        this.albumCache.invalidateAll();
+        this.albumChangeListeners.forEach(AlbumChangeListener::onAllAlbumsDeleted);
+    }
+
+    /**
+     * Feed the album change listeners with all the albums of the live index,
+     * when the catalogue is already indexed and was not reloaded through the write paths.
+     * Skipped when they were already fed from a snapshot of the same generation, otherwise they are cleared first.
+     *
+     * @param generation the live generation of the albums index
+     */
+    public void warmUpListeners(final String generation) {
+        if (this.albumChangeListeners.isEmpty()) {
+            return;
+        }
+        if (generation != null && generation.equals(this.warmGeneration)) {
+            LOG.info("Album change listeners already warmed up from generation {}", generation);
+            return;
+        }
+        if (this.warmGeneration != null) {
+            this.albumChangeListeners.forEach(AlbumChangeListener::onAllAlbumsDeleted);
+        }
+        this.warmGeneration = generation;
+        long start = System.nanoTime();
+        long[] count = { 0 };
+        exportAll(null, WARM_UP_PAGE_SIZE, null, page -> {
+            this.albumChangeListeners.forEach(listener -> listener.onAlbumsSaved(page));
+            count[0] += page.size();
+        });
+        LOG.info("Album change listeners warmed up with {} albums in {} ms", count[0], (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Feed the album change listeners with all the albums of a catalogue snapshot, without reading the albums index.
+     *
+     * @param snapshot the catalogue snapshot
+     */
+    public void warmUpListeners(final AlbumSnapshot snapshot) {
+        if (this.albumChangeListeners.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<List<Album>> page = new ArrayList<>(List.of(new ArrayList<>(WARM_UP_PAGE_SIZE)));
+        snapshot.forEach(album -> {
+            page.get(0).add(album);
+            if (page.get(0).size() == WARM_UP_PAGE_SIZE) {
+                List<Album> full = page.set(0, new ArrayList<>(WARM_UP_PAGE_SIZE));
+                this.albumChangeListeners.forEach(listener -> listener.onAlbumsSaved(full));
+            }
+        });
+        if (!page.get(0).isEmpty()) {
+            this.albumChangeListeners.forEach(listener -> listener.onAlbumsSaved(page.get(0)));
+        }
+        this.warmGeneration = snapshot.getGeneration();
+        LOG.info("Album change listeners warmed up with {} albums of snapshot {} in {} ms", snapshot.size(), snapshot.getGeneration(),
+                (System.nanoTime() - start) / 1_000_000);
     }
 
     /**
@@ -103,46 +358,249 @@ public class AlbumService {
      * @param uuid the uuid
      * @return the optional
      */
+    @Timed("library.service.requests")
     public Optional<Album> getAlbum(final UUID uuid) {
-        return this.albumRepository.findById(uuid);
+        Optional<Album> album = this.albumCache.get(uuid);
+        if (album.isPresent()) {
+            this.albumPopularity.albumViewed(uuid);
+        }
+        return album;
     }
 
     /**
-     * Find album.
+     * Write a snapshot of all the albums of the live index, streaming the exported pages, sorted by id, to the
+     * snapshot writer so that the catalogue is never held in memory.
      *
-     * @param uuid the uuid
-     * @return the optional
+     * @param path the snapshot file
+     * @param generation the live generation of the albums index
+     * @throws IOException Signals that the snapshot could not be written.
      */
-    public Iterable<Album> getAll() {
-        return this.albumRepository.findAll();
+    public void writeSnapshot(final Path path, final String generation) throws IOException {
+        long start = System.nanoTime();
+        AtomicLong count = new AtomicLong();
+        try (AlbumSnapshot.Writer writer = AlbumSnapshot.writer(path, generation)) {
+            exportAll(null, WARM_UP_PAGE_SIZE, null, page -> {
+                try {
+                    for (Album album : page) {
+                        writer.add(album);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                count.addAndGet(page.size());
+            });
+            writer.commit();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        LOG.info("Snapshot of {} albums written to {} in {} ms", count.get(), path, (System.nanoTime() - start) / 1_000_000);
     }
 
     /**
-     * Free text search.
+     * Evict all albums from the cache, e.g. after another generation of the albums index went live.
+     */
+    public void evictCache() {
+        this.albumCache.invalidateAll();
+    }
+
+    /**
+     * Gets the album cache statistics.
+     *
+     * @return the cache statistics
+     */
+    public CacheStatistics getCacheStatistics() {
+        return this.albumCache.getStatistics();
+    }
+
+    /**
+     * Export all albums, page by page, sorted by id.
+     * Pages are fetched with search_after so memory use does not depend on the catalogue size,
+     * and the export can be resumed after any album by passing its id as cursor.
+     *
+     * @param cursor the id of the last album already exported, null to start from the beginning
+     * @param pageSize the number of albums fetched per page
+     * @param limit the maximum number of albums to export, null for no limit
+     * @param pageConsumer the consumer of each page of albums
+     * @return the cursor to resume the export from, null when all albums have been exported
+     */
+    @Timed("library.service.requests")
+    public String exportAll(final String cursor, final int pageSize, final Long limit, final Consumer<List<Album>> pageConsumer) {
+        int size = Math.max(1, Math.min(pageSize, MAX_RESULT_WINDOW));
+        long remaining = limit == null ? Long.MAX_VALUE : limit;
+        String searchAfter = cursor;
+
+        while (remaining > 0) {
+            NativeSearchQuery searchQuery = new NativeSearchQueryBuilder()
+                    .withQuery(QueryBuilders.matchAllQuery())
+                    .withPageable(PageRequest.of(0, (int) Math.min(size, remaining), Sort.by("id")))
+                    .build();
+            if (searchAfter != null) {
+                searchQuery.setSearchAfter(List.of(searchAfter));
+            }
+
+            List<Album> page = new ArrayList<>(size);
+            this.elasticsearchOperations.search(searchQuery, Album.class, IndexCoordinates.of(ALBUM_ES_INDEX))
+                    .forEach(hit -> page.add(hit.getContent()));
+
+            if (page.isEmpty()) {
+                return null;
+            }
+
+            pageConsumer.accept(page);
+            remaining -= page.size();
+            searchAfter = page.get(page.size() - 1).getId().toString();
+
+            if (page.size() < searchQuery.getPageable().getPageSize()) {
+                return null;
+            }
+        }
+
+        return searchAfter;
+    }
+
+    /**
+     * Free text search, ordered by relevance.
+     * Shallow pages are fetched by page number, deep pages with the cursor of the previous page (search_after).
      *
      * @param query the query
-     * @return the list
+     * @param page the page number, must be 0 when a cursor is given
+     * @param size the page size, null for default, capped to the max page size
+     * @param cursor the cursor returned with the previous page, null for page based pagination
+     * @return the album search page
      */
-    public List<Album> freeTextSearch(final String query) {
-        LOG.info("Free text search with query: {}", query);
+    @Timed("library.service.requests")
+    public AlbumSearchPage freeTextSearch(final String query, final int page, final Integer size, final String cursor) {
+        LOG.info("Free text search with query: {}, page: {}, size: {}, cursor: {}", query, page, size, cursor);
 
-        // create query on multiple fields
-        QueryBuilder queryBuilder = QueryBuilders
-                .multiMatchQuery(query, "title", "artist", "releaseYear", "coverURL");
-        // .fuzziness(Fuzziness.AUTO);
+        int pageSize = searchPageSize(page, size, cursor);
 
-        Query searchQuery = new NativeSearchQueryBuilder()
-                .withFilter(queryBuilder)
-                .build();
+        AlbumSearchPage searchPage = this.albumSearchBackend.search(query, page, pageSize, cursor);
+        this.searchResultSizes.record(searchPage.getAlbums().size());
+        return searchPage;
+    }
+
+    /**
+     * Faceted search: optional free text query, exact artists and release year range filters,
+     * with the decades, years and top artists facets of all the matching albums.
+     * Filters run in filter context, so they do not change the scores and their results are cached by Elasticsearch.
+     *
+     * @param query the free text query, null or blank to match all albums
+     * @param yearFrom the first release year, inclusive, null for no lower bound
+     * @param yearTo the last release year, inclusive, null for no upper bound
+     * @param artists the exact artists to keep, null or empty for all artists
+     * @param sort the sort: null or "relevance", "releaseYear" or "-releaseYear" for descending years
+     * @param page the page number
+     * @param size the page size, null for default, capped to the max page size
+     * @param topArtists the size of the artists facet, capped
+     * @return the album facet page
+     */
+    @Timed("library.service.requests")
+    public AlbumFacetPage facetedSearch(final String query, final Integer yearFrom, final Integer yearTo, final List<String> artists,
+            final String sort, final int page, final Integer size, final int topArtists) {
+        LOG.info("Faceted search with query: {}, years: {}-{}, artists: {}, sort: {}, page: {}, size: {}",
+                query, yearFrom, yearTo, artists, sort, page, size);
+
+        int pageSize = searchPageSize(page, size, null);
+        if (yearFrom != null && yearTo != null && yearFrom > yearTo) {
+            throw new InvalidRequestException("yearFrom must not be after yearTo");
+        }
+
+        BoolQueryBuilder filteredQuery = QueryBuilders.boolQuery()
+                .must(query == null || query.isBlank() ? QueryBuilders.matchAllQuery() : ElasticAlbumSearchBackend.multiMatchQuery(query));
+        if (yearFrom != null || yearTo != null) {
+            RangeQueryBuilder years = QueryBuilders.rangeQuery("releaseYear");
+            if (yearFrom != null) {
+                years.gte(yearFrom);
+            }
+            if (yearTo != null) {
+                years.lte(yearTo);
+            }
+            filteredQuery.filter(years);
+        }
+        if (artists != null && !artists.isEmpty()) {
+            filteredQuery.filter(QueryBuilders.termsQuery("artist.keyword", artists));
+        }
+
+        NativeSearchQueryBuilder queryBuilder = new NativeSearchQueryBuilder()
+                .withQuery(filteredQuery)
+                .withPageable(PageRequest.of(page, pageSize))
+                .withAggregations(
+                        AggregationBuilders.histogram(DECADES).field("releaseYear").interval(10).minDocCount(1),
+                        AggregationBuilders.histogram(YEARS).field("releaseYear").interval(1).minDocCount(1),
+                        AggregationBuilders.terms(ARTISTS).field("artist.keyword")
+                                .size(Math.max(1, Math.min(topArtists, MAX_TOP_ARTISTS)))
+                                .order(List.of(BucketOrder.count(false), BucketOrder.key(true))));
+        if (sort == null || "relevance".equals(sort)) {
+            queryBuilder.withSorts(SortBuilders.scoreSort(), SortBuilders.fieldSort("id"));
+        } else if ("releaseYear".equals(sort) || "-releaseYear".equals(sort)) {
+            queryBuilder.withSorts(SortBuilders.fieldSort("releaseYear").order(sort.startsWith("-") ? SortOrder.DESC : SortOrder.ASC),
+                    SortBuilders.fieldSort("id"));
+        } else {
+            throw new InvalidRequestException("Unknown sort " + sort + ", expected relevance, releaseYear or -releaseYear");
+        }
+        NativeSearchQuery searchQuery = queryBuilder.build();
+        searchQuery.setTrackTotalHitsUpTo(MAX_RESULT_WINDOW);
 
-        // Execute search
         SearchHits<Album> albumHits = this.elasticsearchOperations.search(searchQuery, Album.class, IndexCoordinates.of(ALBUM_ES_INDEX));
 
-        // Map searchHits to album list
-        List<Album> albumMatches = new ArrayList<>();
-        albumHits.forEach(hit -> albumMatches.add(hit.getContent()));
+        List<Album> albums = new ArrayList<>(albumHits.getSearchHits().size());
+        albumHits.forEach(hit -> albums.add(hit.getContent()));
+        this.searchResultSizes.record(albums.size());
+
+        Aggregations aggregations = albumHits.hasAggregations()
+                ? ((ElasticsearchAggregations) albumHits.getAggregations()).aggregations()
+                : null;
+
+        return new AlbumFacetPage(albums, page, pageSize, albumHits.getTotalHits(),
+                albumHits.getTotalHitsRelation() == TotalHitsRelation.EQUAL_TO ? "eq" : "gte",
+                toFacet(aggregations, DECADES),
+                toFacet(aggregations, YEARS),
+                toFacet(aggregations, ARTISTS));
+    }
+
+    /**
+     * Check the requested search page and compute its size.
+     *
+     * @param page the page number
+     * @param size the requested page size, default if null, capped to the maximum search page size
+     * @param cursor the cursor of the previous page, null for offset pagination
+     * @return the page size
+     */
+    public int searchPageSize(final int page, final Integer size, final String cursor) {
+        int pageSize = size == null ? DEFAULT_SEARCH_PAGE_SIZE : Math.max(1, Math.min(size, this.maxSearchPageSize));
+        if (page < 0) {
+            throw new InvalidRequestException("Page number must not be negative");
+        }
+        if (cursor != null && page > 0) {
+            throw new InvalidRequestException("Page number must be 0 when a cursor is given");
+        }
+        if (((long) page + 1) * pageSize > MAX_RESULT_WINDOW) {
+            throw new InvalidRequestException("Result window is too large, use the cursor of the previous page to fetch deep pages");
+        }
+        return pageSize;
+    }
+
+    /**
+     * Map a bucket aggregation to a facet.
+     *
+     * @param aggregations the aggregations, null if none were returned
+     * @param name the aggregation name
+     * @return the facet buckets
+     */
+    private static List<FacetBucket> toFacet(final Aggregations aggregations, final String name) {
+        MultiBucketsAggregation aggregation = aggregations == null ? null : aggregations.get(name);
+        if (aggregation == null) {
+            return Collections.emptyList();
+        }
 
-        return albumMatches;
+        List<FacetBucket> facet = new ArrayList<>(aggregation.getBuckets().size());
+        aggregation.getBuckets().forEach(bucket -> {
+            // histogram keys are doubles, years are printed without fraction
+            Object key = bucket.getKey();
+            facet.add(new FacetBucket(key instanceof Number ? String.valueOf(((Number) key).longValue()) : bucket.getKeyAsString(),
+                    bucket.getDocCount()));
+        });
+        return facet;
     }
 
     /**
@@ -0,0 +1,152 @@
+package com.halj.music.library.service;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * The Class AlbumWriteLog.
+ * Records the albums written through the albums alias while a new generation of the albums index is built, so that
+ * the index manager can replay them into the new generation before it goes live. Writers go through a shared gate,
+ * which the index manager closes while it replays the last writes and swaps the alias: no write can reach the
+ * previous generation once its writes have been replayed.
+ */
+@Component
+public class AlbumWriteLog {
+
+    /** The gate, shared by the writers, exclusive for the index manager. */
+    private final ReadWriteLock gate = new ReentrantReadWriteLock();
+
+    /** The albums written since the recording started or was drained, null when not recording. */
+    private Set<UUID> written;
+
+    /** Whether all albums were deleted since the recording started or was drained. */
+    private boolean allDeleted;
+
+    /**
+     * Write albums through the albums alias. The albums are recorded even if the write fails, as some of them may
+     * have been written.
+     *
+     * @param albumIds the ids of the albums written
+     * @param write the write
+     */
+    public void write(final Collection<UUID> albumIds, final Runnable write) {
+        this.gate.readLock().lock();
+        try {
+            write.run();
+        } finally {
+            record(albumIds, false);
+            this.gate.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delete all albums through the albums alias.
+     *
+     * @param delete the delete
+     */
+    public void deleteAll(final Runnable delete) {
+        this.gate.readLock().lock();
+        try {
+            delete.run();
+        } finally {
+            record(Set.of(), true);
+            this.gate.readLock().unlock();
+        }
+    }
+
+    /**
+     * Start recording the albums written.
+     */
+    synchronized void startRecording() {
+        this.written = new HashSet<>();
+        this.allDeleted = false;
+    }
+
+    /**
+     * Take the writes recorded so far, and keep recording.
+     *
+     * @return the writes recorded since the recording started or was last drained
+     */
+    synchronized Writes drain() {
+        Writes writes = new Writes(this.written == null ? Set.of() : this.written, this.allDeleted);
+        if (this.written != null) {
+            this.written = new HashSet<>();
+        }
+        this.allDeleted = false;
+        return writes;
+    }
+
+    /**
+     * Take the writes recorded so far, and stop recording.
+     *
+     * @return the writes recorded since the recording started or was last drained
+     */
+    synchronized Writes stopRecording() {
+        Writes writes = drain();
+        this.written = null;
+        return writes;
+    }
+
+    /**
+     * Run an action while the writers are held back, e.g. the replay of the last writes and the alias swap.
+     *
+     * @param action the action
+     */
+    void holdWriters(final Runnable action) {
+        this.gate.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            this.gate.writeLock().unlock();
+        }
+    }
+
+    private synchronized void record(final Collection<UUID> albumIds, final boolean all) {
+        if (this.written != null) {
+            this.written.addAll(albumIds);
+            this.allDeleted |= all;
+        }
+    }
+
+    /**
+     * The writes recorded over a period.
+     */
+    static final class Writes {
+
+        /** The ids of the albums written. */
+        private final Set<UUID> albumIds;
+
+        /** Whether all albums were deleted. */
+        private final boolean allDeleted;
+
+        Writes(Set<UUID> albumIds, boolean allDeleted) {
+            this.albumIds = albumIds;
+            this.allDeleted = allDeleted;
+        }
+
+        /**
+         * Gets the ids of the albums written.
+         *
+         * @return the album ids
+         */
+        Set<UUID> getAlbumIds() {
+            return this.albumIds;
+        }
+
+        /**
+         * Whether all albums were deleted, before the albums written were.
+         *
+         * @return true if all albums were deleted
+         */
+        boolean isAllDeleted() {
+            return this.allDeleted;
+        }
+    }
+
+}
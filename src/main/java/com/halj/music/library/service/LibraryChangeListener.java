@@ -0,0 +1,24 @@
+package com.halj.music.library.service;
+
+/**
+ * The Interface LibraryChangeListener.
+ * Notified by the user and library services when users libraries are written, within the writing transaction,
+ * to keep in-process structures derived from the libraries up to date.
+ * Listeners are expected to read the changed libraries once the transaction is committed.
+ */
+public interface LibraryChangeListener {
+
+    /**
+     * Called when the library of a user has been changed, created or deleted.
+     *
+     * @param userId the user id
+     */
+    void onLibraryChanged(long userId);
+
+    /**
+     * Called when all the libraries may have changed: all users deleted, or users imported in bulk.
+     * Listeners rebuild their structures from all the libraries.
+     */
+    void onAllLibrariesChanged();
+
+}
@@ -1,39 +1,129 @@
 package com.halj.music.library.service;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
-
-import javax.transaction.Transactional;
+import java.util.function.Consumer;
 
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import com.halj.music.library.bitmap.AlbumOrdinals;
+import com.halj.music.library.bitmap.CompressedBitmap;
+import com.halj.music.library.cache.AlbumCache;
+import com.halj.music.library.cache.UserCache;
+import com.halj.music.library.exception.InvalidRequestException;
+import com.halj.music.library.journal.LibraryJournal;
+import com.halj.music.library.model.AlbumOwnerPage;
+import com.halj.music.library.model.LibraryDelta;
+import com.halj.music.library.model.SimilarUser;
 import com.halj.music.library.model.elastic.Album;
-import com.halj.music.library.repository.elastic.AlbumRepository;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.recommend.AlbumRecommender;
+import com.halj.music.library.recommend.SimilarUserIndex;
+import com.halj.music.library.repository.UserLibraryRepository;
+
+import io.micrometer.core.annotation.Timed;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 
 /**
  * The Class LibraryService.
- * Service to manage the music libraries of users
+ * Service to manage the music libraries of users.
+ * Libraries are updated with set-based statements on the user_library table, the User.albumIds collection is never loaded.
+ * Libraries are read through the user cache, which is invalidated by every library change.
+ * Libraries are compared with set operations on their bitmaps of album ordinals.
+ * Recommendations are merged from the precomputed neighbours of the albums of a library, and similar users are
+ * looked up in the MinHash index of the libraries. Library changes are notified to the library change listeners.
+ * When write-behind is enabled, library changes go to the library journal instead, and libraries are read through it.
  */
 @Service
 public class LibraryService {
 
+    /** The Constant MAX_OWNERS_PAGE_SIZE. */
+    private static final int MAX_OWNERS_PAGE_SIZE = 1000;
+
+    /** The Constant MAX_RECOMMENDATIONS. */
+    private static final int MAX_RECOMMENDATIONS = 100;
+
+    /** The Constant MAX_SIMILAR_USERS. */
+    private static final int MAX_SIMILAR_USERS = 100;
+
     /** The user service. */
     private UserService userService;
 
-    /** The album repository. */
-    private AlbumRepository albumRepository;
+    /** The album cache. */
+    private AlbumCache albumCache;
+
+    /** The user library repository. */
+    private UserLibraryRepository userLibraryRepository;
+
+    /** The user cache. */
+    private UserCache userCache;
+
+    /** The album ordinals. */
+    private AlbumOrdinals albumOrdinals;
+
+    /** The album popularity counters. */
+    private AlbumPopularity albumPopularity;
+
+    /** The album recommender. */
+    private AlbumRecommender albumRecommender;
+
+    /** The similar user index. */
+    private SimilarUserIndex similarUserIndex;
+
+    /** The library change listeners. */
+    private List<LibraryChangeListener> libraryChangeListeners;
+
+    /** The library journal. */
+    private LibraryJournal libraryJournal;
+
+    /** The transaction template. */
+    private TransactionTemplate transactionTemplate;
+
+    /** The distribution of the sizes of the libraries read. */
+    private DistributionSummary librarySizes;
 
     /**
      * Instantiates a new library service.
      *
      * @param userService the user service
-     * @param albumRepository the album repository
+     * @param albumCache the album cache
+     * @param userLibraryRepository the user library repository
+     * @param userCache the user cache
+     * @param albumOrdinals the album ordinals
+     * @param albumPopularity the album popularity counters
+     * @param albumRecommender the album recommender
+     * @param similarUserIndex the similar user index
+     * @param libraryChangeListeners the library change listeners
+     * @param libraryJournal the library journal
+     * @param transactionManager the transaction manager
+     * @param meterRegistry the meter registry
      */
-    public LibraryService(UserService userService, AlbumRepository albumRepository) {
+    public LibraryService(UserService userService, AlbumCache albumCache, UserLibraryRepository userLibraryRepository,
+            UserCache userCache, AlbumOrdinals albumOrdinals, AlbumPopularity albumPopularity, AlbumRecommender albumRecommender,
+            SimilarUserIndex similarUserIndex, List<LibraryChangeListener> libraryChangeListeners, LibraryJournal libraryJournal,
+            PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
         super();
         this.userService = userService;
-        this.albumRepository = albumRepository;
+        this.albumCache = albumCache;
+        this.userLibraryRepository = userLibraryRepository;
+        this.userCache = userCache;
+        this.albumOrdinals = albumOrdinals;
+        this.albumPopularity = albumPopularity;
+        this.albumRecommender = albumRecommender;
+        this.similarUserIndex = similarUserIndex;
+        this.libraryChangeListeners = libraryChangeListeners;
+        this.libraryJournal = libraryJournal;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.librarySizes = DistributionSummary.builder("library.libraries.size")
+                .description("Number of albums in the user libraries read")
+                .baseUnit("albums")
+                .register(meterRegistry);
     }
 
     /**
@@ -41,10 +131,10 @@ public class LibraryService {
      *
      * @param albumId the album id
      * @param userId the user id
+     * @return the library delta
      */
-    @Transactional
-    public void addAlbum(UUID albumId, Long userId) {
-        this.userService.getUser(userId).getAlbumIds().add(albumId);
+    public LibraryDelta addAlbum(UUID albumId, Long userId) {
+        return addAlbums(List.of(albumId), userId);
     }
 
     /**
@@ -52,10 +142,18 @@ public class LibraryService {
      *
      * @param albumIds the album ids
      * @param userId the user id
+     * @return the library delta
      */
-    @Transactional
-    public void addAlbums(List<UUID> albumIds, Long userId) {
-        this.userService.getUser(userId).getAlbumIds().addAll(albumIds);
+    @Timed("library.service.requests")
+    public LibraryDelta addAlbums(List<UUID> albumIds, Long userId) {
+        this.userService.checkUserExist(userId);
+        if (this.libraryJournal.isEnabled()) {
+            return this.libraryJournal.addAlbums(userId, albumIds);
+        }
+        return this.transactionTemplate.execute(status -> {
+            List<UUID> added = this.userLibraryRepository.addAlbums(userId, albumIds);
+            return toDelta(userId, added, Collections.emptyList());
+        });
     }
 
     /**
@@ -63,10 +161,10 @@ public class LibraryService {
      *
      * @param albumId the album id
      * @param userId the user id
+     * @return the library delta
      */
-    @Transactional
-    public void removeAlbum(UUID albumId, Long userId) {
-        this.userService.getUser(userId).getAlbumIds().remove(albumId);
+    public LibraryDelta removeAlbum(UUID albumId, Long userId) {
+        return removeAlbums(List.of(albumId), userId);
     }
 
     /**
@@ -74,20 +172,36 @@ public class LibraryService {
      *
      * @param albumIds the album ids
      * @param userId the user id
+     * @return the library delta
      */
-    @Transactional
-    public void removeAlbums(List<UUID> albumIds, Long userId) {
-        this.userService.getUser(userId).getAlbumIds().removeAll(albumIds);
+    @Timed("library.service.requests")
+    public LibraryDelta removeAlbums(List<UUID> albumIds, Long userId) {
+        this.userService.checkUserExist(userId);
+        if (this.libraryJournal.isEnabled()) {
+            return this.libraryJournal.removeAlbums(userId, albumIds);
+        }
+        return this.transactionTemplate.execute(status -> {
+            List<UUID> removed = this.userLibraryRepository.removeAlbums(userId, albumIds);
+            return toDelta(userId, Collections.emptyList(), removed);
+        });
     }
 
     /**
      * Clear albums.
      *
      * @param userId the user id
+     * @return the library delta
      */
-    @Transactional
-    public void clearAlbums(Long userId) {
-        this.userService.getUser(userId).getAlbumIds().clear();
+    @Timed("library.service.requests")
+    public LibraryDelta clearAlbums(Long userId) {
+        this.userService.checkUserExist(userId);
+        if (this.libraryJournal.isEnabled()) {
+            return this.libraryJournal.clearAlbums(userId);
+        }
+        return this.transactionTemplate.execute(status -> {
+            Set<UUID> removed = this.userLibraryRepository.clearAlbums(userId);
+            return toDelta(userId, Collections.emptyList(), removed);
+        });
     }
 
     /**
@@ -96,9 +210,148 @@ public class LibraryService {
      * @param userId the user id
      * @return the albums
      */
+    @Timed("library.service.requests")
     public Iterable<Album> getAlbums(Long userId) {
-        Set<UUID> albumIds = this.userService.getUser(userId).getAlbumIds();
-        return this.albumRepository.findAllById(albumIds);
+        return this.albumCache.getAll(getAlbumIds(userId));
+    }
+
+    /**
+     * Gets the ids of the albums of a user library.
+     *
+     * @param userId the user id
+     * @return the unmodifiable album ids, iterated by album ordinal
+     */
+    @Timed("library.service.requests")
+    public Set<UUID> getAlbumIds(Long userId) {
+        CompressedBitmap library = getLibrary(userId);
+        this.librarySizes.record(library.getCardinality());
+        return this.albumOrdinals.asSet(library);
+    }
+
+    /**
+     * Gets the albums two users have in common.
+     *
+     * @param userId the user id
+     * @param otherUserId the other user id
+     * @return the albums of both libraries
+     */
+    @Timed("library.service.requests")
+    public Iterable<Album> getCommonAlbums(Long userId, Long otherUserId) {
+        CompressedBitmap common = getLibrary(userId).and(getLibrary(otherUserId));
+        return this.albumCache.getAll(this.albumOrdinals.asSet(common));
+    }
+
+    /**
+     * Gets the albums of a user which another user does not have.
+     *
+     * @param userId the user id
+     * @param otherUserId the other user id
+     * @return the albums of the first library missing from the other one
+     */
+    @Timed("library.service.requests")
+    public Iterable<Album> getAlbumsNotIn(Long userId, Long otherUserId) {
+        CompressedBitmap difference = getLibrary(userId).andNot(getLibrary(otherUserId));
+        return this.albumCache.getAll(this.albumOrdinals.asSet(difference));
+    }
+
+    /**
+     * Gets albums recommended for a user: albums often found in the same libraries as the albums of the user library.
+     * Only the precomputed neighbours of the library albums are read, so the cost depends on the library size only.
+     *
+     * @param userId the user id
+     * @param size the maximum number of albums
+     * @return the recommended albums, best first
+     */
+    @Timed("library.service.requests")
+    public Iterable<Album> getRecommendations(Long userId, int size) {
+        if (size < 1 || size > MAX_RECOMMENDATIONS) {
+            throw new InvalidRequestException("Number of recommendations must be between 1 and " + MAX_RECOMMENDATIONS);
+        }
+        return this.albumCache.getAll(this.albumRecommender.recommend(getLibrary(userId), size));
+    }
+
+    /**
+     * Gets the users whose libraries are the most similar to the library of a user, by estimated Jaccard similarity.
+     * Only the users sharing a locality-sensitive hashing band with the user are scored, not all the users.
+     *
+     * @param userId the user id
+     * @param size the maximum number of users
+     * @return the similar users, most similar first
+     */
+    @Timed("library.service.requests")
+    public List<SimilarUser> getSimilarUsers(Long userId, int size) {
+        if (size < 1 || size > MAX_SIMILAR_USERS) {
+            throw new InvalidRequestException("Number of similar users must be between 1 and " + MAX_SIMILAR_USERS);
+        }
+        this.userService.checkUserExist(userId);
+        return this.similarUserIndex.findSimilar(userId, size);
+    }
+
+    /**
+     * Gets a page of the users having an album in their library.
+     * The page is read from the (album_id, user_id) index after the cursor, and the total from the owner counts,
+     * so the cost depends on the page size and not on the number of owners.
+     *
+     * @param albumId the album id
+     * @param cursor the last user id of the previous page, null for the first page
+     * @param size the page size
+     * @return the page of owners
+     */
+    @Timed("library.service.requests")
+    public AlbumOwnerPage getOwners(UUID albumId, Long cursor, int size) {
+        if (size < 1 || size > MAX_OWNERS_PAGE_SIZE) {
+            throw new InvalidRequestException("Page size must be between 1 and " + MAX_OWNERS_PAGE_SIZE);
+        }
+        List<Long> userIds = this.userLibraryRepository.findOwners(albumId, cursor, size);
+        Long nextCursor = userIds.size() == size ? userIds.get(size - 1) : null;
+
+        return new AlbumOwnerPage(albumId, this.userLibraryRepository.countOwners(albumId), userIds, nextCursor);
+    }
+
+    /**
+     * Stream albums chunk by chunk, in the iteration order of the ids, each chunk being handed over as soon as it is loaded.
+     *
+     * @param albumIds the album ids, see {@link #getAlbumIds(Long)}
+     * @param chunkConsumer the consumer of the chunks of albums
+     */
+    public void streamAlbums(Collection<UUID> albumIds, Consumer<List<Album>> chunkConsumer) {
+        this.albumCache.getAll(albumIds, chunkConsumer);
+    }
+
+    /**
+     * Gets a user library bitmap, with its changes not written yet.
+     *
+     * @param userId the user id
+     * @return the library bitmap
+     */
+    private CompressedBitmap getLibrary(Long userId) {
+        CompressedBitmap library = this.libraryJournal.getLibrary(userId);
+        if (library.isEmpty()) {
+            // an empty library and an unknown user look the same in user_library
+            this.userService.checkUserExist(userId);
+        }
+        return library;
+    }
+
+    /**
+     * Build the delta of a library change, incrementing the library version if albums were actually added or removed.
+     *
+     * @param userId the user id
+     * @param added the ids of the albums added
+     * @param removed the ids of the albums removed
+     * @return the library delta
+     */
+    private LibraryDelta toDelta(Long userId, Collection<UUID> added, Collection<UUID> removed) {
+        if (!added.isEmpty() || !removed.isEmpty()) {
+            this.userCache.invalidate(userId);
+            this.userService.incrementLibraryVersion(userId);
+            this.albumPopularity.albumsAdded(added);
+            this.albumPopularity.albumsRemoved(removed);
+            this.libraryChangeListeners.forEach(listener -> listener.onLibraryChanged(userId));
+        }
+        return new LibraryDelta(added, removed,
+                this.userLibraryRepository.countAlbums(userId),
+                this.userService.getLibraryVersion(userId));
     }
 
 }
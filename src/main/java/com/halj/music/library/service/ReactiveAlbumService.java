@@ -0,0 +1,130 @@
+package com.halj.music.library.service;
+
+import java.util.UUID;
+
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.elasticsearch.core.ReactiveElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Service;
+
+import com.halj.music.library.cache.AlbumCache;
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.search.AlbumSearchBackend;
+import com.halj.music.library.search.ElasticAlbumSearchBackend;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * The Class ReactiveAlbumService.
+ * Non-blocking album reads and searches on the reactive Elasticsearch client. Searches go through the configured search
+ * backend: the Elasticsearch one runs on the reactive client, the in-process ones are called directly.
+ * Publishers are lazy: nothing is sent to Elasticsearch until they are subscribed.
+ */
+@Service
+@ConditionalOnProperty(name = "library.reactive.enabled", havingValue = "true")
+public class ReactiveAlbumService {
+
+    /** The Constant ALBUM_ES_INDEX. */
+    private static final IndexCoordinates ALBUM_ES_INDEX = IndexCoordinates.of("albums");
+
+    /** The reactive elasticsearch operations. */
+    private ReactiveElasticsearchOperations reactiveElasticsearchOperations;
+
+    /** The album service, for the search page checks. */
+    private AlbumService albumService;
+
+    /** The album cache. */
+    private AlbumCache albumCache;
+
+    /** The album popularity counters. */
+    private AlbumPopularity albumPopularity;
+
+    /** The album search backend. */
+    private AlbumSearchBackend albumSearchBackend;
+
+    /**
+     * Instantiates a new reactive album service.
+     *
+     * @param reactiveElasticsearchOperations the reactive elasticsearch operations
+     * @param albumService the album service
+     * @param albumCache the album cache
+     * @param albumPopularity the album popularity counters
+     * @param albumSearchBackend the album search backend
+     */
+    public ReactiveAlbumService(ReactiveElasticsearchOperations reactiveElasticsearchOperations,
+            AlbumService albumService,
+            AlbumCache albumCache,
+            AlbumPopularity albumPopularity,
+            AlbumSearchBackend albumSearchBackend) {
+        super();
+        this.reactiveElasticsearchOperations = reactiveElasticsearchOperations;
+        this.albumService = albumService;
+        this.albumCache = albumCache;
+        this.albumPopularity = albumPopularity;
+        this.albumSearchBackend = albumSearchBackend;
+    }
+
+    /**
+     * Gets an album, from the album cache or from Elasticsearch.
+     *
+     * @param uuid the uuid
+     * @return the album, empty if not found
+     */
+    public Mono<Album> getAlbum(final UUID uuid) {
+        return Mono.justOrEmpty(this.albumCache.getIfPresent(uuid))
+                .switchIfEmpty(Mono.defer(() -> {
+                    // loaded outside of the cache, cached unless the album may have been written meanwhile
+                    long writes = this.albumCache.getWrites();
+                    return this.reactiveElasticsearchOperations.get(uuid.toString(), Album.class, ALBUM_ES_INDEX)
+                            .doOnNext(album -> this.albumCache.putLoaded(album, writes));
+                }))
+                .doOnNext(album -> this.albumPopularity.albumViewed(uuid));
+    }
+
+    /**
+     * Free text search, with the same scoring and pagination as the blocking search.
+     *
+     * @param query the query
+     * @param page the page number
+     * @param size the page size
+     * @param cursor the cursor of the previous page, null for offset pagination
+     * @return the page of matching albums, best match first, with the total hits and the cursor of the next page
+     */
+    public Mono<AlbumSearchPage> freeTextSearch(final String query, final int page, final Integer size, final String cursor) {
+        int pageSize = this.albumService.searchPageSize(page, size, cursor);
+
+        if (!(this.albumSearchBackend instanceof ElasticAlbumSearchBackend)) {
+            // in-process backends search in memory, without any I/O to wait for
+            return Mono.fromCallable(() -> this.albumSearchBackend.search(query, page, pageSize, cursor));
+        }
+        ElasticAlbumSearchBackend elasticBackend = (ElasticAlbumSearchBackend) this.albumSearchBackend;
+        return this.reactiveElasticsearchOperations.searchForPage(elasticBackend.pageQuery(query, page, pageSize, cursor), Album.class, ALBUM_ES_INDEX)
+                .map(searchPage -> ElasticAlbumSearchBackend.toPage(searchPage.getSearchHits(), page, pageSize));
+    }
+
+    /**
+     * Gets all the albums. The query is unpaged, so hits are fetched with a scroll as the subscriber requests them.
+     *
+     * @return the albums, sorted by id
+     */
+    public Flux<Album> getAll() {
+        NativeSearchQuery searchQuery = new NativeSearchQueryBuilder()
+                .withQuery(QueryBuilders.matchAllQuery())
+                .withSorts(SortBuilders.fieldSort("id"))
+                .withPageable(Pageable.unpaged())
+                .build();
+
+        return this.reactiveElasticsearchOperations.search(searchQuery, Album.class, ALBUM_ES_INDEX)
+                .map(SearchHit::getContent);
+    }
+
+}
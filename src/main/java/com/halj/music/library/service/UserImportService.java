@@ -0,0 +1,586 @@
+package com.halj.music.library.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+import javax.annotation.PreDestroy;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.halj.music.library.cache.UserCache;
+import com.halj.music.library.exception.BulkJobNotFoundException;
+import com.halj.music.library.model.User;
+import com.halj.music.library.model.UserImportJob;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.repository.UserImportRepository;
+import com.halj.music.library.repository.UserLibraryRepository;
+
+/**
+ * The Class UserImportService.
+ * Imports users and their libraries in the background, from NDJSON or CSV uploads spooled to a temporary file.
+ * Records are streamed and validated one by one, then written in chunks by parallel writers, one transaction per
+ * chunk, with batched inserts: memory stays constant whatever the size of the upload, as the reader waits for a writer
+ * when too many chunks are in flight, and a failed chunk does not roll back the others.
+ * Users whose email is already used are skipped and reported with their record number.
+ * The album owner counts are updated in the transaction of each chunk, the library change listeners once, when the job
+ * is over.
+ */
+@Service
+public class UserImportService {
+
+    /** The Constant LOG. */
+    private static final Logger LOG = LoggerFactory.getLogger(UserImportService.class);
+
+    /** The Constant MAX_TRACKED_JOBS. */
+    private static final int MAX_TRACKED_JOBS = 1000;
+
+    /** The Constant PROGRESS_INTERVAL, in number of chunks. */
+    private static final int PROGRESS_INTERVAL = 100;
+
+    /** The Constant MAX_CHUNK_ATTEMPTS, for chunks conflicting with concurrent writers on emails or owner counts. */
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+
+    /**
+     * The upload format.
+     */
+    public enum Format {
+        /** One JSON user per line, with its name, email and albumIds. */
+        NDJSON,
+        /** One user per line: name,email,albumIds, the album ids separated by spaces or semicolons. */
+        CSV
+    }
+
+    /** The user import repository. */
+    private UserImportRepository userImportRepository;
+
+    /** The user library repository. */
+    private UserLibraryRepository userLibraryRepository;
+
+    /** The user cache. */
+    private UserCache userCache;
+
+    /** The album popularity counters. */
+    private AlbumPopularity albumPopularity;
+
+    /** The library change listeners. */
+    private List<LibraryChangeListener> libraryChangeListeners;
+
+    /** The object mapper. */
+    private ObjectMapper objectMapper;
+
+    /** The validator. */
+    private Validator validator;
+
+    /** The transaction template, one transaction per chunk. */
+    private TransactionTemplate transactionTemplate;
+
+    /** The number of users per chunk. */
+    private int chunkSize;
+
+    /** The number of chunks written at the same time by a job. */
+    private int writers;
+
+    /** The job executor. */
+    private ExecutorService executor;
+
+    /** The chunk writer executor, shared by the jobs. */
+    private ExecutorService writerExecutor;
+
+    /** The jobs by id. */
+    private Cache<UUID, UserImportJob> jobs;
+
+    /**
+     * Instantiates a new user import service.
+     *
+     * @param userImportRepository the user import repository
+     * @param userLibraryRepository the user library repository
+     * @param userCache the user cache
+     * @param albumPopularity the album popularity counters
+     * @param libraryChangeListeners the library change listeners
+     * @param objectMapper the object mapper
+     * @param validator the validator
+     * @param transactionManager the transaction manager
+     * @param chunkSize the number of users per chunk
+     * @param writers the number of chunks written at the same time
+     * @param concurrentJobs the number of jobs running at the same time, the others are queued
+     * @param retention the time jobs are kept after their submission
+     */
+    public UserImportService(UserImportRepository userImportRepository,
+            UserLibraryRepository userLibraryRepository,
+            UserCache userCache,
+            AlbumPopularity albumPopularity,
+            List<LibraryChangeListener> libraryChangeListeners,
+            ObjectMapper objectMapper,
+            Validator validator,
+            PlatformTransactionManager transactionManager,
+            @Value("${library.users.import.chunk-size:1000}") int chunkSize,
+            @Value("${library.users.import.writers:4}") int writers,
+            @Value("${library.users.import.concurrent-jobs:1}") int concurrentJobs,
+            @Value("${library.users.import.job-retention:24h}") Duration retention) {
+        super();
+        this.userImportRepository = userImportRepository;
+        this.userLibraryRepository = userLibraryRepository;
+        this.userCache = userCache;
+        this.albumPopularity = albumPopularity;
+        this.libraryChangeListeners = libraryChangeListeners;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+        this.writers = Math.max(1, writers);
+        this.executor = Executors.newFixedThreadPool(concurrentJobs, new CustomizableThreadFactory("user-import-job-"));
+        this.writerExecutor = Executors.newFixedThreadPool(this.writers, new CustomizableThreadFactory("user-import-writer-"));
+        this.jobs = Caffeine.newBuilder()
+                .maximumSize(MAX_TRACKED_JOBS)
+                .expireAfterWrite(retention)
+                .build();
+    }
+
+    /**
+     * Shutdown the job and chunk writer executors.
+     */
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+        this.writerExecutor.shutdownNow();
+    }
+
+    /**
+     * Submit a user import job.
+     *
+     * @param upload the users
+     * @param format the upload format
+     * @return the queued job
+     * @throws IOException Signals that the upload could not be spooled.
+     */
+    public UserImportJob submit(final InputStream upload, final Format format) throws IOException {
+        Path spool = Files.createTempFile("user-import-", "." + format.name().toLowerCase());
+        try {
+            Files.copy(upload, spool, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+
+        UserImportJob job = new UserImportJob(UUID.randomUUID());
+        this.jobs.put(job.getId(), job);
+        LOG.info("User import {} queued, {} bytes uploaded", job.getId(), Files.size(spool));
+
+        this.executor.execute(() -> run(job, spool, format));
+
+        return job;
+    }
+
+    /**
+     * Gets a job.
+     *
+     * @param jobId the job id
+     * @return the job
+     */
+    public UserImportJob getJob(final UUID jobId) {
+        UserImportJob job = this.jobs.getIfPresent(jobId);
+        if (job == null) {
+            throw new BulkJobNotFoundException("No user import job found matching id " + jobId);
+        }
+        return job;
+    }
+
+    /**
+     * Import users, reporting progress to a job. Blocks until every chunk has been written.
+     *
+     * @param source the source stream
+     * @param format the source format
+     * @param job the job to report progress to
+     * @throws IOException Signals that the source could not be read.
+     */
+    public void importUsers(final InputStream source, final Format format, final UserImportJob job) throws IOException {
+        long start = System.nanoTime();
+        Chunks chunks = new Chunks(job);
+        try {
+            if (format == Format.CSV) {
+                readCsv(source, job, chunks);
+            } else {
+                readNdjson(source, job, chunks);
+            }
+            chunks.flush();
+        } finally {
+            chunks.awaitWritten();
+            if (job.getImported() > 0) {
+                this.libraryChangeListeners.forEach(LibraryChangeListener::onAllLibrariesChanged);
+            }
+        }
+
+        LOG.info("User import {} done: {} users and {} albums imported, {} duplicates, {} invalid, {} failed in {} ms ({} users/s)",
+                job.getId(), job.getImported(), job.getAlbums(), job.getDuplicates(), job.getInvalid(), job.getFailed(),
+                (System.nanoTime() - start) / 1_000_000, throughput(job.getImported(), start));
+    }
+
+    /**
+     * Run a job, then delete its spooled upload.
+     *
+     * @param job the job
+     * @param spool the spooled upload
+     * @param format the upload format
+     */
+    private void run(final UserImportJob job, final Path spool, final Format format) {
+        job.start();
+        try (InputStream source = new BufferedInputStream(Files.newInputStream(spool))) {
+            importUsers(source, format, job);
+            job.complete();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("User import {} failed after {} records", job.getId(), job.getProcessed(), e);
+            job.fail(e.getMessage());
+        } finally {
+            try {
+                Files.deleteIfExists(spool);
+            } catch (IOException e) {
+                LOG.warn("Could not delete user import upload {}", spool, e);
+            }
+        }
+    }
+
+    /**
+     * Read users from a NDJSON stream.
+     *
+     * @param source the source stream
+     * @param job the job
+     * @param chunks the chunks to add the users to
+     * @throws IOException Signals that the source is not well-formed JSON.
+     */
+    private void readNdjson(final InputStream source, final UserImportJob job, final Chunks chunks) throws IOException {
+        try (MappingIterator<User> users = this.objectMapper.readerFor(User.class).readValues(source)) {
+            while (users.hasNextValue()) {
+                long record = job.recordRead();
+                try {
+                    chunks.add(record, users.nextValue());
+                } catch (JsonMappingException e) {
+                    // well-formed JSON that does not bind to a user, the iterator resumes on the next record
+                    job.recordInvalid(record, e.getOriginalMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read users from a CSV stream, skipping blank lines and an optional header line.
+     *
+     * @param source the source stream
+     * @param job the job
+     * @param chunks the chunks to add the users to
+     * @throws IOException Signals that the source could not be read.
+     */
+    private void readCsv(final InputStream source, final UserImportJob job, final Chunks chunks) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(source, StandardCharsets.UTF_8));
+        boolean first = true;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (first) {
+                first = false;
+                if (line.startsWith("\uFEFF")) {
+                    line = line.substring(1);
+                }
+                if (line.toLowerCase().startsWith("name,")) {
+                    continue;
+                }
+            }
+            if (line.isBlank()) {
+                continue;
+            }
+
+            long record = job.recordRead();
+            try {
+                chunks.add(record, parseCsv(line));
+            } catch (IllegalArgumentException e) {
+                job.recordInvalid(record, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Parse a CSV line into a user. Fields may be double-quoted, a quote being escaped by another quote.
+     *
+     * @param line the line
+     * @return the user
+     */
+    static User parseCsv(final String line) {
+        List<String> fields = new ArrayList<>(3);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quoted field");
+        }
+        fields.add(field.toString().trim());
+        if (fields.size() < 2 || fields.size() > 3) {
+            throw new IllegalArgumentException("expected name,email,albumIds but got " + fields.size() + " fields");
+        }
+
+        Set<UUID> albumIds = new HashSet<>();
+        if (fields.size() == 3) {
+            for (String albumId : fields.get(2).split("[;\\s]+")) {
+                if (!albumId.isEmpty()) {
+                    try {
+                        albumIds.add(UUID.fromString(albumId));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("invalid album id " + albumId);
+                    }
+                }
+            }
+        }
+        User user = new User(fields.get(0), fields.get(1));
+        user.setAlbumIds(albumIds);
+        return user;
+    }
+
+    /**
+     * Write a chunk of users, their libraries and the owner counts of their albums in a transaction. The inserted users
+     * are evicted from the user cache once committed. Users whose email is already used are reported once committed,
+     * a failed chunk is counted and rolled back. A chunk conflicting with a concurrent writer, on an email or on the
+     * lock of an owner count, is written again.
+     *
+     * @param users the users
+     * @param records the record numbers of the users
+     * @param job the job
+     */
+    private void write(final List<User> users, final List<Long> records, final UserImportJob job) {
+        boolean[] inserted = new boolean[users.size()];
+        Map<Long, Set<UUID>> libraries = new HashMap<>();
+        long albums;
+        for (int attempt = 1;; attempt++) {
+            try {
+                albums = this.transactionTemplate.execute(status -> writeChunk(users, inserted, libraries));
+                break;
+            } catch (ConcurrencyFailureException | DuplicateKeyException e) {
+                if (attempt == MAX_CHUNK_ATTEMPTS) {
+                    LOG.error("User import {}: chunk of {} users failed after {} attempts", job.getId(), users.size(), attempt, e);
+                    job.usersFailed(users.size());
+                    return;
+                }
+                LOG.debug("User import {}: chunk of {} users conflicts with a concurrent writer, written again", job.getId(),
+                        users.size(), e);
+            } catch (RuntimeException e) {
+                LOG.error("User import {}: chunk of {} users failed", job.getId(), users.size(), e);
+                job.usersFailed(users.size());
+                return;
+            }
+        }
+
+        int imported = 0;
+        for (int i = 0; i < users.size(); i++) {
+            if (inserted[i]) {
+                imported++;
+            } else {
+                job.recordDuplicate(records.get(i), users.get(i).getEmail());
+            }
+        }
+        job.usersImported(imported, albums);
+        libraries.values().forEach(this.albumPopularity::albumsAdded);
+    }
+
+    /**
+     * Write a chunk in the current transaction.
+     *
+     * @param users the users
+     * @param inserted set for each user, true if inserted, false if its email is already used
+     * @param libraries filled with the libraries inserted, by user id
+     * @return the number of albums inserted
+     */
+    private long writeChunk(final List<User> users, final boolean[] inserted, final Map<Long, Set<UUID>> libraries) {
+        libraries.clear();
+        System.arraycopy(this.userImportRepository.insertUsers(users), 0, inserted, 0, inserted.length);
+        for (int i = 0; i < users.size(); i++) {
+            if (inserted[i]) {
+                this.userCache.invalidate(users.get(i).getId());
+                if (!users.get(i).getAlbumIds().isEmpty()) {
+                    libraries.put(users.get(i).getId(), users.get(i).getAlbumIds());
+                }
+            }
+        }
+        long albums = this.userLibraryRepository.insertLibraries(libraries);
+
+        Map<UUID, Integer> owners = new HashMap<>();
+        libraries.values().forEach(albumIds -> albumIds.forEach(albumId -> owners.merge(albumId, 1, Integer::sum)));
+        if (!owners.isEmpty()) {
+            this.userLibraryRepository.addOwners(owners);
+        }
+        return albums;
+    }
+
+    /**
+     * Throughput since start.
+     *
+     * @param count the count
+     * @param start the start, in nanoseconds
+     * @return the throughput, per second
+     */
+    private static long throughput(final long count, final long start) {
+        long elapsedNanos = Math.max(1, System.nanoTime() - start);
+        return count * 1_000_000_000L / elapsedNanos;
+    }
+
+    /**
+     * The chunks of valid users of a job, handed to the chunk writers once full. At most twice as many chunks as
+     * writers are in flight, so that a slow database holds the reader back.
+     */
+    private class Chunks {
+
+        /** The job. */
+        private final UserImportJob job;
+
+        /** The users of the current chunk. */
+        private List<User> users = new ArrayList<>(UserImportService.this.chunkSize);
+
+        /** The record numbers of the users of the current chunk. */
+        private List<Long> records = new ArrayList<>(UserImportService.this.chunkSize);
+
+        /** The permits of the chunks in flight. */
+        private final int maxInFlight = 2 * UserImportService.this.writers;
+
+        /** The chunks in flight. */
+        private final Semaphore inFlight = new Semaphore(this.maxInFlight);
+
+        /** The number of chunks written. */
+        private int written;
+
+        /**
+         * Instantiates new chunks.
+         *
+         * @param job the job
+         */
+        Chunks(final UserImportJob job) {
+            this.job = job;
+        }
+
+        /**
+         * Validate a user and add it to the current chunk, writing the chunk once full.
+         *
+         * @param record the record number
+         * @param user the user
+         * @throws InterruptedIOException Signals that the job was interrupted while waiting for a writer.
+         */
+        void add(final long record, final User user) throws InterruptedIOException {
+            Set<ConstraintViolation<User>> violations = UserImportService.this.validator.validate(user);
+            if (!violations.isEmpty()) {
+                this.job.recordInvalid(record, violations.stream()
+                        .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+                        .sorted()
+                        .collect(Collectors.joining(", ")));
+                return;
+            }
+
+            this.users.add(user);
+            this.records.add(record);
+            if (this.users.size() == UserImportService.this.chunkSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Hand the current chunk to a writer, once a chunk in flight is written if too many are.
+         *
+         * @throws InterruptedIOException Signals that the job was interrupted while waiting for a writer.
+         */
+        void flush() throws InterruptedIOException {
+            if (this.users.isEmpty()) {
+                return;
+            }
+            List<User> users = this.users;
+            List<Long> records = this.records;
+            this.users = new ArrayList<>(UserImportService.this.chunkSize);
+            this.records = new ArrayList<>(UserImportService.this.chunkSize);
+
+            try {
+                this.inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("User import " + this.job.getId() + " interrupted");
+            }
+            UserImportService.this.writerExecutor.execute(() -> {
+                try {
+                    write(users, records, this.job);
+                } finally {
+                    this.inFlight.release();
+                }
+                logProgress();
+            });
+        }
+
+        /**
+         * Wait for the chunks in flight to be written.
+         *
+         * @throws InterruptedIOException Signals that the job was interrupted while waiting for the writers.
+         */
+        void awaitWritten() throws InterruptedIOException {
+            try {
+                this.inFlight.acquire(this.maxInFlight);
+                this.inFlight.release(this.maxInFlight);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("User import " + this.job.getId() + " interrupted");
+            }
+        }
+
+        private synchronized void logProgress() {
+            if (++this.written % PROGRESS_INTERVAL == 0) {
+                LOG.info("User import {} in progress: {} users imported ({} users/s)", this.job.getId(), this.job.getImported(),
+                        this.job.getImportedPerSecond());
+            }
+        }
+
+    }
+
+}
@@ -1,31 +1,77 @@
 package com.halj.music.library.service;
 
-import java.util.Optional;
-
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.transaction.Transactional;
+
+import org.hibernate.Hibernate;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
 
+import com.halj.music.library.cache.UserCache;
+import com.halj.music.library.exception.InvalidRequestException;
 import com.halj.music.library.exception.UserNotFoundException;
+import com.halj.music.library.journal.LibraryJournal;
+import com.halj.music.library.model.CacheStatistics;
 import com.halj.music.library.model.User;
+import com.halj.music.library.model.UserSummary;
+import com.halj.music.library.repository.UserLibraryRepository;
 import com.halj.music.library.repository.UserRepository;
 
+import io.micrometer.core.annotation.Timed;
+
 /**
  * The Class UserService.
  * Service to manage Users
+ * Single users are read through the library journal, on top of the user cache, with the library changes not written
+ * yet; every user write invalidates the cache, replacing or deleting a user drops the pending changes.
+ * Writes of the User.albumIds collection adjust the album owner counts, and are notified to the library change listeners.
  */
 @Service
 public class UserService {
 
+    /** The Constant SORTABLE_PROPERTIES, users can be listed sorted by these properties only. */
+    private static final Set<String> SORTABLE_PROPERTIES = Set.of("id", "name", "email");
+
     /** The user repository. */
     private UserRepository userRepository;
 
+    /** The user library repository. */
+    private UserLibraryRepository userLibraryRepository;
+
+    /** The user cache. */
+    private UserCache userCache;
+
+    /** The library change listeners. */
+    private List<LibraryChangeListener> libraryChangeListeners;
+
+    /** The library journal. */
+    private LibraryJournal libraryJournal;
+
     /**
      * Instantiates a new user service.
      *
      * @param userRepository the user repository
+     * @param userLibraryRepository the user library repository
+     * @param userCache the user cache
+     * @param libraryChangeListeners the library change listeners
+     * @param libraryJournal the library journal
      */
-    public UserService(UserRepository userRepository) {
+    public UserService(UserRepository userRepository, UserLibraryRepository userLibraryRepository, UserCache userCache,
+            List<LibraryChangeListener> libraryChangeListeners, LibraryJournal libraryJournal) {
         super();
         this.userRepository = userRepository;
+        this.userLibraryRepository = userLibraryRepository;
+        this.userCache = userCache;
+        this.libraryChangeListeners = libraryChangeListeners;
+        this.libraryJournal = libraryJournal;
     }
 
     /**
@@ -34,19 +80,37 @@ public class UserService {
      * @param userId the user id
      * @return the user
      */
+    @Timed("library.service.requests")
     public User getUser(Long userId) {
-        Optional<User> user = this.userRepository.findById(userId);
+        return this.libraryJournal.getUser(userId).orElseThrow(() -> new UserNotFoundException("No user found matching id " + userId));
+    }
 
-        return user.orElseThrow(() -> new UserNotFoundException("No user found matching id " + userId));
+    /**
+     * Gets a page of users with their libraries, initialized in batches.
+     *
+     * @param pageable the page request
+     * @return the page of users
+     */
+    @Timed("library.service.requests")
+    @Transactional
+    public Page<User> getUsers(Pageable pageable) {
+        checkSort(pageable);
+        Page<User> users = this.userRepository.findAll(pageable);
+        // one query per batch of users rather than one per user
+        users.forEach(user -> Hibernate.initialize(user.getAlbumIds()));
+        return users;
     }
 
     /**
-     * Gets the all.
+     * Gets a page of user summaries, without loading the libraries.
      *
-     * @return the all
+     * @param pageable the page request
+     * @return the page of user summaries
      */
-    public Iterable<User> getAll() {
-        return this.userRepository.findAll();
+    @Timed("library.service.requests")
+    public Page<UserSummary> getUserSummaries(Pageable pageable) {
+        checkSort(pageable);
+        return this.userRepository.findSummaries(pageable);
     }
 
     /**
@@ -55,8 +119,13 @@ public class UserService {
      * @param user the user
      * @return the user
      */
+    @Transactional
     public User createUser(User user) {
-        return this.userRepository.save(user);
+        User saved = this.userRepository.save(user);
+        this.userLibraryRepository.addOwners(saved.getAlbumIds());
+        this.userCache.invalidate(saved.getId());
+        this.libraryChangeListeners.forEach(listener -> listener.onLibraryChanged(saved.getId()));
+        return saved;
     }
 
     /**
@@ -66,15 +135,32 @@ public class UserService {
      * @param user the user
      * @return the user
      */
+    @Transactional
     public User saveUser(Long userId, User user) {
         checkUserExist(userId);
+        this.libraryJournal.discard(userId);
+
+        // the album ids are replaced, clients holding the previous library version must reload
+        this.userRepository.incrementLibraryVersion(userId);
 
         User updated = new User(userId,
                 user.getName(),
                 user.getEmail(),
                 user.getAlbumIds());
 
-        return this.userRepository.save(updated);
+        Set<UUID> previous = this.userLibraryRepository.findAlbumIds(userId);
+        User saved = this.userRepository.save(updated);
+
+        Set<UUID> added = new HashSet<>(saved.getAlbumIds());
+        added.removeAll(previous);
+        Set<UUID> removed = new HashSet<>(previous);
+        removed.removeAll(saved.getAlbumIds());
+        this.userLibraryRepository.addOwners(added);
+        this.userLibraryRepository.removeOwners(removed);
+
+        this.userCache.invalidate(userId);
+        this.libraryChangeListeners.forEach(listener -> listener.onLibraryChanged(userId));
+        return saved;
     }
 
     /**
@@ -82,16 +168,47 @@ public class UserService {
      *
      * @param userId the user id
      */
+    @Transactional
     public void deleteUser(Long userId) {
         checkUserExist(userId);
+        this.libraryJournal.discard(userId);
+        this.userLibraryRepository.removeOwners(this.userLibraryRepository.findAlbumIds(userId));
+        this.userCache.invalidate(userId);
+        this.libraryChangeListeners.forEach(listener -> listener.onLibraryChanged(userId));
         this.userRepository.deleteById(userId);
     }
 
     /**
      * Delete all.
      */
+    @Transactional
     public void deleteAll() {
         this.userRepository.deleteAll();
+        this.userLibraryRepository.clearOwners();
+        this.userCache.invalidateAll();
+        this.libraryChangeListeners.forEach(LibraryChangeListener::onAllLibrariesChanged);
+    }
+
+    /**
+     * Gets the library version.
+     *
+     * @param userId the user id
+     * @return the library version
+     */
+    @Timed("library.service.requests")
+    public long getLibraryVersion(Long userId) {
+        return this.userRepository.findLibraryVersion(userId)
+                .orElseThrow(() -> new UserNotFoundException("No user found matching id " + userId));
+    }
+
+    /**
+     * Increment the library version.
+     *
+     * @param userId the user id
+     */
+    public void incrementLibraryVersion(Long userId) {
+        this.userCache.invalidate(userId);
+        this.userRepository.incrementLibraryVersion(userId);
     }
 
     /**
@@ -99,9 +216,36 @@ public class UserService {
      *
      * @param userId the user id
      */
-    private void checkUserExist(Long userId) {
-        if (!this.userRepository.existsById(userId)) {
+    @Timed("library.service.requests")
+    public void checkUserExist(Long userId) {
+        if (!this.userCache.exists(userId)) {
             throw new UserNotFoundException("No user found matching id " + userId);
         }
     }
+
+    /**
+     * Gets the statistics of the user cache, by cache: users and libraries.
+     *
+     * @return the cache statistics
+     */
+    public Map<String, CacheStatistics> getCacheStatistics() {
+        Map<String, CacheStatistics> statistics = new LinkedHashMap<>();
+        statistics.put("users", this.userCache.getStatistics());
+        statistics.put("libraries", this.userCache.getLibraryStatistics());
+        return statistics;
+    }
+
+    /**
+     * Check the page request is sorted by user properties only.
+     *
+     * @param pageable the page request
+     */
+    private static void checkSort(Pageable pageable) {
+        for (Sort.Order order : pageable.getSort()) {
+            if (!SORTABLE_PROPERTIES.contains(order.getProperty())) {
+                throw new InvalidRequestException("Users cannot be sorted by " + order.getProperty()
+                        + ", sortable properties are " + SORTABLE_PROPERTIES);
+            }
+        }
+    }
 }
@@ -0,0 +1,476 @@
+package com.halj.music.library.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import com.halj.music.library.model.elastic.Album;
+
+/**
+ * The Class AlbumSnapshot.
+ * Compact binary snapshot of the album catalogue, read through a memory mapping so that it is usable as soon as it is opened
+ * and does not live on the heap. Columns, at the positions given by the header:
+ * <ul>
+ * <li>ids: fixed-width UUIDs (16 bytes), sorted in the order of their string form, looked up by binary search</li>
+ * <li>artists: dictionary code of the artist of each album (int, -1 for none)</li>
+ * <li>years: release year of each album (short, -1 for none, -2 for an empty year)</li>
+ * <li>popularities: popularity of each album (long, -1 for none)</li>
+ * <li>offsets: start of the record of each album, plus the end of the last one (int)</li>
+ * <li>dictionary: start of each distinct artist, plus the end of the last one (int)</li>
+ * <li>strings: album records (length prefixed title and cover URL) then artists, in UTF-8</li>
+ * </ul>
+ * Positions are ints, so a snapshot is limited to 2 GB. Snapshots are written by a {@link Writer}, which streams the
+ * albums into one temporary file per column, so that only the artist dictionary is held in memory.
+ */
+public final class AlbumSnapshot {
+
+    /** The Constant MAGIC, "ALBS". */
+    private static final int MAGIC = 0x414C4253;
+
+    /** The Constant VERSION. */
+    private static final int VERSION = 2;
+
+    /** The Constant HEADER_SIZE, magic, version, count, dictionary size and the positions of the 7 sections. */
+    private static final int HEADER_SIZE = 44;
+
+    /** The Constant NO_VALUE, code or length of a missing value. */
+    private static final int NO_VALUE = -1;
+
+    /** The Constant EMPTY_YEAR. */
+    private static final short EMPTY_YEAR = -2;
+
+    /** The Constant UUID_WIDTH. */
+    private static final int UUID_WIDTH = 16;
+
+    /** The Constant ID_ORDER, unsigned order of the UUID bits, which is the order of their string form. */
+    private static final Comparator<UUID> ID_ORDER = (a, b) -> {
+        int order = Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+        return order != 0 ? order : Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+    };
+
+    /** The mapped snapshot, only read with absolute positions. */
+    private final ByteBuffer buffer;
+
+    /** The generation of the albums index the snapshot was taken from. */
+    private final String generation;
+
+    /** The number of albums. */
+    private final int count;
+
+    /** The position of the ids column. */
+    private final int ids;
+
+    /** The position of the artists column. */
+    private final int artists;
+
+    /** The position of the years column. */
+    private final int years;
+
+    /** The position of the popularities column. */
+    private final int popularities;
+
+    /** The position of the offsets table. */
+    private final int offsets;
+
+    /** The position of the artist dictionary. */
+    private final int dictionary;
+
+    /** The position of the strings. */
+    private final int strings;
+
+    private AlbumSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not an album snapshot, or an unsupported version");
+        }
+        this.count = buffer.getInt(8);
+        this.ids = buffer.getInt(16);
+        this.artists = buffer.getInt(20);
+        this.years = buffer.getInt(24);
+        this.popularities = buffer.getInt(28);
+        this.offsets = buffer.getInt(32);
+        this.dictionary = buffer.getInt(36);
+        this.strings = buffer.getInt(40);
+        this.generation = readString(HEADER_SIZE);
+    }
+
+    /**
+     * Open a snapshot, mapping it in memory.
+     *
+     * @param path the snapshot file
+     * @return the album snapshot
+     * @throws IOException Signals that the file could not be mapped or is not a snapshot.
+     */
+    public static AlbumSnapshot open(final Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid once the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new AlbumSnapshot(buffer);
+        }
+    }
+
+    /**
+     * Start writing a snapshot. Albums must then be added in id order, e.g. as exported from the albums index.
+     *
+     * @param path the snapshot file
+     * @param generation the generation of the albums index the albums are read from
+     * @return the writer, to close once committed
+     * @throws IOException Signals that the column files could not be created.
+     */
+    public static Writer writer(final Path path, final String generation) throws IOException {
+        return new Writer(path, generation);
+    }
+
+    /**
+     * Write a snapshot of albums in any order.
+     *
+     * @param path the snapshot file
+     * @param generation the generation of the albums index the albums were read from
+     * @param albums the albums
+     * @throws IOException Signals that the snapshot could not be written.
+     */
+    public static void write(final Path path, final String generation, final Collection<Album> albums) throws IOException {
+        List<Album> sorted = new ArrayList<>(albums);
+        sorted.sort(Comparator.comparing(Album::getId, ID_ORDER));
+        try (Writer writer = writer(path, generation)) {
+            for (Album album : sorted) {
+                writer.add(album);
+            }
+            writer.commit();
+        }
+    }
+
+    /**
+     * Gets the generation of the albums index the snapshot was taken from.
+     *
+     * @return the generation
+     */
+    public String getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Gets the number of albums.
+     *
+     * @return the size
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Gets an album, by binary search on the ids column.
+     *
+     * @param albumId the album id
+     * @return the optional album
+     */
+    public Optional<Album> get(final UUID albumId) {
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = ID_ORDER.compare(idAt(middle), albumId);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return Optional.of(albumAt(middle, albumId));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Iterate over all albums, in id order.
+     *
+     * @param consumer the album consumer
+     */
+    public void forEach(final Consumer<Album> consumer) {
+        for (int i = 0; i < this.count; i++) {
+            consumer.accept(albumAt(i, idAt(i)));
+        }
+    }
+
+    private UUID idAt(final int index) {
+        int position = this.ids + index * UUID_WIDTH;
+        return new UUID(this.buffer.getLong(position), this.buffer.getLong(position + 8));
+    }
+
+    private Album albumAt(final int index, final UUID albumId) {
+        int record = this.strings + this.buffer.getInt(this.offsets + index * 4);
+        String title = readString(record);
+        String coverURL = readString(record + 4 + Math.max(0, this.buffer.getInt(record)));
+
+        int code = this.buffer.getInt(this.artists + index * 4);
+        String artist = null;
+        if (code != NO_VALUE) {
+            int start = this.buffer.getInt(this.dictionary + code * 4);
+            int end = this.buffer.getInt(this.dictionary + (code + 1) * 4);
+            artist = decode(this.strings + start, end - start);
+        }
+
+        Album album = new Album(albumId, title, artist, decodeYear(this.buffer.getShort(this.years + index * 2)), coverURL);
+        long popularity = this.buffer.getLong(this.popularities + index * 8);
+        album.setPopularity(popularity == NO_VALUE ? null : popularity);
+        return album;
+    }
+
+    /**
+     * Read a length prefixed string.
+     *
+     * @param position the position of the length
+     * @return the string, null if its length is -1
+     */
+    private String readString(final int position) {
+        int length = this.buffer.getInt(position);
+        return length == NO_VALUE ? null : decode(position + 4, length);
+    }
+
+    private String decode(final int position, final int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = this.buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] record(final Album album) {
+        byte[] title = album.getTitle() == null ? null : album.getTitle().getBytes(StandardCharsets.UTF_8);
+        byte[] coverURL = album.getCoverURL() == null ? null : album.getCoverURL().getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer record = ByteBuffer.allocate(8 + (title == null ? 0 : title.length) + (coverURL == null ? 0 : coverURL.length));
+        for (byte[] field : new byte[][] { title, coverURL }) {
+            record.putInt(field == null ? NO_VALUE : field.length);
+            if (field != null) {
+                record.put(field);
+            }
+        }
+        return record.array();
+    }
+
+    private static short encodeYear(final String releaseYear) {
+        if (releaseYear == null) {
+            return NO_VALUE;
+        }
+        return releaseYear.isEmpty() ? EMPTY_YEAR : Short.parseShort(releaseYear);
+    }
+
+    private static String decodeYear(final short year) {
+        if (year == NO_VALUE) {
+            return null;
+        }
+        return year == EMPTY_YEAR ? "" : String.valueOf(year);
+    }
+
+    /**
+     * The Class Writer.
+     * Streams albums, in id order, into one temporary file per column, then concatenates them into the snapshot.
+     * The snapshot is written to a temporary file then moved, so a snapshot being read is never overwritten.
+     * Closing the writer deletes the temporary files, and discards the snapshot if it was not committed.
+     */
+    public static final class Writer implements Closeable {
+
+        /** The snapshot file. */
+        private final Path path;
+
+        /** The generation of the albums index the albums are read from. */
+        private final String generation;
+
+        /** The column files: ids, artists, years, popularities, offsets, album records and artist strings. */
+        private final Path[] files = new Path[7];
+
+        /** The column streams, aligned with the files. */
+        private final DataOutputStream[] columns = new DataOutputStream[7];
+
+        /** The dictionary codes, by artist. */
+        private final Map<String, Integer> codes = new HashMap<>();
+
+        /** The lengths of the artist strings, by dictionary code. */
+        private int[] artistLengths = new int[1024];
+
+        /** The number of albums added. */
+        private int count;
+
+        /** The size of the album records. */
+        private long recordsSize;
+
+        /** The size of the artist strings. */
+        private long artistsSize;
+
+        /** The id of the last album added. */
+        private UUID lastId;
+
+        private Writer(Path path, String generation) throws IOException {
+            this.path = path;
+            this.generation = generation;
+            Path directory = path.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            try {
+                for (int i = 0; i < this.files.length; i++) {
+                    this.files[i] = Files.createTempFile(directory, path.getFileName().toString() + "." + i, ".tmp");
+                    this.columns[i] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.files[i])));
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Add an album, after the albums of lower ids.
+         *
+         * @param album the album
+         * @throws IOException Signals that the album is out of order or could not be written.
+         */
+        public void add(final Album album) throws IOException {
+            if (this.lastId != null && ID_ORDER.compare(this.lastId, album.getId()) >= 0) {
+                throw new IOException("Album " + album.getId() + " is not after album " + this.lastId);
+            }
+            this.lastId = album.getId();
+
+            int code = NO_VALUE;
+            if (album.getArtist() != null) {
+                Integer existing = this.codes.get(album.getArtist());
+                if (existing == null) {
+                    byte[] artist = album.getArtist().getBytes(StandardCharsets.UTF_8);
+                    code = this.codes.size();
+                    this.codes.put(album.getArtist(), code);
+                    if (code == this.artistLengths.length) {
+                        this.artistLengths = Arrays.copyOf(this.artistLengths, code * 2);
+                    }
+                    this.artistLengths[code] = artist.length;
+                    this.columns[6].write(artist);
+                    this.artistsSize += artist.length;
+                } else {
+                    code = existing;
+                }
+            }
+
+            byte[] record = record(album);
+            this.columns[0].writeLong(album.getId().getMostSignificantBits());
+            this.columns[0].writeLong(album.getId().getLeastSignificantBits());
+            this.columns[1].writeInt(code);
+            this.columns[2].writeShort(encodeYear(album.getReleaseYear()));
+            this.columns[3].writeLong(album.getPopularity() == null ? NO_VALUE : album.getPopularity());
+            this.columns[4].writeInt((int) this.recordsSize);
+            this.columns[5].write(record);
+            this.recordsSize += record.length;
+            this.count++;
+            if (this.recordsSize + this.artistsSize > Integer.MAX_VALUE) {
+                throw new IOException("Album snapshot would be larger than 2 GB");
+            }
+        }
+
+        /**
+         * Write the snapshot: the header, then the column files, the artist dictionary and the strings, copied
+         * from file to file.
+         *
+         * @throws IOException Signals that the snapshot could not be written.
+         */
+        public void commit() throws IOException {
+            this.columns[4].writeInt((int) this.recordsSize);
+            for (DataOutputStream column : this.columns) {
+                column.close();
+            }
+
+            int dictionarySize = this.codes.size();
+            byte[] generationBytes = this.generation.getBytes(StandardCharsets.UTF_8);
+            long ids = HEADER_SIZE + 4L + generationBytes.length;
+            long artists = ids + (long) UUID_WIDTH * this.count;
+            long years = artists + 4L * this.count;
+            long popularities = years + 2L * this.count;
+            long offsets = popularities + 8L * this.count;
+            long dictionaryPosition = offsets + 4L * (this.count + 1);
+            long strings = dictionaryPosition + 4L * (dictionarySize + 1);
+            if (strings + this.recordsSize + this.artistsSize > Integer.MAX_VALUE) {
+                throw new IOException("Album snapshot would be larger than 2 GB");
+            }
+
+            ByteBuffer header = ByteBuffer.allocate((int) ids);
+            header.putInt(MAGIC).putInt(VERSION).putInt(this.count).putInt(dictionarySize)
+                    .putInt((int) ids).putInt((int) artists).putInt((int) years).putInt((int) popularities)
+                    .putInt((int) offsets).putInt((int) dictionaryPosition).putInt((int) strings);
+            header.putInt(generationBytes.length).put(generationBytes);
+
+            // artists are stored after the album records
+            ByteBuffer dictionary = ByteBuffer.allocate(4 * (dictionarySize + 1));
+            int position = (int) this.recordsSize;
+            for (int code = 0; code < dictionarySize; code++) {
+                dictionary.putInt(position);
+                position += this.artistLengths[code];
+            }
+            dictionary.putInt(position);
+
+            Path temporary = Files.createTempFile(this.path.toAbsolutePath().getParent(), this.path.getFileName().toString(), ".tmp");
+            try {
+                try (FileChannel snapshot = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                    writeFully(snapshot, header.flip());
+                    for (int i = 0; i < 5; i++) {
+                        transfer(this.files[i], snapshot);
+                    }
+                    writeFully(snapshot, dictionary.flip());
+                    transfer(this.files[5], snapshot);
+                    transfer(this.files[6], snapshot);
+                }
+                Files.move(temporary, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        /**
+         * Delete the column files.
+         *
+         * @throws IOException Signals that a column file could not be closed or deleted.
+         */
+        @Override
+        public void close() throws IOException {
+            for (int i = 0; i < this.files.length; i++) {
+                if (this.columns[i] != null) {
+                    this.columns[i].close();
+                }
+                if (this.files[i] != null) {
+                    Files.deleteIfExists(this.files[i]);
+                }
+            }
+        }
+
+        private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private static void transfer(final Path column, final FileChannel snapshot) throws IOException {
+            try (FileChannel source = FileChannel.open(column, StandardOpenOption.READ)) {
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, snapshot);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.halj.music.library.suggest;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.halj.music.library.model.Suggestion;
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.service.AlbumChangeListener;
+
+/**
+ * The Class AlbumSuggester.
+ * Typeahead suggestions of album titles and artists, served from an in-memory completion trie.
+ * A completion weighs the sum of 1 + popularity of the albums carrying it, so that popular albums and artists rank
+ * first while every album keeps the completion alive. It is kept up to date by the album service write paths and the
+ * popularity flushes. The popularity of an album is taken from its first indexed version, then only changed by the
+ * popularity deltas, as album writes never carry it.
+ */
+@Service
+public class AlbumSuggester implements AlbumChangeListener {
+
+    /** The Constant TITLE. */
+    static final String TITLE = "title";
+
+    /** The Constant ARTIST. */
+    static final String ARTIST = "artist";
+
+    /** The maximum number of suggestions. */
+    private int maxSize;
+
+    /** The completion trie. */
+    private CompletionTrie trie;
+
+    /** The indexed title, artist and popularity of each album, to withdraw them when the album changes. */
+    private Map<UUID, IndexedAlbum> indexed = new HashMap<>();
+
+    /**
+     * Instantiates a new album suggester.
+     *
+     * @param maxSize the maximum number of suggestions
+     */
+    public AlbumSuggester(@Value("${library.suggest.max-size:10}") int maxSize) {
+        super();
+        this.maxSize = maxSize;
+        this.trie = new CompletionTrie(maxSize);
+    }
+
+    /**
+     * Suggest titles and artists starting with a prefix, or having a word starting with it.
+     *
+     * @param prefix the prefix
+     * @param size the maximum number of suggestions, null for the max size
+     * @return the suggestions, most popular first
+     */
+    public List<Suggestion> suggest(final String prefix, final Integer size) {
+        int count = size == null ? this.maxSize : Math.max(1, Math.min(size, this.maxSize));
+        return this.trie.suggest(prefix, count);
+    }
+
+    @Override
+    public synchronized void onAlbumsSaved(final Iterable<Album> albums) {
+        for (Album album : albums) {
+            IndexedAlbum previous = this.indexed.get(album.getId());
+            long popularity = previous != null ? previous.popularity
+                    : album.getPopularity() == null ? 0 : Math.max(0, album.getPopularity());
+            IndexedAlbum current = new IndexedAlbum(album.getTitle(), album.getArtist(), popularity);
+            this.indexed.put(album.getId(), current);
+            withdraw(previous);
+            addWeight(current, current.weight());
+        }
+    }
+
+    @Override
+    public synchronized void onPopularityChanged(final Map<UUID, Long> deltas) {
+        deltas.forEach((albumId, delta) -> {
+            IndexedAlbum album = this.indexed.get(albumId);
+            if (album != null) {
+                long popularity = Math.max(0, album.popularity + delta);
+                addWeight(album, popularity - album.popularity);
+                album.popularity = popularity;
+            }
+        });
+    }
+
+    @Override
+    public synchronized void onAlbumsDeleted(final Iterable<UUID> albumIds) {
+        for (UUID albumId : albumIds) {
+            withdraw(this.indexed.remove(albumId));
+        }
+    }
+
+    @Override
+    public synchronized void onAllAlbumsDeleted() {
+        this.indexed.clear();
+        this.trie.clear();
+    }
+
+    /**
+     * Withdraw the completions of a previously indexed album.
+     *
+     * @param previous the previously indexed album, null if the album was not indexed
+     */
+    private void withdraw(final IndexedAlbum previous) {
+        if (previous != null) {
+            addWeight(previous, -previous.weight());
+        }
+    }
+
+    private void addWeight(final IndexedAlbum album, final long weight) {
+        this.trie.add(album.title, TITLE, weight);
+        this.trie.add(album.artist, ARTIST, weight);
+    }
+
+    /**
+     * The indexed title, artist and popularity of an album.
+     */
+    private static final class IndexedAlbum {
+
+        /** The title. */
+        private final String title;
+
+        /** The artist. */
+        private final String artist;
+
+        /** The popularity, never below 0. */
+        private long popularity;
+
+        IndexedAlbum(String title, String artist, long popularity) {
+            this.title = title;
+            this.artist = artist;
+            this.popularity = popularity;
+        }
+
+        /**
+         * Gets the weight the album adds to its completions.
+         *
+         * @return 1 + the popularity
+         */
+        long weight() {
+            return 1 + this.popularity;
+        }
+    }
+
+}
@@ -0,0 +1,353 @@
+package com.halj.music.library.suggest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.halj.music.library.model.Suggestion;
+
+/**
+ * The Class CompletionTrie.
+ * Weighted completions indexed by prefix. Every node keeps its own top completions, so a lookup
+ * only walks the prefix and never scans the subtree. Children are stored as sorted char and node arrays.
+ * A completion is reachable from the start of its text and from the start of each of its words.
+ * Thread safe: lookups share a read lock, weight updates take the write lock.
+ */
+public class CompletionTrie {
+
+    /** The Constant BY_WEIGHT, heaviest first then alphabetical. */
+    private static final Comparator<Completion> BY_WEIGHT = Comparator.comparingLong((Completion completion) -> -completion.weight)
+            .thenComparing(completion -> completion.key);
+
+    /** The maximum number of completions kept per node. */
+    private final int topSize;
+
+    /** The lock. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The root. */
+    private final Node root = new Node();
+
+    /** The completions, by type and normalized text. */
+    private final Map<String, Completion> completions = new HashMap<>();
+
+    /**
+     * Instantiates a new completion trie.
+     *
+     * @param topSize the maximum number of completions returned for a prefix
+     */
+    public CompletionTrie(int topSize) {
+        super();
+        this.topSize = topSize;
+    }
+
+    /**
+     * Adds weight to a completion, creating it if needed. Completions whose weight drops to zero are removed.
+     *
+     * @param text the completion text
+     * @param type the completion type
+     * @param weight the weight to add, negative to remove weight
+     */
+    public void add(final String text, final String type, final long weight) {
+        String normalized = normalize(text);
+        if (normalized.isEmpty() || weight == 0) {
+            return;
+        }
+        String id = type + ':' + normalized;
+
+        this.lock.writeLock().lock();
+        try {
+            Completion completion = this.completions.get(id);
+            if (completion == null) {
+                if (weight < 0) {
+                    return;
+                }
+                completion = new Completion(text.trim(), type, normalized);
+                this.completions.put(id, completion);
+            }
+
+            completion.weight += weight;
+            boolean removed = completion.weight <= 0;
+            if (removed) {
+                this.completions.remove(id);
+            }
+
+            for (String key : keys(normalized)) {
+                update(key, completion, removed);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Suggest the heaviest completions of a prefix.
+     *
+     * @param prefix the prefix
+     * @param size the maximum number of suggestions
+     * @return the suggestions, heaviest first
+     */
+    public List<Suggestion> suggest(final String prefix, final int size) {
+        String normalized = normalize(prefix);
+
+        this.lock.readLock().lock();
+        try {
+            Node node = this.root;
+            for (int i = 0; i < normalized.length() && node != null; i++) {
+                node = node.child(normalized.charAt(i));
+            }
+            if (node == null) {
+                return Collections.emptyList();
+            }
+
+            int count = Math.min(size, node.top.length);
+            List<Suggestion> suggestions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Completion completion = node.top[i];
+                suggestions.add(new Suggestion(completion.text, completion.type, completion.weight));
+            }
+            return suggestions;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all completions.
+     */
+    public void clear() {
+        this.lock.writeLock().lock();
+        try {
+            this.completions.clear();
+            this.root.labels = Node.NO_LABELS;
+            this.root.children = Node.NO_CHILDREN;
+            this.root.terminals = Node.NO_COMPLETIONS;
+            this.root.top = Node.NO_COMPLETIONS;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Normalize a text: lower cased, trimmed, with single spaces.
+     *
+     * @param text the text
+     * @return the normalized text
+     */
+    static String normalize(final String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    /**
+     * The keys a normalized text is reachable from: the whole text, then each word start.
+     *
+     * @param normalized the normalized text
+     * @return the keys
+     */
+    private static Set<String> keys(final String normalized) {
+        Set<String> keys = new LinkedHashSet<>();
+        keys.add(normalized);
+        for (int i = normalized.indexOf(' '); i >= 0; i = normalized.indexOf(' ', i + 1)) {
+            if (i + 1 < normalized.length()) {
+                keys.add(normalized.substring(i + 1));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Update the path of a key after a completion weight changed, refreshing the top completions bottom up.
+     *
+     * @param key the key
+     * @param completion the completion
+     * @param removed true if the completion is removed
+     */
+    private void update(final String key, final Completion completion, final boolean removed) {
+        Node[] path = new Node[key.length() + 1];
+        path[0] = this.root;
+        for (int i = 0; i < key.length(); i++) {
+            Node child = removed ? path[i].child(key.charAt(i)) : path[i].childOrCreate(key.charAt(i));
+            if (child == null) {
+                return;
+            }
+            path[i + 1] = child;
+        }
+
+        Node leaf = path[key.length()];
+        if (removed) {
+            leaf.removeTerminal(completion);
+        } else {
+            leaf.addTerminal(completion);
+        }
+
+        for (int i = key.length(); i >= 0; i--) {
+            Node node = path[i];
+            if (i > 0 && node.isEmpty()) {
+                path[i - 1].removeChild(key.charAt(i - 1));
+            } else if (!node.refreshTop(this.topSize, completion)) {
+                // ancestors only see this node through its top completions, which did not involve the change
+                return;
+            }
+        }
+    }
+
+    /**
+     * A completion and its weight.
+     */
+    private static final class Completion {
+
+        /** The display text. */
+        private final String text;
+
+        /** The type. */
+        private final String type;
+
+        /** The normalized text. */
+        private final String key;
+
+        /** The weight. */
+        private long weight;
+
+        Completion(String text, String type, String key) {
+            this.text = text;
+            this.type = type;
+            this.key = key;
+        }
+    }
+
+    /**
+     * A trie node.
+     */
+    private static final class Node {
+
+        /** The Constant NO_LABELS. */
+        private static final char[] NO_LABELS = new char[0];
+
+        /** The Constant NO_CHILDREN. */
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        /** The Constant NO_COMPLETIONS. */
+        private static final Completion[] NO_COMPLETIONS = new Completion[0];
+
+        /** The child labels, sorted. */
+        private char[] labels = NO_LABELS;
+
+        /** The children, aligned with labels. */
+        private Node[] children = NO_CHILDREN;
+
+        /** The completions whose key ends on this node. */
+        private Completion[] terminals = NO_COMPLETIONS;
+
+        /** The heaviest completions of the subtree. */
+        private Completion[] top = NO_COMPLETIONS;
+
+        Node child(final char label) {
+            int position = Arrays.binarySearch(this.labels, label);
+            return position >= 0 ? this.children[position] : null;
+        }
+
+        Node childOrCreate(final char label) {
+            int position = Arrays.binarySearch(this.labels, label);
+            if (position >= 0) {
+                return this.children[position];
+            }
+            int insertion = -position - 1;
+            Node child = new Node();
+
+            char[] labels = new char[this.labels.length + 1];
+            Node[] children = new Node[this.children.length + 1];
+            System.arraycopy(this.labels, 0, labels, 0, insertion);
+            System.arraycopy(this.children, 0, children, 0, insertion);
+            labels[insertion] = label;
+            children[insertion] = child;
+            System.arraycopy(this.labels, insertion, labels, insertion + 1, this.labels.length - insertion);
+            System.arraycopy(this.children, insertion, children, insertion + 1, this.children.length - insertion);
+            this.labels = labels;
+            this.children = children;
+
+            return child;
+        }
+
+        void removeChild(final char label) {
+            int position = Arrays.binarySearch(this.labels, label);
+            if (position < 0) {
+                return;
+            }
+            char[] labels = new char[this.labels.length - 1];
+            Node[] children = new Node[this.children.length - 1];
+            System.arraycopy(this.labels, 0, labels, 0, position);
+            System.arraycopy(this.children, 0, children, 0, position);
+            System.arraycopy(this.labels, position + 1, labels, position, labels.length - position);
+            System.arraycopy(this.children, position + 1, children, position, children.length - position);
+            this.labels = labels;
+            this.children = children;
+        }
+
+        void addTerminal(final Completion completion) {
+            for (Completion terminal : this.terminals) {
+                if (terminal == completion) {
+                    return;
+                }
+            }
+            this.terminals = Arrays.copyOf(this.terminals, this.terminals.length + 1);
+            this.terminals[this.terminals.length - 1] = completion;
+        }
+
+        void removeTerminal(final Completion completion) {
+            this.terminals = Arrays.stream(this.terminals)
+                    .filter(terminal -> terminal != completion)
+                    .toArray(Completion[]::new);
+        }
+
+        boolean isEmpty() {
+            return this.terminals.length == 0 && this.children.length == 0;
+        }
+
+        /**
+         * Recompute the top completions from the terminals and the children top completions.
+         *
+         * @param topSize the top size
+         * @param changed the completion whose weight changed
+         * @return true if the changed completion was or is in the top completions, so that parents must be refreshed too
+         */
+        boolean refreshTop(final int topSize, final Completion changed) {
+            boolean wasInTop = contains(this.top, changed);
+
+            // a completion may be reachable from several words, hence from several children
+            Set<Completion> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+            Collections.addAll(candidates, this.terminals);
+            for (Node child : this.children) {
+                Collections.addAll(candidates, child.top);
+            }
+
+            List<Completion> sorted = new ArrayList<>(candidates);
+            sorted.sort(BY_WEIGHT);
+            this.top = sorted.subList(0, Math.min(topSize, sorted.size())).toArray(NO_COMPLETIONS);
+
+            return wasInTop || contains(this.top, changed);
+        }
+
+        private static boolean contains(final Completion[] completions, final Completion completion) {
+            for (Completion candidate : completions) {
+                if (candidate == completion) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
@@ -1,5 +1,8 @@
 package com.halj.music.library.web;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.util.List;
 import java.util.Optional;
@@ -8,6 +11,8 @@ import java.util.UUID;
 import javax.validation.Valid;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -16,11 +21,23 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.MvcUriComponentsBuilder;
-
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.halj.music.library.model.AlbumFacetPage;
+import com.halj.music.library.model.AlbumOwnerPage;
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.BulkIndexingJob;
+import com.halj.music.library.model.CacheStatistics;
+import com.halj.music.library.model.Suggestion;
 import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.service.AlbumBulkJobService;
 import com.halj.music.library.service.AlbumService;
+import com.halj.music.library.service.LibraryService;
+import com.halj.music.library.suggest.AlbumSuggester;
 
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
@@ -37,6 +54,26 @@ public class AlbumController {
     @Autowired
     AlbumService albumService;
 
+    /** The album bulk job service. */
+    @Autowired
+    AlbumBulkJobService albumBulkJobService;
+
+    /** The album suggester. */
+    @Autowired
+    AlbumSuggester albumSuggester;
+
+    /** The library service. */
+    @Autowired
+    LibraryService libraryService;
+
+    /** The object mapper. */
+    @Autowired
+    ObjectMapper objectMapper;
+
+    /** The default number of albums per exported page. */
+    @Value("${library.albums.export.page-size:500}")
+    int exportPageSize;
+
     /**
      * Adds the albums.
      *
@@ -57,6 +94,40 @@ public class AlbumController {
         return ResponseEntity.created(uri).body(saved);
     }
 
+    /**
+     * Bulk add albums, asynchronously.
+     *
+     * @param upload the albums, as NDJSON (one album per line) or a JSON array
+     * @return the queued job
+     * @throws IOException Signals that the upload could not be received.
+     */
+    @Operation(summary = "Bulk add or update albums from a NDJSON upload, asynchronously")
+    @PostMapping(path = "/bulk", consumes = { MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE })
+    public ResponseEntity<BulkIndexingJob> bulkAddAlbums(InputStream upload) throws IOException {
+
+        BulkIndexingJob job = this.albumBulkJobService.submit(upload);
+
+        URI uri = MvcUriComponentsBuilder.fromController(getClass())
+                .path("/bulk/{jobId}")
+                .buildAndExpand(job.getId())
+                .toUri();
+
+        return ResponseEntity.accepted().location(uri).body(job);
+    }
+
+    /**
+     * Gets a bulk job.
+     *
+     * @param jobId the job id
+     * @return the job
+     */
+    @Operation(summary = "Get the status of a bulk job")
+    @GetMapping(path = "/bulk/{jobId}")
+    public ResponseEntity<BulkIndexingJob> getBulkJob(@PathVariable UUID jobId) {
+
+        return ResponseEntity.ok(this.albumBulkJobService.getJob(jobId));
+    }
+
     /**
      * Adds the album.
      *
@@ -138,26 +209,130 @@ public class AlbumController {
         return ResponseEntity.ok(optionalAlbum.get());
     }
 
-    @Operation(summary = "Free text search albums in global library")
-    @GetMapping(path = "/all")
-    public ResponseEntity<Iterable<Album>> getAllAlbums() {
+    /**
+     * Gets a page of the users having an album in their library.
+     *
+     * @param uuid the album uuid
+     * @param cursor the nextCursor of the previous page, absent for the first page
+     * @param size the page size
+     * @return the page of owners, with the total number of owners
+     */
+    @Operation(summary = "Get the users having an album in their library, by increasing user id")
+    @GetMapping(path = "/{uuid}/owners")
+    public ResponseEntity<AlbumOwnerPage> getOwners(@PathVariable UUID uuid, @RequestParam(required = false) Long cursor,
+            @RequestParam(defaultValue = "100") int size) {
 
-        Iterable<Album> results = this.albumService.getAll();
+        return ResponseEntity.ok(this.libraryService.getOwners(uuid, cursor, size));
+    }
 
-        return ResponseEntity.ok(results);
+    /**
+     * Suggest album titles and artists completing a prefix.
+     *
+     * @param prefix the prefix
+     * @param size the maximum number of suggestions
+     * @return the suggestions
+     */
+    @Operation(summary = "Typeahead suggestions of album titles and artists completing a prefix, most popular first")
+    @GetMapping(path = "/suggest")
+    public ResponseEntity<List<Suggestion>> suggest(@RequestParam String prefix, @RequestParam(required = false) Integer size) {
+
+        return ResponseEntity.ok(this.albumSuggester.suggest(prefix, size));
+    }
+
+    /**
+     * Gets the album cache statistics.
+     *
+     * @return the cache statistics
+     */
+    @Operation(summary = "Retrieve hit, miss and eviction counters of the album cache")
+    @GetMapping(path = "/cache/stats")
+    public ResponseEntity<CacheStatistics> getCacheStatistics() {
+
+        return ResponseEntity.ok(this.albumService.getCacheStatistics());
+    }
+
+    /**
+     * Export all albums as a NDJSON stream, one album per line.
+     *
+     * @param cursor the id of the last album received by a previous export, to resume after it
+     * @param size the number of albums fetched and flushed per page
+     * @param limit the maximum number of albums to stream
+     * @return the response entity
+     */
+    @Operation(summary = "Stream all albums of global library as NDJSON, sorted by id. "
+            + "The id of the last album received can be passed as cursor to resume the export")
+    @GetMapping(path = "/all", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> getAllAlbums(@RequestParam(required = false) UUID cursor,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(required = false) Long limit) {
+
+        int pageSize = size != null ? size : this.exportPageSize;
+
+        StreamingResponseBody body = out -> this.albumService.exportAll(cursor != null ? cursor.toString() : null, pageSize, limit, page -> {
+            try {
+                for (Album album : page) {
+                    out.write(this.objectMapper.writeValueAsBytes(album));
+                    out.write('\n');
+                }
+                out.flush();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        });
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
     }
 
     /**
      * Search albums.
      *
      * @param query the query
+     * @param page the page number
+     * @param size the page size
+     * @param cursor the cursor of the previous page
      * @return the response entity
      */
-    @Operation(summary = "Free text search albums in global library")
+    @Operation(summary = "Free text search albums in global library, ordered by relevance. "
+            + "Shallow pages are fetched by page number, deep pages with the cursor returned with the previous page")
     @PostMapping(path = "/search")
-    public ResponseEntity<Iterable<Album>> searchAlbums(@RequestBody String query) {
+    public ResponseEntity<AlbumSearchPage> searchAlbums(@RequestBody String query,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(required = false) String cursor) {
+
+        AlbumSearchPage results = this.albumService.freeTextSearch(query, page, size, cursor);
 
-        List<Album> results = this.albumService.freeTextSearch(query);
+        return ResponseEntity.ok(results);
+    }
+
+    /**
+     * Faceted search of albums.
+     *
+     * @param query the free text query, match all albums if missing
+     * @param yearFrom the first release year
+     * @param yearTo the last release year
+     * @param artist the exact artists
+     * @param sort the sort: relevance, releaseYear or -releaseYear
+     * @param page the page number
+     * @param size the page size
+     * @param topArtists the size of the artists facet
+     * @return the response entity
+     */
+    @Operation(summary = "Search albums filtered by release years and exact artists, "
+            + "with the decades, years and top artists facets of the matching albums")
+    @GetMapping(path = "/facets")
+    public ResponseEntity<AlbumFacetPage> facetedSearch(@RequestParam(required = false) String query,
+            @RequestParam(required = false) Integer yearFrom,
+            @RequestParam(required = false) Integer yearTo,
+            @RequestParam(required = false) List<String> artist,
+            @RequestParam(required = false) String sort,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(defaultValue = "10") int topArtists) {
+
+        AlbumFacetPage results = this.albumService.facetedSearch(query, yearFrom, yearTo, artist, sort, page, size, topArtists);
 
         return ResponseEntity.ok(results);
     }
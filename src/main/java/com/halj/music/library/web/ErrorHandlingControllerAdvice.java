@@ -11,6 +11,9 @@ import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 
+import com.halj.music.library.exception.BulkJobNotFoundException;
+import com.halj.music.library.exception.BulkJobRejectedException;
+import com.halj.music.library.exception.InvalidRequestException;
 import com.halj.music.library.exception.UserNotFoundException;
 
 /**
@@ -61,4 +64,37 @@ class ErrorHandlingControllerAdvice {
     public String handleUserNotFoundException(UserNotFoundException ex) {
         return ex.getMessage();
     }
+
+    /**
+     * Handle bulk job not found exceptions.
+     *
+     * @return the string
+     */
+    @ResponseStatus(value = HttpStatus.NOT_FOUND) // 404
+    @ExceptionHandler(BulkJobNotFoundException.class)
+    public String handleBulkJobNotFoundException(BulkJobNotFoundException ex) {
+        return ex.getMessage();
+    }
+
+    /**
+     * Handle bulk job rejected exceptions.
+     *
+     * @return the string
+     */
+    @ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE) // 503
+    @ExceptionHandler(BulkJobRejectedException.class)
+    public String handleBulkJobRejectedException(BulkJobRejectedException ex) {
+        return ex.getMessage();
+    }
+
+    /**
+     * Handle invalid request exceptions.
+     *
+     * @return the string
+     */
+    @ResponseStatus(value = HttpStatus.BAD_REQUEST) // 400
+    @ExceptionHandler(InvalidRequestException.class)
+    public String handleInvalidRequestException(InvalidRequestException ex) {
+        return ex.getMessage();
+    }
 }
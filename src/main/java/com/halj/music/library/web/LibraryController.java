@@ -1,18 +1,28 @@
 package com.halj.music.library.web;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.halj.music.library.model.LibraryDelta;
+import com.halj.music.library.model.SimilarUser;
 import com.halj.music.library.model.elastic.Album;
 import com.halj.music.library.service.LibraryService;
 
@@ -27,10 +37,26 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 @RequestMapping("/users")
 public class LibraryController {
 
+    /** The Constant PREFER header, see RFC 7240. */
+    private static final String PREFER = "Prefer";
+
+    /** The Constant PREFERENCE_APPLIED header, see RFC 7240. */
+    private static final String PREFERENCE_APPLIED = "Preference-Applied";
+
+    /** The Constant RETURN_MINIMAL preference. */
+    private static final String RETURN_MINIMAL = "return=minimal";
+
+    /** The Constant RESPONSE_DELTA, value of the response parameter asking for a delta. */
+    private static final String RESPONSE_DELTA = "delta";
+
     /** The library service. */
     @Autowired
     LibraryService libraryService;
 
+    /** The object mapper. */
+    @Autowired
+    ObjectMapper objectMapper;
+
     /**
      * Gets the albums.
      *
@@ -45,35 +71,132 @@ public class LibraryController {
     }
 
     /**
-     * Adds the albums.
+     * Gets the albums recommended for a user.
+     *
+     * @param userId the user id
+     * @param size the maximum number of albums
+     * @return the recommended albums, best first
+     */
+    @Operation(summary = "Get albums recommended for a user, from the libraries sharing albums with theirs")
+    @GetMapping(path = "/{userId}/recommendations")
+    public ResponseEntity<Iterable<Album>> getRecommendations(@PathVariable Long userId,
+            @RequestParam(defaultValue = "20") int size) {
+
+        return ResponseEntity.ok(this.libraryService.getRecommendations(userId, size));
+    }
+
+    /**
+     * Gets the users whose libraries are the most similar to the library of a user.
+     *
+     * @param userId the user id
+     * @param size the maximum number of users
+     * @return the similar users, most similar first
+     */
+    @Operation(summary = "Get the users with the most similar libraries, by estimated Jaccard similarity")
+    @GetMapping(path = "/{userId}/similar")
+    public ResponseEntity<List<SimilarUser>> getSimilarUsers(@PathVariable Long userId,
+            @RequestParam(defaultValue = "10") int size) {
+
+        return ResponseEntity.ok(this.libraryService.getSimilarUsers(userId, size));
+    }
+
+    /**
+     * Gets the albums two users have in common.
+     *
+     * @param userId the user id
+     * @param otherUserId the other user id
+     * @return the albums of both libraries
+     */
+    @Operation(summary = "Get the albums two users have in common")
+    @GetMapping(path = "/{userId}/albums/common/{otherUserId}")
+    public ResponseEntity<Iterable<Album>> getCommonAlbums(@PathVariable Long userId, @PathVariable Long otherUserId) {
+
+        return ResponseEntity.ok(this.libraryService.getCommonAlbums(userId, otherUserId));
+    }
+
+    /**
+     * Gets the albums of a user which another user does not have.
+     *
+     * @param userId the user id
+     * @param otherUserId the other user id
+     * @return the albums of the first library missing from the other one
+     */
+    @Operation(summary = "Get the albums of a user library missing from another user library")
+    @GetMapping(path = "/{userId}/albums/not-in/{otherUserId}")
+    public ResponseEntity<Iterable<Album>> getAlbumsNotIn(@PathVariable Long userId, @PathVariable Long otherUserId) {
+
+        return ResponseEntity.ok(this.libraryService.getAlbumsNotIn(userId, otherUserId));
+    }
+
+    /**
+     * Stream the albums of a user library as NDJSON, one album per line.
+     * Large libraries are loaded in parallel chunks, each chunk being flushed as soon as it is loaded.
      *
      * @param userId the user id
-     * @param libraryItems the library items
      * @return the response entity
      */
+    @Operation(summary = "Stream user library as NDJSON, chunk by chunk")
+    @GetMapping(path = "/{userId}/albums/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAlbums(@PathVariable Long userId) {
+
+        // resolved before streaming, so that an unknown user is still answered with a 404
+        Set<UUID> albumIds = this.libraryService.getAlbumIds(userId);
+
+        StreamingResponseBody body = out -> this.libraryService.streamAlbums(albumIds, chunk -> {
+            try {
+                for (Album album : chunk) {
+                    out.write(this.objectMapper.writeValueAsBytes(album));
+                    out.write('\n');
+                }
+                out.flush();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        });
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    /**
+     * Adds the albums.
+     *
+     * @param userId the user id
+     * @param albumIds the album ids
+     * @param response the response mode, "delta" to only return the library delta
+     * @param prefer the Prefer header, "return=minimal" to only return the library delta
+     * @return the updated albums list, or the library delta
+     */
     @Operation(summary = "Add one or several albums to user library")
     @PutMapping(path = "/{userId}/albums")
-    public ResponseEntity<Iterable<Album>> addAlbums(@PathVariable Long userId, @RequestBody List<UUID> albumIds) {
+    public ResponseEntity<?> addAlbums(@PathVariable Long userId, @RequestBody List<UUID> albumIds,
+            @RequestParam(required = false) String response,
+            @RequestHeader(name = PREFER, required = false) String prefer) {
 
-        this.libraryService.addAlbums(albumIds, userId);
+        LibraryDelta delta = this.libraryService.addAlbums(albumIds, userId);
 
-        return ResponseEntity.ok(this.libraryService.getAlbums(userId)); // return updated albums list
+        return toResponse(userId, delta, response, prefer);
     }
 
     /**
      * Removes the albums.
      *
      * @param userId the user id
-     * @param libraryItems the library items
-     * @return the response entity
+     * @param albumIds the album ids
+     * @param response the response mode, "delta" to only return the library delta
+     * @param prefer the Prefer header, "return=minimal" to only return the library delta
+     * @return the updated albums list, or the library delta
      */
     @Operation(summary = "Remove one or several albums from user library")
     @DeleteMapping(path = "/{userId}/albums")
-    public ResponseEntity<Iterable<Album>> removeAlbums(@PathVariable Long userId, @RequestBody List<UUID> albumIds) {
+    public ResponseEntity<?> removeAlbums(@PathVariable Long userId, @RequestBody List<UUID> albumIds,
+            @RequestParam(required = false) String response,
+            @RequestHeader(name = PREFER, required = false) String prefer) {
 
-        this.libraryService.removeAlbums(albumIds, userId);
+        LibraryDelta delta = this.libraryService.removeAlbums(albumIds, userId);
 
-        return ResponseEntity.ok(this.libraryService.getAlbums(userId)); // return updated albums list
+        return toResponse(userId, delta, response, prefer);
     }
 
     /**
@@ -91,4 +214,25 @@ public class LibraryController {
         return ResponseEntity.noContent().build();
     }
 
+    /**
+     * Build the response of a library change: the library delta if the client opted in, the updated albums list otherwise.
+     *
+     * @param userId the user id
+     * @param delta the library delta
+     * @param response the response mode
+     * @param prefer the Prefer header
+     * @return the response entity
+     */
+    private ResponseEntity<?> toResponse(Long userId, LibraryDelta delta, String response, String prefer) {
+        if (RESPONSE_DELTA.equals(response)) {
+            return ResponseEntity.ok(delta);
+        }
+        if (prefer != null && prefer.contains(RETURN_MINIMAL)) {
+            return ResponseEntity.ok()
+                    .header(PREFERENCE_APPLIED, RETURN_MINIMAL)
+                    .body(delta);
+        }
+        return ResponseEntity.ok(this.libraryService.getAlbums(userId)); // return updated albums list
+    }
+
 }
@@ -0,0 +1,90 @@
+package com.halj.music.library.web;
+
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.service.ReactiveAlbumService;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * The Class ReactiveAlbumController.
+ * Non-blocking album reads and searches, enabled with library.reactive.enabled=true.
+ * Publishers are handled as asynchronous requests: the request thread is released while Elasticsearch answers.
+ * Searches answer a page with the total hits and the cursor of the next page, like the blocking search; the whole
+ * catalogue is streamed as NDJSON as the albums arrive.
+ */
+@Tag(name = "Reactive album search", description = "Non-blocking endpoints for reading and searching albums")
+@RestController
+@RequestMapping("/reactive/albums")
+@ConditionalOnProperty(name = "library.reactive.enabled", havingValue = "true")
+public class ReactiveAlbumController {
+
+    /** The reactive album service. */
+    @Autowired
+    ReactiveAlbumService reactiveAlbumService;
+
+    /**
+     * Gets the album.
+     *
+     * @param uuid the uuid
+     * @return the album
+     */
+    @Operation(summary = "Get an album, without blocking")
+    @GetMapping(path = "/{uuid}")
+    public Mono<ResponseEntity<Album>> getAlbum(@PathVariable UUID uuid) {
+
+        return this.reactiveAlbumService.getAlbum(uuid)
+                .map(ResponseEntity::ok)
+                .defaultIfEmpty(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Free text search.
+     *
+     * @param query the query
+     * @param page the page number
+     * @param size the page size
+     * @param cursor the cursor of the previous page
+     * @return the page of matching albums
+     */
+    @Operation(summary = "Search albums with free text, without blocking. "
+            + "Shallow pages are fetched by page number, deep pages with the cursor returned with the previous page")
+    @PostMapping(path = "/search")
+    public Mono<AlbumSearchPage> freeTextSearch(@RequestBody String query,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(required = false) Integer size,
+            @RequestParam(required = false) String cursor) {
+
+        return this.reactiveAlbumService.freeTextSearch(query, page, size, cursor);
+    }
+
+    /**
+     * Gets all the albums.
+     *
+     * @return the albums
+     */
+    @Operation(summary = "Stream all albums as NDJSON, without blocking")
+    @GetMapping(path = "/all", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<Album> getAll() {
+
+        return this.reactiveAlbumService.getAll();
+    }
+
+}
@@ -1,10 +1,18 @@
 package com.halj.music.library.web;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.util.Map;
+import java.util.UUID;
 
 import javax.validation.Valid;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.web.PageableDefault;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -13,10 +21,15 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.MvcUriComponentsBuilder;
 
+import com.halj.music.library.exception.InvalidRequestException;
+import com.halj.music.library.model.CacheStatistics;
 import com.halj.music.library.model.User;
+import com.halj.music.library.model.UserImportJob;
+import com.halj.music.library.service.UserImportService;
 import com.halj.music.library.service.UserService;
 
 import io.swagger.v3.oas.annotations.Operation;
@@ -30,19 +43,36 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 @RequestMapping("/users")
 public class UserController {
 
+    /** The Constant TEXT_CSV_VALUE. */
+    private static final String TEXT_CSV_VALUE = "text/csv";
+
     /** The user service. */
     @Autowired
     UserService userService;
 
+    /** The user import service. */
+    @Autowired
+    UserImportService userImportService;
+
     /**
-     * Gets the all.
+     * Gets a page of users.
      *
-     * @return the all
+     * @param view summary (default) for the users with their library size, full for the users with their libraries
+     * @param pageable the page request (page, size and sort by id, name or email)
+     * @return the page of users
      */
-    @Operation(summary = "Get all users")
+    @Operation(summary = "Get a page of users, with their library size or their whole library")
     @GetMapping
-    public ResponseEntity<Iterable<User>> getAll() {
-        return ResponseEntity.ok(this.userService.getAll());
+    public ResponseEntity<Page<?>> getAll(@RequestParam(defaultValue = "summary") String view,
+            @PageableDefault(size = 20, sort = "id") Pageable pageable) {
+        switch (view) {
+        case "summary":
+            return ResponseEntity.ok(this.userService.getUserSummaries(pageable));
+        case "full":
+            return ResponseEntity.ok(this.userService.getUsers(pageable));
+        default:
+            throw new InvalidRequestException("Unknown view " + view + ", expected summary or full");
+        }
     }
 
     /**
@@ -57,6 +87,17 @@ public class UserController {
         return ResponseEntity.ok(this.userService.getUser(userId));
     }
 
+    /**
+     * Gets the user cache statistics.
+     *
+     * @return the statistics of the users and libraries caches
+     */
+    @Operation(summary = "Get the hit, miss and eviction counters of the users and libraries caches")
+    @GetMapping(path = "/cache/stats")
+    public ResponseEntity<Map<String, CacheStatistics>> getCacheStatistics() {
+        return ResponseEntity.ok(this.userService.getCacheStatistics());
+    }
+
     /**
      * Creates the user.
      *
@@ -77,6 +118,45 @@ public class UserController {
         return ResponseEntity.created(uri).body(saved);
     }
 
+    /**
+     * Import users and their libraries from a NDJSON upload.
+     *
+     * @param upload the users, one JSON object per line
+     * @return the response entity, with the location of the job
+     * @throws IOException Signals that the upload could not be received.
+     */
+    @Operation(summary = "Import users and their libraries from a NDJSON upload, asynchronously")
+    @PostMapping(path = "/import", consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<UserImportJob> importUsers(InputStream upload) throws IOException {
+        return submitImport(upload, UserImportService.Format.NDJSON);
+    }
+
+    /**
+     * Import users and their libraries from a CSV upload.
+     *
+     * @param upload the users, one name,email,albumIds line per user
+     * @return the response entity, with the location of the job
+     * @throws IOException Signals that the upload could not be received.
+     */
+    @Operation(summary = "Import users and their libraries from a CSV upload (name,email,albumIds), asynchronously")
+    @PostMapping(path = "/import", consumes = TEXT_CSV_VALUE)
+    public ResponseEntity<UserImportJob> importUsersCsv(InputStream upload) throws IOException {
+        return submitImport(upload, UserImportService.Format.CSV);
+    }
+
+    /**
+     * Gets a user import job.
+     *
+     * @param jobId the job id
+     * @return the job
+     */
+    @Operation(summary = "Get the status of a user import job")
+    @GetMapping(path = "/import/{jobId}")
+    public ResponseEntity<UserImportJob> getImportJob(@PathVariable UUID jobId) {
+
+        return ResponseEntity.ok(this.userImportService.getJob(jobId));
+    }
+
     /**
      * Updates the user.
      *
@@ -122,4 +202,25 @@ public class UserController {
         return ResponseEntity.noContent().build();
     }
 
+    /**
+     * Submit a user import job.
+     *
+     * @param upload the upload
+     * @param format the upload format
+     * @return the response entity, with the location of the job
+     * @throws IOException Signals that the upload could not be received.
+     */
+    private ResponseEntity<UserImportJob> submitImport(final InputStream upload, final UserImportService.Format format)
+            throws IOException {
+
+        UserImportJob job = this.userImportService.submit(upload, format);
+
+        URI uri = MvcUriComponentsBuilder.fromController(getClass())
+                .path("/import/{jobId}")
+                .buildAndExpand(job.getId())
+                .toUri();
+
+        return ResponseEntity.accepted().location(uri).body(job);
+    }
+
 }
@@ -0,0 +1,94 @@
+package com.halj.music.library.benchmark;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.SearchHitsImpl;
+import org.springframework.data.elasticsearch.core.TotalHitsRelation;
+
+import com.halj.music.library.cache.AlbumCache;
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.repository.elastic.AlbumRepository;
+import com.halj.music.library.search.ElasticAlbumSearchBackend;
+import com.halj.music.library.service.AlbumService;
+import com.halj.music.library.service.AlbumWriteLog;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The Class AlbumSearchBenchmark.
+ * Free text search from query building to result mapping, the Elasticsearch client answering with prepared hits.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AlbumSearchBenchmark {
+
+    /** The number of hits per page. */
+    @Param({ "10", "100" })
+    int pageSize;
+
+    /** The album service. */
+    AlbumService albumService;
+
+    @Setup
+    public void setUp() {
+        List<Album> albums = BenchmarkFixtures.albums(this.pageSize);
+        SearchHits<Album> searchHits = toSearchHits(albums);
+
+        ElasticsearchOperations elasticsearchOperations = BenchmarkFixtures.standIn(ElasticsearchOperations.class, (proxy, method, args) -> {
+            if ("search".equals(method.getName())) {
+                return searchHits;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+        AlbumRepository albumRepository = BenchmarkFixtures.albumRepository(albums);
+
+        this.albumService = new AlbumService(albumRepository,
+                elasticsearchOperations,
+                new AlbumCache(albumRepository, 1000),
+                new ElasticAlbumSearchBackend(elasticsearchOperations, 10_000),
+                Collections.emptyList(),
+                new AlbumWriteLog(),
+                new AlbumPopularity(elasticsearchOperations, List.of(), new AlbumWriteLog(), 10, Duration.ofHours(1)),
+                this.pageSize,
+                new SimpleMeterRegistry());
+    }
+
+    @Benchmark
+    public AlbumSearchPage freeTextSearch() {
+        return this.albumService.freeTextSearch("green day", 0, this.pageSize, null);
+    }
+
+    private static SearchHits<Album> toSearchHits(final List<Album> albums) {
+        float[] score = { albums.size() };
+        List<SearchHit<Album>> hits = albums.stream()
+                .map(album -> new SearchHit<>("albums", album.getId().toString(), null, score[0]--, null, Collections.emptyMap(), null, null, null, null, album))
+                .collect(Collectors.toList());
+
+        return new SearchHitsImpl<>(10_000, TotalHitsRelation.GREATER_THAN_OR_EQUAL_TO, albums.size(), null, hits, null, null);
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.halj.music.library.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.halj.music.library.model.elastic.Album;
+
+/**
+ * The Class AlbumSerializationBenchmark.
+ * Jackson serialization of album lists, as written by the library and search endpoints.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AlbumSerializationBenchmark {
+
+    /** The number of albums. */
+    @Param({ "10", "1000", "100000" })
+    int albumCount;
+
+    /** The albums. */
+    List<Album> albums;
+
+    /** The album list writer. */
+    ObjectWriter writer;
+
+    @Setup
+    public void setUp() {
+        this.albums = BenchmarkFixtures.albums(this.albumCount);
+        ObjectMapper objectMapper = new ObjectMapper();
+        this.writer = objectMapper.writerFor(objectMapper.getTypeFactory().constructCollectionType(List.class, Album.class));
+    }
+
+    @Benchmark
+    public byte[] serializeAlbums() throws JsonProcessingException {
+        return this.writer.writeValueAsBytes(this.albums);
+    }
+
+}
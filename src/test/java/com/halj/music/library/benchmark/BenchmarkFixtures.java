@@ -0,0 +1,118 @@
+package com.halj.music.library.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.repository.elastic.AlbumRepository;
+
+/**
+ * The Class BenchmarkFixtures.
+ * Deterministic album data sets and in-process stand-ins for the Elasticsearch client,
+ * so that benchmarks measure the library code and not a cluster.
+ */
+final class BenchmarkFixtures {
+
+    /** The Constant SEED, same data sets on every run. */
+    private static final long SEED = 42L;
+
+    /** The Constant WORDS used to build titles and artists. */
+    private static final String[] WORDS = { "green", "day", "america", "fluffy", "phantasmic", "southern", "fashion",
+            "sudden", "passion", "exile", "blue", "night", "river", "electric", "dream", "city", "lights", "echo" };
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Generate albums.
+     *
+     * @param count the number of albums
+     * @return the albums
+     */
+    static List<Album> albums(final int count) {
+        Random random = new Random(SEED);
+        List<Album> albums = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            albums.add(new Album(new UUID(random.nextLong(), random.nextLong()),
+                    words(random, 3),
+                    words(random, 2),
+                    Integer.toString(1950 + random.nextInt(72)),
+                    "https://covers.example.com/" + i + ".jpg"));
+        }
+        return albums;
+    }
+
+    /**
+     * Stand-in album repository serving albums from memory.
+     *
+     * @param albums the albums
+     * @return the album repository
+     */
+    @SuppressWarnings("unchecked")
+    static AlbumRepository albumRepository(final List<Album> albums) {
+        Map<UUID, Album> byId = new HashMap<>();
+        albums.forEach(album -> byId.put(album.getId(), album));
+
+        return standIn(AlbumRepository.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+            case "findAllById":
+                List<Album> found = new ArrayList<>();
+                for (UUID albumId : (Iterable<UUID>) args[0]) {
+                    Album album = byId.get(albumId);
+                    if (album != null) {
+                        found.add(album);
+                    }
+                }
+                return found;
+            case "findById":
+                return Optional.ofNullable(byId.get(args[0]));
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Create a stand-in implementation of an interface. Object methods are answered by the handler identity.
+     *
+     * @param <T> the interface type
+     * @param type the interface
+     * @param handler the handler of the interface methods
+     * @return the stand-in
+     */
+    static <T> T standIn(final Class<T> type, final InvocationHandler handler) {
+        Object standIn = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return type.getSimpleName() + " stand-in";
+                }
+            }
+            return handler.invoke(proxy, method, args);
+        });
+        return type.cast(standIn);
+    }
+
+    private static String words(final Random random, final int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return builder.toString();
+    }
+
+}
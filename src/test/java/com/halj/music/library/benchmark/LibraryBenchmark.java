@@ -0,0 +1,141 @@
+package com.halj.music.library.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.halj.music.library.bitmap.AlbumOrdinals;
+import com.halj.music.library.cache.AlbumCache;
+import com.halj.music.library.cache.UserCache;
+import com.halj.music.library.journal.LibraryJournal;
+import com.halj.music.library.model.User;
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.recommend.AlbumRecommender;
+import com.halj.music.library.recommend.SimilarUserIndex;
+import com.halj.music.library.repository.UserLibraryRepository;
+import com.halj.music.library.repository.UserRepository;
+import com.halj.music.library.repository.elastic.AlbumRepository;
+import com.halj.music.library.service.AlbumWriteLog;
+import com.halj.music.library.service.LibraryService;
+import com.halj.music.library.service.UserService;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The Class LibraryBenchmark.
+ * User library retrieval, with albums served by the album cache or loaded through the Elasticsearch repository.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LibraryBenchmark {
+
+    /** The Constant USER_ID. */
+    private static final long USER_ID = 1L;
+
+    /**
+     * The library of a user, albums already cached.
+     */
+    @State(Scope.Benchmark)
+    public static class Library {
+
+        /** The number of albums in library. */
+        @Param({ "10", "1000", "100000" })
+        int librarySize;
+
+        /** The album cache. */
+        AlbumCache albumCache;
+
+        /** The library service. */
+        LibraryService libraryService;
+
+        @Setup
+        public void setUp() throws IOException {
+            List<Album> albums = BenchmarkFixtures.albums(this.librarySize);
+            Set<UUID> albumIds = new HashSet<>();
+            albums.forEach(album -> albumIds.add(album.getId()));
+
+            AlbumRepository albumRepository = BenchmarkFixtures.albumRepository(albums);
+            UserRepository userRepository = BenchmarkFixtures.standIn(UserRepository.class, (proxy, method, args) -> {
+                if ("findById".equals(method.getName())) {
+                    return Optional.of(new User(USER_ID, "user", "user@mail.com"));
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+            UserLibraryRepository userLibraryRepository = new UserLibraryRepository(new JdbcTemplate()) {
+                @Override
+                public Set<UUID> findAlbumIds(final long userId) {
+                    return new HashSet<>(albumIds);
+                }
+            };
+
+            this.albumCache = new AlbumCache(albumRepository, 2L * this.librarySize);
+            AlbumOrdinals albumOrdinals = new AlbumOrdinals();
+            UserCache userCache = new UserCache(userRepository, userLibraryRepository, albumOrdinals, 1000, Duration.ofHours(1));
+            // libraries are only read, popularity is never flushed
+            AlbumPopularity albumPopularity = new AlbumPopularity(BenchmarkFixtures.standIn(ElasticsearchOperations.class, (proxy, method, args) -> {
+                throw new UnsupportedOperationException(method.getName());
+            }), List.of(), new AlbumWriteLog(), 10, Duration.ofHours(1));
+            AlbumRecommender albumRecommender = new AlbumRecommender(userLibraryRepository, albumOrdinals, 50, 1000);
+            // libraries are only read, no library change is notified nor written
+            PlatformTransactionManager transactionManager = BenchmarkFixtures.standIn(PlatformTransactionManager.class, (proxy, method, args) -> {
+                throw new UnsupportedOperationException(method.getName());
+            });
+            LibraryJournal libraryJournal = new LibraryJournal(userCache, userRepository, userLibraryRepository, albumOrdinals,
+                    albumPopularity, List.of(), transactionManager, false, Path.of("journal"), Duration.ofMillis(100), 1000, 10000, false);
+            this.libraryService = new LibraryService(new UserService(userRepository, userLibraryRepository, userCache, List.of(), libraryJournal),
+                    this.albumCache, userLibraryRepository, userCache, albumOrdinals, albumPopularity, albumRecommender,
+                    new SimilarUserIndex(userLibraryRepository, 20, 5, 1000), List.of(), libraryJournal, transactionManager,
+                    new SimpleMeterRegistry());
+            this.libraryService.getAlbums(USER_ID);
+        }
+    }
+
+    /**
+     * Empties the album cache before each call, so that all albums are loaded from the repository.
+     */
+    @State(Scope.Thread)
+    public static class ColdCache {
+
+        @Setup(Level.Invocation)
+        public void invalidate(final Library library) {
+            library.albumCache.invalidateAll();
+        }
+    }
+
+    @Benchmark
+    public Iterable<Album> getAlbumsCached(final Library library) {
+        return library.libraryService.getAlbums(USER_ID);
+    }
+
+    @Benchmark
+    public Iterable<Album> getAlbumsUncached(final Library library, final ColdCache coldCache) {
+        return library.libraryService.getAlbums(USER_ID);
+    }
+
+}
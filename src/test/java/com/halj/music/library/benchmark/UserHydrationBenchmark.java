@@ -0,0 +1,108 @@
+package com.halj.music.library.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+
+import com.halj.music.library.model.User;
+import com.halj.music.library.repository.UserLibraryRepository;
+
+/**
+ * The Class UserHydrationBenchmark.
+ * Loading a User entity and its album ids collection with Hibernate from an in-memory H2 database,
+ * compared with reading the same album ids through the user_library repository.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserHydrationBenchmark {
+
+    /** The number of albums in library. */
+    @Param({ "10", "1000", "100000" })
+    int librarySize;
+
+    /** The entity manager factory. */
+    EntityManagerFactory entityManagerFactory;
+
+    /** The user library repository. */
+    UserLibraryRepository userLibraryRepository;
+
+    /** The user id. */
+    long userId;
+
+    @Setup
+    public void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:benchmark-" + this.librarySize + ";DB_CLOSE_DELAY=-1", "sa", "");
+
+        Properties jpaProperties = new Properties();
+        jpaProperties.setProperty("hibernate.hbm2ddl.auto", "create-drop");
+
+        LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+        factory.setDataSource(dataSource);
+        factory.setPackagesToScan(User.class.getPackageName());
+        factory.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        factory.setJpaProperties(jpaProperties);
+        factory.afterPropertiesSet();
+        this.entityManagerFactory = factory.getObject();
+
+        EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+        entityManager.getTransaction().begin();
+        User user = new User("john", "john@email.com");
+        entityManager.persist(user);
+        entityManager.getTransaction().commit();
+        entityManager.close();
+        this.userId = user.getId();
+
+        List<UUID> albumIds = new ArrayList<>(this.librarySize);
+        BenchmarkFixtures.albums(this.librarySize).forEach(album -> albumIds.add(album.getId()));
+        this.userLibraryRepository = new UserLibraryRepository(new JdbcTemplate(dataSource));
+        this.userLibraryRepository.addAlbums(this.userId, albumIds);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.entityManagerFactory.close();
+    }
+
+    @Benchmark
+    public int hydrateUser() {
+        EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+        try {
+            return entityManager.find(User.class, this.userId).getAlbumIds().size();
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    @Benchmark
+    public Set<UUID> findAlbumIds() {
+        return this.userLibraryRepository.findAlbumIds(this.userId);
+    }
+
+}
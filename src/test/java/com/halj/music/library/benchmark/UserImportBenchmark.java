@@ -0,0 +1,152 @@
+package com.halj.music.library.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+import javax.validation.Validation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.halj.music.library.bitmap.AlbumOrdinals;
+import com.halj.music.library.cache.UserCache;
+import com.halj.music.library.model.User;
+import com.halj.music.library.model.UserImportJob;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.repository.UserImportRepository;
+import com.halj.music.library.repository.UserLibraryRepository;
+import com.halj.music.library.repository.UserRepository;
+import com.halj.music.library.service.AlbumWriteLog;
+import com.halj.music.library.service.UserImportService;
+
+/**
+ * The Class UserImportBenchmark.
+ * Importing users with 10 albums each from a CSV upload into an in-memory H2 database, one import per iteration.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserImportBenchmark {
+
+    /** The number of imported users. */
+    @Param({ "10000", "100000" })
+    int userCount;
+
+    /** The number of chunk writers. */
+    @Param({ "1", "4" })
+    int writers;
+
+    /** The entity manager factory. */
+    EntityManagerFactory entityManagerFactory;
+
+    /** The jdbc template. */
+    JdbcTemplate jdbcTemplate;
+
+    /** The user import service. */
+    UserImportService userImportService;
+
+    /** The CSV upload. */
+    byte[] upload;
+
+    @Setup
+    public void setUp() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:import-" + this.userCount + "-" + this.writers
+                + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000", "sa", "");
+
+        Properties jpaProperties = new Properties();
+        jpaProperties.setProperty("hibernate.hbm2ddl.auto", "create-drop");
+
+        LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+        factory.setDataSource(dataSource);
+        factory.setPackagesToScan(User.class.getPackageName());
+        factory.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        factory.setJpaProperties(jpaProperties);
+        factory.afterPropertiesSet();
+        this.entityManagerFactory = factory.getObject();
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+
+        // users are only written, popularity is never flushed
+        AlbumPopularity albumPopularity = new AlbumPopularity(BenchmarkFixtures.standIn(ElasticsearchOperations.class, (proxy, method, args) -> {
+            throw new UnsupportedOperationException(method.getName());
+        }), List.of(), new AlbumWriteLog(), 10, Duration.ofHours(1));
+        // the cache is only invalidated
+        UserLibraryRepository userLibraryRepository = new UserLibraryRepository(this.jdbcTemplate);
+        UserCache userCache = new UserCache(BenchmarkFixtures.standIn(UserRepository.class, (proxy, method, args) -> {
+            throw new UnsupportedOperationException(method.getName());
+        }), userLibraryRepository, new AlbumOrdinals(), 1000, Duration.ofHours(1));
+        this.userImportService = new UserImportService(new UserImportRepository(this.jdbcTemplate, this.entityManagerFactory),
+                userLibraryRepository, userCache, albumPopularity, List.of(), new ObjectMapper(),
+                Validation.buildDefaultValidatorFactory().getValidator(), new DataSourceTransactionManager(dataSource),
+                1000, this.writers, 1, Duration.ofHours(1));
+
+        // libraries of 10 albums out of 10000
+        List<UUID> albumIds = new ArrayList<>();
+        BenchmarkFixtures.albums(10_000).forEach(album -> albumIds.add(album.getId()));
+        Random random = new Random(42);
+        StringBuilder csv = new StringBuilder("name,email,albumIds\n");
+        for (int i = 0; i < this.userCount; i++) {
+            csv.append("user ").append(i).append(",user").append(i).append("@email.com,");
+            for (int album = 0; album < 10; album++) {
+                csv.append(album == 0 ? "" : ";").append(albumIds.get(random.nextInt(albumIds.size())));
+            }
+            csv.append('\n');
+        }
+        this.upload = csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Setup(Level.Iteration)
+    public void clearUsers() {
+        this.jdbcTemplate.update("DELETE FROM user_library");
+        this.jdbcTemplate.update("DELETE FROM album_owner_count");
+        this.jdbcTemplate.update("DELETE FROM user");
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.userImportService.shutdown();
+        this.entityManagerFactory.close();
+    }
+
+    @Benchmark
+    public long importUsers() throws IOException {
+        UserImportJob job = new UserImportJob(UUID.randomUUID());
+        job.start();
+        this.userImportService.importUsers(new ByteArrayInputStream(this.upload), UserImportService.Format.CSV, job);
+        job.complete();
+        if (job.getImported() != this.userCount) {
+            throw new IllegalStateException(job.getImported() + " users imported out of " + this.userCount + ": " + job.getErrors());
+        }
+        return job.getImported();
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.halj.music.library.bitmap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class CompressedBitmapTest {
+
+    @Test
+    void test_setAlgebraMatchesBitSets() {
+        Random random = new Random(42);
+        // sparse and dense containers, spread over several keys
+        int[] sizes = { 0, 10, CompressedBitmap.MAX_ARRAY_SIZE, 3 * CompressedBitmap.MAX_ARRAY_SIZE, 50_000 };
+        for (int sizeA : sizes) {
+            for (int sizeB : sizes) {
+                int[] a = randomInts(random, sizeA, 200_000);
+                int[] b = randomInts(random, sizeB, 200_000);
+                BitSet expectedA = toBitSet(a);
+                BitSet expectedB = toBitSet(b);
+                CompressedBitmap bitmapA = CompressedBitmap.of(a);
+                CompressedBitmap bitmapB = CompressedBitmap.of(b);
+
+                BitSet and = (BitSet) expectedA.clone();
+                and.and(expectedB);
+                assertBitmap(and, bitmapA.and(bitmapB));
+
+                BitSet andNot = (BitSet) expectedA.clone();
+                andNot.andNot(expectedB);
+                assertBitmap(andNot, bitmapA.andNot(bitmapB));
+
+                BitSet or = (BitSet) expectedA.clone();
+                or.or(expectedB);
+                assertBitmap(or, bitmapA.or(bitmapB));
+            }
+        }
+    }
+
+    @Test
+    void test_containsAndIterationInOrder() {
+        CompressedBitmap bitmap = CompressedBitmap.of(70_000, 3, 3, 65_535, 65_536, 0);
+
+        assertEquals(5, bitmap.getCardinality());
+        assertTrue(bitmap.contains(65_536));
+        assertFalse(bitmap.contains(65_537));
+        assertFalse(bitmap.contains(-1));
+
+        List<Integer> values = new ArrayList<>();
+        PrimitiveIterator.OfInt iterator = bitmap.iterator();
+        iterator.forEachRemaining((int value) -> values.add(value));
+        assertEquals(List.of(0, 3, 65_535, 65_536, 70_000), values);
+        assertArrayEquals(new int[] { 0, 3, 65_535, 65_536, 70_000 }, bitmap.toArray());
+    }
+
+    @Test
+    void test_albumIdsEncodedAsOrdinals() {
+        AlbumOrdinals albumOrdinals = new AlbumOrdinals();
+        UUID albumId1 = UUID.randomUUID();
+        UUID albumId2 = UUID.randomUUID();
+        UUID albumId3 = UUID.randomUUID();
+
+        CompressedBitmap library = albumOrdinals.encode(List.of(albumId2, albumId1));
+        Set<UUID> albumIds = albumOrdinals.asSet(library);
+
+        // ordinals are assigned on first use and iterated in order
+        assertEquals(List.of(albumId2, albumId1), new ArrayList<>(albumIds));
+        assertTrue(albumIds.contains(albumId1));
+        assertFalse(albumIds.contains(albumId3));
+        assertEquals(-1, albumOrdinals.findOrdinal(albumId3));
+        assertEquals(Set.of(albumId1), albumOrdinals.asSet(library.and(albumOrdinals.encode(List.of(albumId1, albumId3)))));
+    }
+
+    private static int[] randomInts(final Random random, final int size, final int bound) {
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextInt(bound);
+        }
+        return values;
+    }
+
+    private static BitSet toBitSet(final int[] values) {
+        BitSet bitSet = new BitSet();
+        for (int value : values) {
+            bitSet.set(value);
+        }
+        return bitSet;
+    }
+
+    private static void assertBitmap(final BitSet expected, final CompressedBitmap bitmap) {
+        assertEquals(expected.cardinality(), bitmap.getCardinality());
+        assertArrayEquals(expected.stream().toArray(), bitmap.toArray());
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.halj.music.library.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import com.halj.music.library.model.CacheStatistics;
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.repository.elastic.AlbumRepository;
+import com.halj.music.library.snapshot.AlbumSnapshot;
+
+@ExtendWith(SpringExtension.class)
+class AlbumCacheTest {
+
+    // Mock Elasticsearch repository
+    @MockBean
+    AlbumRepository albumRepository;
+
+    // target class to be tested, rebuilt for each test so that cached entries and counters start empty
+    AlbumCache albumCache;
+
+    private static UUID ALBUM_ID_1 = UUID.fromString("c26e1aa2-b52c-4cb0-a907-15a2e323960d");
+    private static UUID ALBUM_ID_2 = UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c");
+
+    @BeforeEach
+    public void setUp() {
+        this.albumCache = new AlbumCache(this.albumRepository, 100);
+    }
+
+    @Test
+    void test_repositoryHitOnlyOnceForSameAlbum() {
+        Album album = new Album(ALBUM_ID_1, "Green Day in America", "Green Day", "1990", null);
+        Mockito.when(this.albumRepository.findById(ALBUM_ID_1)).thenReturn(Optional.of(album));
+
+        this.albumCache.get(ALBUM_ID_1);
+        this.albumCache.get(ALBUM_ID_1);
+
+        Mockito.verify(this.albumRepository, Mockito.times(1)).findById(ALBUM_ID_1);
+
+        CacheStatistics statistics = this.albumCache.getStatistics();
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(1, statistics.getMissCount());
+    }
+
+    @Test
+    void test_invalidationDuringLoadNotOverwritten() throws Exception {
+        Album stale = new Album(ALBUM_ID_1, "Green Day in America", "Green Day", "1990", null);
+        Album saved = new Album(ALBUM_ID_1, "Green Day in America (Remastered)", "Green Day", "1990", null);
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        Mockito.when(this.albumRepository.findById(ALBUM_ID_1)).thenAnswer(invocation -> {
+            loading.countDown();
+            written.await(10, TimeUnit.SECONDS);
+            return Optional.of(stale);
+        }).thenReturn(Optional.of(saved));
+
+        // the reader loads the album before the save, the invalidation of the save comes before the end of the load
+        CompletableFuture<Optional<Album>> reader = CompletableFuture.supplyAsync(() -> this.albumCache.get(ALBUM_ID_1));
+        assertTrue(loading.await(10, TimeUnit.SECONDS));
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> this.albumCache.invalidate(ALBUM_ID_1));
+        Thread.sleep(100);
+        written.countDown();
+        reader.get(10, TimeUnit.SECONDS);
+        writer.get(10, TimeUnit.SECONDS);
+
+        assertEquals(saved.getTitle(), this.albumCache.get(ALBUM_ID_1).orElseThrow().getTitle());
+    }
+
+    @Test
+    void test_writeDuringBulkLoadNotCached() {
+        Album stale = new Album(ALBUM_ID_1, "Green Day in America", "Green Day", "1990", null);
+        Album saved = new Album(ALBUM_ID_1, "Green Day in America (Remastered)", "Green Day", "1990", null);
+        Mockito.when(this.albumRepository.findAllById(any())).thenAnswer(invocation -> {
+            // saved and invalidated while the multi-get is in flight
+            this.albumCache.invalidate(ALBUM_ID_1);
+            return List.of(stale);
+        }).thenReturn(List.of(saved));
+
+        assertEquals(stale.getTitle(), this.albumCache.getAll(List.of(ALBUM_ID_1)).get(0).getTitle());
+        assertEquals(saved.getTitle(), this.albumCache.getAll(List.of(ALBUM_ID_1)).get(0).getTitle());
+    }
+
+    @Test
+    void test_albumLoadedBeforeWriteNotCached() {
+        Album album = new Album(ALBUM_ID_1, "Green Day in America", "Green Day", "1990", null);
+
+        long writes = this.albumCache.getWrites();
+        this.albumCache.invalidate(ALBUM_ID_1);
+        this.albumCache.putLoaded(album, writes);
+        assertTrue(this.albumCache.getIfPresent(ALBUM_ID_1).isEmpty());
+
+        this.albumCache.putLoaded(album, this.albumCache.getWrites());
+        assertEquals(album, this.albumCache.getIfPresent(ALBUM_ID_1).orElseThrow());
+    }
+
+    @Test
+    void test_onlyMissingAlbumsLoadedAndOrderKept() {
+        Album album_1 = new Album(ALBUM_ID_1, "Green Day in America", "Green Day", "1990", null);
+        Album album_2 = new Album(ALBUM_ID_2, "Fluffy Vs. Phantasmic", "Fluffy", "1996", null);
+        this.albumCache.put(album_2);
+
+        Mockito.when(this.albumRepository.findAllById(Set.of(ALBUM_ID_1))).thenReturn(List.of(album_1));
+
+        List<Album> albums = this.albumCache.getAll(List.of(ALBUM_ID_2, ALBUM_ID_1));
+
+        assertEquals(ALBUM_ID_2, albums.get(0).getId());
+        assertEquals(ALBUM_ID_1, albums.get(1).getId());
+        Mockito.verify(this.albumRepository, Mockito.times(1)).findAllById(any());
+    }
+
+    @Test
+    void test_largeSetsLoadedInChunksAndOrderKept() {
+        AlbumCache chunkedCache = new AlbumCache(this.albumRepository, 100, 3, 2);
+        List<UUID> albumIds = IntStream.range(0, 10)
+                .mapToObj(i -> UUID.randomUUID())
+                .collect(Collectors.toList());
+
+        Mockito.when(this.albumRepository.findAllById(any())).thenAnswer(invocation -> {
+            Iterable<UUID> ids = invocation.getArgument(0);
+            return StreamSupport.stream(ids.spliterator(), false)
+                    .map(id -> new Album(id, "Title " + id, "Artist", "2000", null))
+                    .collect(Collectors.toList());
+        });
+
+        List<Integer> chunkSizes = new ArrayList<>();
+        List<UUID> streamed = new ArrayList<>();
+        chunkedCache.getAll(albumIds, chunk -> {
+            chunkSizes.add(chunk.size());
+            chunk.forEach(album -> streamed.add(album.getId()));
+        });
+
+        assertEquals(List.of(3, 3, 3, 1), chunkSizes);
+        assertEquals(albumIds, streamed);
+        Mockito.verify(this.albumRepository, Mockito.times(4)).findAllById(any());
+        Mockito.verify(this.albumRepository, Mockito.never()).findAllById(Mockito.argThat(ids -> ((Collection<UUID>) ids).size() > 3));
+
+        // now cached, in the same order
+        assertEquals(albumIds, chunkedCache.getAll(albumIds).stream().map(Album::getId).collect(Collectors.toList()));
+        Mockito.verify(this.albumRepository, Mockito.times(4)).findAllById(any());
+        chunkedCache.shutdown();
+    }
+
+    @Test
+    void test_snapshotServesMissesUntilAlbumsAreWritten(@TempDir Path directory) throws IOException {
+        Album album_1 = new Album(ALBUM_ID_1, "Green Day in America", "Green Day", "1990", null);
+        Album album_2 = new Album(ALBUM_ID_2, "Fluffy Vs. Phantasmic", "Fluffy", "1996", null);
+        Path path = directory.resolve("albums.snapshot");
+        AlbumSnapshot.write(path, "albums-0123456789abcdef-1", List.of(album_1, album_2));
+        this.albumCache.attachSnapshot(AlbumSnapshot.open(path));
+
+        assertEquals("Green Day in America", this.albumCache.get(ALBUM_ID_1).orElseThrow().getTitle());
+        assertEquals(2, this.albumCache.getAll(List.of(ALBUM_ID_1, ALBUM_ID_2)).size());
+        Mockito.verify(this.albumRepository, Mockito.never()).findById(any());
+        Mockito.verify(this.albumRepository, Mockito.never()).findAllById(any());
+
+        // written albums are no longer read from the snapshot
+        this.albumCache.invalidate(ALBUM_ID_1);
+        Mockito.when(this.albumRepository.findById(ALBUM_ID_1)).thenReturn(Optional.empty());
+        assertTrue(this.albumCache.get(ALBUM_ID_1).isEmpty());
+
+        this.albumCache.detachSnapshot();
+        Mockito.when(this.albumRepository.findById(ALBUM_ID_2)).thenReturn(Optional.empty());
+        assertTrue(this.albumCache.get(ALBUM_ID_2).isEmpty());
+    }
+
+    @Test
+    void test_invalidatedAlbumReloaded() {
+        Album album = new Album(ALBUM_ID_1, "Green Day in America", "Green Day", "1990", null);
+        this.albumCache.put(album);
+        this.albumCache.invalidate(ALBUM_ID_1);
+
+        Mockito.when(this.albumRepository.findById(ALBUM_ID_1)).thenReturn(Optional.empty());
+
+        assertTrue(this.albumCache.get(ALBUM_ID_1).isEmpty());
+    }
+
+}
@@ -0,0 +1,279 @@
+package com.halj.music.library.journal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.halj.music.library.bitmap.AlbumOrdinals;
+import com.halj.music.library.cache.UserCache;
+import com.halj.music.library.model.LibraryDelta;
+import com.halj.music.library.model.User;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.repository.UserLibraryRepository;
+import com.halj.music.library.repository.UserRepository;
+import com.halj.music.library.service.LibraryChangeListener;
+
+class LibraryJournalTest {
+
+    private static final UUID ALBUM_1 = UUID.fromString("c26e1aa2-b52c-4cb0-a907-15a2e323960d");
+    private static final UUID ALBUM_2 = UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c");
+    private static final UUID ALBUM_3 = UUID.fromString("0d4b7a8e-1f3c-4d2e-9b6a-5c7d8e9f0a1b");
+
+    @TempDir
+    Path journalPath;
+
+    // libraries and library versions stored in the mocked tables
+    private Map<Long, Set<UUID>> libraries = new ConcurrentHashMap<>();
+    private Map<Long, Long> versions = new ConcurrentHashMap<>();
+    private Map<Long, Long> sequences = new ConcurrentHashMap<>();
+
+    private UserRepository userRepository;
+    private UserLibraryRepository userLibraryRepository;
+    private AlbumPopularity albumPopularity;
+    private LibraryChangeListener libraryChangeListener;
+    private PlatformTransactionManager transactionManager;
+    private AlbumOrdinals albumOrdinals = new AlbumOrdinals();
+    private UserCache userCache;
+
+    private List<LibraryJournal> journals = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        this.userRepository = Mockito.mock(UserRepository.class);
+        this.userLibraryRepository = Mockito.mock(UserLibraryRepository.class);
+        this.albumPopularity = Mockito.mock(AlbumPopularity.class);
+        this.libraryChangeListener = Mockito.mock(LibraryChangeListener.class);
+        this.transactionManager = Mockito.mock(PlatformTransactionManager.class);
+
+        Mockito.when(this.userRepository.findById(anyLong())).thenAnswer(invocation -> {
+            Long userId = invocation.getArgument(0);
+            if (!this.versions.containsKey(userId)) {
+                return Optional.empty();
+            }
+            User user = new User(userId, "user " + userId, "user" + userId + "@mail.com");
+            user.setLibraryVersion(this.versions.get(userId));
+            return Optional.of(user);
+        });
+        Mockito.when(this.userRepository.incrementLibraryVersion(anyLong(), anyLong(), anyLong())).thenAnswer(invocation -> {
+            this.versions.merge(invocation.getArgument(0), invocation.getArgument(1), Long::sum);
+            this.sequences.put(invocation.getArgument(0), invocation.getArgument(2));
+            return 1;
+        });
+        Mockito.when(this.userRepository.findJournalSequence(anyLong()))
+                .thenAnswer(invocation -> Optional.ofNullable(this.sequences.get(invocation.<Long> getArgument(0))));
+        Mockito.when(this.userRepository.findMaxJournalSequence())
+                .thenAnswer(invocation -> this.sequences.values().stream().mapToLong(Long::longValue).max().orElse(0L));
+        setUpLibraries();
+
+        this.userCache = new UserCache(this.userRepository, this.userLibraryRepository, this.albumOrdinals, 100, Duration.ofMinutes(10));
+
+        // user 1 owns album 1, user 2 has an empty library
+        this.libraries.put(1L, new HashSet<>(Set.of(ALBUM_1)));
+        this.versions.put(1L, 5L);
+        this.versions.put(2L, 0L);
+        this.sequences.put(1L, 0L);
+        this.sequences.put(2L, 0L);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.journals.forEach(LibraryJournal::shutdown);
+    }
+
+    @Test
+    void test_changesCoalescedAndReadBeforeFlush() throws IOException {
+        LibraryJournal journal = newJournal(1000);
+
+        LibraryDelta added = journal.addAlbums(1L, List.of(ALBUM_1, ALBUM_2, ALBUM_3));
+        LibraryDelta removed = journal.removeAlbums(1L, List.of(ALBUM_1, ALBUM_3));
+
+        // album 1 was already in the library, album 3 was added then removed
+        assertEquals(List.of(ALBUM_2, ALBUM_3), added.getAdded());
+        assertEquals(3, added.getSize());
+        assertEquals(6, added.getLibraryVersion());
+        assertEquals(List.of(ALBUM_1, ALBUM_3), removed.getRemoved());
+        assertEquals(1, removed.getSize());
+        assertEquals(7, removed.getLibraryVersion());
+        assertEquals(2, journal.getPendingChanges());
+        assertEquals(Set.of(ALBUM_2), this.albumOrdinals.asSet(journal.getLibrary(1L)));
+        assertEquals(Set.of(ALBUM_2), journal.getUser(1L).get().getAlbumIds());
+        assertEquals(7, journal.getUser(1L).get().getLibraryVersion());
+        // nothing written yet
+        assertEquals(Set.of(ALBUM_1), this.libraries.get(1L));
+        Mockito.verifyNoInteractions(this.transactionManager);
+
+        assertEquals(1, journal.flush());
+
+        assertEquals(Set.of(ALBUM_2), this.libraries.get(1L));
+        assertEquals(7L, this.versions.get(1L));
+        assertEquals(0, journal.getPendingChanges());
+        assertEquals(Set.of(ALBUM_2), this.albumOrdinals.asSet(journal.getLibrary(1L)));
+        Mockito.verify(this.albumPopularity).albumsAdded(List.of(ALBUM_2));
+        Mockito.verify(this.albumPopularity).albumsRemoved(List.of(ALBUM_1));
+        Mockito.verify(this.libraryChangeListener).onLibraryChanged(1L);
+    }
+
+    @Test
+    void test_usersFlushedInBatches() throws IOException {
+        // one user per transaction
+        LibraryJournal journal = newJournal(1);
+
+        journal.addAlbums(1L, List.of(ALBUM_2));
+        journal.addAlbums(2L, List.of(ALBUM_1, ALBUM_2));
+        journal.clearAlbums(2L);
+        journal.addAlbums(2L, List.of(ALBUM_3));
+
+        assertEquals(2, journal.flush());
+
+        assertEquals(Set.of(ALBUM_1, ALBUM_2), this.libraries.get(1L));
+        assertEquals(Set.of(ALBUM_3), this.libraries.get(2L));
+        assertEquals(6L, this.versions.get(1L));
+        assertEquals(3L, this.versions.get(2L));
+        Mockito.verify(this.transactionManager, Mockito.times(2)).commit(Mockito.any());
+        // the journal segments are deleted once flushed
+        assertEquals(0, journal.flush());
+        assertEquals(List.of(), replayed());
+    }
+
+    @Test
+    void test_pendingChangesReplayedAfterCrash() throws IOException {
+        LibraryJournal crashed = newJournal(1000);
+        crashed.addAlbums(1L, List.of(ALBUM_2, ALBUM_3));
+        crashed.removeAlbums(1L, List.of(ALBUM_3));
+        crashed.addAlbums(2L, List.of(ALBUM_1));
+        crashed.discard(2L);
+        // a record torn by the crash
+        try (Stream<Path> segments = Files.list(this.journalPath)) {
+            Path segment = segments.max(Path::compareTo).get();
+            Files.write(segment, new byte[] { 0, 0, 0, 45, 1, 2 }, StandardOpenOption.APPEND);
+        }
+
+        LibraryJournal journal = newJournal(1000);
+
+        assertEquals(Set.of(ALBUM_1, ALBUM_2), this.albumOrdinals.asSet(journal.getLibrary(1L)));
+        assertEquals(7, journal.getUser(1L).get().getLibraryVersion());
+        assertTrue(journal.getLibrary(2L).isEmpty());
+
+        assertEquals(1, journal.flush());
+
+        assertEquals(Set.of(ALBUM_1, ALBUM_2), this.libraries.get(1L));
+        assertEquals(7L, this.versions.get(1L));
+        // the discarded changes of user 2 only left their version
+        assertEquals(1L, this.versions.get(2L));
+        assertTrue(this.libraries.getOrDefault(2L, Set.of()).isEmpty());
+    }
+
+    @Test
+    void test_flushedChangesNotReplayed() throws IOException {
+        // one user per transaction, the transaction of user 2 fails, so that the journal segments are kept
+        LibraryJournal crashed = newJournal(1);
+        crashed.addAlbums(1L, List.of(ALBUM_2));
+        crashed.addAlbums(2L, List.of(ALBUM_3));
+        Mockito.when(this.userLibraryRepository.addAlbums(Mockito.eq(2L), anyCollection())).thenThrow(new IllegalStateException("connection lost"));
+        assertEquals(1, crashed.flush());
+        assertEquals(Set.of(ALBUM_1, ALBUM_2), this.libraries.get(1L));
+        Mockito.reset(this.userLibraryRepository);
+        setUpLibraries();
+
+        // the library of user 1 is then replaced without the journal
+        this.libraries.put(1L, new HashSet<>(Set.of(ALBUM_3)));
+        this.userCache.invalidate(1L);
+
+        LibraryJournal journal = newJournal(1000);
+
+        // the flushed add of user 1 is skipped, the failed one of user 2 is replayed
+        assertEquals(Set.of(ALBUM_3), this.albumOrdinals.asSet(journal.getLibrary(1L)));
+        assertEquals(Set.of(ALBUM_3), this.albumOrdinals.asSet(journal.getLibrary(2L)));
+        assertEquals(1, journal.flush());
+        assertEquals(Set.of(ALBUM_3), this.libraries.get(1L));
+        assertEquals(6L, this.versions.get(1L));
+        assertEquals(Set.of(ALBUM_3), this.libraries.get(2L));
+        assertEquals(1L, this.versions.get(2L));
+    }
+
+    @Test
+    void test_discardJournaledWithoutPendingChanges() throws IOException {
+        LibraryJournal journal = newJournal(1000);
+        journal.addAlbums(1L, List.of(ALBUM_2));
+        journal.flush();
+        long flushed = this.sequences.get(1L);
+
+        journal.discard(1L);
+
+        // the discard is journaled and its sequence recorded, so that it is not replayed
+        assertTrue(this.sequences.get(1L) > flushed);
+        assertEquals(6L, this.versions.get(1L));
+        assertEquals(List.of("1:" + JournalFile.DISCARD), replayed());
+        assertEquals(0, newJournal(1000).getPendingChanges());
+    }
+
+    @Test
+    void test_changesOfDeletedUserDropped() throws IOException {
+        LibraryJournal journal = newJournal(1000);
+        journal.addAlbums(2L, List.of(ALBUM_1));
+
+        this.versions.remove(2L);
+        this.userCache.invalidate(2L);
+
+        assertEquals(0, journal.flush());
+        assertEquals(0, journal.getPendingChanges());
+        Mockito.verify(this.userLibraryRepository, Mockito.never()).addAlbums(anyLong(), anyCollection());
+    }
+
+    private void setUpLibraries() {
+        Mockito.when(this.userLibraryRepository.findAlbumIds(anyLong()))
+                .thenAnswer(invocation -> new HashSet<>(this.libraries.getOrDefault(invocation.getArgument(0), Set.of())));
+        Mockito.when(this.userLibraryRepository.addAlbums(anyLong(), anyCollection())).thenAnswer(invocation -> {
+            Set<UUID> library = this.libraries.computeIfAbsent(invocation.getArgument(0), userId -> new HashSet<>());
+            Collection<UUID> albumIds = invocation.getArgument(1);
+            return albumIds.stream().filter(library::add).collect(Collectors.toList());
+        });
+        Mockito.when(this.userLibraryRepository.removeAlbums(anyLong(), anyCollection())).thenAnswer(invocation -> {
+            Set<UUID> library = this.libraries.computeIfAbsent(invocation.getArgument(0), userId -> new HashSet<>());
+            Collection<UUID> albumIds = invocation.getArgument(1);
+            return albumIds.stream().filter(library::remove).collect(Collectors.toList());
+        });
+    }
+
+    private LibraryJournal newJournal(final int batchSize) throws IOException {
+        LibraryJournal journal = new LibraryJournal(this.userCache, this.userRepository, this.userLibraryRepository,
+                this.albumOrdinals, this.albumPopularity, List.of(this.libraryChangeListener), this.transactionManager,
+                true, this.journalPath, Duration.ofHours(1), batchSize, 10000, false);
+        this.journals.add(journal);
+        return journal;
+    }
+
+    private List<String> replayed() throws IOException {
+        List<String> records = new ArrayList<>();
+        try (JournalFile journalFile = new JournalFile(this.journalPath, false)) {
+            journalFile.replay((sequence, userId, operation, albumIds) -> records.add(userId + ":" + operation));
+        }
+        return records;
+    }
+
+}
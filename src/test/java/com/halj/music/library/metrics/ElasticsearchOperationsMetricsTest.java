@@ -0,0 +1,62 @@
+package com.halj.music.library.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class ElasticsearchOperationsMetricsTest {
+
+    private static final IndexCoordinates ALBUMS = IndexCoordinates.of("albums");
+
+    @Test
+    void test_callsTimedWithOneTimerPerOperationAndException() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ElasticsearchOperations target = Mockito.mock(ElasticsearchOperations.class);
+        Mockito.when(target.exists("1", ALBUMS)).thenReturn(true);
+        Mockito.when(target.exists("2", ALBUMS)).thenThrow(new DataAccessResourceFailureException("down"));
+        ElasticsearchOperations operations = ElasticsearchOperationsMetrics.monitor(target, meterRegistry);
+
+        operations.exists("1", ALBUMS);
+        operations.exists("1", ALBUMS);
+        assertThrows(DataAccessResourceFailureException.class, () -> operations.exists("2", ALBUMS));
+
+        Timer succeeded = meterRegistry.get(ElasticsearchOperationsMetrics.METRIC_NAME)
+                .tag("operation", "exists").tag("exception", "none").timer();
+        assertEquals(2, succeeded.count());
+        assertEquals(1, meterRegistry.get(ElasticsearchOperationsMetrics.METRIC_NAME)
+                .tag("operation", "exists").tag("exception", "DataAccessResourceFailureException").timer().count());
+        assertEquals(2, meterRegistry.getMeters().size());
+    }
+
+    @Test
+    void test_indexOperationsTimed() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ElasticsearchOperations target = Mockito.mock(ElasticsearchOperations.class);
+        IndexOperations indexOperations = Mockito.mock(IndexOperations.class);
+        Mockito.when(target.indexOps(ALBUMS)).thenReturn(indexOperations);
+        Mockito.when(indexOperations.exists()).thenReturn(true);
+        ElasticsearchOperations operations = ElasticsearchOperationsMetrics.monitor(target, meterRegistry);
+
+        operations.indexOps(ALBUMS).refresh();
+        operations.indexOps(ALBUMS).exists();
+
+        Mockito.verify(indexOperations).refresh();
+        assertEquals(1, meterRegistry.get(ElasticsearchOperationsMetrics.METRIC_NAME)
+                .tag("operation", "index.refresh").tag("exception", "none").timer().count());
+        assertEquals(1, meterRegistry.get(ElasticsearchOperationsMetrics.METRIC_NAME)
+                .tag("operation", "index.exists").tag("exception", "none").timer().count());
+        // handing out the index operations does not reach Elasticsearch
+        assertNull(meterRegistry.find(ElasticsearchOperationsMetrics.METRIC_NAME).tag("operation", "indexOps").timer());
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.halj.music.library.popularity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.data.elasticsearch.BulkFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+
+import com.halj.music.library.service.AlbumChangeListener;
+import com.halj.music.library.service.AlbumWriteLog;
+
+class AlbumPopularityTest {
+
+    private static UUID ALBUM_ID_1 = UUID.fromString("c26e1aa2-b52c-4cb0-a907-15a2e323960d");
+    private static UUID ALBUM_ID_2 = UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c");
+
+    private ElasticsearchOperations elasticsearchOperations;
+
+    private AlbumPopularity albumPopularity;
+
+    @BeforeEach
+    public void setUp() {
+        this.elasticsearchOperations = Mockito.mock(ElasticsearchOperations.class);
+        // no scheduled flush during the tests
+        this.albumPopularity = new AlbumPopularity(this.elasticsearchOperations, List.of(), new AlbumWriteLog(), 10, Duration.ofHours(1));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.albumPopularity.shutdown();
+    }
+
+    @Test
+    void test_flushSendsDeltasOnce() {
+
+        this.albumPopularity.albumsAdded(List.of(ALBUM_ID_1, ALBUM_ID_2));
+        this.albumPopularity.albumViewed(ALBUM_ID_1);
+        this.albumPopularity.albumsRemoved(List.of(ALBUM_ID_2));
+
+        // album 2 was added then removed, there is nothing to update
+        assertEquals(1, this.albumPopularity.flush());
+        assertEquals(Map.of(ALBUM_ID_1.toString(), 11L), flushedDeltas(1));
+
+        // the counters are kept until they stay idle for a whole flush
+        assertEquals(1, this.albumPopularity.getPendingAlbums());
+        this.albumPopularity.albumViewed(ALBUM_ID_2);
+        assertEquals(1, this.albumPopularity.flush());
+        assertEquals(Map.of(ALBUM_ID_2.toString(), 1L), flushedDeltas(2));
+        assertEquals(1, this.albumPopularity.getPendingAlbums());
+
+        assertEquals(0, this.albumPopularity.flush());
+        assertEquals(0, this.albumPopularity.getPendingAlbums());
+        Mockito.verify(this.elasticsearchOperations, Mockito.times(2)).bulkUpdate(anyList(), any(IndexCoordinates.class));
+    }
+
+    @Test
+    void test_concurrentCountsAllFlushed() {
+
+        IntStream.range(0, 10_000).parallel().forEach(i -> this.albumPopularity.albumViewed(i % 2 == 0 ? ALBUM_ID_1 : ALBUM_ID_2));
+
+        this.albumPopularity.flush();
+        assertEquals(Map.of(ALBUM_ID_1.toString(), 5000L, ALBUM_ID_2.toString(), 5000L), flushedDeltas(1));
+    }
+
+    @Test
+    void test_listenersGivenFlushedDeltas() {
+        AlbumChangeListener listener = Mockito.mock(AlbumChangeListener.class);
+        AlbumPopularity notifying = new AlbumPopularity(this.elasticsearchOperations, List.of(listener), new AlbumWriteLog(), 10, Duration.ofHours(1));
+        // album 2 was deleted since it was counted
+        Mockito.doThrow(new BulkFailureException("failed", Map.of(ALBUM_ID_2.toString(), "document missing")))
+                .when(this.elasticsearchOperations).bulkUpdate(anyList(), any(IndexCoordinates.class));
+        try {
+            notifying.albumsAdded(List.of(ALBUM_ID_1, ALBUM_ID_2));
+
+            assertEquals(1, notifying.flush());
+            Mockito.verify(listener).onPopularityChanged(Map.of(ALBUM_ID_1, 10L));
+        } finally {
+            notifying.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Long> flushedDeltas(final int flushes) {
+        ArgumentCaptor<List<UpdateQuery>> updates = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(this.elasticsearchOperations, Mockito.times(flushes)).bulkUpdate(updates.capture(), any(IndexCoordinates.class));
+
+        Map<String, Long> deltas = new HashMap<>();
+        updates.getValue().forEach(update -> deltas.put(update.getId(), (Long) update.getParams().get("delta")));
+        return deltas;
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.halj.music.library.recommend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.halj.music.library.bitmap.AlbumOrdinals;
+import com.halj.music.library.repository.UserLibraryRepository;
+
+class AlbumRecommenderTest {
+
+    private static int MAX_LIBRARY_SIZE = 8;
+
+    // libraries stored in the mocked user_library table, also read by the recommender writer
+    private Map<Long, Set<UUID>> libraries = new ConcurrentHashMap<>();
+
+    private List<UUID> albums = new ArrayList<>();
+
+    private AlbumOrdinals albumOrdinals;
+
+    private UserLibraryRepository userLibraryRepository;
+
+    private List<AlbumRecommender> recommenders = new ArrayList<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        for (int i = 0; i < 30; i++) {
+            this.albums.add(UUID.randomUUID());
+        }
+        this.albumOrdinals = new AlbumOrdinals();
+        this.userLibraryRepository = Mockito.mock(UserLibraryRepository.class);
+        Mockito.doAnswer(invocation -> {
+            BiConsumer<Long, List<UUID>> consumer = invocation.getArgument(0);
+            this.libraries.forEach((userId, albumIds) -> consumer.accept(userId, new ArrayList<>(albumIds)));
+            return null;
+        }).when(this.userLibraryRepository).forEachLibrary(any(BiConsumer.class));
+        Mockito.when(this.userLibraryRepository.findAlbumIds(anyLong()))
+                .thenAnswer(invocation -> new HashSet<>(this.libraries.getOrDefault(invocation.getArgument(0), Set.of())));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.recommenders.forEach(AlbumRecommender::shutdown);
+    }
+
+    @Test
+    void test_recommendsAlbumsSharingLibraries() throws InterruptedException {
+
+        UUID a = this.albums.get(0);
+        UUID b = this.albums.get(1);
+        UUID c = this.albums.get(2);
+        UUID d = this.albums.get(3);
+        this.libraries.put(1L, Set.of(a, b, c));
+        this.libraries.put(2L, Set.of(a, b, d));
+        this.libraries.put(3L, Set.of(b, d));
+
+        AlbumRecommender recommender = built();
+
+        // b is in both libraries holding a, c and d in one of them each, but d is more common elsewhere
+        assertEquals(List.of(b, c, d), recommender.recommend(this.albumOrdinals.encode(Set.of(a)), 10));
+        assertEquals(List.of(b), recommender.recommend(this.albumOrdinals.encode(Set.of(a)), 1));
+        // albums of the library are not recommended
+        assertEquals(List.of(c), recommender.recommend(this.albumOrdinals.encode(Set.of(a, b, d)), 10));
+        assertTrue(recommender.recommend(this.albumOrdinals.encode(Set.of(this.albums.get(29))), 10).isEmpty());
+    }
+
+    @Test
+    void test_incrementalUpdatesMatchRebuild() throws InterruptedException {
+
+        Random random = new Random(42);
+        for (long userId = 1; userId <= 20; userId++) {
+            this.libraries.put(userId, randomLibrary(random));
+        }
+        AlbumRecommender recommender = built();
+
+        // libraries changed, emptied, or growing over the max library size
+        for (int change = 0; change < 200; change++) {
+            long userId = 1 + random.nextInt(25);
+            int kind = random.nextInt(10);
+            if (kind == 0) {
+                this.libraries.remove(userId);
+            } else if (kind == 1) {
+                this.libraries.put(userId, new HashSet<>(this.albums.subList(0, MAX_LIBRARY_SIZE + 1)));
+            } else {
+                this.libraries.put(userId, randomLibrary(random));
+            }
+            recommender.onLibraryChanged(userId);
+        }
+        recommender.awaitUpdates();
+
+        AlbumRecommender rebuilt = built();
+        for (UUID album : this.albums) {
+            for (UUID other : this.albums) {
+                assertEquals(rebuilt.getCooccurrences(album, other), recommender.getCooccurrences(album, other));
+            }
+        }
+    }
+
+    private AlbumRecommender built() throws InterruptedException {
+        AlbumRecommender recommender = new AlbumRecommender(this.userLibraryRepository, this.albumOrdinals, 10, MAX_LIBRARY_SIZE);
+        this.recommenders.add(recommender);
+        recommender.rebuild();
+        recommender.awaitUpdates();
+        return recommender;
+    }
+
+    private Set<UUID> randomLibrary(final Random random) {
+        Set<UUID> library = new HashSet<>();
+        int size = random.nextInt(MAX_LIBRARY_SIZE + 1);
+        while (library.size() < size) {
+            library.add(this.albums.get(random.nextInt(this.albums.size())));
+        }
+        return library;
+    }
+
+}
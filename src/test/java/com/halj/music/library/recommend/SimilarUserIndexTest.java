@@ -0,0 +1,99 @@
+package com.halj.music.library.recommend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.halj.music.library.model.SimilarUser;
+import com.halj.music.library.repository.UserLibraryRepository;
+
+class SimilarUserIndexTest {
+
+    // libraries stored in the mocked user_library table, also read by the index writer
+    private Map<Long, Set<UUID>> libraries = new ConcurrentHashMap<>();
+
+    private List<UUID> albums = new ArrayList<>();
+
+    private SimilarUserIndex similarUserIndex;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            this.albums.add(UUID.nameUUIDFromBytes(("album-" + i).getBytes()));
+        }
+        UserLibraryRepository userLibraryRepository = Mockito.mock(UserLibraryRepository.class);
+        Mockito.doAnswer(invocation -> {
+            BiConsumer<Long, List<UUID>> consumer = invocation.getArgument(0);
+            this.libraries.forEach((userId, albumIds) -> consumer.accept(userId, new ArrayList<>(albumIds)));
+            return null;
+        }).when(userLibraryRepository).forEachLibrary(any(BiConsumer.class));
+        Mockito.when(userLibraryRepository.findAlbumIds(anyLong()))
+                .thenAnswer(invocation -> new HashSet<>(this.libraries.getOrDefault(invocation.getArgument(0), Set.of())));
+
+        // user 1 and 2 share 90 of their 100 albums, user 3 half of them, user 4 none
+        this.libraries.put(1L, library(0, 100));
+        this.libraries.put(2L, library(10, 110));
+        this.libraries.put(3L, library(50, 150));
+        this.libraries.put(4L, library(500, 600));
+
+        this.similarUserIndex = new SimilarUserIndex(userLibraryRepository, 20, 5, 1000);
+        this.similarUserIndex.onAllLibrariesChanged();
+        this.similarUserIndex.awaitUpdates();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.similarUserIndex.shutdown();
+    }
+
+    @Test
+    void test_similarUsersFoundByEstimatedJaccard() {
+
+        List<SimilarUser> similar = this.similarUserIndex.findSimilar(1L, 10);
+
+        // user 2 (Jaccard 0.82) is found first, user 4 is never a candidate
+        assertEquals(2L, similar.get(0).getUserId());
+        assertEquals(0.82, similar.get(0).getSimilarity(), 0.15);
+        assertTrue(similar.stream().noneMatch(user -> user.getUserId() == 4L || user.getUserId() == 1L));
+        assertEquals(1, this.similarUserIndex.findSimilar(1L, 1).size());
+        assertTrue(this.similarUserIndex.findSimilar(5L, 10).isEmpty());
+    }
+
+    @Test
+    void test_changedLibrariesReindexed() throws InterruptedException {
+
+        // user 4 now has the library of user 1, user 2 an empty library
+        this.libraries.put(4L, library(0, 100));
+        this.libraries.remove(2L);
+        this.similarUserIndex.onLibraryChanged(4L);
+        this.similarUserIndex.onLibraryChanged(2L);
+        this.similarUserIndex.awaitUpdates();
+
+        List<SimilarUser> similar = this.similarUserIndex.findSimilar(1L, 10);
+        assertEquals(4L, similar.get(0).getUserId());
+        assertEquals(1.0, similar.get(0).getSimilarity());
+        assertTrue(similar.stream().noneMatch(user -> user.getUserId() == 2L));
+        assertTrue(this.similarUserIndex.findSimilar(2L, 10).isEmpty());
+    }
+
+    private Set<UUID> library(final int from, final int to) {
+        return new HashSet<>(this.albums.subList(from, to));
+    }
+
+}
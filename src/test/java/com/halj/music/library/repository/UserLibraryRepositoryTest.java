@@ -0,0 +1,150 @@
+package com.halj.music.library.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.halj.music.library.model.User;
+
+class UserLibraryRepositoryTest {
+
+    private static final UUID ALBUM_1 = UUID.fromString("c26e1aa2-b52c-4cb0-a907-15a2e323960d");
+    private static final UUID ALBUM_2 = UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c");
+
+    private EntityManagerFactory entityManagerFactory;
+    private DataSourceTransactionManager transactionManager;
+    private JdbcTemplate jdbcTemplate;
+
+    // target class to be tested
+    private UserLibraryRepository userLibraryRepository;
+
+    @BeforeEach
+    public void setUp() {
+        // tables created from the entities, concurrent writers wait for each other's row locks
+        DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:user-library;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000", "sa", "");
+        Properties jpaProperties = new Properties();
+        jpaProperties.setProperty("hibernate.hbm2ddl.auto", "create-drop");
+        LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+        factory.setDataSource(dataSource);
+        factory.setPackagesToScan(User.class.getPackageName());
+        factory.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        factory.setJpaProperties(jpaProperties);
+        factory.afterPropertiesSet();
+        this.entityManagerFactory = factory.getObject();
+
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.transactionManager = new DataSourceTransactionManager(dataSource);
+        this.userLibraryRepository = new UserLibraryRepository(this.jdbcTemplate);
+
+        for (long userId = 1; userId <= 2; userId++) {
+            this.jdbcTemplate.update("INSERT INTO user (id, name, email, library_version, journal_sequence) VALUES (?, ?, ?, 0, 0)",
+                    userId, "user " + userId, "user" + userId + "@mail.com");
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.entityManagerFactory.close();
+    }
+
+    @Test
+    void test_albumRemovedTwiceCountedOnce() {
+        this.userLibraryRepository.addAlbums(1L, List.of(ALBUM_1, ALBUM_2));
+        this.userLibraryRepository.addAlbums(2L, List.of(ALBUM_1));
+
+        assertEquals(List.of(ALBUM_1), this.userLibraryRepository.removeAlbums(1L, List.of(ALBUM_1)));
+        assertEquals(List.of(), this.userLibraryRepository.removeAlbums(1L, List.of(ALBUM_1)));
+
+        assertEquals(1, this.userLibraryRepository.countOwners(ALBUM_1));
+        assertEquals(Set.of(ALBUM_2), this.userLibraryRepository.findAlbumIds(1L));
+    }
+
+    @Test
+    void test_concurrentRemovalsCountedOnce() throws Exception {
+        this.userLibraryRepository.addAlbums(1L, List.of(ALBUM_1));
+        this.userLibraryRepository.addAlbums(2L, List.of(ALBUM_1));
+
+        TransactionStatus first = this.transactionManager.getTransaction(new DefaultTransactionDefinition());
+        assertEquals(List.of(ALBUM_1), this.userLibraryRepository.removeAlbums(1L, List.of(ALBUM_1)));
+
+        // the second removal waits for the row lock of the first one, then deletes nothing
+        CompletableFuture<List<UUID>> second = CompletableFuture.supplyAsync(() -> new TransactionTemplate(this.transactionManager)
+                .execute(status -> this.userLibraryRepository.removeAlbums(1L, List.of(ALBUM_1))));
+        Thread.sleep(200);
+        this.transactionManager.commit(first);
+
+        assertEquals(List.of(), second.get(10, TimeUnit.SECONDS));
+        assertEquals(1, this.userLibraryRepository.countOwners(ALBUM_1));
+    }
+
+    @Test
+    void test_concurrentAddsCountedOnce() throws Exception {
+        TransactionStatus first = this.transactionManager.getTransaction(new DefaultTransactionDefinition());
+        assertEquals(List.of(ALBUM_1), this.userLibraryRepository.addAlbums(1L, List.of(ALBUM_1)));
+
+        // the second adds do not see the uncommitted rows, their inserts wait for the first add then fail on the keys
+        CompletableFuture<List<UUID>> second = CompletableFuture.supplyAsync(() -> new TransactionTemplate(this.transactionManager)
+                .execute(status -> this.userLibraryRepository.addAlbums(1L, List.of(ALBUM_2, ALBUM_1))));
+        CompletableFuture<List<UUID>> otherUser = CompletableFuture.supplyAsync(() -> new TransactionTemplate(this.transactionManager)
+                .execute(status -> this.userLibraryRepository.addAlbums(2L, List.of(ALBUM_1))));
+        Thread.sleep(200);
+        this.transactionManager.commit(first);
+
+        assertEquals(List.of(ALBUM_2), second.get(10, TimeUnit.SECONDS));
+        assertEquals(List.of(ALBUM_1), otherUser.get(10, TimeUnit.SECONDS));
+        assertEquals(Set.of(ALBUM_1, ALBUM_2), this.userLibraryRepository.findAlbumIds(1L));
+        assertEquals(2, this.userLibraryRepository.countOwners(ALBUM_1));
+        assertEquals(1, this.userLibraryRepository.countOwners(ALBUM_2));
+    }
+
+    @Test
+    void test_ownerCountsLockedInAlbumOrder() throws Exception {
+        // ALBUM_2 sorts before ALBUM_1
+        TransactionStatus first = this.transactionManager.getTransaction(new DefaultTransactionDefinition());
+        this.userLibraryRepository.addAlbums(1L, List.of(ALBUM_2));
+
+        // the second add waits for the count of ALBUM_2 before locking the count of ALBUM_1, whatever its request order
+        CompletableFuture<List<UUID>> second = CompletableFuture.supplyAsync(() -> new TransactionTemplate(this.transactionManager)
+                .execute(status -> this.userLibraryRepository.addAlbums(2L, List.of(ALBUM_1, ALBUM_2))));
+        Thread.sleep(200);
+        this.userLibraryRepository.addAlbums(1L, List.of(ALBUM_1));
+        this.transactionManager.commit(first);
+
+        assertEquals(List.of(ALBUM_1, ALBUM_2), second.get(10, TimeUnit.SECONDS));
+        assertEquals(2, this.userLibraryRepository.countOwners(ALBUM_1));
+        assertEquals(2, this.userLibraryRepository.countOwners(ALBUM_2));
+    }
+
+    @Test
+    void test_clearAlbumsCountsDeletedRowsOnce() {
+        this.userLibraryRepository.addAlbums(1L, List.of(ALBUM_1, ALBUM_2));
+        this.userLibraryRepository.addAlbums(2L, List.of(ALBUM_1));
+
+        assertEquals(Set.of(ALBUM_1, ALBUM_2), this.userLibraryRepository.clearAlbums(1L));
+        assertEquals(Set.of(), this.userLibraryRepository.clearAlbums(1L));
+
+        assertEquals(1, this.userLibraryRepository.countOwners(ALBUM_1));
+        assertEquals(0, this.userLibraryRepository.countOwners(ALBUM_2));
+        assertEquals(Set.of(ALBUM_1), this.userLibraryRepository.findAlbumIds(2L));
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.halj.music.library.search;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.elastic.Album;
+
+class AlbumInvertedIndexTest {
+
+    private static UUID ALBUM_ID_1 = UUID.fromString("1ca3e093-c2c1-4fa9-b144-4f9d139f23b9");
+    private static UUID ALBUM_ID_2 = UUID.fromString("569e7607-94ef-4c59-9d4f-fe99bd5def5e");
+    private static UUID ALBUM_ID_3 = UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c");
+
+    // target class to be tested
+    AlbumInvertedIndex index;
+
+    @BeforeEach
+    public void setUp() {
+        this.index = new AlbumInvertedIndex();
+        this.index.index(new Album(ALBUM_ID_1, "Southern Fashion", "The Sudden Passion", "2012", null));
+        this.index.index(new Album(ALBUM_ID_2, "Exile", "Geoffrey Oryema", "1990", null));
+        this.index.index(new Album(ALBUM_ID_3, "Fluffy Vs. Phantasmic 1990", "Fluffy", "1996", null));
+    }
+
+    @Test
+    void test_titleMatchRanksAboveYearMatch() {
+
+        AlbumSearchPage page = this.index.search("exile 1990", 0, 10, null);
+
+        assertEquals(2, page.getTotalHits());
+        assertEquals(ALBUM_ID_2, page.getAlbums().get(0).getId());
+        assertEquals(ALBUM_ID_3, page.getAlbums().get(1).getId());
+    }
+
+    @Test
+    void test_searchIsCaseInsensitive() {
+
+        AlbumSearchPage page = this.index.search("SUDDEN passion", 0, 10, null);
+
+        assertEquals(1, page.getTotalHits());
+        assertEquals(ALBUM_ID_1, page.getAlbums().get(0).getId());
+    }
+
+    @Test
+    void test_cursorFetchesNextPage() {
+
+        AlbumSearchPage first = this.index.search("1990", 0, 1, null);
+        AlbumSearchPage second = this.index.search("1990", 0, 1, first.getNextCursor());
+        AlbumSearchPage third = this.index.search("1990", 0, 1, second.getNextCursor());
+
+        assertEquals(2, first.getTotalHits());
+        assertEquals(1, second.getAlbums().size());
+        assertEquals(first.getAlbums().get(0).getId().equals(ALBUM_ID_2) ? ALBUM_ID_3 : ALBUM_ID_2, second.getAlbums().get(0).getId());
+        assertEquals(0, third.getAlbums().size());
+        assertNull(third.getNextCursor());
+    }
+
+    @Test
+    void test_popularAlbumsRankFirstAmongSimilarMatches() {
+
+        // "1990" matches the year of album 2 and the title of album 3, which ranks first by its boost
+        assertEquals(ALBUM_ID_3, this.index.search("1990", 0, 10, null).getAlbums().get(0).getId());
+
+        this.index.addPopularity(Map.of(ALBUM_ID_2, 1000L, ALBUM_ID_3, -5L));
+        assertEquals(ALBUM_ID_2, this.index.search("1990", 0, 10, null).getAlbums().get(0).getId());
+
+        // popularity is kept when the album is written again
+        this.index.index(new Album(ALBUM_ID_2, "Exile", "Geoffrey Oryema", "1990", "http://fakecover.com/cover.jpg"));
+        assertEquals(ALBUM_ID_2, this.index.search("1990", 0, 10, null).getAlbums().get(0).getId());
+
+        // and starts from the indexed one for new albums
+        UUID popular = UUID.randomUUID();
+        Album album = new Album(popular, "Live 1990", "Unknown", "2001", null);
+        album.setPopularity(1_000_000L);
+        this.index.index(album);
+        assertEquals(popular, this.index.search("1990", 0, 10, null).getAlbums().get(0).getId());
+    }
+
+    @Test
+    void test_updatedAndRemovedAlbumsReindexed() {
+
+        this.index.index(new Album(ALBUM_ID_2, "Exodus", "Geoffrey Oryema", "1990", null));
+        this.index.remove(ALBUM_ID_1);
+
+        assertEquals(0, this.index.search("exile", 0, 10, null).getTotalHits());
+        assertEquals(1, this.index.search("exodus", 0, 10, null).getTotalHits());
+        assertEquals(0, this.index.search("fashion", 0, 10, null).getTotalHits());
+
+        // freed ordinal is reused
+        this.index.index(new Album(UUID.randomUUID(), "Southern Comfort", "Another Band", "2001", null));
+        assertEquals(3, this.index.size());
+        assertEquals(1, this.index.search("southern", 0, 10, null).getTotalHits());
+    }
+
+}
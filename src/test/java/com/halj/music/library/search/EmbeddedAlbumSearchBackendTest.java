@@ -0,0 +1,51 @@
+package com.halj.music.library.search;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.cluster.ClusterOperations;
+
+import com.halj.music.library.model.elastic.Album;
+
+class EmbeddedAlbumSearchBackendTest {
+
+    private static UUID ALBUM_ID = UUID.fromString("569e7607-94ef-4c59-9d4f-fe99bd5def5e");
+
+    private ClusterOperations clusterOperations;
+
+    // target class to be tested
+    private EmbeddedAlbumSearchBackend embeddedBackend;
+
+    @BeforeEach
+    public void setUp() {
+        ElasticsearchOperations elasticsearchOperations = Mockito.mock(ElasticsearchOperations.class);
+        this.clusterOperations = Mockito.mock(ClusterOperations.class);
+        Mockito.when(elasticsearchOperations.cluster()).thenReturn(this.clusterOperations);
+        this.embeddedBackend = new EmbeddedAlbumSearchBackend(elasticsearchOperations);
+    }
+
+    @Test
+    void test_startupRefusedWithoutCluster() {
+        Mockito.when(this.clusterOperations.health()).thenThrow(new DataAccessResourceFailureException("Connection refused"));
+
+        assertThrows(IllegalStateException.class, () -> this.embeddedBackend.checkCluster());
+    }
+
+    @Test
+    void test_searchServedInProcessOnceClusterReached() {
+        this.embeddedBackend.checkCluster();
+        this.embeddedBackend.onAlbumsSaved(List.of(new Album(ALBUM_ID, "Exile", "Geoffrey Oryema", "1990", null)));
+
+        assertEquals(ALBUM_ID, this.embeddedBackend.search("exile", 0, 10, null).getAlbums().get(0).getId());
+        Mockito.verify(this.clusterOperations).health();
+    }
+
+}
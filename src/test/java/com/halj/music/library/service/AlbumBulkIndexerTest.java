@@ -0,0 +1,167 @@
+package com.halj.music.library.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import javax.validation.Validation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.elasticsearch.BulkFailureException;
+import org.springframework.data.elasticsearch.RestStatusException;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.halj.music.library.model.BulkIndexingJob;
+import com.halj.music.library.model.BulkIndexingResult;
+import com.halj.music.library.model.elastic.Album;
+
+@ExtendWith(SpringExtension.class)
+class AlbumBulkIndexerTest {
+
+    @TestConfiguration
+    static class AlbumBulkIndexerTestContextConfiguration {
+
+        @Bean
+        @Primary
+        public AlbumBulkIndexer albumBulkIndexer(AlbumService albumService) {
+            // chunks of 2 albums, 2 chunks in flight, 3 retries of rejected albums
+            return new AlbumBulkIndexer(albumService, new ObjectMapper(), Validation.buildDefaultValidatorFactory().getValidator(),
+                    2, 2, 3, Duration.ofMillis(1));
+        }
+
+    }
+
+    // Mock album service - we are not testing that albums are saved
+    @MockBean
+    AlbumService albumService;
+
+    // target class to be tested
+    @Autowired
+    AlbumBulkIndexer albumBulkIndexer;
+
+    private static final IndexCoordinates ALBUMS = IndexCoordinates.of("albums");
+
+    private static final String ALBUM_1 = "{\"id\":\"c26e1aa2-b52c-4cb0-a907-15a2e323960d\",\"title\":\"Green Day in America\",\"artist\":\"Green Day\",\"releaseYear\":\"1990\"}";
+    private static final String ALBUM_2 = "{\"id\":\"b9930c12-5e79-4cd3-8630-363222983a4c\",\"title\":\"Fluffy Vs. Phantasmic\",\"artist\":\"Fluffy\",\"releaseYear\":\"1996\"}";
+    private static final String ALBUM_3 = "{\"title\":\"Exile\",\"artist\":\"Geoffrey Oryema\",\"releaseYear\":\"1990\"}";
+
+    @Test
+    void test_jsonArrayIndexedInChunks() throws IOException {
+
+        BulkIndexingResult result = this.albumBulkIndexer.index(toStream("[" + ALBUM_1 + "," + ALBUM_2 + "," + ALBUM_3 + "]"));
+
+        assertEquals(3, result.getIndexed());
+        assertEquals(0, result.getFailed());
+        // 2 full chunks: [1, 2] and [3], written without refresh, then a single refresh
+        Mockito.verify(this.albumService, Mockito.times(2)).saveAlbums(anyList(), eq(ALBUMS));
+        Mockito.verify(this.albumService, Mockito.never()).saveAlbums(anyList());
+        Mockito.verify(this.albumService).refresh();
+    }
+
+    @Test
+    void test_generationNotRefreshed() throws IOException {
+        IndexCoordinates generation = IndexCoordinates.of("albums-1-1");
+
+        this.albumBulkIndexer.index(toStream(ALBUM_1 + "\n"), generation);
+
+        Mockito.verify(this.albumService).saveAlbums(anyList(), eq(generation));
+        Mockito.verify(this.albumService, Mockito.never()).refresh();
+    }
+
+    @Test
+    void test_ndjsonIndexedInChunks() throws IOException {
+
+        BulkIndexingResult result = this.albumBulkIndexer.index(toStream(ALBUM_1 + "\n" + ALBUM_2 + "\n" + ALBUM_3 + "\n"));
+
+        assertEquals(3, result.getIndexed());
+        Mockito.verify(this.albumService, Mockito.times(2)).saveAlbums(anyList(), eq(ALBUMS));
+    }
+
+    @Test
+    void test_failedChunkCounted() throws IOException {
+        Mockito.when(this.albumService.saveAlbums(anyList(), eq(ALBUMS))).thenThrow(new IllegalStateException("cluster unavailable"));
+
+        BulkIndexingResult result = this.albumBulkIndexer.index(toStream("[" + ALBUM_1 + "," + ALBUM_2 + "]"));
+
+        assertEquals(0, result.getIndexed());
+        assertEquals(2, result.getFailed());
+    }
+
+    @Test
+    void test_invalidRecordsSkipped() throws IOException {
+        String noTitle = "{\"artist\":\"Green Day\",\"releaseYear\":\"1990\"}";
+        String badId = "{\"id\":\"not-a-uuid\",\"title\":\"Exile\",\"artist\":\"Geoffrey Oryema\"}";
+
+        BulkIndexingJob job = new BulkIndexingJob(null);
+        this.albumBulkIndexer.index(toStream(ALBUM_1 + "\n" + noTitle + "\n" + badId + "\n" + ALBUM_2 + "\n"), job);
+
+        assertEquals(2, job.getIndexed());
+        assertEquals(2, job.getInvalid());
+        assertEquals(4, job.getProcessed());
+        assertEquals(2, job.getErrors().size());
+        assertTrue(job.getErrors().get(0).startsWith("record 2: title"));
+    }
+
+    @Test
+    void test_rejectedRequestRetried() throws IOException {
+        Mockito.when(this.albumService.saveAlbums(anyList(), eq(ALBUMS)))
+                .thenThrow(new RestStatusException(429, "rejected"))
+                .thenReturn(List.of());
+
+        BulkIndexingJob job = new BulkIndexingJob(null);
+        this.albumBulkIndexer.index(toStream(ALBUM_1 + "\n" + ALBUM_2 + "\n"), job);
+
+        assertEquals(2, job.getIndexed());
+        assertEquals(0, job.getFailed());
+        assertEquals(2, job.getRetried());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void test_onlyRejectedAlbumsRetried() throws IOException {
+        String rejected = "ElasticsearchException[Elasticsearch exception [type=es_rejected_execution_exception, reason=rejected execution]]";
+        String mapping = "ElasticsearchException[Elasticsearch exception [type=mapper_parsing_exception, reason=failed to parse]]";
+        Mockito.when(this.albumService.saveAlbums(anyList(), eq(ALBUMS)))
+                .thenThrow(new BulkFailureException("bulk failure", Map.of(
+                        "c26e1aa2-b52c-4cb0-a907-15a2e323960d", rejected,
+                        "b9930c12-5e79-4cd3-8630-363222983a4c", mapping)))
+                .thenReturn(List.of());
+
+        BulkIndexingJob job = new BulkIndexingJob(null);
+        this.albumBulkIndexer.index(toStream(ALBUM_1 + "\n" + ALBUM_2 + "\n"), job);
+
+        assertEquals(1, job.getIndexed());
+        assertEquals(1, job.getFailed());
+        assertEquals(1, job.getRetried());
+
+        // the second bulk only contains the rejected album
+        ArgumentCaptor<List<Album>> chunks = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(this.albumService, Mockito.times(2)).saveAlbums(chunks.capture(), eq(ALBUMS));
+        assertEquals(1, chunks.getAllValues().get(1).size());
+        assertEquals("Green Day in America", chunks.getAllValues().get(1).get(0).getTitle());
+    }
+
+    private static InputStream toStream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.halj.music.library.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.halj.music.library.exception.BulkJobRejectedException;
+import com.halj.music.library.model.BulkIndexingJob;
+
+class AlbumBulkJobServiceTest {
+
+    private CountDownLatch started;
+    private CountDownLatch release;
+    private AlbumBulkIndexer albumBulkIndexer;
+
+    // target class to be tested, 1 job running and 1 queued, finished jobs kept 50ms
+    private AlbumBulkJobService albumBulkJobService;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        this.started = new CountDownLatch(1);
+        this.release = new CountDownLatch(1);
+        this.albumBulkIndexer = Mockito.mock(AlbumBulkIndexer.class);
+        Mockito.doAnswer(invocation -> {
+            this.started.countDown();
+            this.release.await(10, TimeUnit.SECONDS);
+            return null;
+        }).when(this.albumBulkIndexer).index(any(InputStream.class), any(BulkIndexingJob.class));
+        this.albumBulkJobService = new AlbumBulkJobService(this.albumBulkIndexer, 1, 1, Duration.ofMillis(50));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.release.countDown();
+        this.albumBulkJobService.shutdown();
+    }
+
+    @Test
+    void test_jobRejectedWithoutReadingUploadWhenQueueFull() throws Exception {
+        BulkIndexingJob running = this.albumBulkJobService.submit(upload());
+        assertTrue(this.started.await(10, TimeUnit.SECONDS));
+        BulkIndexingJob queued = this.albumBulkJobService.submit(upload());
+
+        ByteArrayInputStream rejectedUpload = upload();
+        assertThrows(BulkJobRejectedException.class, () -> this.albumBulkJobService.submit(rejectedUpload));
+        assertEquals(rejectedUpload.available(), upload().available());
+
+        // the slots are released as the jobs finish
+        this.release.countDown();
+        awaitFinished(running);
+        awaitFinished(queued);
+        awaitFinished(submitWhenAccepted());
+    }
+
+    @Test
+    void test_runningJobTrackedPastRetention() throws Exception {
+        BulkIndexingJob job = this.albumBulkJobService.submit(upload());
+        assertTrue(this.started.await(10, TimeUnit.SECONDS));
+
+        Thread.sleep(200);
+
+        assertEquals(BulkIndexingJob.Status.RUNNING, this.albumBulkJobService.getJob(job.getId()).getStatus());
+    }
+
+    private BulkIndexingJob submitWhenAccepted() throws Exception {
+        // the slot of a finished job is released just after its status is updated
+        for (int i = 0; i < 100; i++) {
+            try {
+                return this.albumBulkJobService.submit(upload());
+            } catch (BulkJobRejectedException e) {
+                Thread.sleep(10);
+            }
+        }
+        return this.albumBulkJobService.submit(upload());
+    }
+
+    private void awaitFinished(BulkIndexingJob job) throws InterruptedException {
+        for (int i = 0; i < 1000 && job.getStatus() != BulkIndexingJob.Status.COMPLETED; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(BulkIndexingJob.Status.COMPLETED, job.getStatus());
+        assertNotNull(job.getFinishedAt());
+    }
+
+    private static ByteArrayInputStream upload() {
+        return new ByteArrayInputStream("{\"title\":\"Exile\"}\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,290 @@
+package com.halj.music.library.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.data.elasticsearch.BulkFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexInformation;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.MultiGetItem;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.SearchHitsImpl;
+import org.springframework.data.elasticsearch.core.TotalHitsRelation;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.data.elasticsearch.core.index.AliasAction;
+import org.springframework.data.elasticsearch.core.index.AliasActions;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.IndexQuery;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.Query;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import com.halj.music.library.model.BulkIndexingJob;
+import com.halj.music.library.model.elastic.Album;
+
+@ExtendWith(SpringExtension.class)
+class AlbumIndexManagerTest {
+
+    // Mock Elasticsearch client, bulk indexer and album service
+    @MockBean
+    ElasticsearchOperations elasticsearchOperations;
+
+    @MockBean
+    RestHighLevelClient client;
+
+    @MockBean
+    AlbumBulkIndexer albumBulkIndexer;
+
+    @MockBean
+    AlbumService albumService;
+
+    AlbumWriteLog albumWriteLog = new AlbumWriteLog();
+
+    // target class to be tested, settings updates are stubbed as the rest client cannot be mocked
+    AlbumIndexManager albumIndexManager;
+
+    // index operations by index name
+    Map<String, IndexOperations> indexOps = new HashMap<>();
+
+    @Captor
+    ArgumentCaptor<Map<String, Object>> settings;
+
+    @Captor
+    ArgumentCaptor<List<IndexQuery>> copies;
+
+    @Captor
+    ArgumentCaptor<List<UpdateQuery>> updates;
+
+    private AutoCloseable captors;
+
+    private static final UUID ALBUM_1 = UUID.fromString("c26e1aa2-b52c-4cb0-a907-15a2e323960d");
+    private static final UUID ALBUM_2 = UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c");
+    private static final UUID ALBUM_3 = UUID.fromString("569e7607-94ef-4c59-9d4f-fe99bd5def5e");
+
+    private static final InputStreamSource DATASET = new ByteArrayResource("[]".getBytes(StandardCharsets.UTF_8));
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        this.captors = MockitoAnnotations.openMocks(this);
+        IndexOperations albumIndexOps = Mockito.mock(IndexOperations.class);
+        Mockito.when(albumIndexOps.createMapping()).thenReturn(Document.parse("{\"properties\":{}}"));
+        Mockito.when(this.elasticsearchOperations.indexOps(Album.class)).thenReturn(albumIndexOps);
+        Mockito.when(this.elasticsearchOperations.indexOps(any(IndexCoordinates.class)))
+                .thenAnswer(invocation -> indexOps(invocation.<IndexCoordinates> getArgument(0).getIndexName()));
+        // no popular album in the live generation unless stated otherwise
+        Mockito.when(this.elasticsearchOperations.search(any(Query.class), eq(Album.class), any(IndexCoordinates.class)))
+                .thenReturn(popular());
+
+        this.albumIndexManager = Mockito.spy(new AlbumIndexManager(this.elasticsearchOperations, this.client, this.albumBulkIndexer,
+                this.albumService, this.albumWriteLog, 1, "1s"));
+        Mockito.doNothing().when(this.albumIndexManager).updateSettings(any(), anyMap());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.captors.close();
+    }
+
+    @Test
+    void test_reloadSkippedWhenChecksumMatchesLiveGeneration() throws IOException {
+        String live = "albums-" + this.albumIndexManager.checksum(DATASET) + "-1";
+        Mockito.when(indexOps("albums").getAliases("albums")).thenReturn(Map.of(live, Set.of()));
+
+        assertEquals(live, this.albumIndexManager.reload(DATASET));
+
+        Mockito.verify(this.albumBulkIndexer, Mockito.never()).index(any(), any(BulkIndexingJob.class), any());
+        Mockito.verify(this.albumService).warmUpListeners(live);
+    }
+
+    @Test
+    void test_newGenerationBuiltThenSwappedAtomically() throws IOException {
+        String previous = "albums-0000000000000000-1";
+        Mockito.when(indexOps("albums").getAliases("albums")).thenReturn(Map.of(previous, Set.of()));
+        Mockito.when(indexOps("albums-*").getInformation())
+                .thenAnswer(invocation -> this.indexOps.keySet().stream()
+                        .filter(name -> name.startsWith("albums-") && !name.equals("albums-*"))
+                        .map(name -> IndexInformation.of(name, null, null, null))
+                        .collect(Collectors.toList()));
+        indexOps(previous);
+
+        String generation = this.albumIndexManager.reload(DATASET);
+
+        assertTrue(generation.startsWith("albums-") && !generation.equals(previous));
+
+        // bulk loaded without replicas nor refresh, then restored
+        Mockito.verify(indexOps(generation)).create(this.settings.capture(), any(Document.class));
+        assertEquals(0, this.settings.getValue().get("index.number_of_replicas"));
+        assertEquals("-1", this.settings.getValue().get("index.refresh_interval"));
+        Mockito.verify(this.albumBulkIndexer).index(any(), any(BulkIndexingJob.class), eq(IndexCoordinates.of(generation)));
+        Mockito.verify(this.albumIndexManager).updateSettings(generation, Map.of("index.number_of_replicas", 1, "index.refresh_interval", "1s"));
+
+        // alias moved in a single request, then previous generation deleted
+        ArgumentCaptor<AliasActions> actions = ArgumentCaptor.forClass(AliasActions.class);
+        Mockito.verify(indexOps(generation)).alias(actions.capture());
+        List<AliasAction> aliasActions = actions.getValue().getActions();
+        assertEquals(2, aliasActions.size());
+        assertTrue(aliasActions.get(0) instanceof AliasAction.Add);
+        assertTrue(aliasActions.get(1) instanceof AliasAction.Remove);
+        assertEquals(List.of(previous), List.of(aliasActions.get(1).getParameters().getIndices()));
+        Mockito.verify(indexOps(previous)).delete();
+        Mockito.verify(this.albumService).evictCache();
+
+        // listeners fed with the new generation once live, not while it was built
+        InOrder inOrder = Mockito.inOrder(indexOps(generation), this.albumService);
+        inOrder.verify(indexOps(generation)).alias(any());
+        inOrder.verify(this.albumService).warmUpListeners(generation);
+    }
+
+    @Test
+    void test_writesThroughAliasReplayedBeforeSwap() throws IOException {
+        String previous = "albums-0000000000000000-1";
+        Mockito.when(indexOps("albums").getAliases("albums")).thenReturn(Map.of(previous, Set.of()));
+        Album saved = new Album(ALBUM_1, "Dookie", "Green Day", "1994", null);
+        saved.setPopularity(42L);
+        Album savedLast = new Album(ALBUM_3, "Nimrod", "Green Day", "1997", null);
+        Map<String, Album> live = Map.of(ALBUM_1.toString(), saved, ALBUM_3.toString(), savedLast);
+        Mockito.when(this.elasticsearchOperations.multiGet(any(Query.class), eq(Album.class), eq(IndexCoordinates.of("albums"))))
+                .thenAnswer(invocation -> invocation.<NativeSearchQuery> getArgument(0).getIds().stream()
+                        .map(id -> MultiGetItem.of(live.get(id), null))
+                        .collect(Collectors.toList()));
+        // album 1 saved and album 2 deleted during the load, album 3 saved once the load is over
+        Mockito.doAnswer(invocation -> {
+            this.albumWriteLog.write(List.of(ALBUM_1, ALBUM_2), () -> { });
+            return null;
+        }).when(this.albumBulkIndexer).index(any(), any(BulkIndexingJob.class), any());
+        Mockito.doAnswer(invocation -> {
+            this.albumWriteLog.write(List.of(ALBUM_3), () -> { });
+            return null;
+        }).when(this.albumIndexManager).updateSettings(any(), anyMap());
+
+        String generation = this.albumIndexManager.reload(DATASET);
+
+        IndexCoordinates target = IndexCoordinates.of(generation);
+        InOrder inOrder = Mockito.inOrder(this.elasticsearchOperations, indexOps(generation));
+        inOrder.verify(this.elasticsearchOperations).bulkIndex(this.copies.capture(), eq(target));
+        inOrder.verify(this.elasticsearchOperations).bulkIndex(this.copies.capture(), eq(target));
+        inOrder.verify(indexOps(generation)).alias(any());
+        assertEquals(List.of(saved, savedLast), this.copies.getAllValues().stream()
+                .map(queries -> queries.get(0).getObject())
+                .collect(Collectors.toList()));
+        Mockito.verify(this.elasticsearchOperations).delete(ALBUM_2.toString(), target);
+    }
+
+    @Test
+    void test_generationDiscardedWhenAlbumsFail() throws IOException {
+        String previous = "albums-0000000000000000-1";
+        Mockito.when(indexOps("albums").getAliases("albums")).thenReturn(Map.of(previous, Set.of()));
+        Mockito.doAnswer(invocation -> {
+            invocation.<BulkIndexingJob> getArgument(1).albumsFailed(1);
+            return null;
+        }).when(this.albumBulkIndexer).index(any(), any(BulkIndexingJob.class), any());
+
+        assertEquals(previous, this.albumIndexManager.reload(DATASET));
+
+        String discarded = this.indexOps.keySet().stream()
+                .filter(name -> name.startsWith("albums-") && !name.equals(previous))
+                .findFirst()
+                .orElseThrow();
+        Mockito.verify(indexOps(discarded)).delete();
+        Mockito.verify(indexOps(discarded), Mockito.never()).alias(any());
+    }
+
+    @Test
+    void test_writesNotRecordedOutsideRebuilds() throws IOException {
+        String previous = "albums-0000000000000000-1";
+        Mockito.when(indexOps("albums").getAliases("albums")).thenReturn(Map.of(previous, Set.of()));
+        this.albumWriteLog.write(List.of(ALBUM_1), () -> { });
+
+        this.albumIndexManager.reload(DATASET);
+
+        Mockito.verify(this.elasticsearchOperations, Mockito.never()).multiGet(any(Query.class), eq(Album.class), any(IndexCoordinates.class));
+        Mockito.verify(this.elasticsearchOperations, Mockito.never()).bulkIndex(anyList(), any(IndexCoordinates.class));
+    }
+
+    @Test
+    void test_popularityCopiedFromLiveGenerationBeforeSwap() throws IOException {
+        String previous = "albums-0000000000000000-1";
+        Mockito.when(indexOps("albums").getAliases("albums")).thenReturn(Map.of(previous, Set.of()));
+        Mockito.when(this.elasticsearchOperations.search(any(Query.class), eq(Album.class), eq(IndexCoordinates.of("albums"))))
+                .thenReturn(popular(popular(ALBUM_1, 42L), popular(ALBUM_2, 7L)));
+        // album 2 is no longer in the dataset
+        Mockito.doThrow(new BulkFailureException("failed", Map.of(ALBUM_2.toString(), "[_doc][" + ALBUM_2 + "]: document missing")))
+                .when(this.elasticsearchOperations).bulkUpdate(anyList(), any(IndexCoordinates.class));
+
+        String generation = this.albumIndexManager.reload(DATASET);
+
+        ArgumentCaptor<NativeSearchQuery> query = ArgumentCaptor.forClass(NativeSearchQuery.class);
+        Mockito.verify(this.elasticsearchOperations).search(query.capture(), eq(Album.class), eq(IndexCoordinates.of("albums")));
+        assertEquals(List.of("popularity"), List.of(query.getValue().getSourceFilter().getIncludes()));
+
+        InOrder inOrder = Mockito.inOrder(this.elasticsearchOperations, indexOps(generation));
+        inOrder.verify(this.elasticsearchOperations).bulkUpdate(this.updates.capture(), eq(IndexCoordinates.of(generation)));
+        inOrder.verify(indexOps(generation)).alias(any());
+        assertEquals(List.of(ALBUM_1.toString(), ALBUM_2.toString()), this.updates.getValue().stream()
+                .map(UpdateQuery::getId)
+                .collect(Collectors.toList()));
+        assertEquals(Map.of("popularity", 42L), this.updates.getValue().get(0).getDocument());
+    }
+
+    @Test
+    void test_generationNotSwappedWhenPopularityCopyFails() throws IOException {
+        String previous = "albums-0000000000000000-1";
+        Mockito.when(indexOps("albums").getAliases("albums")).thenReturn(Map.of(previous, Set.of()));
+        Mockito.when(this.elasticsearchOperations.search(any(Query.class), eq(Album.class), eq(IndexCoordinates.of("albums"))))
+                .thenReturn(popular(popular(ALBUM_1, 42L)));
+        Mockito.doThrow(new BulkFailureException("failed", Map.of(ALBUM_1.toString(), "es_rejected_execution_exception")))
+                .when(this.elasticsearchOperations).bulkUpdate(anyList(), any(IndexCoordinates.class));
+
+        assertThrows(IllegalStateException.class, () -> this.albumIndexManager.reload(DATASET));
+
+        Mockito.verify(indexOps(previous), Mockito.never()).delete();
+        this.indexOps.values().forEach(ops -> Mockito.verify(ops, Mockito.never()).alias(any()));
+    }
+
+    @SafeVarargs
+    private static SearchHits<Album> popular(SearchHit<Album>... hits) {
+        return new SearchHitsImpl<>(hits.length, TotalHitsRelation.EQUAL_TO, 1.0f, null, List.of(hits), null, null);
+    }
+
+    private static SearchHit<Album> popular(UUID albumId, Long popularity) {
+        Album album = new Album(albumId, null, null, null, null);
+        album.setPopularity(popularity);
+        return new SearchHit<>("albums", albumId.toString(), null, 1.0f, null, Collections.emptyMap(), null, null, null, null, album);
+    }
+
+    private IndexOperations indexOps(String index) {
+        return this.indexOps.computeIfAbsent(index, name -> Mockito.mock(IndexOperations.class));
+    }
+
+}
@@ -1,13 +1,37 @@
 package com.halj.music.library.service;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
 
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.TestConfiguration;
@@ -15,10 +39,33 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.SearchHitsImpl;
+import org.springframework.data.elasticsearch.core.TotalHitsRelation;
+import org.springframework.data.elasticsearch.core.clients.elasticsearch7.ElasticsearchAggregations;
+import org.springframework.data.elasticsearch.core.convert.ElasticsearchCustomConversions;
+import org.springframework.data.elasticsearch.core.convert.MappingElasticsearchConverter;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.Query;
+import org.springframework.data.elasticsearch.core.query.UpdateQuery;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
+import com.halj.music.library.cache.AlbumCache;
+import com.halj.music.library.exception.InvalidRequestException;
+import com.halj.music.library.model.AlbumFacetPage;
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.SearchCursor;
 import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.popularity.AlbumPopularity;
 import com.halj.music.library.repository.elastic.AlbumRepository;
+import com.halj.music.library.search.ElasticAlbumSearchBackend;
+import com.halj.music.library.snapshot.AlbumSnapshot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 @ExtendWith(SpringExtension.class)
 class AlbumServiceTest {
@@ -28,8 +75,17 @@ class AlbumServiceTest {
 
         @Bean
         @Primary
-        public AlbumService albumService(AlbumRepository albumRepository, ElasticsearchOperations elasticsearchOperations) {
-            return new AlbumService(albumRepository, elasticsearchOperations);
+        public AlbumService albumService(AlbumRepository albumRepository, ElasticsearchOperations elasticsearchOperations,
+                AlbumPopularity albumPopularity) {
+            return new AlbumService(albumRepository,
+                    elasticsearchOperations,
+                    new AlbumCache(albumRepository, 100),
+                    new ElasticAlbumSearchBackend(elasticsearchOperations, 10000),
+                    Collections.emptyList(),
+                    new AlbumWriteLog(),
+                    albumPopularity,
+                    2,
+                    new SimpleMeterRegistry());
         }
 
     }
@@ -41,18 +97,31 @@ class AlbumServiceTest {
     @MockBean
     ElasticsearchOperations elasticsearchOperations;
 
+    @MockBean
+    AlbumPopularity albumPopularity;
+
     // target class to be tested
     @Autowired
     AlbumService albumService;
 
+    @BeforeEach
+    public void setUp() {
+        // albums are converted to documents as by the template, UUIDs being written as strings
+        ElasticsearchCustomConversions conversions = new ElasticsearchCustomConversions(List.of());
+        SimpleElasticsearchMappingContext mappingContext = new SimpleElasticsearchMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        MappingElasticsearchConverter converter = new MappingElasticsearchConverter(mappingContext);
+        converter.setConversions(conversions);
+        converter.afterPropertiesSet();
+        Mockito.when(this.elasticsearchOperations.getElasticsearchConverter()).thenReturn(converter);
+        Mockito.when(this.elasticsearchOperations.indexOps(any(IndexCoordinates.class))).thenReturn(Mockito.mock(IndexOperations.class));
+    }
+
     @Test
     void test_uuidGeneratedIfMissingWhenSave() {
 
         Album album = new Album(null, "Green Day in America", "Green Day", "1990", "http://fakecover.com/cover.jpg");
 
-        Mockito.when(this.albumRepository.save(album))
-                .thenReturn(album);
-
         assertNull(album.getId());
 
         Album saved = this.albumService.saveAlbum(album);
@@ -70,9 +139,6 @@ class AlbumServiceTest {
         albums.add(album_1);
         albums.add(album_2);
 
-        Mockito.when(this.albumRepository.saveAll(albums))
-                .thenReturn(albums);
-
         albums.forEach(album -> assertNull(album.getId()));
 
         Iterable<Album> saved = this.albumService.saveAlbums(albums);
@@ -80,4 +146,227 @@ class AlbumServiceTest {
         saved.forEach(album -> assertNotNull(album.getId()));
     }
 
+    @Test
+    void test_saveOfUncachedAlbumDoesNotReadIt() {
+
+        Album album = new Album(UUID.fromString("4f1ad1c4-2b8e-4a53-9d8b-0f6c7b3d9e21"), "Exile", "The Sudden Passion", "2014", null);
+        this.albumService.evictCache();
+
+        this.albumService.saveAlbum(album);
+
+        Mockito.verify(this.albumRepository, Mockito.never()).findById(album.getId());
+        assertNull(album.getPopularity());
+    }
+
+    @Test
+    void test_saveAfterPopularityFlushLeavesPopularityUntouched() {
+
+        Album album = new Album(UUID.fromString("1ca3e093-c2c1-4fa9-b144-4f9d139f23b9"), "Southern Fashion", "The Sudden Passion", "2012", null);
+        album.setPopularity(5L);
+        // albums cached by a previous test
+        this.albumService.evictCache();
+        Mockito.when(this.albumRepository.findById(album.getId())).thenReturn(Optional.of(album));
+        this.albumService.getAlbum(album.getId());
+
+        // popularity flushed by a script, the cached album is now stale
+        AlbumPopularity albumPopularity = new AlbumPopularity(this.elasticsearchOperations, List.of(), new AlbumWriteLog(), 10, Duration.ofHours(1));
+        albumPopularity.albumsAdded(List.of(album.getId()));
+        assertEquals(1, albumPopularity.flush());
+        albumPopularity.shutdown();
+
+        Album update = new Album(album.getId(), "Southern Fashion (Remastered)", "The Sudden Passion", "2012", null);
+        this.albumService.saveAlbum(update);
+        this.albumService.saveAlbums(List.of(update));
+
+        // upserts of the client fields only, the stale cached popularity is never written back
+        ArgumentCaptor<UpdateQuery> upsert = ArgumentCaptor.forClass(UpdateQuery.class);
+        Mockito.verify(this.elasticsearchOperations).update(upsert.capture(), eq(IndexCoordinates.of("albums")));
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<UpdateQuery>> upserts = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(this.elasticsearchOperations, Mockito.times(2)).bulkUpdate(upserts.capture(), eq(IndexCoordinates.of("albums")));
+        for (UpdateQuery query : List.of(upsert.getValue(), upserts.getValue().get(0))) {
+            assertEquals(Boolean.TRUE, query.getDocAsUpsert());
+            assertFalse(query.getDocument().containsKey("popularity"));
+            assertEquals("Southern Fashion (Remastered)", query.getDocument().get("title"));
+            // cleared fields are sent as null
+            assertTrue(query.getDocument().containsKey("coverURL"));
+            assertNull(query.getDocument().get("coverURL"));
+        }
+        Mockito.verify(this.elasticsearchOperations, Mockito.never()).save(any(Album.class), any(IndexCoordinates.class));
+        Mockito.verify(this.albumRepository, Mockito.never()).save(any());
+        // the album is read again with its indexed popularity
+        this.albumService.getAlbum(album.getId());
+        Mockito.verify(this.albumRepository, Mockito.times(2)).findById(album.getId());
+    }
+
+    @Test
+    void test_albumViewsCountedWhenFound() {
+
+        Album album = new Album(UUID.fromString("1ca3e093-c2c1-4fa9-b144-4f9d139f23b9"), "Southern Fashion", "The Sudden Passion", "2012", null);
+        UUID unknownAlbumId = UUID.randomUUID();
+
+        Mockito.when(this.albumRepository.findById(album.getId()))
+                .thenReturn(Optional.of(album));
+        Mockito.when(this.albumRepository.findById(unknownAlbumId))
+                .thenReturn(Optional.empty());
+
+        assertTrue(this.albumService.getAlbum(album.getId()).isPresent());
+        assertTrue(this.albumService.getAlbum(unknownAlbumId).isEmpty());
+
+        Mockito.verify(this.albumPopularity).albumViewed(album.getId());
+        Mockito.verify(this.albumPopularity, Mockito.never()).albumViewed(unknownAlbumId);
+    }
+
+    @Test
+    void test_exportPagesUntilLastPartialPage() {
+
+        Album album_1 = new Album(UUID.fromString("1ca3e093-c2c1-4fa9-b144-4f9d139f23b9"), "Southern Fashion", "The Sudden Passion", "2012", null);
+        Album album_2 = new Album(UUID.fromString("569e7607-94ef-4c59-9d4f-fe99bd5def5e"), "Exile", "Geoffrey Oryema", "1990", null);
+        Album album_3 = new Album(UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c"), "Fluffy Vs. Phantasmic", "Fluffy", "1996", null);
+
+        // first page is full, second one is partial
+        Mockito.when(this.elasticsearchOperations.search(any(Query.class), eq(Album.class), any()))
+                .thenReturn(toSearchHits(album_1, album_2))
+                .thenReturn(toSearchHits(album_3));
+
+        List<Album> exported = new ArrayList<>();
+        String cursor = this.albumService.exportAll(null, 2, null, exported::addAll);
+
+        assertEquals(3, exported.size());
+        assertNull(cursor);
+    }
+
+    @Test
+    void test_exportReturnsCursorWhenLimitReached() {
+
+        Album album_1 = new Album(UUID.fromString("1ca3e093-c2c1-4fa9-b144-4f9d139f23b9"), "Southern Fashion", "The Sudden Passion", "2012", null);
+        Album album_2 = new Album(UUID.fromString("569e7607-94ef-4c59-9d4f-fe99bd5def5e"), "Exile", "Geoffrey Oryema", "1990", null);
+
+        Mockito.when(this.elasticsearchOperations.search(any(Query.class), eq(Album.class), any()))
+                .thenReturn(toSearchHits(album_1, album_2));
+
+        List<Album> exported = new ArrayList<>();
+        String cursor = this.albumService.exportAll(null, 10, 2L, exported::addAll);
+
+        assertEquals(2, exported.size());
+        assertEquals(album_2.getId().toString(), cursor);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void test_listenersWarmedUpFromSnapshotWithoutReadingIndex(@TempDir Path directory) throws IOException {
+        AlbumChangeListener listener = Mockito.mock(AlbumChangeListener.class);
+        AlbumService service = new AlbumService(this.albumRepository, this.elasticsearchOperations, new AlbumCache(this.albumRepository, 100),
+                new ElasticAlbumSearchBackend(this.elasticsearchOperations, 10000), List.of(listener), new AlbumWriteLog(), this.albumPopularity, 2,
+                new SimpleMeterRegistry());
+        Album album = new Album(UUID.fromString("569e7607-94ef-4c59-9d4f-fe99bd5def5e"), "Exile", "Geoffrey Oryema", "1990", null);
+        Path path = directory.resolve("albums.snapshot");
+        AlbumSnapshot.write(path, "albums-1", List.of(album));
+
+        service.warmUpListeners(AlbumSnapshot.open(path));
+        // the live generation is the one of the snapshot
+        service.warmUpListeners("albums-1");
+
+        ArgumentCaptor<Iterable<Album>> saved = ArgumentCaptor.forClass(Iterable.class);
+        Mockito.verify(listener).onAlbumsSaved(saved.capture());
+        assertEquals(album.getId(), saved.getValue().iterator().next().getId());
+        Mockito.verify(this.elasticsearchOperations, Mockito.never()).search(any(Query.class), eq(Album.class), any());
+
+        // another live generation, the listeners are fed again from the index
+        Mockito.when(this.elasticsearchOperations.search(any(Query.class), eq(Album.class), any())).thenReturn(toSearchHits());
+        service.warmUpListeners("albums-2");
+        Mockito.verify(listener).onAllAlbumsDeleted();
+        Mockito.verify(this.elasticsearchOperations).search(any(Query.class), eq(Album.class), any());
+    }
+
+    @Test
+    void test_fullSearchPageReturnsCursorOfLastHit() {
+
+        Album album_1 = new Album(UUID.fromString("1ca3e093-c2c1-4fa9-b144-4f9d139f23b9"), "Southern Fashion", "The Sudden Passion", "2012", null);
+        Album album_2 = new Album(UUID.fromString("569e7607-94ef-4c59-9d4f-fe99bd5def5e"), "Exile", "Geoffrey Oryema", "1990", null);
+
+        Mockito.when(this.elasticsearchOperations.search(any(Query.class), eq(Album.class), any()))
+                .thenReturn(toSearchHits(album_1, album_2));
+
+        // page size is capped to 2 by the service configuration
+        AlbumSearchPage page = this.albumService.freeTextSearch("fashion", 0, 50, null);
+
+        assertEquals(2, page.getSize());
+        assertEquals(2, page.getAlbums().size());
+        assertEquals("eq", page.getTotalHitsRelation());
+        assertEquals(album_2.getId().toString(), SearchCursor.decode(page.getNextCursor()).getAlbumId());
+    }
+
+    @Test
+    void test_deepPageWithoutCursorRejected() {
+
+        assertThrows(InvalidRequestException.class, () -> this.albumService.freeTextSearch("fashion", 5000, 2, null));
+        assertThrows(InvalidRequestException.class, () -> this.albumService.freeTextSearch("fashion", 1, 2, "cursor"));
+        assertThrows(InvalidRequestException.class, () -> this.albumService.freeTextSearch("fashion", Integer.MAX_VALUE, 2, null));
+    }
+
+    @Test
+    void test_facetedSearchFiltersAndMapsFacets() {
+
+        Album album_2 = new Album(UUID.fromString("569e7607-94ef-4c59-9d4f-fe99bd5def5e"), "Exile", "Geoffrey Oryema", "1990", null);
+        Album album_3 = new Album(UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c"), "Fluffy Vs. Phantasmic", "Fluffy", "1996", null);
+
+        Aggregations aggregations = new Aggregations(List.of(
+                aggregation(Histogram.class, "decades", bucket(1990.0, 2)),
+                aggregation(Histogram.class, "years", bucket(1990.0, 1), bucket(1996.0, 1)),
+                aggregation(Terms.class, "artists", bucket("Fluffy", 1), bucket("Geoffrey Oryema", 1))));
+        List<SearchHit<Album>> hits = List.of(album_2, album_3).stream()
+                .map(album -> new SearchHit<>("albums", album.getId().toString(), null, 1.0f, null, Collections.emptyMap(), null, null, null, null, album))
+                .collect(Collectors.toList());
+
+        ArgumentCaptor<Query> query = ArgumentCaptor.forClass(Query.class);
+        Mockito.when(this.elasticsearchOperations.search(query.capture(), eq(Album.class), any()))
+                .thenReturn(new SearchHitsImpl<>(2, TotalHitsRelation.EQUAL_TO, 1.0f, null, hits, new ElasticsearchAggregations(aggregations), null));
+
+        AlbumFacetPage page = this.albumService.facetedSearch(null, 1990, 1999, List.of("Fluffy", "Geoffrey Oryema"), "-releaseYear", 0, 2, 10);
+
+        assertEquals(2, page.getAlbums().size());
+        assertEquals("1990", page.getDecades().get(0).getKey());
+        assertEquals(2, page.getDecades().get(0).getCount());
+        assertEquals(List.of("1990", "1996"), page.getYears().stream().map(bucket -> bucket.getKey()).collect(Collectors.toList()));
+        assertEquals("Fluffy", page.getArtists().get(0).getKey());
+
+        // year range and artists are filters, not scored clauses
+        BoolQueryBuilder boolQuery = (BoolQueryBuilder) ((NativeSearchQuery) query.getValue()).getQuery();
+        assertEquals(2, boolQuery.filter().size());
+        assertTrue(boolQuery.filter().get(0) instanceof RangeQueryBuilder);
+        assertTrue(boolQuery.filter().get(1) instanceof TermsQueryBuilder);
+    }
+
+    @Test
+    void test_facetedSearchInvalidParametersRejected() {
+
+        assertThrows(InvalidRequestException.class, () -> this.albumService.facetedSearch(null, 2000, 1990, null, null, 0, 2, 10));
+        assertThrows(InvalidRequestException.class, () -> this.albumService.facetedSearch(null, null, null, null, "title", 0, 2, 10));
+    }
+
+    private static <A extends MultiBucketsAggregation> Aggregation aggregation(Class<A> type, String name,
+            MultiBucketsAggregation.Bucket... buckets) {
+        A aggregation = Mockito.mock(type);
+        Mockito.when(aggregation.getName()).thenReturn(name);
+        Mockito.doReturn(List.of(buckets)).when(aggregation).getBuckets();
+        return aggregation;
+    }
+
+    private static MultiBucketsAggregation.Bucket bucket(Object key, long count) {
+        MultiBucketsAggregation.Bucket bucket = Mockito.mock(MultiBucketsAggregation.Bucket.class);
+        Mockito.when(bucket.getKey()).thenReturn(key);
+        Mockito.when(bucket.getKeyAsString()).thenReturn(String.valueOf(key));
+        Mockito.when(bucket.getDocCount()).thenReturn(count);
+        return bucket;
+    }
+
+    private static SearchHits<Album> toSearchHits(Album... albums) {
+        List<SearchHit<Album>> hits = List.of(albums).stream()
+                .map(album -> new SearchHit<>("albums", album.getId().toString(), null, 1.0f, null, Collections.emptyMap(), null, null, null, null, album))
+                .collect(Collectors.toList());
+
+        return new SearchHitsImpl<>(hits.size(), TotalHitsRelation.EQUAL_TO, 1.0f, null, hits, null, null);
+    }
+
 }
@@ -1,8 +1,18 @@
 package com.halj.music.library.service;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
-
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -18,11 +28,26 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
-
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.halj.music.library.bitmap.AlbumOrdinals;
+import com.halj.music.library.cache.AlbumCache;
+import com.halj.music.library.cache.UserCache;
+import com.halj.music.library.exception.InvalidRequestException;
+import com.halj.music.library.journal.LibraryJournal;
+import com.halj.music.library.model.AlbumOwnerPage;
+import com.halj.music.library.model.LibraryDelta;
 import com.halj.music.library.model.User;
 import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.recommend.AlbumRecommender;
+import com.halj.music.library.recommend.SimilarUserIndex;
+import com.halj.music.library.repository.UserLibraryRepository;
+import com.halj.music.library.repository.UserRepository;
 import com.halj.music.library.repository.elastic.AlbumRepository;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 /**
  * 
  * @author halj
@@ -36,8 +61,37 @@ class LibraryServiceTest {
 
         @Bean
         @Primary
-        public LibraryService playerService(UserService userService, AlbumRepository albumRepository) {
-            return new LibraryService(userService, albumRepository);
+        public AlbumOrdinals albumOrdinals() {
+            return new AlbumOrdinals();
+        }
+
+        @Bean
+        @Primary
+        public UserCache userCache(UserRepository userRepository, UserLibraryRepository userLibraryRepository,
+                AlbumOrdinals albumOrdinals) {
+            return new UserCache(userRepository, userLibraryRepository, albumOrdinals, 100, Duration.ofMinutes(10));
+        }
+
+        @Bean
+        @Primary
+        public LibraryJournal libraryJournal(UserCache userCache, UserRepository userRepository,
+                UserLibraryRepository userLibraryRepository, AlbumOrdinals albumOrdinals, AlbumPopularity albumPopularity,
+                PlatformTransactionManager transactionManager) throws IOException {
+            // write-behind disabled, changes are written directly
+            return new LibraryJournal(userCache, userRepository, userLibraryRepository, albumOrdinals, albumPopularity,
+                    List.of(), transactionManager, false, Path.of("journal"), Duration.ofMillis(100), 1000, 10000, false);
+        }
+
+        @Bean
+        @Primary
+        public LibraryService playerService(UserService userService, AlbumRepository albumRepository,
+                UserLibraryRepository userLibraryRepository, UserCache userCache, AlbumOrdinals albumOrdinals,
+                AlbumPopularity albumPopularity, AlbumRecommender albumRecommender, SimilarUserIndex similarUserIndex,
+                List<LibraryChangeListener> libraryChangeListeners, LibraryJournal libraryJournal,
+                PlatformTransactionManager transactionManager) {
+            return new LibraryService(userService, new AlbumCache(albumRepository, 100), userLibraryRepository,
+                    userCache, albumOrdinals, albumPopularity, albumRecommender, similarUserIndex, libraryChangeListeners,
+                    libraryJournal, transactionManager, new SimpleMeterRegistry());
         }
 
     }
@@ -49,6 +103,30 @@ class LibraryServiceTest {
     @MockBean
     AlbumRepository albumRepository;
 
+    @MockBean
+    UserRepository userRepository;
+
+    @MockBean
+    UserLibraryRepository userLibraryRepository;
+
+    @MockBean
+    AlbumPopularity albumPopularity;
+
+    @MockBean
+    AlbumRecommender albumRecommender;
+
+    @MockBean
+    SimilarUserIndex similarUserIndex;
+
+    @MockBean
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    UserCache userCache;
+
+    @Autowired
+    AlbumOrdinals albumOrdinals;
+
     // target class to be tested
     @Autowired
     LibraryService libraryService;
@@ -59,11 +137,45 @@ class LibraryServiceTest {
 
     @BeforeEach
     public void setUp() {
+        // libraries cached by a previous test
+        this.userCache.invalidateAll();
+
+        // libraries are iterated by album ordinal
+        this.albumOrdinals.getOrdinal(ALBUM_ID_1);
+        this.albumOrdinals.getOrdinal(ALBUM_ID_2);
+
         User userJohn = new User(USER_ID_1, "john", "john@email.com");
 
         Mockito.when(this.userService.getUser(USER_ID_1))
                 .thenReturn(userJohn);
 
+        // user_library rows of the mocked user
+        Set<UUID> mockedRows = userJohn.getAlbumIds();
+        Mockito.when(this.userLibraryRepository.findAlbumIds(anyLong()))
+                .thenAnswer(invocation -> new HashSet<>(mockedRows));
+        Mockito.when(this.userLibraryRepository.countAlbums(anyLong()))
+                .thenAnswer(invocation -> (long) mockedRows.size());
+        Mockito.when(this.userLibraryRepository.addAlbums(anyLong(), anyCollection()))
+                .thenAnswer(invocation -> {
+                    List<UUID> added = new ArrayList<>();
+                    for (UUID albumId : invocation.<Collection<UUID>> getArgument(1)) {
+                        if (mockedRows.add(albumId)) {
+                            added.add(albumId);
+                        }
+                    }
+                    return added;
+                });
+        Mockito.when(this.userLibraryRepository.removeAlbums(anyLong(), anyCollection()))
+                .thenAnswer(invocation -> {
+                    List<UUID> removed = new ArrayList<>();
+                    for (UUID albumId : invocation.<Collection<UUID>> getArgument(1)) {
+                        if (mockedRows.remove(albumId)) {
+                            removed.add(albumId);
+                        }
+                    }
+                    return removed;
+                });
+
         // mock album 1 in user library
         {
             // reset mocked data
@@ -175,6 +287,82 @@ class LibraryServiceTest {
 
     }
 
+    @Test
+    void test_addAndRemoveAlbumsReturnDelta() {
+
+        // put album 1 in library
+        this.libraryService.addAlbum(ALBUM_ID_1, USER_ID_1);
+
+        // only album 2 is actually added
+        LibraryDelta delta = this.libraryService.addAlbums(List.of(ALBUM_ID_1, ALBUM_ID_2), USER_ID_1);
+        assertEquals(List.of(ALBUM_ID_2), delta.getAdded());
+        assertTrue(delta.getRemoved().isEmpty());
+        assertEquals(2, delta.getSize());
+
+        // only album 1 is actually removed
+        UUID unknownAlbumId = UUID.randomUUID();
+        delta = this.libraryService.removeAlbums(List.of(ALBUM_ID_1, unknownAlbumId), USER_ID_1);
+        assertTrue(delta.getAdded().isEmpty());
+        assertEquals(List.of(ALBUM_ID_1), delta.getRemoved());
+        assertEquals(1, delta.getSize());
+
+        // only the albums actually added or removed change the popularity
+        Mockito.verify(this.albumPopularity).albumsAdded(eq(List.of(ALBUM_ID_2)));
+        Mockito.verify(this.albumPopularity).albumsRemoved(eq(List.of(ALBUM_ID_1)));
+        Mockito.verify(this.albumRecommender, Mockito.times(3)).onLibraryChanged(USER_ID_1);
+        Mockito.verify(this.similarUserIndex, Mockito.times(3)).onLibraryChanged(USER_ID_1);
+    }
+
+    @Test
+    void test_libraryReadFromCacheUntilChanged() {
+        this.libraryService.addAlbum(ALBUM_ID_1, USER_ID_1);
+
+        // the library is loaded once, then served by the user cache
+        assertEquals(1, toList(this.libraryService.getAlbums(USER_ID_1)).size());
+        assertEquals(1, toList(this.libraryService.getAlbums(USER_ID_1)).size());
+        Mockito.verify(this.userLibraryRepository, Mockito.times(1)).findAlbumIds(eq(USER_ID_1));
+
+        // a library change invalidates it
+        this.libraryService.addAlbum(ALBUM_ID_2, USER_ID_1);
+        assertEquals(2, toList(this.libraryService.getAlbums(USER_ID_1)).size());
+        Mockito.verify(this.userLibraryRepository, Mockito.times(2)).findAlbumIds(eq(USER_ID_1));
+    }
+
+    @Test
+    void test_commonAlbumsAndAlbumsNotIn() {
+        long otherUserId = 2l;
+        Mockito.when(this.userLibraryRepository.findAlbumIds(otherUserId)).thenReturn(Set.of(ALBUM_ID_2));
+        this.libraryService.addAlbums(List.of(ALBUM_ID_1, ALBUM_ID_2), USER_ID_1);
+
+        List<Album> common = toList(this.libraryService.getCommonAlbums(USER_ID_1, otherUserId));
+        assertEquals(1, common.size());
+        assertEquals(ALBUM_ID_2, common.get(0).getId());
+
+        List<Album> notIn = toList(this.libraryService.getAlbumsNotIn(USER_ID_1, otherUserId));
+        assertEquals(1, notIn.size());
+        assertEquals(ALBUM_ID_1, notIn.get(0).getId());
+
+        assertTrue(toList(this.libraryService.getAlbumsNotIn(otherUserId, USER_ID_1)).isEmpty());
+    }
+
+    @Test
+    void test_ownersPagedByCursor() {
+        Mockito.when(this.userLibraryRepository.findOwners(ALBUM_ID_1, null, 2)).thenReturn(List.of(1l, 4l));
+        Mockito.when(this.userLibraryRepository.findOwners(ALBUM_ID_1, 4l, 2)).thenReturn(List.of(7l));
+        Mockito.when(this.userLibraryRepository.countOwners(ALBUM_ID_1)).thenReturn(3l);
+
+        AlbumOwnerPage page = this.libraryService.getOwners(ALBUM_ID_1, null, 2);
+        assertEquals(List.of(1l, 4l), page.getUserIds());
+        assertEquals(3, page.getTotalOwners());
+        assertEquals(4l, page.getNextCursor());
+
+        page = this.libraryService.getOwners(ALBUM_ID_1, page.getNextCursor(), 2);
+        assertEquals(List.of(7l), page.getUserIds());
+        assertNull(page.getNextCursor());
+
+        assertThrows(InvalidRequestException.class, () -> this.libraryService.getOwners(ALBUM_ID_1, null, 0));
+    }
+
     private static List<Album> toList(Iterable<Album> iterable) {
         List<Album> albums = new ArrayList<>();
         iterable.forEach(albums::add);
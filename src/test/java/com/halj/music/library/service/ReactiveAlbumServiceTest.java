@@ -0,0 +1,181 @@
+package com.halj.music.library.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.ReactiveElasticsearchOperations;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.elasticsearch.core.SearchHit;
+import org.springframework.data.elasticsearch.core.SearchHitSupport;
+import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.SearchHitsImpl;
+import org.springframework.data.elasticsearch.core.TotalHitsRelation;
+import org.springframework.data.elasticsearch.core.mapping.IndexCoordinates;
+import org.springframework.data.elasticsearch.core.query.Query;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+
+import com.halj.music.library.cache.AlbumCache;
+import com.halj.music.library.exception.InvalidRequestException;
+import com.halj.music.library.model.AlbumSearchPage;
+import com.halj.music.library.model.SearchCursor;
+import com.halj.music.library.model.elastic.Album;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.repository.elastic.AlbumRepository;
+import com.halj.music.library.search.ElasticAlbumSearchBackend;
+import com.halj.music.library.search.EmbeddedAlbumSearchBackend;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+
+@ExtendWith(SpringExtension.class)
+class ReactiveAlbumServiceTest {
+
+    @TestConfiguration
+    static class ReactiveAlbumServiceTestContextConfiguration {
+
+        @Bean
+        public AlbumCache albumCache(AlbumRepository albumRepository) {
+            return new AlbumCache(albumRepository, 100);
+        }
+
+        @Bean
+        public AlbumService albumService(AlbumRepository albumRepository, ElasticsearchOperations elasticsearchOperations,
+                AlbumCache albumCache, AlbumPopularity albumPopularity) {
+            return new AlbumService(albumRepository,
+                    elasticsearchOperations,
+                    albumCache,
+                    new ElasticAlbumSearchBackend(elasticsearchOperations, 10000),
+                    Collections.emptyList(),
+                    new AlbumWriteLog(),
+                    albumPopularity,
+                    2,
+                    new SimpleMeterRegistry());
+        }
+
+        @Bean
+        @Primary
+        public ReactiveAlbumService reactiveAlbumService(ReactiveElasticsearchOperations reactiveElasticsearchOperations,
+                ElasticsearchOperations elasticsearchOperations, AlbumService albumService, AlbumCache albumCache,
+                AlbumPopularity albumPopularity) {
+            return new ReactiveAlbumService(reactiveElasticsearchOperations, albumService, albumCache, albumPopularity,
+                    new ElasticAlbumSearchBackend(elasticsearchOperations, 10000));
+        }
+
+    }
+
+    // Mock Elasticsearch clients
+    @MockBean
+    ReactiveElasticsearchOperations reactiveElasticsearchOperations;
+
+    @MockBean
+    ElasticsearchOperations elasticsearchOperations;
+
+    @MockBean
+    AlbumPopularity albumPopularity;
+
+    @MockBean
+    AlbumRepository albumRepository;
+
+    @Autowired
+    AlbumCache albumCache;
+
+    @Autowired
+    AlbumService albumService;
+
+    // target class to be tested
+    @Autowired
+    ReactiveAlbumService reactiveAlbumService;
+
+    private static final Album ALBUM_1 = new Album(UUID.fromString("1ca3e093-c2c1-4fa9-b144-4f9d139f23b9"), "Southern Fashion", "The Sudden Passion", "2012", null);
+    private static final Album ALBUM_2 = new Album(UUID.fromString("569e7607-94ef-4c59-9d4f-fe99bd5def5e"), "Exile", "Geoffrey Oryema", "1990", null);
+
+    @Test
+    void test_getAlbumLoadedOnceThenCached() {
+        this.albumCache.invalidateAll();
+        Mockito.when(this.reactiveElasticsearchOperations.get(eq(ALBUM_1.getId().toString()), eq(Album.class), any(IndexCoordinates.class)))
+                .thenReturn(Mono.just(ALBUM_1));
+
+        assertEquals(ALBUM_1, this.reactiveAlbumService.getAlbum(ALBUM_1.getId()).block());
+        assertEquals(ALBUM_1, this.reactiveAlbumService.getAlbum(ALBUM_1.getId()).block());
+
+        Mockito.verify(this.reactiveElasticsearchOperations, Mockito.times(1)).get(eq(ALBUM_1.getId().toString()), eq(Album.class), any(IndexCoordinates.class));
+    }
+
+    @Test
+    void test_searchPageHitsInOrder() {
+        mockSearchPage(120, TotalHitsRelation.EQUAL_TO, toSearchHit(ALBUM_1, 2.0f), toSearchHit(ALBUM_2, 1.0f));
+
+        AlbumSearchPage results = this.reactiveAlbumService.freeTextSearch("exile", 0, 50, null).block();
+
+        assertEquals(List.of(ALBUM_1, ALBUM_2), results.getAlbums());
+        assertEquals(120, results.getTotalHits());
+        assertEquals("eq", results.getTotalHitsRelation());
+    }
+
+    @Test
+    void test_searchFullPageReturnsCursorAndTracksTotalHits() {
+        mockSearchPage(10000, TotalHitsRelation.GREATER_THAN_OR_EQUAL_TO, toSearchHit(ALBUM_1, 2.0f), toSearchHit(ALBUM_2, 1.0f));
+
+        AlbumSearchPage results = this.reactiveAlbumService.freeTextSearch("exile", 0, 2, null).block();
+
+        assertEquals("gte", results.getTotalHitsRelation());
+        assertEquals(new SearchCursor(1.0f, ALBUM_2.getId().toString()).encode(), results.getNextCursor());
+
+        // the next page is fetched with search_after from the cursor
+        this.reactiveAlbumService.freeTextSearch("exile", 0, 2, results.getNextCursor()).block();
+
+        ArgumentCaptor<Query> queryCaptor = ArgumentCaptor.forClass(Query.class);
+        Mockito.verify(this.reactiveElasticsearchOperations, Mockito.times(2)).searchForPage(queryCaptor.capture(), eq(Album.class), any(IndexCoordinates.class));
+        assertEquals(10000, queryCaptor.getValue().getTrackTotalHitsUpTo());
+        assertEquals(List.of(1.0f, ALBUM_2.getId().toString()), queryCaptor.getValue().getSearchAfter());
+    }
+
+    @Test
+    void test_searchRoutedToEmbeddedBackend() {
+        EmbeddedAlbumSearchBackend embeddedBackend = new EmbeddedAlbumSearchBackend(Mockito.mock(ElasticsearchOperations.class));
+        embeddedBackend.onAlbumsSaved(List.of(ALBUM_1, ALBUM_2));
+        ReactiveAlbumService embeddedService = new ReactiveAlbumService(this.reactiveElasticsearchOperations, this.albumService,
+                this.albumCache, this.albumPopularity, embeddedBackend);
+
+        AlbumSearchPage results = embeddedService.freeTextSearch("exile", 0, 50, null).block();
+
+        assertEquals(List.of(ALBUM_2), results.getAlbums());
+        assertEquals(1, results.getTotalHits());
+        assertNull(results.getNextCursor());
+        Mockito.verify(this.reactiveElasticsearchOperations, Mockito.never()).searchForPage(any(Query.class), eq(Album.class), any(IndexCoordinates.class));
+    }
+
+    @Test
+    void test_searchWindowChecked() {
+        assertThrows(InvalidRequestException.class, () -> this.reactiveAlbumService.freeTextSearch("exile", -1, 10, null));
+    }
+
+    @SafeVarargs
+    private void mockSearchPage(long totalHits, TotalHitsRelation relation, SearchHit<Album>... hits) {
+        SearchHits<Album> searchHits = new SearchHitsImpl<>(totalHits, relation, 2.0f, null, List.of(hits), null, null);
+        Mockito.when(this.reactiveElasticsearchOperations.searchForPage(any(Query.class), eq(Album.class), any(IndexCoordinates.class)))
+                .thenReturn(Mono.just(SearchHitSupport.searchPageFor(searchHits, Pageable.unpaged())));
+    }
+
+    private static SearchHit<Album> toSearchHit(Album album, float score) {
+        return new SearchHit<>("albums", album.getId().toString(), null, score, null, Collections.emptyMap(), null, null, null, null, album);
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.halj.music.library.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.validation.Validation;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.halj.music.library.cache.UserCache;
+import com.halj.music.library.model.User;
+import com.halj.music.library.model.UserImportJob;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.repository.UserImportRepository;
+import com.halj.music.library.repository.UserLibraryRepository;
+
+@ExtendWith(SpringExtension.class)
+class UserImportServiceTest {
+
+    @TestConfiguration
+    static class UserImportServiceTestContextConfiguration {
+
+        @Bean
+        @Primary
+        public UserImportService userImportService(UserImportRepository userImportRepository, UserLibraryRepository userLibraryRepository,
+                UserCache userCache, AlbumPopularity albumPopularity, LibraryChangeListener libraryChangeListener,
+                PlatformTransactionManager transactionManager) {
+            // chunks of 2 users, written one at a time
+            return new UserImportService(userImportRepository, userLibraryRepository, userCache, albumPopularity,
+                    List.of(libraryChangeListener), new ObjectMapper(), Validation.buildDefaultValidatorFactory().getValidator(),
+                    transactionManager, 2, 1, 1, Duration.ofHours(1));
+        }
+
+    }
+
+    @MockBean
+    UserImportRepository userImportRepository;
+
+    @MockBean
+    UserLibraryRepository userLibraryRepository;
+
+    @MockBean
+    UserCache userCache;
+
+    @MockBean
+    AlbumPopularity albumPopularity;
+
+    @MockBean
+    LibraryChangeListener libraryChangeListener;
+
+    @MockBean
+    PlatformTransactionManager transactionManager;
+
+    // target class to be tested
+    @Autowired
+    UserImportService userImportService;
+
+    private static final UUID ALBUM_1 = UUID.fromString("c26e1aa2-b52c-4cb0-a907-15a2e323960d");
+    private static final UUID ALBUM_2 = UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c");
+
+    // emails already used in the mocked user table
+    private Set<String> emails = new HashSet<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        long[] nextId = { 1 };
+        Mockito.when(this.userImportRepository.insertUsers(anyList())).thenAnswer(invocation -> {
+            List<User> users = invocation.getArgument(0);
+            boolean[] inserted = new boolean[users.size()];
+            for (int i = 0; i < users.size(); i++) {
+                users.get(i).setId(nextId[0]++);
+                inserted[i] = this.emails.add(users.get(i).getEmail());
+            }
+            return inserted;
+        });
+        Mockito.when(this.userLibraryRepository.insertLibraries(anyMap())).thenAnswer(invocation -> {
+            Map<Long, Set<UUID>> libraries = invocation.getArgument(0);
+            return libraries.values().stream().mapToLong(Set::size).sum();
+        });
+    }
+
+    @Test
+    void test_ndjsonImportedInChunks() throws IOException {
+
+        this.emails.add("taken@email.com");
+        UserImportJob job = importUsers(UserImportService.Format.NDJSON,
+                "{\"name\":\"john\",\"email\":\"john@email.com\",\"albumIds\":[\"" + ALBUM_1 + "\",\"" + ALBUM_2 + "\"]}\n"
+                + "{\"name\":\"jane\",\"email\":\"taken@email.com\"}\n"
+                + "{\"name\":\"jim\",\"email\":\"jim@email.com\",\"albumIds\":[\"" + ALBUM_1 + "\"]}\n"
+                + "{\"name\":\"joe\",\"email\":\"john@email.com\"}\n");
+
+        assertEquals(4, job.getProcessed());
+        assertEquals(2, job.getImported());
+        assertEquals(3, job.getAlbums());
+        assertEquals(2, job.getDuplicates());
+        assertEquals(List.of("record 2: duplicate email taken@email.com", "record 4: duplicate email john@email.com"), job.getErrors());
+        // 2 chunks: [john, jane] and [jim, joe]
+        Mockito.verify(this.userImportRepository, Mockito.times(2)).insertUsers(anyList());
+        Mockito.verify(this.albumPopularity, Mockito.times(2)).albumsAdded(Mockito.anyCollection());
+        // owner counts written with each chunk, imported users evicted from the cache
+        Mockito.verify(this.userLibraryRepository).addOwners(Map.of(ALBUM_1, 1, ALBUM_2, 1));
+        Mockito.verify(this.userLibraryRepository).addOwners(Map.of(ALBUM_1, 1));
+        Mockito.verify(this.userCache).invalidate(1L);
+        Mockito.verify(this.userCache).invalidate(3L);
+        Mockito.verify(this.userCache, Mockito.times(2)).invalidate(Mockito.anyLong());
+        Mockito.verify(this.libraryChangeListener, Mockito.times(1)).onAllLibrariesChanged();
+    }
+
+    @Test
+    void test_csvInvalidRecordsReported() throws IOException {
+
+        UserImportJob job = importUsers(UserImportService.Format.CSV,
+                "name,email,albumIds\n"
+                + "john,john@email.com," + ALBUM_1 + ";" + ALBUM_2 + "\n"
+                + "\"Doe, Jane\",jane@email.com\n"
+                + "\n"
+                + "jim,not-an-email,\n"
+                + "joe,joe@email.com,not-an-album\n"
+                + "\"jack,jack@email.com\n");
+
+        assertEquals(5, job.getProcessed());
+        assertEquals(2, job.getImported());
+        assertEquals(2, job.getAlbums());
+        assertEquals(3, job.getInvalid());
+        assertEquals(List.of("record 3: email Email is not valid", "record 4: invalid album id not-an-album",
+                "record 5: unterminated quoted field"), job.getErrors());
+    }
+
+    @Test
+    void test_failedChunkCounted() throws IOException {
+
+        Mockito.when(this.userLibraryRepository.insertLibraries(anyMap())).thenThrow(new IllegalStateException("connection lost"));
+
+        UserImportJob job = importUsers(UserImportService.Format.CSV,
+                "john,john@email.com," + ALBUM_1 + "\njane,jane@email.com\njim,jim@email.com\n");
+
+        assertEquals(0, job.getImported());
+        assertEquals(3, job.getFailed());
+        Mockito.verify(this.userLibraryRepository, Mockito.never()).addOwners(anyMap());
+        Mockito.verify(this.libraryChangeListener, Mockito.never()).onAllLibrariesChanged();
+    }
+
+    @Test
+    void test_chunkConflictingWithConcurrentWriterWrittenAgain() throws IOException {
+
+        // the first attempt is rolled back, its user with it
+        Mockito.when(this.userLibraryRepository.insertLibraries(anyMap()))
+                .thenAnswer(invocation -> {
+                    this.emails.remove("john@email.com");
+                    throw new DuplicateKeyException("owner count inserted by a concurrent chunk");
+                })
+                .thenReturn(1L);
+
+        UserImportJob job = importUsers(UserImportService.Format.CSV, "john,john@email.com," + ALBUM_1 + "\n");
+
+        assertEquals(1, job.getImported());
+        assertEquals(0, job.getFailed());
+        Mockito.verify(this.userImportRepository, Mockito.times(2)).insertUsers(anyList());
+    }
+
+    @Test
+    void test_csvLineParsed() {
+
+        User user = UserImportService.parseCsv("\"John \"\"Jr\"\" Doe\", john@email.com , " + ALBUM_1 + " " + ALBUM_2);
+
+        assertEquals("John \"Jr\" Doe", user.getName());
+        assertEquals("john@email.com", user.getEmail());
+        assertEquals(Set.of(ALBUM_1, ALBUM_2), user.getAlbumIds());
+        assertThrows(IllegalArgumentException.class, () -> UserImportService.parseCsv("john"));
+        assertTrue(UserImportService.parseCsv("john,john@email.com").getAlbumIds().isEmpty());
+    }
+
+    private UserImportJob importUsers(final UserImportService.Format format, final String upload) throws IOException {
+        UserImportJob job = new UserImportJob(UUID.randomUUID());
+        job.start();
+        this.userImportService.importUsers(toStream(upload), format, job);
+        job.complete();
+        return job;
+    }
+
+    private static InputStream toStream(final String value) {
+        return new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
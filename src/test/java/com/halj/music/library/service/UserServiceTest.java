@@ -1,10 +1,18 @@
 package com.halj.music.library.service;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mockito;
@@ -13,9 +21,22 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Primary;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.PlatformTransactionManager;
 
+import com.halj.music.library.bitmap.AlbumOrdinals;
+import com.halj.music.library.cache.UserCache;
+import com.halj.music.library.exception.InvalidRequestException;
 import com.halj.music.library.exception.UserNotFoundException;
+import com.halj.music.library.journal.LibraryJournal;
+import com.halj.music.library.model.User;
+import com.halj.music.library.model.UserSummary;
+import com.halj.music.library.popularity.AlbumPopularity;
+import com.halj.music.library.repository.UserLibraryRepository;
 import com.halj.music.library.repository.UserRepository;
 
 @ExtendWith(SpringExtension.class)
@@ -26,8 +47,26 @@ class UserServiceTest {
 
         @Bean
         @Primary
-        public UserService userService(UserRepository userRepository) {
-            return new UserService(userRepository);
+        public UserCache userCache(UserRepository userRepository, UserLibraryRepository userLibraryRepository) {
+            return new UserCache(userRepository, userLibraryRepository, new AlbumOrdinals(), 100, Duration.ofMinutes(10));
+        }
+
+        @Bean
+        @Primary
+        public LibraryJournal libraryJournal(UserCache userCache, UserRepository userRepository,
+                UserLibraryRepository userLibraryRepository, AlbumPopularity albumPopularity,
+                PlatformTransactionManager transactionManager) throws IOException {
+            // write-behind disabled, users are read from the cache
+            return new LibraryJournal(userCache, userRepository, userLibraryRepository, new AlbumOrdinals(), albumPopularity,
+                    List.of(), transactionManager, false, Path.of("journal"), Duration.ofMillis(100), 1000, 10000, false);
+        }
+
+        @Bean
+        @Primary
+        public UserService userService(UserRepository userRepository, UserLibraryRepository userLibraryRepository,
+                UserCache userCache, LibraryChangeListener libraryChangeListener, LibraryJournal libraryJournal) {
+            return new UserService(userRepository, userLibraryRepository, userCache, List.of(libraryChangeListener),
+                    libraryJournal);
         }
 
     }
@@ -36,9 +75,30 @@ class UserServiceTest {
     @MockBean
     UserRepository userRepository;
 
+    @MockBean
+    LibraryChangeListener libraryChangeListener;
+
+    @MockBean
+    UserLibraryRepository userLibraryRepository;
+
+    @MockBean
+    AlbumPopularity albumPopularity;
+
+    @MockBean
+    PlatformTransactionManager transactionManager;
+
+    @Autowired
+    UserCache userCache;
+
     @Autowired
     UserService userService;
 
+    @BeforeEach
+    public void setUp() {
+        // users cached by a previous test
+        this.userCache.invalidateAll();
+    }
+
     @Test
     void test_delete_exceptionThrownWhenUserNotExist() {
         Mockito.when(this.userRepository.existsById(any())).thenReturn(false);
@@ -53,4 +113,59 @@ class UserServiceTest {
         assertThrows(UserNotFoundException.class, () -> this.userService.getUser(1l));
     }
 
+    @Test
+    void test_getUserSummaries_pageOfSummaries() {
+        Pageable pageable = PageRequest.of(1, 2, Sort.by("name"));
+        List<UserSummary> summaries = List.of(new UserSummary(3, "Carol", "carol@mail.com", 12),
+                new UserSummary(4, "Dave", "dave@mail.com", 0));
+        Mockito.when(this.userRepository.findSummaries(pageable)).thenReturn(new PageImpl<>(summaries, pageable, 5));
+
+        assertEquals(summaries, this.userService.getUserSummaries(pageable).getContent());
+        assertEquals(3, this.userService.getUserSummaries(pageable).getTotalPages());
+    }
+
+    @Test
+    void test_getUserSummaries_exceptionThrownWhenSortedByUnknownProperty() {
+        Pageable pageable = PageRequest.of(0, 20, Sort.by("albumIds"));
+
+        assertThrows(InvalidRequestException.class, () -> this.userService.getUserSummaries(pageable));
+        Mockito.verify(this.userRepository, Mockito.never()).findSummaries(any());
+    }
+
+    @Test
+    void test_get_userCachedUntilSaved() {
+        UUID albumId = UUID.randomUUID();
+        Mockito.when(this.userRepository.findById(1l)).thenReturn(Optional.of(new User(1l, "john", "john@email.com")));
+        Mockito.when(this.userLibraryRepository.findAlbumIds(1l)).thenReturn(Set.of(albumId));
+
+        assertEquals(Set.of(albumId), this.userService.getUser(1l).getAlbumIds());
+        this.userService.checkUserExist(1l);
+        assertEquals("john", this.userService.getUser(1l).getName());
+        Mockito.verify(this.userRepository, Mockito.times(1)).findById(1l);
+        Mockito.verify(this.userLibraryRepository, Mockito.times(1)).findAlbumIds(1l);
+
+        // saving the user invalidates it
+        Mockito.when(this.userRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        this.userService.saveUser(1l, new User("johnny", "john@email.com"));
+        Mockito.when(this.userRepository.findById(1l)).thenReturn(Optional.of(new User(1l, "johnny", "john@email.com")));
+
+        assertEquals("johnny", this.userService.getUser(1l).getName());
+        Mockito.verify(this.userRepository, Mockito.times(2)).findById(1l);
+    }
+
+    @Test
+    void test_save_ownerCountsAdjustedByLibraryChange() {
+        UUID kept = UUID.randomUUID();
+        UUID removed = UUID.randomUUID();
+        UUID added = UUID.randomUUID();
+        Mockito.when(this.userRepository.findById(1l)).thenReturn(Optional.of(new User(1l, "john", "john@email.com")));
+        Mockito.when(this.userLibraryRepository.findAlbumIds(1l)).thenReturn(Set.of(kept, removed));
+        Mockito.when(this.userRepository.save(any())).thenAnswer(invocation -> invocation.getArgument(0));
+
+        this.userService.saveUser(1l, new User(1l, "john", "john@email.com", Set.of(kept, added)));
+
+        Mockito.verify(this.userLibraryRepository).addOwners(Set.of(added));
+        Mockito.verify(this.userLibraryRepository).removeOwners(Set.of(removed));
+    }
+
 }
@@ -0,0 +1,109 @@
+package com.halj.music.library.snapshot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.halj.music.library.model.elastic.Album;
+
+class AlbumSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    private static final Album ALBUM_1 = new Album(UUID.fromString("c26e1aa2-b52c-4cb0-a907-15a2e323960d"), "Green Day in America", "Green Day", "1990", "http://covers/1.jpg");
+    private static final Album ALBUM_2 = new Album(UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c"), "Fluffy Vs. Phantasmic", "Fluffy", "", null);
+    private static final Album ALBUM_3 = new Album(UUID.fromString("f0000000-0000-4000-8000-000000000000"), "Dookie", "Green Day", null, "");
+
+    @Test
+    void test_albumsReadBackByIdWithDictionaryEncodedArtists() throws IOException {
+        Path path = this.directory.resolve("albums.snapshot");
+        AlbumSnapshot.write(path, "albums-0123456789abcdef-1", List.of(ALBUM_1, ALBUM_2, ALBUM_3));
+
+        AlbumSnapshot snapshot = AlbumSnapshot.open(path);
+
+        assertEquals("albums-0123456789abcdef-1", snapshot.getGeneration());
+        assertEquals(3, snapshot.size());
+        for (Album expected : List.of(ALBUM_1, ALBUM_2, ALBUM_3)) {
+            Album album = snapshot.get(expected.getId()).orElseThrow();
+            assertEquals(expected.getTitle(), album.getTitle());
+            assertEquals(expected.getArtist(), album.getArtist());
+            assertEquals(expected.getReleaseYear(), album.getReleaseYear());
+            assertEquals(expected.getCoverURL(), album.getCoverURL());
+        }
+        assertNull(snapshot.get(ALBUM_2.getId()).orElseThrow().getCoverURL());
+        assertTrue(snapshot.get(UUID.randomUUID()).isEmpty());
+    }
+
+    @Test
+    void test_albumsIteratedInIdOrder() throws IOException {
+        Path path = this.directory.resolve("albums.snapshot");
+        AlbumSnapshot.write(path, "albums-0123456789abcdef-1", List.of(ALBUM_3, ALBUM_1, ALBUM_2));
+
+        List<String> ids = new ArrayList<>();
+        AlbumSnapshot.open(path).forEach(album -> ids.add(album.getId().toString()));
+
+        // same order as the string form of the ids, Elasticsearch's id sort
+        assertEquals(ids.stream().sorted().collect(Collectors.toList()), ids);
+    }
+
+    @Test
+    void test_popularityStreamedAndReadBack() throws IOException {
+        Path path = this.directory.resolve("albums.snapshot");
+        Album popular = new Album(ALBUM_1.getId(), ALBUM_1.getTitle(), ALBUM_1.getArtist(), ALBUM_1.getReleaseYear(), ALBUM_1.getCoverURL());
+        popular.setPopularity(42L);
+
+        try (AlbumSnapshot.Writer writer = AlbumSnapshot.writer(path, "albums-0123456789abcdef-1")) {
+            writer.add(ALBUM_2);
+            writer.add(popular);
+            writer.add(ALBUM_3);
+            writer.commit();
+        }
+        AlbumSnapshot snapshot = AlbumSnapshot.open(path);
+
+        assertEquals(42L, snapshot.get(ALBUM_1.getId()).orElseThrow().getPopularity());
+        assertNull(snapshot.get(ALBUM_2.getId()).orElseThrow().getPopularity());
+        assertEquals("Green Day", snapshot.get(ALBUM_3.getId()).orElseThrow().getArtist());
+        // only the snapshot is left, the column files are deleted
+        try (Stream<Path> files = Files.list(this.directory)) {
+            assertEquals(List.of(path), files.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void test_albumsOutOfIdOrderRejected() throws IOException {
+        Path path = this.directory.resolve("albums.snapshot");
+
+        try (AlbumSnapshot.Writer writer = AlbumSnapshot.writer(path, "albums-0123456789abcdef-1")) {
+            writer.add(ALBUM_1);
+            assertThrows(IOException.class, () -> writer.add(ALBUM_2));
+        }
+
+        assertFalse(Files.exists(path));
+        try (Stream<Path> files = Files.list(this.directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void test_otherFilesRejected() throws IOException {
+        Path path = Files.writeString(this.directory.resolve("albums.snapshot"), "[{\"title\":\"not a snapshot\"}]");
+
+        assertThrows(IOException.class, () -> AlbumSnapshot.open(path));
+    }
+
+}
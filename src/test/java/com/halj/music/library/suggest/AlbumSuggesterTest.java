@@ -0,0 +1,97 @@
+package com.halj.music.library.suggest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.halj.music.library.model.Suggestion;
+import com.halj.music.library.model.elastic.Album;
+
+class AlbumSuggesterTest {
+
+    private static UUID ALBUM_ID_1 = UUID.fromString("1ca3e093-c2c1-4fa9-b144-4f9d139f23b9");
+    private static UUID ALBUM_ID_2 = UUID.fromString("569e7607-94ef-4c59-9d4f-fe99bd5def5e");
+    private static UUID ALBUM_ID_3 = UUID.fromString("b9930c12-5e79-4cd3-8630-363222983a4c");
+
+    // target class to be tested
+    AlbumSuggester albumSuggester;
+
+    @BeforeEach
+    public void setUp() {
+        this.albumSuggester = new AlbumSuggester(5);
+        this.albumSuggester.onAlbumsSaved(List.of(
+                new Album(ALBUM_ID_1, "Green Day in America", "Green Day", "1990", null),
+                new Album(ALBUM_ID_2, "Dookie", "Green Day", "1994", null),
+                new Album(ALBUM_ID_3, "Greatest Hits", "Fluffy", "1996", null)));
+    }
+
+    @Test
+    void test_mostPopularCompletionFirst() {
+
+        List<Suggestion> suggestions = this.albumSuggester.suggest("gre", null);
+
+        // artist 'Green Day' has 2 albums
+        assertEquals("Green Day", suggestions.get(0).getText());
+        assertEquals(AlbumSuggester.ARTIST, suggestions.get(0).getType());
+        assertEquals(2, suggestions.get(0).getWeight());
+        assertEquals(3, suggestions.size());
+    }
+
+    @Test
+    void test_wordStartsAreCompleted() {
+
+        List<Suggestion> suggestions = this.albumSuggester.suggest("AMER", null);
+
+        assertEquals(1, suggestions.size());
+        assertEquals("Green Day in America", suggestions.get(0).getText());
+    }
+
+    @Test
+    void test_updatedAndDeletedAlbumsWithdrawn() {
+
+        this.albumSuggester.onAlbumsSaved(List.of(new Album(ALBUM_ID_2, "Nimrod", "Green Day", "1997", null)));
+        this.albumSuggester.onAlbumsDeleted(List.of(ALBUM_ID_3));
+
+        assertTrue(this.albumSuggester.suggest("dook", null).isEmpty());
+        assertTrue(this.albumSuggester.suggest("fluf", null).isEmpty());
+        assertEquals("Nimrod", this.albumSuggester.suggest("nim", null).get(0).getText());
+        assertEquals(2, this.albumSuggester.suggest("green", 1).get(0).getWeight());
+    }
+
+    @Test
+    void test_popularAlbumsRankFirst() {
+
+        Album popular = new Album(UUID.randomUUID(), "Green River", "Mudhoney", "1988", null);
+        popular.setPopularity(5L);
+        this.albumSuggester.onAlbumsSaved(List.of(popular));
+
+        List<Suggestion> suggestions = this.albumSuggester.suggest("gre", null);
+
+        // 1 + 5 for the popular album, 1 + 1 for the 2 albums of 'Green Day'
+        assertEquals("Green River", suggestions.get(0).getText());
+        assertEquals(6, suggestions.get(0).getWeight());
+        assertEquals(2, suggestions.get(1).getWeight());
+    }
+
+    @Test
+    void test_weightsFollowPopularityChanges() {
+
+        this.albumSuggester.onPopularityChanged(Map.of(ALBUM_ID_3, 4L));
+
+        assertEquals("Greatest Hits", this.albumSuggester.suggest("gre", null).get(0).getText());
+        assertEquals(5, this.albumSuggester.suggest("fluf", null).get(0).getWeight());
+
+        // a re-saved album keeps its popularity, withdrawn deltas never go below the album itself
+        this.albumSuggester.onAlbumsSaved(List.of(new Album(ALBUM_ID_3, "Greatest Hits", "Fluffy", "1996", null)));
+        assertEquals(5, this.albumSuggester.suggest("fluf", null).get(0).getWeight());
+        this.albumSuggester.onPopularityChanged(Map.of(ALBUM_ID_3, -10L));
+        assertEquals(1, this.albumSuggester.suggest("fluf", null).get(0).getWeight());
+    }
+
+}